@@ -60,6 +60,27 @@ public class Aspirin {
 	 * in milliseconds.
 	 */
 	public static final String HEADER_EXPIRY = "X-Aspirin-Expiry";
+
+	/**
+	 * Name of priority header placed in MimeMessage object. Values are the 
+	 * names of DeliveryPriority lanes: HIGH, NORMAL or BULK. Default priority 
+	 * is NORMAL.
+	 */
+	public static final String HEADER_PRIORITY = "X-Aspirin-Priority";
+
+	/**
+	 * Name of tenant header placed in MimeMessage object. Recipients of 
+	 * different tenants are delivered fairly. If it is not set, the domain of 
+	 * the sender is the tenant.
+	 */
+	public static final String HEADER_TENANT = "X-Aspirin-Tenant";
+
+	/**
+	 * Name of deliver-not-before header placed in MimeMessage object. The 
+	 * recipients are not delivered before this time. Its format is the format 
+	 * of the expiry header. If it is not set, the delivery starts at once.
+	 */
+	public static final String HEADER_DELIVER_AT = "X-Aspirin-Deliver-At";
 	
 
 }
@@ -4,6 +4,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -18,6 +20,7 @@ import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.delivery.DeliveryManager;
 import org.masukomi.aspirin.core.listener.AspirinListener;
 import org.masukomi.aspirin.core.listener.ListenerManager;
+import org.masukomi.aspirin.core.store.queue.DeliveryPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -106,6 +109,81 @@ public class AspirinInternal {
         add(msg);
     }
 
+    /**
+     * Add MimeMessage to deliver it at a later time, for example to queue a
+     * campaign ahead of its sending time.
+     *
+     * @param msg MimeMessage
+     * @param deliverAt The email is not delivered before this time, in epoch
+     * milliseconds.
+     * @throws MessagingException If delivery add failed.
+     */
+    public void addScheduled(MimeMessage msg, long deliverAt) throws MessagingException {
+        helper.setDeliverAt(msg, deliverAt);
+        add(msg);
+    }
+
+    /**
+     * Add MimeMessage to delivery in a priority lane. Use HIGH for
+     * transactional mail and BULK for campaigns, so campaigns could not delay
+     * transactional mail.
+     *
+     * @param msg MimeMessage
+     * @param expiry Expiration of this email in milliseconds from now.
+     * @param priority Priority lane of this email, null means NORMAL.
+     * @throws MessagingException If delivery add failed.
+     */
+    public void add(MimeMessage msg, long expiry, DeliveryPriority priority) throws MessagingException {
+        helper.setPriority(msg, priority);
+        add(msg, expiry);
+    }
+
+    /**
+     * Add one MimeMessage with a large recipient list. The message is stored
+     * once, and the recipients are queued in one queue store operation. The
+     * recipient headers of the message are not used.
+     *
+     * @param msg MimeMessage to deliver.
+     * @param recipients Recipients of this message.
+     * @return Unique Aspirin ID of this email.
+     * @throws MessagingException If delivery add failed.
+     */
+    public String add(MimeMessage msg, Collection<InternetAddress> recipients) throws MessagingException {
+        start();
+        return deliveryManager.add(msg, recipients);
+    }
+
+    /**
+     * Add one template MimeMessage with per-recipient variables, for example
+     * for newsletters. The template is stored once, and it is rendered for
+     * each recipient while sending: the <code>${name}</code> placeholders are
+     * replaced by the variables of the recipient.
+     *
+     * @param template Template MimeMessage to deliver.
+     * @param recipients Template variables by recipient.
+     * @return Unique Aspirin ID of this email.
+     * @throws MessagingException If delivery add failed.
+     * @see org.masukomi.aspirin.core.delivery.TemplateInputStream
+     */
+    public String addBulk(MimeMessage template, Map<InternetAddress, Map<String, String>> recipients) throws MessagingException {
+        start();
+        return deliveryManager.addBulk(template, recipients);
+    }
+
+    /**
+     * Add many MimeMessage objects to deliver them. It is much faster than
+     * adding the messages one by one, so use it for large campaigns.
+     *
+     * @param msgs MimeMessages to deliver.
+     * @return Unique Aspirin IDs of these emails, in the order of the messages.
+     * @throws MessagingException If delivery add failed. In this case none of
+     * the messages is queued.
+     */
+    public List<String> addAll(Collection<MimeMessage> msgs) throws MessagingException {
+        start();
+        return deliveryManager.addAll(msgs);
+    }
+
     /**
      * Add mail delivery status listener.
      *
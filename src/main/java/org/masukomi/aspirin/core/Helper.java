@@ -14,12 +14,17 @@
  */
 package org.masukomi.aspirin.core;
 
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Enumeration;
+import javax.mail.Address;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.queue.DeliveryPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,7 +37,7 @@ public class Helper {
     
     /**
      * Formatter to set expiry header. Please, use this formatter to create or
-     * change a current header.
+     * change a current header. It is not thread safe, so synchronize on it.
      */
     public final SimpleDateFormat expiryFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
     
@@ -51,12 +56,16 @@ public class Helper {
      * MimeMessage header. Please use HEADER_EXPIRY constant as header name.
      */
     public String formatExpiry(Date date) {
-        return expiryFormat.format(date);
+        synchronized (expiryFormat) {
+            return expiryFormat.format(date);
+        }
     }    
     
 
     /**
-     * It gives back expiry value of a message in epoch milliseconds.
+     * It gives back expiry value of a message in epoch milliseconds. Without
+     * an expiry header the configured expiry is counted from the receipt of
+     * the message, or from its deliver-at time, if it is scheduled later.
      *
      * @param message The MimeMessage which expiry is needed.
      * @return Expiry in milliseconds.
@@ -66,7 +75,9 @@ public class Helper {
         try {
             headers = message.getHeader(Aspirin.HEADER_EXPIRY);
             if (headers != null && 0 < headers.length) {
-                return expiryFormat.parse(headers[0]).getTime();
+                synchronized (expiryFormat) {
+                    return expiryFormat.parse(headers[0]).getTime();
+                }
             }
         } catch (Exception e) {
             log.error("Expiration header could not be get from MimeMessage.", e);
@@ -74,26 +85,164 @@ public class Helper {
         if (configuration.getExpiry() == Configuration.NEVER_EXPIRES) {
             return Long.MAX_VALUE;
         }
+        long start = System.currentTimeMillis();
         try {
             Date sentDate = message.getReceivedDate();
             if (sentDate != null) {
-                return sentDate.getTime() + configuration.getExpiry();
+                start = sentDate.getTime();
             }
         } catch (MessagingException e) {
             log.error("Expiration calculation could not be based on message date.", e);
         }
-        return System.currentTimeMillis() + configuration.getExpiry();
+        return Math.max(start, getDeliverAt(message)) + configuration.getExpiry();
     }
 
     public void setExpiry(MimeMessage message, long expiry) {
         try {
-            message.setHeader(Aspirin.HEADER_EXPIRY, expiryFormat.format(new Date(System.currentTimeMillis() + expiry)));
+            message.setHeader(Aspirin.HEADER_EXPIRY, formatExpiry(new Date(System.currentTimeMillis() + expiry)));
         } catch (MessagingException e) {
             log.error("Could not set Expiry of the MimeMessage: " + getMailID(message) + ".", e);
         }
     }    
     
 
+    /**
+     * It gives back the deliver-not-before time of a message, based on its
+     * deliver-at header.
+     *
+     * @param message The MimeMessage which delivery time is needed.
+     * @return Delivery time in epoch milliseconds, or 0 if no header is set.
+     */
+    public long getDeliverAt(MimeMessage message) {
+        try {
+            String[] headers = message.getHeader(Aspirin.HEADER_DELIVER_AT);
+            if (headers != null && 0 < headers.length) {
+                synchronized (expiryFormat) {
+                    return expiryFormat.parse(headers[0]).getTime();
+                }
+            }
+        } catch (Exception e) {
+            log.error("Deliver-at header could not be get from MimeMessage.", e);
+        }
+        return 0;
+    }
+
+    /**
+     * Set the deliver-not-before time of a message.
+     *
+     * @param message The MimeMessage to schedule.
+     * @param deliverAt Delivery time in epoch milliseconds.
+     */
+    public void setDeliverAt(MimeMessage message, long deliverAt) {
+        try {
+            message.setHeader(Aspirin.HEADER_DELIVER_AT, formatExpiry(new Date(deliverAt)));
+        } catch (MessagingException e) {
+            log.error("Could not set delivery time of the MimeMessage: " + getMailID(message) + ".", e);
+        }
+    }
+
+    /**
+     * It gives back the size of a message in bytes, headers included. A
+     * parsed message knows only the size of its content, so the size of the
+     * header lines is added. If the message was not parsed from a stream, it
+     * does not know its size, so it is written into a counting stream.
+     *
+     * @param message The MimeMessage which size is needed.
+     * @return Size in bytes, or -1 if it could not be calculated.
+     */
+    public long getMessageSize(MimeMessage message) {
+        try {
+            int size = message.getSize();
+            if (0 < size) {
+                // Header lines and the empty line before the content
+                long headerSize = 2;
+                Enumeration<?> lines = message.getAllHeaderLines();
+                while (lines.hasMoreElements()) {
+                    headerSize += ((String) lines.nextElement()).length() + 2;
+                }
+                return headerSize + size;
+            }
+            final long[] count = new long[1];
+            message.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    count[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    count[0] += len;
+                }
+            });
+            return count[0];
+        } catch (Exception e) {
+            log.error("Size of MimeMessage could not be calculated: " + getMailID(message) + ".", e);
+        }
+        return -1;
+    }
+
+    /**
+     * It gives back the sender address of a message: the Sender header, or
+     * the first From address.
+     *
+     * @param message The MimeMessage which sender is needed.
+     * @return Lowercase sender address, or an empty string if it is unknown.
+     */
+    public String getSenderAddress(MimeMessage message) {
+        try {
+            Address sender = message.getSender();
+            if (sender == null) {
+                Address[] from = message.getFrom();
+                if (from != null && 0 < from.length) {
+                    sender = from[0];
+                }
+            }
+            if (sender instanceof InternetAddress) {
+                return ((InternetAddress) sender).getAddress().toLowerCase();
+            }
+        } catch (MessagingException e) {
+            log.error("Sender could not be get from MimeMessage.", e);
+        }
+        return "";
+    }
+
+    /**
+     * It gives back the priority lane of a message, based on its priority
+     * header.
+     *
+     * @param message The MimeMessage which priority is needed.
+     * @return Priority of the message, NORMAL if no header is set.
+     */
+    public DeliveryPriority getPriority(MimeMessage message) {
+        try {
+            String[] headers = message.getHeader(Aspirin.HEADER_PRIORITY);
+            if (headers != null && 0 < headers.length) {
+                return DeliveryPriority.parse(headers[0]);
+            }
+        } catch (MessagingException e) {
+            log.error("Priority header could not be get from MimeMessage.", e);
+        }
+        return DeliveryPriority.NORMAL;
+    }
+
+    /**
+     * Set the priority lane of a message.
+     *
+     * @param message The MimeMessage to set.
+     * @param priority Priority of the message, null means NORMAL.
+     */
+    public void setPriority(MimeMessage message, DeliveryPriority priority) {
+        try {
+            if (priority == null) {
+                message.removeHeader(Aspirin.HEADER_PRIORITY);
+            } else {
+                message.setHeader(Aspirin.HEADER_PRIORITY, priority.name());
+            }
+        } catch (MessagingException e) {
+            log.error("Could not set Priority of the MimeMessage: " + getMailID(message) + ".", e);
+        }
+    }
+
     /**
      * Decode mail ID from MimeMessage. If no such header was defined, then we
      * get MimeMessage's toString() method result back.
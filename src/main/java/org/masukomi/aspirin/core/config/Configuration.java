@@ -52,11 +52,33 @@ import org.slf4j.LoggerFactory;
  * {@link ConfigurationMBean}.</p>
  *
  * <table border="1"> <tr> <th>Name</th> <th>Type</th> <th>Description</th>
- * </tr> <tr> <td>aspirin.delivery.attempt.delay</td> <td>Integer</td> <td>The
+ * </tr> <tr> <td>aspirin.admission.bytes.max</td> <td>Long</td> <td>Maximal
+ * size of queued messages in bytes. Default value is -1, unlimited. <i>Change
+ * by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.admission.bytes.policy</td> <td>String</td> <td>Policy on
+ * reaching the byte limit: BLOCK, REJECT or SPILL. Default is BLOCK.
+ * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.admission.recipients.max</td> <td>Integer</td> <td>Maximal
+ * number of queued recipients. Default value is -1, unlimited. <i>Change by
+ * JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.admission.recipients.policy</td> <td>String</td> <td>Policy on
+ * reaching the recipient limit: BLOCK or REJECT. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr> <td>aspirin.admission.sender.max</td>
+ * <td>Integer</td> <td>Maximal number of queued recipients of one sender.
+ * Default value is -1, unlimited. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr> <td>aspirin.admission.sender.policy</td>
+ * <td>String</td> <td>Policy on reaching the per sender limit: BLOCK or
+ * REJECT. <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.admission.timeout</td> <td>Integer</td> <td>Maximal waiting time
+ * of the BLOCK policy in milliseconds. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr> <td>aspirin.delivery.attempt.delay</td> <td>Integer</td> <td>The
  * delay of next attempt to delivery in milliseconds. <i>Change by JMX applied
  * immediately.</i></td> </tr> <tr> <td>aspirin.delivery.attempt.count</td>
  * <td>Integer</td> <td>Maximal number of delivery attempts of an email.
  * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.batch.size</td> <td>Integer</td> <td>Maximal number of
+ * queue items claimed by the delivery manager in one step. <i>Change by JMX
+ * applied immediately.</i></td> </tr> <tr>
  * <td>aspirin.delivery.bounce-on-failure</td> <td>Boolean</td> <td>If true, a
  * bounce email will be send to postmaster on failure. <i>Change by JMX applied
  * immediately.</i></td> </tr> <tr> <td>aspirin.delivery.debug</td>
@@ -66,6 +88,10 @@ import org.slf4j.LoggerFactory;
  * milliseconds. The queue send an email until current time = queueing time +
  * expiry. Default value is -1, it means forever (no expiration time). <i>Change
  * by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.priority.shares</td> <td>String</td> <td>Minimal
+ * shares of delivery capacity of priority lanes in percent, for example
+ * "NORMAL=20,BULK=10". <i>Change by JMX applied immediately.</i></td> </tr>
+ * <tr>
  * <td>aspirin.delivery.threads.active.max</td> <td>Integer</td> <td>Maximum
  * number of active delivery threads in the pool. <i>Change by JMX applied
  * immediately.</i></td> </tr> <tr> <td>aspirin.delivery.threads.idle.max</td>
@@ -85,6 +111,78 @@ import org.slf4j.LoggerFactory;
  * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
  * <td>aspirin.postmaster.email</td> <td>String</td> <td>The email address of
  * the postmaster. <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.tenant.weights</td> <td>String</td> <td>Weights of tenants in
+ * fair delivery scheduling, for example "big.com=4,small.com=1". Unlisted
+ * tenants have weight 1. <i>Change by JMX applied immediately.</i></td> </tr>
+ * <tr>
+ * <td>aspirin.tenant.concurrency.max</td> <td>Integer</td> <td>Maximal count of
+ * parallel deliveries of one tenant. Default value is -1, it means unlimited.
+ * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.tenant.rate.max</td> <td>Integer</td> <td>Maximal count of
+ * started deliveries of one tenant per second. Default value is -1, it means
+ * unlimited. <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.mailstore.cache.size</td> <td>Long</td> <td>Maximal estimated
+ * size of parsed messages cached in memory by FileMailStore, in bytes. Default
+ * value is 64MB. <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.mailstore.compression.level</td> <td>Integer</td> <td>Deflater
+ * level (0-9) of message files written by FileMailStore. Default value is -1,
+ * it means uncompressed files. Compressed and uncompressed files are read both.
+ * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.mailstore.sync</td> <td>String</td> <td>Sync mode of
+ * FileMailStore writes. NONE: messages are written by the caller without fsync.
+ * ACCEPTED: messages are written and synced in groups by a background thread,
+ * the caller does not wait. DURABLE: like ACCEPTED, but the caller waits for
+ * the sync of its group. Default is NONE. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.jfr-events</td> <td>Boolean</td> <td>If true, Java
+ * Flight Recorder events are emitted for the deliveries, the DNS lookups, the
+ * SMTP attempts, the queue claims and the message reads. It needs Java 11 or
+ * newer. Default is false. <i>Change by JMX applied immediately.</i></td> </tr>
+ * <tr>
+ * <td>aspirin.delivery.retry.policies</td> <td>String</td> <td>Retry policies,
+ * which override the defaults, in [domain/]CLASS=initial:multiplier:max format
+ * separated by commas, for example
+ * GREYLISTED=60000:1.5:1800000,example.com/CONNECTION=600000:2:14400000. The
+ * failure classes are TRANSIENT, GREYLISTED, MAILBOX_FULL, THROTTLED,
+ * CONNECTION and DNS, the delays are in milliseconds. Default is empty.
+ * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.retry.jitter</td> <td>Integer</td> <td>Random variation
+ * of the retry delays in percent, so the retries of a failure are spread in
+ * time. Default is 20. <i>Change by JMX applied immediately.</i></td> </tr>
+ * <tr>
+ * <td>aspirin.delivery.retry.slow.after</td> <td>Integer</td> <td>After this
+ * many failed attempts an item moves to the slow queue: it is retried at most
+ * once per aspirin.delivery.retry.slow.delay, in the BULK lane. 0 disables the
+ * slow queue. Default is 0. <i>Change by JMX applied immediately.</i></td>
+ * </tr> <tr>
+ * <td>aspirin.delivery.retry.slow.delay</td> <td>Long</td> <td>Minimal retry
+ * delay of the items in the slow queue in milliseconds. Default is 3600000 (1
+ * hour). <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.ramp.max</td> <td>Integer</td> <td>After temporary
+ * failures, a domain gets a limit of parallel deliveries. It is halved on every
+ * failure and doubled on every success, and the domain is not limited anymore
+ * when the limit reaches this value. The items over the limit are spread over
+ * the next ramp intervals, so a recovering receiver is not hit by its whole
+ * backlog at once. 0 disables the ramp up. Default is 32. <i>Change by JMX
+ * applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.ramp.interval</td> <td>Long</td> <td>A ramping domain
+ * gets about its limit of new deliveries in every interval, the items over its
+ * limit are deferred by multiples of this interval. Default is 1000 (1 second).
+ * <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.expiry.sweep.interval</td> <td>Long</td> <td>Expired
+ * items are failed in batches by a background sweeper in this interval (in
+ * milliseconds), so the listeners of a large expiring campaign are not notified
+ * on the dispatch path. 0 disables the sweeper, then expired items are failed
+ * by the dispatching thread. Default is 1000. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.expiry.sweep.batch</td> <td>Integer</td> <td>The expiry
+ * sweeper fails at most this many items under one lock of the queue store.
+ * Default is 500. <i>Change by JMX applied immediately.</i></td> </tr> <tr>
+ * <td>aspirin.delivery.scheduled.rate</td> <td>Integer</td> <td>Items scheduled
+ * by the deliver-at header become sendable after their delivery time at most in
+ * this rate (items per second), so a large scheduled campaign is released
+ * gradually. 0 means no limit. Default is 100. <i>Change by JMX applied
+ * immediately.</i></td> </tr> <tr>
  * <td>aspirin.mailstore.class</td> <td>String</td> <td>The class name of mail
  * store. Default class is SimpleMailStore in org.masukomi.aspirin.core.store
  * package.</td> </tr> <tr> <td>aspirin.queuestore.class</td> <td>String</td>
@@ -107,11 +205,20 @@ public class Configuration implements ConfigurationMBean {
     public void init(Properties props) {
 
         List<Parameter> parameterList = new ArrayList<Configuration.Parameter>();
+        parameterList.add(new Parameter(PARAM_ADMISSION_BYTES_MAX, -1L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_ADMISSION_BYTES_POLICY, "BLOCK", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_ADMISSION_RECIPIENTS_MAX, -1, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_ADMISSION_RECIPIENTS_POLICY, "BLOCK", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_ADMISSION_SENDER_MAX, -1, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_ADMISSION_SENDER_POLICY, "BLOCK", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_ADMISSION_TIMEOUT, 30000, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_COUNT, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_DELAY, 300000, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_BATCH_SIZE, 10, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_BOUNCE_ON_FAILURE, true, Parameter.TYPE_BOOLEAN));
         parameterList.add(new Parameter(PARAM_DELIVERY_DEBUG, false, Parameter.TYPE_BOOLEAN));
         parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY, -1L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_PRIORITY_SHARES, "NORMAL=20,BULK=10", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_ACTIVE_MAX, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_IDLE_MAX, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_TIMEOUT, 30000, Parameter.TYPE_INTEGER));
@@ -119,6 +226,22 @@ public class Configuration implements ConfigurationMBean {
         parameterList.add(new Parameter(PARAM_HOSTNAME, "localhost", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_LOGGER_NAME, "Aspirin", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_LOGGER_PREFIX, "Aspirin ", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_TENANT_WEIGHTS, "", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_TENANT_CONCURRENCY_MAX, -1, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_TENANT_RATE_MAX, -1, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_CACHE_SIZE, 67108864L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_COMPRESSION_LEVEL, -1, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_SYNC, "NONE", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_DELIVERY_JFR_EVENTS, false, Parameter.TYPE_BOOLEAN));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_POLICIES, "", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_JITTER, 20, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_SLOW_AFTER, 0, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_SLOW_DELAY, 3600000L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RAMP_MAX, 32, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RAMP_INTERVAL, 1000L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY_SWEEP_INTERVAL, 1000L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY_SWEEP_BATCH, 500, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_SCHEDULED_RATE, 100, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_MAILSTORE_CLASS, SimpleMailStore.class.getCanonicalName(), Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_POSTMASTER_EMAIL, null, Parameter.TYPE_STRING));
 
@@ -176,6 +299,41 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_ENCODING);
     }
 
+    @Override
+    public long getAdmissionBytesMax() {
+        return (Long) configParameters.get(PARAM_ADMISSION_BYTES_MAX);
+    }
+
+    @Override
+    public String getAdmissionBytesPolicy() {
+        return (String) configParameters.get(PARAM_ADMISSION_BYTES_POLICY);
+    }
+
+    @Override
+    public int getAdmissionRecipientsMax() {
+        return (Integer) configParameters.get(PARAM_ADMISSION_RECIPIENTS_MAX);
+    }
+
+    @Override
+    public String getAdmissionRecipientsPolicy() {
+        return (String) configParameters.get(PARAM_ADMISSION_RECIPIENTS_POLICY);
+    }
+
+    @Override
+    public int getAdmissionSenderMax() {
+        return (Integer) configParameters.get(PARAM_ADMISSION_SENDER_MAX);
+    }
+
+    @Override
+    public String getAdmissionSenderPolicy() {
+        return (String) configParameters.get(PARAM_ADMISSION_SENDER_POLICY);
+    }
+
+    @Override
+    public int getAdmissionTimeout() {
+        return (Integer) configParameters.get(PARAM_ADMISSION_TIMEOUT);
+    }
+
     @Override
     public int getDeliveryAttemptCount() {
         return (Integer) configParameters.get(PARAM_DELIVERY_ATTEMPT_COUNT);
@@ -188,6 +346,16 @@ public class Configuration implements ConfigurationMBean {
 //		return (int)retryInterval;
     }
 
+    @Override
+    public int getDeliveryBatchSize() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_BATCH_SIZE);
+    }
+
+    @Override
+    public String getDeliveryPriorityShares() {
+        return (String) configParameters.get(PARAM_DELIVERY_PRIORITY_SHARES);
+    }
+
     @Override
     public int getDeliveryThreadsActiveMax() {
         return (Integer) configParameters.get(PARAM_DELIVERY_THREADS_ACTIVE_MAX);
@@ -218,6 +386,86 @@ public class Configuration implements ConfigurationMBean {
         return (String) configParameters.get(PARAM_LOGGER_PREFIX);
     }
 
+    @Override
+    public String getTenantWeights() {
+        return (String) configParameters.get(PARAM_TENANT_WEIGHTS);
+    }
+
+    @Override
+    public int getTenantConcurrencyMax() {
+        return (Integer) configParameters.get(PARAM_TENANT_CONCURRENCY_MAX);
+    }
+
+    @Override
+    public int getTenantRateMax() {
+        return (Integer) configParameters.get(PARAM_TENANT_RATE_MAX);
+    }
+
+    @Override
+    public long getMailStoreCacheSize() {
+        return (Long) configParameters.get(PARAM_MAILSTORE_CACHE_SIZE);
+    }
+
+    @Override
+    public int getMailStoreCompressionLevel() {
+        return (Integer) configParameters.get(PARAM_MAILSTORE_COMPRESSION_LEVEL);
+    }
+
+    @Override
+    public String getMailStoreSync() {
+        return (String) configParameters.get(PARAM_MAILSTORE_SYNC);
+    }
+
+    @Override
+    public boolean isDeliveryJfrEvents() {
+        return (Boolean) configParameters.get(PARAM_DELIVERY_JFR_EVENTS);
+    }
+
+    @Override
+    public String getDeliveryRetryPolicies() {
+        return (String) configParameters.get(PARAM_DELIVERY_RETRY_POLICIES);
+    }
+
+    @Override
+    public int getDeliveryRetryJitter() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_RETRY_JITTER);
+    }
+
+    @Override
+    public int getDeliveryRetrySlowAfter() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_RETRY_SLOW_AFTER);
+    }
+
+    @Override
+    public long getDeliveryRetrySlowDelay() {
+        return (Long) configParameters.get(PARAM_DELIVERY_RETRY_SLOW_DELAY);
+    }
+
+    @Override
+    public int getDeliveryRampMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_RAMP_MAX);
+    }
+
+    @Override
+    public long getDeliveryRampInterval() {
+        return (Long) configParameters.get(PARAM_DELIVERY_RAMP_INTERVAL);
+    }
+
+    @Override
+    public long getDeliveryExpirySweepInterval() {
+        return (Long) configParameters.get(PARAM_DELIVERY_EXPIRY_SWEEP_INTERVAL);
+    }
+
+    @Override
+    public int getDeliveryExpirySweepBatch() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_EXPIRY_SWEEP_BATCH);
+    }
+
+    @Override
+    public int getDeliveryScheduledRate() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_SCHEDULED_RATE);
+    }
+
     public MailStore getMailStore() {
         if (mailStore == null) {
             String mailStoreClassName = (String) configParameters.get(PARAM_MAILSTORE_CLASS);
@@ -249,6 +497,48 @@ public class Configuration implements ConfigurationMBean {
         return (Boolean) configParameters.get(PARAM_DELIVERY_DEBUG);
     }
 
+    @Override
+    public void setAdmissionBytesMax(long bytesMax) {
+        configParameters.put(PARAM_ADMISSION_BYTES_MAX, bytesMax);
+        notifyListeners(PARAM_ADMISSION_BYTES_MAX);
+    }
+
+    @Override
+    public void setAdmissionBytesPolicy(String policy) {
+        configParameters.put(PARAM_ADMISSION_BYTES_POLICY, policy);
+        notifyListeners(PARAM_ADMISSION_BYTES_POLICY);
+    }
+
+    @Override
+    public void setAdmissionRecipientsMax(int recipientsMax) {
+        configParameters.put(PARAM_ADMISSION_RECIPIENTS_MAX, recipientsMax);
+        notifyListeners(PARAM_ADMISSION_RECIPIENTS_MAX);
+    }
+
+    @Override
+    public void setAdmissionRecipientsPolicy(String policy) {
+        configParameters.put(PARAM_ADMISSION_RECIPIENTS_POLICY, policy);
+        notifyListeners(PARAM_ADMISSION_RECIPIENTS_POLICY);
+    }
+
+    @Override
+    public void setAdmissionSenderMax(int senderMax) {
+        configParameters.put(PARAM_ADMISSION_SENDER_MAX, senderMax);
+        notifyListeners(PARAM_ADMISSION_SENDER_MAX);
+    }
+
+    @Override
+    public void setAdmissionSenderPolicy(String policy) {
+        configParameters.put(PARAM_ADMISSION_SENDER_POLICY, policy);
+        notifyListeners(PARAM_ADMISSION_SENDER_POLICY);
+    }
+
+    @Override
+    public void setAdmissionTimeout(int timeout) {
+        configParameters.put(PARAM_ADMISSION_TIMEOUT, timeout);
+        notifyListeners(PARAM_ADMISSION_TIMEOUT);
+    }
+
     @Override
     public void setDeliveryAttemptCount(int attemptCount) {
         configParameters.put(PARAM_DELIVERY_ATTEMPT_COUNT, attemptCount);
@@ -263,6 +553,12 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_DELIVERY_ATTEMPT_DELAY);
     }
 
+    @Override
+    public void setDeliveryBatchSize(int batchSize) {
+        configParameters.put(PARAM_DELIVERY_BATCH_SIZE, batchSize);
+        notifyListeners(PARAM_DELIVERY_BATCH_SIZE);
+    }
+
     @Override
     public void setDeliveryBounceOnFailure(boolean bounce) {
         configParameters.put(PARAM_DELIVERY_BOUNCE_ON_FAILURE, bounce);
@@ -276,6 +572,12 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_DELIVERY_DEBUG);
     }
 
+    @Override
+    public void setDeliveryPriorityShares(String shares) {
+        configParameters.put(PARAM_DELIVERY_PRIORITY_SHARES, shares);
+        notifyListeners(PARAM_DELIVERY_PRIORITY_SHARES);
+    }
+
     @Override
     public void setDeliveryThreadsActiveMax(int activeThreadsMax) {
         configParameters.put(PARAM_DELIVERY_THREADS_ACTIVE_MAX, activeThreadsMax);
@@ -302,6 +604,102 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_DELIVERY_EXPIRY);
     }
 
+    @Override
+    public void setTenantWeights(String weights) {
+        configParameters.put(PARAM_TENANT_WEIGHTS, weights);
+        notifyListeners(PARAM_TENANT_WEIGHTS);
+    }
+
+    @Override
+    public void setTenantConcurrencyMax(int concurrencyMax) {
+        configParameters.put(PARAM_TENANT_CONCURRENCY_MAX, concurrencyMax);
+        notifyListeners(PARAM_TENANT_CONCURRENCY_MAX);
+    }
+
+    @Override
+    public void setTenantRateMax(int rateMax) {
+        configParameters.put(PARAM_TENANT_RATE_MAX, rateMax);
+        notifyListeners(PARAM_TENANT_RATE_MAX);
+    }
+
+    @Override
+    public void setMailStoreCacheSize(long cacheSize) {
+        configParameters.put(PARAM_MAILSTORE_CACHE_SIZE, cacheSize);
+        notifyListeners(PARAM_MAILSTORE_CACHE_SIZE);
+    }
+
+    @Override
+    public void setMailStoreCompressionLevel(int level) {
+        configParameters.put(PARAM_MAILSTORE_COMPRESSION_LEVEL, level);
+        notifyListeners(PARAM_MAILSTORE_COMPRESSION_LEVEL);
+    }
+
+    @Override
+    public void setMailStoreSync(String sync) {
+        configParameters.put(PARAM_MAILSTORE_SYNC, sync);
+        notifyListeners(PARAM_MAILSTORE_SYNC);
+    }
+
+    @Override
+    public void setDeliveryJfrEvents(boolean jfrEvents) {
+        configParameters.put(PARAM_DELIVERY_JFR_EVENTS, jfrEvents);
+        notifyListeners(PARAM_DELIVERY_JFR_EVENTS);
+    }
+
+    @Override
+    public void setDeliveryRetryPolicies(String policies) {
+        configParameters.put(PARAM_DELIVERY_RETRY_POLICIES, policies);
+        notifyListeners(PARAM_DELIVERY_RETRY_POLICIES);
+    }
+
+    @Override
+    public void setDeliveryRetryJitter(int jitter) {
+        configParameters.put(PARAM_DELIVERY_RETRY_JITTER, jitter);
+        notifyListeners(PARAM_DELIVERY_RETRY_JITTER);
+    }
+
+    @Override
+    public void setDeliveryRetrySlowAfter(int failures) {
+        configParameters.put(PARAM_DELIVERY_RETRY_SLOW_AFTER, failures);
+        notifyListeners(PARAM_DELIVERY_RETRY_SLOW_AFTER);
+    }
+
+    @Override
+    public void setDeliveryRetrySlowDelay(long delay) {
+        configParameters.put(PARAM_DELIVERY_RETRY_SLOW_DELAY, delay);
+        notifyListeners(PARAM_DELIVERY_RETRY_SLOW_DELAY);
+    }
+
+    @Override
+    public void setDeliveryRampMax(int rampMax) {
+        configParameters.put(PARAM_DELIVERY_RAMP_MAX, rampMax);
+        notifyListeners(PARAM_DELIVERY_RAMP_MAX);
+    }
+
+    @Override
+    public void setDeliveryRampInterval(long interval) {
+        configParameters.put(PARAM_DELIVERY_RAMP_INTERVAL, interval);
+        notifyListeners(PARAM_DELIVERY_RAMP_INTERVAL);
+    }
+
+    @Override
+    public void setDeliveryExpirySweepInterval(long sweepInterval) {
+        configParameters.put(PARAM_DELIVERY_EXPIRY_SWEEP_INTERVAL, sweepInterval);
+        notifyListeners(PARAM_DELIVERY_EXPIRY_SWEEP_INTERVAL);
+    }
+
+    @Override
+    public void setDeliveryExpirySweepBatch(int sweepBatch) {
+        configParameters.put(PARAM_DELIVERY_EXPIRY_SWEEP_BATCH, sweepBatch);
+        notifyListeners(PARAM_DELIVERY_EXPIRY_SWEEP_BATCH);
+    }
+
+    @Override
+    public void setDeliveryScheduledRate(int scheduledRate) {
+        configParameters.put(PARAM_DELIVERY_SCHEDULED_RATE, scheduledRate);
+        notifyListeners(PARAM_DELIVERY_SCHEDULED_RATE);
+    }
+
     public void setMailStore(MailStore mailStore) {
         this.mailStore = mailStore;
         notifyListeners(PARAM_MAILSTORE_CLASS);
@@ -14,11 +14,20 @@ import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
  */
 public interface ConfigurationMBean {
 	
+	public static final String PARAM_ADMISSION_BYTES_MAX				= "aspirin.admission.bytes.max";
+	public static final String PARAM_ADMISSION_BYTES_POLICY			= "aspirin.admission.bytes.policy";
+	public static final String PARAM_ADMISSION_RECIPIENTS_MAX		= "aspirin.admission.recipients.max";
+	public static final String PARAM_ADMISSION_RECIPIENTS_POLICY	= "aspirin.admission.recipients.policy";
+	public static final String PARAM_ADMISSION_SENDER_MAX			= "aspirin.admission.sender.max";
+	public static final String PARAM_ADMISSION_SENDER_POLICY		= "aspirin.admission.sender.policy";
+	public static final String PARAM_ADMISSION_TIMEOUT				= "aspirin.admission.timeout";
 	public static final String PARAM_DELIVERY_ATTEMPT_DELAY			= "aspirin.delivery.attempt.delay";
 	public static final String PARAM_DELIVERY_ATTEMPT_COUNT			= "aspirin.delivery.attempt.count";
+	public static final String PARAM_DELIVERY_BATCH_SIZE				= "aspirin.delivery.batch.size";
 	public static final String PARAM_DELIVERY_BOUNCE_ON_FAILURE		= "aspirin.delivery.bounce-on-failure";
 	public static final String PARAM_DELIVERY_DEBUG					= "aspirin.delivery.debug";
 	public static final String PARAM_DELIVERY_EXPIRY				= "aspirin.delivery.expiry";
+	public static final String PARAM_DELIVERY_PRIORITY_SHARES		= "aspirin.delivery.priority.shares";
 	public static final String PARAM_DELIVERY_THREADS_ACTIVE_MAX	= "aspirin.delivery.threads.active.max";
 	public static final String PARAM_DELIVERY_THREADS_IDLE_MAX		= "aspirin.delivery.threads.idle.max";
 	public static final String PARAM_DELIVERY_TIMEOUT				= "aspirin.delivery.timeout";
@@ -27,6 +36,22 @@ public interface ConfigurationMBean {
 	public static final String PARAM_LOGGER_NAME					= "aspirin.logger.name";
 	public static final String PARAM_LOGGER_PREFIX					= "aspirin.logger.prefix";
 	public static final String PARAM_POSTMASTER_EMAIL				= "aspirin.postmaster.email";
+	public static final String PARAM_TENANT_WEIGHTS					= "aspirin.tenant.weights";
+	public static final String PARAM_TENANT_CONCURRENCY_MAX			= "aspirin.tenant.concurrency.max";
+	public static final String PARAM_TENANT_RATE_MAX				= "aspirin.tenant.rate.max";
+	public static final String PARAM_MAILSTORE_CACHE_SIZE			= "aspirin.mailstore.cache.size";
+	public static final String PARAM_MAILSTORE_COMPRESSION_LEVEL	= "aspirin.mailstore.compression.level";
+	public static final String PARAM_MAILSTORE_SYNC					= "aspirin.mailstore.sync";
+	public static final String PARAM_DELIVERY_JFR_EVENTS			= "aspirin.delivery.jfr-events";
+	public static final String PARAM_DELIVERY_RETRY_POLICIES		= "aspirin.delivery.retry.policies";
+	public static final String PARAM_DELIVERY_RETRY_JITTER			= "aspirin.delivery.retry.jitter";
+	public static final String PARAM_DELIVERY_RETRY_SLOW_AFTER		= "aspirin.delivery.retry.slow.after";
+	public static final String PARAM_DELIVERY_RETRY_SLOW_DELAY		= "aspirin.delivery.retry.slow.delay";
+	public static final String PARAM_DELIVERY_RAMP_MAX				= "aspirin.delivery.ramp.max";
+	public static final String PARAM_DELIVERY_RAMP_INTERVAL			= "aspirin.delivery.ramp.interval";
+	public static final String PARAM_DELIVERY_EXPIRY_SWEEP_INTERVAL	= "aspirin.delivery.expiry.sweep.interval";
+	public static final String PARAM_DELIVERY_EXPIRY_SWEEP_BATCH	= "aspirin.delivery.expiry.sweep.batch";
+	public static final String PARAM_DELIVERY_SCHEDULED_RATE		= "aspirin.delivery.scheduled.rate";
 	public static final String PARAM_MAILSTORE_CLASS				= "aspirin.mailstore.class";
 	
 	/**
@@ -35,6 +60,38 @@ public interface ConfigurationMBean {
 	 */
 	public static final long NEVER_EXPIRES = -1L;
 	
+	/**
+	 * @return The maximal size of queued messages in bytes, or -1 if it is 
+	 * unlimited.
+	 */
+	public long getAdmissionBytesMax();
+	/**
+	 * @return The policy applied on reaching the byte limit: BLOCK, REJECT or 
+	 * SPILL.
+	 */
+	public String getAdmissionBytesPolicy();
+	/**
+	 * @return The maximal count of queued recipients, or -1 if it is 
+	 * unlimited.
+	 */
+	public int getAdmissionRecipientsMax();
+	/**
+	 * @return The policy applied on reaching the recipient limit.
+	 */
+	public String getAdmissionRecipientsPolicy();
+	/**
+	 * @return The maximal count of queued recipients of one sender, or -1 if 
+	 * it is unlimited.
+	 */
+	public int getAdmissionSenderMax();
+	/**
+	 * @return The policy applied on reaching the per sender limit.
+	 */
+	public String getAdmissionSenderPolicy();
+	/**
+	 * @return The maximal time in milliseconds while a BLOCK policy waits.
+	 */
+	public int getAdmissionTimeout();
 	/**
 	 * @return The time between two delivery attempt of an email.
 	 */
@@ -43,6 +100,16 @@ public interface ConfigurationMBean {
 	 * @return The maximal count of delivery attempts of an email. 
 	 */
 	public int getDeliveryAttemptCount();
+	/**
+	 * @return The maximal count of queue items claimed by the delivery 
+	 * manager in one step.
+	 */
+	public int getDeliveryBatchSize();
+	/**
+	 * @return The minimal shares of priority lanes, for example 
+	 * "NORMAL=20,BULK=10".
+	 */
+	public String getDeliveryPriorityShares();
 	/**
 	 * @return The maximal count of delivery threads running paralel.
 	 */
@@ -72,6 +139,81 @@ public interface ConfigurationMBean {
 	 * @return The prefix appended to the start of the log entries.
 	 */
 	public String getLoggerPrefix();
+	/**
+	 * @return The weights of tenants in fair scheduling, for example
+	 * "big.com=4,small.com=1". Unlisted tenants have weight 1.
+	 */
+	public String getTenantWeights();
+	/**
+	 * @return The maximal count of parallel deliveries of one tenant, or -1 if it
+	 * is unlimited.
+	 */
+	public int getTenantConcurrencyMax();
+	/**
+	 * @return The maximal count of started deliveries of one tenant per second, or
+	 * -1 if it is unlimited.
+	 */
+	public int getTenantRateMax();
+	/**
+	 * @return The maximal estimated size of parsed messages cached by a mail store
+	 * in bytes.
+	 */
+	public long getMailStoreCacheSize();
+	/**
+	 * @return The Deflater level of message files written by FileMailStore, or -1
+	 * if the files are not compressed.
+	 */
+	public int getMailStoreCompressionLevel();
+	/**
+	 * @return The sync mode of FileMailStore writes: NONE, ACCEPTED or DURABLE.
+	 */
+	public String getMailStoreSync();
+	/**
+	 * @return true if Java Flight Recorder events are emitted for the deliveries.
+	 */
+	public boolean isDeliveryJfrEvents();
+	/**
+	 * @return Retry policies of the failure classes, which override the defaults.
+	 */
+	public String getDeliveryRetryPolicies();
+	/**
+	 * @return Random variation of the retry delays in percent.
+	 */
+	public int getDeliveryRetryJitter();
+	/**
+	 * @return Count of failed attempts after which an item moves to the slow
+	 * queue, 0 if there is no slow queue.
+	 */
+	public int getDeliveryRetrySlowAfter();
+	/**
+	 * @return Minimal retry delay of the items in the slow queue in milliseconds.
+	 */
+	public long getDeliveryRetrySlowDelay();
+	/**
+	 * @return Parallel deliveries of a domain, where its ramp up after failures
+	 * ends, 0 if there is no ramp up.
+	 */
+	public int getDeliveryRampMax();
+	/**
+	 * @return Interval in milliseconds, in which a ramping domain gets about its
+	 * limit of new deliveries.
+	 */
+	public long getDeliveryRampInterval();
+	/**
+	 * @return Interval in milliseconds of the background expiry sweeper, 0 if
+	 * expired items are failed by the dispatching thread.
+	 */
+	public long getDeliveryExpirySweepInterval();
+	/**
+	 * @return Maximal count of expired items failed by the expiry sweeper under
+	 * one queue store lock.
+	 */
+	public int getDeliveryExpirySweepBatch();
+	/**
+	 * @return Count of scheduled items per second, which become sendable after
+	 * their delivery time, 0 if it is not limited.
+	 */
+	public int getDeliveryScheduledRate();
 	/**
 	 * @return The directory object's class name where the mimemessage objects 
 	 * could be stored.
@@ -95,6 +237,41 @@ public interface ConfigurationMBean {
 	 * @return If true, then the full SMTP communication will be logged. 
 	 */
 	public boolean isDeliveryDebug();
+	/**
+	 * Set the maximal size of queued messages.
+	 * @param bytesMax The limit in bytes, -1 means unlimited.
+	 */
+	public void setAdmissionBytesMax(long bytesMax);
+	/**
+	 * Set the policy applied on reaching the byte limit.
+	 * @param policy BLOCK, REJECT or SPILL.
+	 */
+	public void setAdmissionBytesPolicy(String policy);
+	/**
+	 * Set the maximal count of queued recipients.
+	 * @param recipientsMax The limit, -1 means unlimited.
+	 */
+	public void setAdmissionRecipientsMax(int recipientsMax);
+	/**
+	 * Set the policy applied on reaching the recipient limit.
+	 * @param policy BLOCK or REJECT.
+	 */
+	public void setAdmissionRecipientsPolicy(String policy);
+	/**
+	 * Set the maximal count of queued recipients of one sender.
+	 * @param senderMax The limit, -1 means unlimited.
+	 */
+	public void setAdmissionSenderMax(int senderMax);
+	/**
+	 * Set the policy applied on reaching the per sender limit.
+	 * @param policy BLOCK or REJECT.
+	 */
+	public void setAdmissionSenderPolicy(String policy);
+	/**
+	 * Set the maximal waiting time of the BLOCK admission policy.
+	 * @param timeout The value of timeout in milliseconds.
+	 */
+	public void setAdmissionTimeout(int timeout);
 	/**
 	 * Set the time interval between two delivery attempts of a temporary 
 	 * undeliverable email.
@@ -107,6 +284,13 @@ public interface ConfigurationMBean {
 	 * @param attemptCount The count of deliery attempts.
 	 */
 	public void setDeliveryAttemptCount(int attemptCount);
+	/**
+	 * Set the maximal count of queue items claimed from the queue store in one 
+	 * step. The claimed items are handed out to the delivery threads one by 
+	 * one.
+	 * @param batchSize The count of items claimed together.
+	 */
+	public void setDeliveryBatchSize(int batchSize);
 	/**
 	 * Set the bounce email sending (on delivery failures).
 	 * @param bounce If true, then a bounce email will be send to postmaster 
@@ -118,6 +302,14 @@ public interface ConfigurationMBean {
 	 * @param debug If true, then the full communication will be logged.
 	 */
 	public void setDeliveryDebug(boolean debug);
+	/**
+	 * Set the minimal shares of delivery capacity given to priority lanes 
+	 * when more lanes have sendable emails. The format is a comma separated 
+	 * list of LANE=percent pairs, for example "NORMAL=20,BULK=10". Lanes 
+	 * without share are served strictly by priority.
+	 * @param shares The minimal shares of lanes.
+	 */
+	public void setDeliveryPriorityShares(String shares);
 	/**
 	 * Set the maximal count of paralel running delivery threads.
 	 * @param threadsCount The count of delivery threads.
@@ -146,6 +338,97 @@ public interface ConfigurationMBean {
 	 */
 	public void setExpiry(long expiry);
 
+	/**
+	 * Set the weights of tenants. A tenant with weight 4 gets four times more
+	 * delivery capacity than a tenant with weight 1, if both have queued emails.
+	 * @param weights The tenant weights.
+	 */
+	public void setTenantWeights(String weights);
+	/**
+	 * Set the maximal count of parallel deliveries of one tenant.
+	 * @param concurrencyMax The count of deliveries, -1 means unlimited.
+	 */
+	public void setTenantConcurrencyMax(int concurrencyMax);
+	/**
+	 * Set the maximal count of started deliveries of one tenant per second.
+	 * @param rateMax The count of deliveries per second, -1 means unlimited.
+	 */
+	public void setTenantRateMax(int rateMax);
+	/**
+	 * Set the maximal estimated size of parsed messages cached by the file mail
+	 * store.
+	 * @param cacheSize The cache size in bytes.
+	 */
+	public void setMailStoreCacheSize(long cacheSize);
+	/**
+	 * Set the compression level of new message files. Existing files are read in
+	 * both formats.
+	 * @param level The Deflater level from 0 to 9, or -1 to store uncompressed
+	 * files.
+	 */
+	public void setMailStoreCompressionLevel(int level);
+	/**
+	 * Set the sync mode of FileMailStore writes.
+	 * @param sync NONE, ACCEPTED or DURABLE.
+	 */
+	public void setMailStoreSync(String sync);
+	/**
+	 * Emit Java Flight Recorder events for the deliveries. The events are recorded
+	 * only if a recording enables them, and it needs Java 11 or newer.
+	 * @param jfrEvents true to emit the events.
+	 */
+	public void setDeliveryJfrEvents(boolean jfrEvents);
+	/**
+	 * Set the retry policies of the failure classes in
+	 * [domain/]CLASS=initial:multiplier:max format separated by commas. The delays
+	 * are in milliseconds.
+	 * @param policies The retry policies.
+	 */
+	public void setDeliveryRetryPolicies(String policies);
+	/**
+	 * Set the random variation of the retry delays.
+	 * @param jitter Variation in percent, 0 disables it.
+	 */
+	public void setDeliveryRetryJitter(int jitter);
+	/**
+	 * Set the count of failed attempts after which an item moves to the slow
+	 * queue.
+	 * @param failures Count of failed attempts, 0 disables the slow queue.
+	 */
+	public void setDeliveryRetrySlowAfter(int failures);
+	/**
+	 * Set the minimal retry delay of the items in the slow queue.
+	 * @param delay Delay in milliseconds.
+	 */
+	public void setDeliveryRetrySlowDelay(long delay);
+	/**
+	 * Set the count of parallel deliveries of a domain, where its ramp up after
+	 * failures ends.
+	 * @param rampMax Count of parallel deliveries, 0 disables the ramp up.
+	 */
+	public void setDeliveryRampMax(int rampMax);
+	/**
+	 * Set the interval, in which a ramping domain gets about its limit of new
+	 * deliveries.
+	 * @param interval Interval in milliseconds.
+	 */
+	public void setDeliveryRampInterval(long interval);
+	/**
+	 * Set the interval of the background expiry sweeper.
+	 * @param sweepInterval Interval in milliseconds, 0 disables the sweeper.
+	 */
+	public void setDeliveryExpirySweepInterval(long sweepInterval);
+	/**
+	 * Set the batch size of the background expiry sweeper.
+	 * @param sweepBatch Maximal count of items in a batch.
+	 */
+	public void setDeliveryExpirySweepBatch(int sweepBatch);
+	/**
+	 * Set the rate, in which scheduled items become sendable after their delivery
+	 * time.
+	 * @param scheduledRate Count of items per second, 0 means no limit.
+	 */
+	public void setDeliveryScheduledRate(int scheduledRate);
 	/**
 	 * Set the mail store class name, where MimeMessages will be stored. 
 	 * Built-in stores are {@link SimpleMailStore} and {@link FileMailStore}.
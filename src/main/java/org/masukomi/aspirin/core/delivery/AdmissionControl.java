@@ -0,0 +1,238 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.masukomi.aspirin.core.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This object limits how much mail could be queued. There are three limits,
+ * all of them are configured in {@link Configuration}:</p>
+ *
+ * <ul> <li>count of queued recipients,</li> <li>size of queued messages in
+ * bytes,</li> <li>count of queued recipients of one sender.</li> </ul>
+ *
+ * <p>Each limit has a policy, which is applied when a new message would
+ * exceed the limit. BLOCK waits until enough mail is delivered (or until the
+ * admission timeout), REJECT throws an {@link AdmissionException} immediately.
+ * SPILL is only meaningful on the byte limit: the message is accepted, but it
+ * is stored in the spill mail store of the {@link DeliveryManager} and it is
+ * not counted as queued bytes. On the other limits SPILL works as BLOCK.</p>
+ *
+ * <p>A message is always admitted if nothing is queued, so a message larger
+ * than a limit could not block forever.</p>
+ *
+ */
+public class AdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    public enum Policy {
+        BLOCK, REJECT, SPILL
+    }
+    private final Configuration configuration;
+    private final Map<String, Admission> admissions = new HashMap<String, Admission>();
+    private final Map<String, Integer> recipientsBySender = new HashMap<String, Integer>();
+    private long queuedRecipients = 0;
+    private long queuedBytes = 0;
+
+    public AdmissionControl(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @return true if the byte limit is set, so the callers have to calculate
+     * message sizes.
+     */
+    public boolean isBytesLimited() {
+        return 0 < configuration.getAdmissionBytesMax();
+    }
+
+    /**
+     * Admit a new message into the queue. It blocks if a limit with BLOCK
+     * policy is reached.
+     *
+     * @param mailid Unique mail id.
+     * @param sender Sender address of the message, could be empty.
+     * @param recipients Count of recipients queued.
+     * @param bytes Size of the message, only used if the byte limit is set.
+     * @return true if the message has to be stored in the spill store.
+     * @throws AdmissionException If a limit is reached and the policy is
+     * REJECT, or the admission timeout is over.
+     */
+    public synchronized boolean admit(String mailid, String sender, int recipients, long bytes) throws AdmissionException {
+        long deadline = System.currentTimeMillis() + configuration.getAdmissionTimeout();
+        boolean spill = false;
+        while (true) {
+            String exceeded = null;
+            Policy policy = null;
+            int senderRecipients = getQueuedRecipients(sender);
+            if (isExceeded(queuedRecipients, recipients, configuration.getAdmissionRecipientsMax())) {
+                exceeded = Configuration.PARAM_ADMISSION_RECIPIENTS_MAX;
+                policy = getPolicy(configuration.getAdmissionRecipientsPolicy());
+            } else if (isExceeded(senderRecipients, recipients, configuration.getAdmissionSenderMax())) {
+                exceeded = Configuration.PARAM_ADMISSION_SENDER_MAX;
+                policy = getPolicy(configuration.getAdmissionSenderPolicy());
+            } else if (isExceeded(queuedBytes, bytes, configuration.getAdmissionBytesMax())) {
+                exceeded = Configuration.PARAM_ADMISSION_BYTES_MAX;
+                policy = getPolicy(configuration.getAdmissionBytesPolicy());
+                if (policy == Policy.SPILL) {
+                    spill = true;
+                    exceeded = null;
+                }
+            }
+            if (exceeded == null) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if (policy == Policy.REJECT || deadline <= now) {
+                throw new AdmissionException("Admission limit '" + exceeded + "' reached, mail '" + mailid + "' is not queued.", exceeded);
+            }
+            log.debug("AdmissionControl.admit(): Limit '{}' reached, waiting. mailid={}", exceeded, mailid);
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AdmissionException("Admission of mail '" + mailid + "' was interrupted.", exceeded);
+            }
+        }
+        Admission admission = new Admission(sender, recipients, spill ? 0 : bytes);
+        release(admissions.put(mailid, admission));
+        queuedRecipients += admission.recipients;
+        queuedBytes += admission.bytes;
+        recipientsBySender.put(sender, senderRecipients(sender) + admission.recipients);
+        return spill;
+    }
+
+    /**
+     * Called when a recipient of a message got a final delivery state.
+     *
+     * @param mailid Unique mail id.
+     */
+    public synchronized void recipientFinished(String mailid) {
+        Admission admission = admissions.get(mailid);
+        if (admission != null && 0 < admission.recipients) {
+            admission.recipients--;
+            queuedRecipients--;
+            decreaseSender(admission.sender, 1);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Called when a message is completed or removed. All the remaining
+     * recipients and the bytes of the message are released.
+     *
+     * @param mailid Unique mail id.
+     */
+    public synchronized void release(String mailid) {
+        if (release(admissions.remove(mailid))) {
+            notifyAll();
+        }
+    }
+
+    private boolean release(Admission admission) {
+        if (admission == null) {
+            return false;
+        }
+        queuedRecipients -= admission.recipients;
+        queuedBytes -= admission.bytes;
+        decreaseSender(admission.sender, admission.recipients);
+        return true;
+    }
+
+    private void decreaseSender(String sender, int count) {
+        int remaining = senderRecipients(sender) - count;
+        if (remaining <= 0) {
+            recipientsBySender.remove(sender);
+        } else {
+            recipientsBySender.put(sender, remaining);
+        }
+    }
+
+    private int senderRecipients(String sender) {
+        Integer count = recipientsBySender.get(sender);
+        return count == null ? 0 : count;
+    }
+
+    private boolean isExceeded(long current, long requested, long max) {
+        return 0 < max && 0 < current && max < current + requested;
+    }
+
+    private Policy getPolicy(String policyName) {
+        try {
+            return Policy.valueOf(policyName.trim().toUpperCase());
+        } catch (Exception e) {
+            log.warn("AdmissionControl.getPolicy(): Unknown policy '{}', BLOCK is used.", policyName);
+            return Policy.BLOCK;
+        }
+    }
+
+    /**
+     * @return Count of queued, not yet finished recipients.
+     */
+    public synchronized long getQueuedRecipients() {
+        return queuedRecipients;
+    }
+
+    /**
+     * @return Size of queued messages in bytes. Spilled messages are not
+     * counted.
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @param sender Sender address.
+     * @return Count of queued, not yet finished recipients of this sender.
+     */
+    public synchronized int getQueuedRecipients(String sender) {
+        return senderRecipients(sender);
+    }
+
+    /**
+     * @return Utilization of the recipient limit between 0 and 1 (or above, if
+     * a large message was admitted into an empty queue). It is 0 if the limit
+     * is not set.
+     */
+    public synchronized double getRecipientsUtilization() {
+        return utilization(queuedRecipients, configuration.getAdmissionRecipientsMax());
+    }
+
+    /**
+     * @return Utilization of the byte limit, see
+     * {@link #getRecipientsUtilization()}.
+     */
+    public synchronized double getBytesUtilization() {
+        return utilization(queuedBytes, configuration.getAdmissionBytesMax());
+    }
+
+    /**
+     * @param sender Sender address.
+     * @return Utilization of the per sender limit by this sender, see
+     * {@link #getRecipientsUtilization()}.
+     */
+    public synchronized double getSenderUtilization(String sender) {
+        return utilization(senderRecipients(sender), configuration.getAdmissionSenderMax());
+    }
+
+    private double utilization(long current, long max) {
+        return max <= 0 ? 0 : (double) current / max;
+    }
+
+    private static class Admission {
+
+        private final String sender;
+        private int recipients;
+        private final long bytes;
+
+        Admission(String sender, int recipients, long bytes) {
+            this.sender = sender;
+            this.recipients = recipients;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.masukomi.aspirin.core.delivery;
+
+import javax.mail.MessagingException;
+
+/**
+ * This exception is thrown when a message could not be queued, because an
+ * admission limit of {@link AdmissionControl} was reached.
+ *
+ */
+public class AdmissionException extends MessagingException {
+	private static final long serialVersionUID = 4105907452396120815L;
+
+	private final String limitName;
+
+	public AdmissionException(String s, String limitName) {
+		super(s);
+		this.limitName = limitName;
+	}
+
+	/**
+	 * @return The configuration parameter name of the exceeded limit.
+	 */
+	public String getLimitName() {
+		return limitName;
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.masukomi.aspirin.core.delivery;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.Helper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tenant is the value of the {@link Aspirin#HEADER_TENANT} header. If the
+ * header is not set, the tenant is the domain of the sender address.
+ *
+ */
+public class DefaultTenantExtractor implements TenantExtractor {
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultTenantExtractor.class);
+    private final Helper helper;
+
+    public DefaultTenantExtractor(Helper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public String getTenant(MimeMessage message) {
+        try {
+            String[] headers = message.getHeader(Aspirin.HEADER_TENANT);
+            if (headers != null && 0 < headers.length && 0 < headers[0].trim().length()) {
+                return headers[0].trim();
+            }
+        } catch (MessagingException e) {
+            log.error("Tenant header could not be get from MimeMessage.", e);
+        }
+        String sender = helper.getSenderAddress(message);
+        return sender.substring(sender.lastIndexOf('@') + 1);
+    }
+}
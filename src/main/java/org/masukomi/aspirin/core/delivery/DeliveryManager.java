@@ -1,11 +1,34 @@
 package org.masukomi.aspirin.core.delivery;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
@@ -18,12 +41,29 @@ import org.masukomi.aspirin.core.Helper;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
 import org.masukomi.aspirin.core.dns.ResolveHost;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics;
+import org.masukomi.aspirin.core.metrics.DeliveryStats;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable;
+import org.masukomi.aspirin.core.metrics.LatencyHistogram;
+import org.masukomi.aspirin.core.metrics.PrometheusExporter;
+import org.masukomi.aspirin.core.store.mail.CachingMailStore;
 import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.MessageEnvelope;
+import org.masukomi.aspirin.core.store.mail.StreamingMailStore;
+import org.masukomi.aspirin.core.store.mail.FileMailStore;
+import org.masukomi.aspirin.core.store.mail.TieredMailStore;
+import org.masukomi.aspirin.core.store.mail.MessageCache;
+import org.masukomi.aspirin.core.store.queue.DeliveryPriority;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStoreMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Lookup;
 
 /**
  * This class is the manager of delivery. It is instantiated by Aspirin class.
@@ -31,7 +71,7 @@ import org.slf4j.LoggerFactory;
  * @author Laszlo Solova
  *
  */
-public final class DeliveryManager extends Thread implements ConfigurationChangeListener {
+public final class DeliveryManager extends Thread implements ConfigurationChangeListener, DeliveryManagerMBean {
 
     private static final Logger log = LoggerFactory.getLogger(DeliveryManager.class);
     private final Configuration configuration;
@@ -43,11 +83,55 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
     private GenericPoolableDeliveryThreadFactory deliveryThreadObjectFactory = null;
     private Map<String, DeliveryHandler> deliveryHandlers = new HashMap<String, DeliveryHandler>();
     private final Helper helper;
+    /**
+     * Minimal count of messages prepared by one task in {@link #addAll}.
+     */
+    private static final int ADD_ALL_CHUNK_MIN = 50;
+    private ExecutorService enqueueExecutor = null;
+    private final AdmissionControl admissionControl;
+    /**
+     * Messages spilled by {@link AdmissionControl} are stored here instead of
+     * the main mail store.
+     */
+    private MailStore spillMailStore = null;
+    private final Set<String> spilledMailids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * This store is given to the delivery handlers, it finds the messages in
+     * the main or in the spill mail store.
+     */
+    private final MessageStore messageStore = new MessageStore();
+    private volatile TenantExtractor tenantExtractor;
+    private final Map<DeliveryPriority, LatencyHistogram> laneLatencies = new EnumMap<DeliveryPriority, LatencyHistogram>(DeliveryPriority.class);
+    private final DeliveryMetrics metrics = new DeliveryMetrics();
+    /**
+     * The dispatch rate is updated in this interval, and it is averaged over
+     * the rate window.
+     */
+    private static final long RATE_INTERVAL = 5000;
+    private static final long RATE_WINDOW = 60000;
+    private static final int DOMAIN_STATS_SUMMARY_SIZE = 20;
+    private volatile boolean dispatchPaused = false;
+    private final AtomicLong dispatchCount = new AtomicLong();
+    private volatile double dispatchRate = 0;
+    private long rateCount = 0;
+    private long rateUpdated = 0;
+    /**
+     * Registered JMX beans, guarded by itself.
+     */
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+    private MBeanServer mbeanServer = null;
+    private PrometheusExporter metricsExporter = null;
+    private ExpirySweeper expirySweeper = null;
 
     public DeliveryManager(Configuration configuration, QueueStore queueStore, MailStore mailStore) {
         this.configuration = configuration;
         this.helper = new Helper(configuration);
         this.mailStore = mailStore;
+        this.admissionControl = new AdmissionControl(configuration);
+        this.tenantExtractor = new DefaultTenantExtractor(helper);
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            laneLatencies.put(priority, new LatencyHistogram());
+        }
         // Set up default objects.
         this.setName("Aspirin-" + getClass().getSimpleName() + "-" + getId());
 
@@ -72,95 +156,286 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         // Set up stores and configuration listener
         this.queueStore = queueStore;
         queueStore.init();
+        if (queueStore instanceof SimpleQueueStore) {
+            // Failed items must release their admission, so they are failed by sweepExpired()
+            ((SimpleQueueStore) queueStore).setBackgroundExpiry(true);
+        }
+        if (mailStore instanceof TieredMailStore && ((TieredMailStore) mailStore).getQueueStore() == null) {
+            // Tiers are balanced by the delivery schedule
+            ((TieredMailStore) mailStore).setQueueStore(queueStore);
+        }
 
         // Set up deliveryhandlers
         // TODO create by configuration
-        deliveryHandlers.put(SendMessage.class.getCanonicalName(), new SendMessage(configuration, mailStore));
-        deliveryHandlers.put(ResolveHost.class.getCanonicalName(), new ResolveHost());
+        deliveryHandlers.put(SendMessage.class.getCanonicalName(), new SendMessage(configuration, messageStore, metrics));
+        deliveryHandlers.put(ResolveHost.class.getCanonicalName(), new ResolveHost(metrics));
 
         configuration.addListener(this);
+        if (configuration.isDeliveryJfrEvents()) {
+            DeliveryEvents.setEnabled(true);
+        }
     }
 
     public String add(MimeMessage mimeMessage) throws MessagingException {
+        return add(mimeMessage, AspirinInternal.extractRecipients(mimeMessage));
+    }
+
+    /**
+     * Add a message with an explicit recipient list. The message is stored
+     * once and all recipients are queued in one queue store operation.
+     *
+     * @param mimeMessage Message to deliver.
+     * @param recipients Recipients of this message.
+     * @return The mail id of the message.
+     * @throws MessagingException If queueing failed.
+     */
+    public String add(MimeMessage mimeMessage, Collection<InternetAddress> recipients) throws MessagingException {
         String mailid = helper.getMailID(mimeMessage);
-        long expiry = helper.getExpiry(mimeMessage);
-        Collection<InternetAddress> recipients = AspirinInternal.extractRecipients(mimeMessage);
-        synchronized (mailingLock) {
-            mailStore.set(mailid, mimeMessage);
-            queueStore.add(mailid, expiry, recipients);
+        List<QueueInfo> queueInfos = createQueueInfos(mailid, helper.getExpiry(mimeMessage), helper.getDeliverAt(mimeMessage), helper.getPriority(mimeMessage), tenantExtractor.getTenant(mimeMessage), recipients);
+        boolean spill = admit(mailid, mimeMessage, queueInfos.size());
+        boolean queued = false;
+        try {
+            // The mail store is thread safe, a slow or synced write should not block other producers
+            storeMessage(mailid, mimeMessage, spill);
+            synchronized (mailingLock) {
+                queueStore.addAll(queueInfos);
+            }
+            queued = true;
+        } finally {
+            if (!queued) {
+                admissionControl.release(mailid);
+            }
         }
         return mailid;
     }
 
+    /**
+     * Add a template message with per-recipient variables. The template is
+     * stored once, and only the variables are kept in the queue for each
+     * recipient. The message is rendered for every recipient while sending,
+     * see {@link TemplateInputStream} for the placeholder syntax.
+     *
+     * @param template Template message to deliver. Its recipient headers are
+     * not used. Its text parts with placeholders are rewritten as UTF-8 with
+     * 8bit transfer encoding, see
+     * {@link TemplateInputStream#prepareTemplate(MimeMessage)}.
+     * @param recipients Template variables by recipient. The variable maps
+     * are kept in the queue, so they should not be changed later.
+     * @return The mail id of the template.
+     * @throws MessagingException If queueing failed.
+     */
+    public String addBulk(MimeMessage template, Map<InternetAddress, Map<String, String>> recipients) throws MessagingException {
+        try {
+            TemplateInputStream.prepareTemplate(template);
+        } catch (IOException e) {
+            throw new MessagingException("Template message could not be prepared.", e);
+        }
+        String mailid = helper.getMailID(template);
+        List<QueueInfo> queueInfos = createQueueInfos(mailid, helper.getExpiry(template), helper.getDeliverAt(template), helper.getPriority(template), tenantExtractor.getTenant(template), recipients.keySet());
+        Iterator<Map<String, String>> variablesIt = recipients.values().iterator();
+        for (QueueInfo queueInfo : queueInfos) {
+            Map<String, String> variables = variablesIt.next();
+            queueInfo.setVariables(variables == null ? Collections.<String, String>emptyMap() : variables);
+        }
+        boolean spill = admit(mailid, template, queueInfos.size());
+        boolean queued = false;
+        try {
+            storeMessage(mailid, template, spill);
+            synchronized (mailingLock) {
+                queueStore.addAll(queueInfos);
+            }
+            queued = true;
+        } finally {
+            if (!queued) {
+                admissionControl.release(mailid);
+            }
+        }
+        return mailid;
+    }
+
+    /**
+     * Add many messages in one step. The messages are prepared and written to
+     * the mail store in parallel chunks, then all recipients are queued in one
+     * queue store operation. All the messages must fit into the admission
+     * limits together, because none of them is deliverable before the end of
+     * this call.
+     *
+     * @param mimeMessages Messages to deliver.
+     * @return The mail ids of the messages, in the order of the messages.
+     * @throws MessagingException If any of the messages could not be queued.
+     * In this case none of them is queued.
+     */
+    public List<String> addAll(Collection<MimeMessage> mimeMessages) throws MessagingException {
+        final List<MimeMessage> messages = new ArrayList<MimeMessage>(mimeMessages);
+        final String[] mailids = new String[messages.size()];
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int chunkSize = Math.max(ADD_ALL_CHUNK_MIN, (messages.size() + parallelism - 1) / parallelism);
+        List<Callable<List<QueueInfo>>> tasks = new ArrayList<Callable<List<QueueInfo>>>();
+        for (int from = 0; from < messages.size(); from += chunkSize) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(from + chunkSize, messages.size());
+            tasks.add(new Callable<List<QueueInfo>>() {
+                @Override
+                public List<QueueInfo> call() throws Exception {
+                    List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+                    for (int i = chunkFrom; i < chunkTo; i++) {
+                        MimeMessage mimeMessage = messages.get(i);
+                        String mailid = helper.getMailID(mimeMessage);
+                        List<QueueInfo> messageQueueInfos = createQueueInfos(mailid, helper.getExpiry(mimeMessage), helper.getDeliverAt(mimeMessage), helper.getPriority(mimeMessage), tenantExtractor.getTenant(mimeMessage), AspirinInternal.extractRecipients(mimeMessage));
+                        boolean spill = admit(mailid, mimeMessage, messageQueueInfos.size());
+                        try {
+                            storeMessage(mailid, mimeMessage, spill);
+                        } catch (RuntimeException e) {
+                            admissionControl.release(mailid);
+                            throw e;
+                        }
+                        queueInfos.addAll(messageQueueInfos);
+                        mailids[i] = mailid;
+                    }
+                    return queueInfos;
+                }
+            });
+        }
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        try {
+            if (tasks.size() == 1) {
+                queueInfos.addAll(tasks.get(0).call());
+            } else {
+                for (Future<List<QueueInfo>> future : getEnqueueExecutor().invokeAll(tasks)) {
+                    queueInfos.addAll(future.get());
+                }
+            }
+            synchronized (mailingLock) {
+                queueStore.addAll(queueInfos);
+            }
+        } catch (Exception e) {
+            for (String mailid : mailids) {
+                if (mailid != null) {
+                    messageStore.remove(mailid);
+                    admissionControl.release(mailid);
+                }
+            }
+            if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                e = (Exception) e.getCause();
+            }
+            if (e instanceof AdmissionException) {
+                throw (AdmissionException) e;
+            }
+            throw new MessagingException("Bulk message queueing failed.", e);
+        }
+        return Arrays.asList(mailids);
+    }
+
+    private boolean admit(String mailid, MimeMessage mimeMessage, int recipients) throws AdmissionException {
+        long bytes = admissionControl.isBytesLimited() ? helper.getMessageSize(mimeMessage) : 0;
+        return admissionControl.admit(mailid, helper.getSenderAddress(mimeMessage), recipients, bytes);
+    }
+
+    private void storeMessage(String mailid, MimeMessage mimeMessage, boolean spill) throws AdmissionException {
+        if (spill) {
+            if (spillMailStore == null) {
+                throw new AdmissionException("Admission limit '" + Configuration.PARAM_ADMISSION_BYTES_MAX + "' reached and there is no spill mail store, mail '" + mailid + "' is not queued.", Configuration.PARAM_ADMISSION_BYTES_MAX);
+            }
+            spilledMailids.add(mailid);
+            spillMailStore.set(mailid, mimeMessage);
+        } else {
+            mailStore.set(mailid, mimeMessage);
+        }
+    }
+
+    private List<QueueInfo> createQueueInfos(String mailid, long expiry, long deliverAt, DeliveryPriority priority, String tenant, Collection<InternetAddress> recipients) {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>(recipients.size());
+        for (InternetAddress recipient : recipients) {
+            QueueInfo queueInfo = queueStore.createQueueInfo();
+            queueInfo.setExpiry(expiry);
+            queueInfo.setMailid(mailid);
+            queueInfo.setRecipient(recipient.getAddress());
+            if (0 < deliverAt) {
+                queueInfo.setAttempt(deliverAt);
+            }
+            queueInfo.setPriority(priority);
+            queueInfo.setTenant(tenant);
+            queueInfos.add(queueInfo);
+        }
+        return queueInfos;
+    }
+
+    private synchronized ExecutorService getEnqueueExecutor() {
+        if (enqueueExecutor == null) {
+            enqueueExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Aspirin-Enqueue-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return enqueueExecutor;
+    }
+
     public MimeMessage get(QueueInfo qi) {
         if( qi == null ) {
             throw new RuntimeException("queue info object is null");
         }
-        return mailStore.get(qi.getMailid());
+        return messageStore.get(qi.getMailid());
     }
 
     public void remove(String messageName) {
         synchronized (mailingLock) {
-            mailStore.remove(messageName);
+            messageStore.remove(messageName);
             queueStore.remove(messageName);
         }
+        admissionControl.release(messageName);
     }
 
     @Override
     public void run() {
         running = true;
+        rateUpdated = System.currentTimeMillis();
+        synchronized (this) {
+            expirySweeper = new ExpirySweeper();
+            expirySweeper.start();
+        }
         log.info("DeliveryManager started.");
         while (running) {
-            QueueInfo qi = null;
+            List<QueueInfo> qis = null;
+            int dispatched = 0;
             try {
-                qi = queueStore.next();
-                if (qi != null) {
-//                    MimeMessage message = get(qi);
-//                    if (message == null) {
-//                        log.warn("No MimeMessage found for qi={}", qi);
-//                        qi.setResultInfo("No MimeMessage found.");
-//                        qi.setState(DeliveryState.FAILED);
-//                        release(qi);
-//                        continue;
-//                    }
-
-                    //DeliveryContext dCtx = new DeliveryContext().setQueueInfo(qi).setMessage(message);
-                    DeliveryContext dCtx = new DeliveryContext().setQueueInfo(qi);
-
-                    log.trace("DeliveryManager.run(): Pool state. A{}/I{}", new Object[]{deliveryThreadObjectPool.getNumActive(), deliveryThreadObjectPool.getNumIdle()});
-                    try {
-                        log.debug("DeliveryManager.run(): Start delivery. qi={}", qi);
-                        DeliveryThread dThread = (DeliveryThread) deliveryThreadObjectPool.borrowObject();
-                        log.trace("DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'", new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
-                        dThread.setContext(dCtx);
-                        /*
-                         * On first borrow the DeliveryThread is created and
-                         * initialized, but not started, because the first time
-                         * we have to set up the QueItem to deliver.
-                         */
-                        if (!dThread.isAlive()) {
-                            dThread.start();
+                updateDispatchRate(System.currentTimeMillis());
+                if (dispatchPaused) {
+                    synchronized (this) {
+                        try {
+                            wait(1000);
+                        } catch (InterruptedException e) {
+                            running = false;
                         }
-                    } catch (IllegalStateException ise) {
-                        /*
-                         * This could be happen, if thread is running, but
-                         * ObjectPool is already closed. It is a normal process
-                         * of Aspirin sending thread shutdown.
-                         */
-                        release(qi);
-                    } catch (NoSuchElementException nsee) {
+                    }
+                    continue;
+                }
+                if (configuration.getDeliveryExpirySweepInterval() <= 0) {
+                    // There is no background sweeper, expired items are failed here
+                    sweepExpired();
+                }
+                qis = queueStore.next(configuration.getDeliveryBatchSize(), true);
+                if (!qis.isEmpty()) {
+                    log.trace("DeliveryManager.run(): Claimed {} items.", qis.size());
+                    while (dispatched < qis.size() && running) {
+                        QueueInfo qi = qis.get(dispatched++);
+                        if (!dispatch(qi)) {
+                            break;
+                        }
+                    }
+                    if (dispatched < qis.size()) {
                         /*
-                         * This happens if there is a lot of mail to send, and
-                         * no idle DeliveryThread is available.
+                         * No more DeliveryThread is available, the rest of the
+                         * claimed items are given back to the queue without
+                         * counting them as an attempt.
                          */
-                        log.debug("DeliveryManager.run(): No idle DeliveryThread is available: {}", nsee.getMessage());
-                        qi.setResultInfo("No delivery available, will try again");
-                        release(qi);
-                    } catch (Exception e) {
-                        log.error("DeliveryManager.run(): Failed borrow delivery thread object.", e);
-                        release(qi);
+                        queueStore.requeue(qis.subList(dispatched, qis.size()));
                     }
-
                 } else {
 //                    if (log.isTraceEnabled() && 0 < queueStore.size()) {
 //                        log.trace("DeliveryManager.run(): There is no sendable item in the queue. Fallback to waiting state for a minute.");
@@ -180,9 +455,8 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 
             } catch (Throwable t) {
                 log.error("Exception polling for messages", t);
-                System.out.println("----");
-                if (qi != null) {
-                    release(qi);
+                if (qis != null && dispatched < qis.size()) {
+                    queueStore.requeue(qis.subList(dispatched, qis.size()));
                 }
             }
 
@@ -190,15 +464,325 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         log.info("DeliveryManager terminated.");
     }
 
+    /**
+     * Hand over a claimed item to a DeliveryThread.
+     *
+     * @param qi The claimed QueueInfo.
+     * @return false if no DeliveryThread was available, so there is no reason
+     * to try the next item right now.
+     */
+    private boolean dispatch(QueueInfo qi) {
+        DeliveryContext dCtx = new DeliveryContext().setQueueInfo(qi);
+        pinMessage(qi.getMailid(), true);
+
+        log.trace("DeliveryManager.run(): Pool state. A{}/I{}", new Object[]{deliveryThreadObjectPool.getNumActive(), deliveryThreadObjectPool.getNumIdle()});
+        try {
+            log.debug("DeliveryManager.run(): Start delivery. qi={}", qi);
+            DeliveryThread dThread = (DeliveryThread) deliveryThreadObjectPool.borrowObject();
+            log.trace("DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'", new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
+            dThread.setContext(dCtx);
+            dispatchCount.incrementAndGet();
+            /*
+             * On first borrow the DeliveryThread is created and initialized,
+             * but not started, because the first time we have to set up the
+             * QueItem to deliver.
+             */
+            if (!dThread.isAlive()) {
+                dThread.start();
+            }
+        } catch (IllegalStateException ise) {
+            /*
+             * This could be happen, if thread is running, but ObjectPool is
+             * already closed. It is a normal process of Aspirin sending thread
+             * shutdown.
+             */
+            release(qi);
+            return false;
+        } catch (NoSuchElementException nsee) {
+            /*
+             * This happens if there is a lot of mail to send, and no idle
+             * DeliveryThread is available.
+             */
+            log.debug("DeliveryManager.run(): No idle DeliveryThread is available: {}", nsee.getMessage());
+            qi.setResultInfo("No delivery available, will try again");
+            release(qi);
+            return false;
+        } catch (Exception e) {
+            log.error("DeliveryManager.run(): Failed borrow delivery thread object.", e);
+            release(qi);
+        }
+        return true;
+    }
+
+    /**
+     * Update the exponentially weighted average of the dispatch rate. Called
+     * by the dispatching thread only.
+     */
+    private void updateDispatchRate(long now) {
+        long elapsed = now - rateUpdated;
+        if (elapsed < RATE_INTERVAL) {
+            return;
+        }
+        long count = dispatchCount.get();
+        double current = (count - rateCount) * 1000.0 / elapsed;
+        double alpha = 1 - Math.exp(-(double) elapsed / RATE_WINDOW);
+        dispatchRate += alpha * (current - dispatchRate);
+        rateCount = count;
+        rateUpdated = now;
+    }
+
     public boolean isRunning() {
         return running;
     }
 
+    @Override
+    public boolean isDispatchPaused() {
+        return dispatchPaused;
+    }
+
+    @Override
+    public void pauseDispatch() {
+        dispatchPaused = true;
+        log.info("DeliveryManager.pauseDispatch(): Dispatching is paused.");
+    }
+
+    @Override
+    public void resumeDispatch() {
+        dispatchPaused = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        log.info("DeliveryManager.resumeDispatch(): Dispatching is resumed.");
+    }
+
+    @Override
+    public long getDispatchCount() {
+        return dispatchCount.get();
+    }
+
+    @Override
+    public double getDispatchRate() {
+        return dispatchRate;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return deliveryThreadObjectPool.getNumActive();
+    }
+
+    @Override
+    public int getIdleWorkers() {
+        return deliveryThreadObjectPool.getNumIdle();
+    }
+
+    @Override
+    public int getDnsCacheSize() {
+        return Lookup.getDefaultCache(DClass.IN).getSize();
+    }
+
+    @Override
+    public int getDnsCacheMaxEntries() {
+        return Lookup.getDefaultCache(DClass.IN).getMaxEntries();
+    }
+
+    @Override
+    public void clearDnsCache() {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+    }
+
+    private MessageCache getMessageCache() {
+        return mailStore instanceof CachingMailStore ? ((CachingMailStore) mailStore).getMessageCache() : null;
+    }
+
+    @Override
+    public long getMessageCacheHitCount() {
+        MessageCache messageCache = getMessageCache();
+        return messageCache == null ? -1 : messageCache.getHitCount();
+    }
+
+    @Override
+    public long getMessageCacheMissCount() {
+        MessageCache messageCache = getMessageCache();
+        return messageCache == null ? -1 : messageCache.getMissCount();
+    }
+
+    @Override
+    public double getMessageCacheHitRatio() {
+        MessageCache messageCache = getMessageCache();
+        return messageCache == null ? -1 : messageCache.getHitRatio();
+    }
+
+    @Override
+    public int getMessageCacheCount() {
+        MessageCache messageCache = getMessageCache();
+        return messageCache == null ? -1 : messageCache.getCount();
+    }
+
+    @Override
+    public long getMessageCacheSize() {
+        MessageCache messageCache = getMessageCache();
+        return messageCache == null ? -1 : messageCache.getSize();
+    }
+
+    /**
+     * @param order Order of the snapshot.
+     * @return Delivery statistics of the recipient domains with their current
+     * backlog. The domains with QUEUED items, but without attempts are
+     * listed too, if the queue store is a {@link SimpleQueueStore}.
+     */
+    public List<DeliveryStats> getDomainStats(DeliveryStatsTable.Order order) {
+        Map<String, Integer> backlogs = Collections.emptyMap();
+        if (queueStore instanceof SimpleQueueStore) {
+            backlogs = ((SimpleQueueStore) queueStore).getDomainBacklogs();
+        }
+        return metrics.getDomainStats().snapshot(order, backlogs);
+    }
+
+    /**
+     * @param order Order of the snapshot.
+     * @return Delivery statistics of the MX hosts.
+     */
+    public List<DeliveryStats> getHostStats(DeliveryStatsTable.Order order) {
+        return metrics.getHostStats().snapshot(order, Collections.<String, Integer>emptyMap());
+    }
+
+    @Override
+    public String[] getDomainStatsSummary(String order) {
+        List<DeliveryStats> stats = getDomainStats(DeliveryStatsTable.Order.valueOf(order.trim().toUpperCase()));
+        String[] summary = new String[Math.min(DOMAIN_STATS_SUMMARY_SIZE, stats.size())];
+        for (int i = 0; i < summary.length; i++) {
+            summary[i] = stats.get(i).toString();
+        }
+        return summary;
+    }
+
+    @Override
+    public int purgeDomain(String domain) {
+        List<QueueInfo> purged;
+        synchronized (mailingLock) {
+            purged = queueStore.purgeDomain(domain, "Purged by the operator.");
+        }
+        Set<String> mailids = new HashSet<String>();
+        for (QueueInfo qi : purged) {
+            admissionControl.recipientFinished(qi.getMailid());
+            mailids.add(qi.getMailid());
+        }
+        for (String mailid : mailids) {
+            if (queueStore.isCompleted(mailid)) {
+                remove(mailid);
+            }
+        }
+        log.info("DeliveryManager.purgeDomain(): {} items of domain '{}' are purged.", purged.size(), domain);
+        return purged.size();
+    }
+
+    /**
+     * Fail the expired items of the queue in batches, and remove the messages
+     * completed by them. The queue store is locked only while a batch is
+     * taken, the listeners are notified out of the lock.
+     *
+     * @return Count of the failed items.
+     */
+    public int sweepExpired() {
+        int batch = Math.max(1, configuration.getDeliveryExpirySweepBatch());
+        int count = 0;
+        List<QueueInfo> expired;
+        do {
+            expired = queueStore.expire(batch);
+            Set<String> mailids = new HashSet<String>();
+            long now = System.currentTimeMillis();
+            for (QueueInfo qi : expired) {
+                admissionControl.recipientFinished(qi.getMailid());
+                laneLatencies.get(qi.getPriority()).record(now - qi.getCreated());
+                mailids.add(qi.getMailid());
+            }
+            for (String mailid : mailids) {
+                if (queueStore.isCompleted(mailid)) {
+                    remove(mailid);
+                }
+            }
+            count += expired.size();
+        } while (expired.size() == batch);
+        if (0 < count) {
+            log.info("DeliveryManager.sweepExpired(): {} expired items are failed.", count);
+        }
+        return count;
+    }
+
+    /**
+     * Register the JMX beans of this delivery manager, its configuration,
+     * metrics and queue store in the "org.masukomi.aspirin" domain. They are
+     * unregistered on {@link #shutdown()}.
+     *
+     * @param server The MBean server, for example
+     * {@link java.lang.management.ManagementFactory#getPlatformMBeanServer()}.
+     * @param name Name of this Aspirin instance, it is the "name" key of the
+     * object names.
+     * @throws JMException If a bean could not be registered.
+     */
+    public void registerMBeans(MBeanServer server, String name) throws JMException {
+        synchronized (mbeanNames) {
+            if (mbeanServer != null && mbeanServer != server) {
+                throw new IllegalStateException("The beans are registered in another MBean server.");
+            }
+            mbeanServer = server;
+        }
+        registerMBean(server, configuration, "Configuration", name);
+        registerMBean(server, this, "DeliveryManager", name);
+        registerMBean(server, metrics, "DeliveryMetrics", name);
+        if (queueStore instanceof SimpleQueueStoreMBean) {
+            registerMBean(server, queueStore, "QueueStore", name);
+        }
+    }
+
+    /**
+     * Serve the metrics of this delivery manager in the Prometheus text
+     * format. The exporter is stopped on {@link #shutdown()}.
+     *
+     * @param address The listening address, port 0 selects a free port.
+     * @return The started exporter.
+     * @throws IOException If the HTTP server could not be bound.
+     */
+    public synchronized PrometheusExporter startMetricsExporter(InetSocketAddress address) throws IOException {
+        if (metricsExporter != null) {
+            throw new IllegalStateException("The metrics exporter is already started.");
+        }
+        PrometheusExporter exporter = new PrometheusExporter(this);
+        exporter.start(address);
+        metricsExporter = exporter;
+        return exporter;
+    }
+
+    private void registerMBean(MBeanServer server, Object mbean, String type, String name) throws JMException {
+        ObjectName objectName = new ObjectName("org.masukomi.aspirin:type=" + type + ",name=" + name);
+        server.registerMBean(mbean, objectName);
+        synchronized (mbeanNames) {
+            mbeanNames.add(objectName);
+        }
+    }
+
+    private void unregisterMBeans() {
+        synchronized (mbeanNames) {
+            for (ObjectName objectName : mbeanNames) {
+                try {
+                    if (mbeanServer.isRegistered(objectName)) {
+                        mbeanServer.unregisterMBean(objectName);
+                    }
+                } catch (JMException e) {
+                    log.warn("DeliveryManager.unregisterMBeans(): Could not unregister " + objectName, e);
+                }
+            }
+            mbeanNames.clear();
+            mbeanServer = null;
+        }
+    }
+
     public void terminate() {
         running = false;
     }
 
     public void release(QueueInfo qi) {
+        pinMessage(qi.getMailid(), false);
         if (qi.hasState(DeliveryState.IN_PROGRESS)) {
             if (qi.isInTimeBounds()) {
                 qi.setState(DeliveryState.QUEUED);
@@ -209,19 +793,67 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
             }
         }
         queueStore.setSendingResult(qi);
+        if (qi.hasState(DeliveryState.SENT, DeliveryState.FAILED)) {
+            admissionControl.recipientFinished(qi.getMailid());
+            laneLatencies.get(qi.getPriority()).record(System.currentTimeMillis() - qi.getCreated());
+        }
         if (queueStore.isCompleted(qi.getMailid())) {
             queueStore.remove(qi.getMailid());
+            admissionControl.release(qi.getMailid());
         }
         log.trace("DeliveryManager.release(): Release item '{}' with state: '{}' after {} attempts.", new Object[]{qi.getMailid(), qi.getState().name(), qi.getAttemptCount()});
     }
 
+    /**
+     * @param priority A priority lane.
+     * @return Histogram of milliseconds between queueing and the final
+     * delivery state of the recipients in this lane.
+     */
+    public LatencyHistogram getLaneLatency(DeliveryPriority priority) {
+        return laneLatencies.get(priority);
+    }
+
+    /**
+     * @return Registry of the delivery metrics. It could be registered as a
+     * {@link org.masukomi.aspirin.core.metrics.DeliveryMetricsMBean}.
+     */
+    public DeliveryMetrics getMetrics() {
+        return metrics;
+    }
+
+    public QueueStore getQueueStore() {
+        return queueStore;
+    }
+
+    public MailStore getMailStore() {
+        return mailStore;
+    }
+
+    /**
+     * Pin the message of a dispatched item in the cache of its store, so it is
+     * not evicted while its deliveries are in progress.
+     */
+    private void pinMessage(String mailid, boolean pin) {
+        MailStore store = messageStore.storeOf(mailid);
+        if (store instanceof CachingMailStore) {
+            MessageCache messageCache = ((CachingMailStore) store).getMessageCache();
+            if (pin) {
+                messageCache.pin(mailid);
+            } else {
+                messageCache.unpin(mailid);
+            }
+        }
+    }
+
     public boolean isCompleted(QueueInfo qi) {
         return queueStore.isCompleted(qi.getMailid());
     }
 
     @Override
     public void configChanged(String parameterName) {
-
+        if (Configuration.PARAM_DELIVERY_JFR_EVENTS.equals(parameterName)) {
+            DeliveryEvents.setEnabled(configuration.isDeliveryJfrEvents());
+        }
     }
 
     public DeliveryHandler getDeliveryHandler(String handlerName) {
@@ -230,14 +862,81 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 
     public void shutdown() {
         this.running = false;
+        unregisterMBeans();
+        synchronized (this) {
+            if (metricsExporter != null) {
+                metricsExporter.stop();
+                metricsExporter = null;
+            }
+            if (expirySweeper != null) {
+                expirySweeper.interrupt();
+                expirySweeper = null;
+            }
+            if (enqueueExecutor != null) {
+                enqueueExecutor.shutdown();
+                enqueueExecutor = null;
+            }
+        }
         try {
             deliveryThreadObjectPool.close();
             deliveryThreadObjectPool.clear();
         } catch (Exception e) {
             log.error("DeliveryManager.shutdown() failed.", e);
         }
+        shutdownMailStore(mailStore);
+        shutdownMailStore(spillMailStore);
+    }
+
+    /**
+     * Stop the background threads of a mail store, spooled messages are
+     * written before.
+     */
+    private static void shutdownMailStore(MailStore store) {
+        if (store instanceof TieredMailStore) {
+            ((TieredMailStore) store).shutdown();
+            shutdownMailStore(((TieredMailStore) store).getColdStore());
+        } else if (store instanceof FileMailStore) {
+            ((FileMailStore) store).shutdown();
+        }
     }
     
+    /**
+     * @return The admission control, its current utilization could be used by
+     * producers to throttle themselves.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public MailStore getSpillMailStore() {
+        return spillMailStore;
+    }
+
+    /**
+     * Set the mail store used by the SPILL admission policy, typically a
+     * {@link org.masukomi.aspirin.core.store.mail.FileMailStore}.
+     *
+     * @param spillMailStore The mail store of spilled messages.
+     */
+    public void setSpillMailStore(MailStore spillMailStore) {
+        this.spillMailStore = spillMailStore;
+    }
+
+    public TenantExtractor getTenantExtractor() {
+        return tenantExtractor;
+    }
+
+    /**
+     * Set the extractor of tenant keys. It is applied on the messages queued
+     * after this call.
+     *
+     * @param tenantExtractor The tenant extractor, null restores the
+     * {@link DefaultTenantExtractor}.
+     */
+    public void setTenantExtractor(TenantExtractor tenantExtractor) {
+        this.tenantExtractor = tenantExtractor == null ? new DefaultTenantExtractor(helper) : tenantExtractor;
+    }
+
     public List<DeliveryThread> getDeliveryThreads() {
         List list = new ArrayList();
         for( DeliveryThread th : GenericPoolableDeliveryThreadFactory.mapOfDeliveryThreads.keySet() ) {
@@ -245,4 +944,134 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         }
         return list;               
     }
+
+    /**
+     * Fails the expired items in the background by
+     * {@link DeliveryManager#sweepExpired()}, so an expiring campaign does not
+     * stall the dispatching. A {@link SimpleQueueStore} only skips the expired
+     * items on claim.
+     */
+    private class ExpirySweeper extends Thread {
+
+        ExpirySweeper() {
+            super("Aspirin-ExpirySweeper-" + DeliveryManager.this.getId());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running && !isInterrupted()) {
+                long interval = configuration.getDeliveryExpirySweepInterval();
+                try {
+                    if (0 < interval) {
+                        sweepExpired();
+                    }
+                    Thread.sleep(0 < interval ? interval : 1000);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    log.error("DeliveryManager.ExpirySweeper.run(): Expired items could not be failed.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * It routes the message requests of delivery handlers to the main or to
+     * the spill mail store. Streaming requests to a store, which does not
+     * support them, are served from the parsed message.
+     */
+    private class MessageStore implements StreamingMailStore {
+
+        private MailStore storeOf(String mailid) {
+            if (spillMailStore != null && spilledMailids.contains(mailid)) {
+                return spillMailStore;
+            }
+            return mailStore;
+        }
+
+        @Override
+        public MimeMessage get(String mailid) {
+            DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.MAIL_STORE_GET);
+            MimeMessage msg = storeOf(mailid).get(mailid);
+            event.end(mailid, null, null, -1, msg == null ? "MISSING" : "FOUND");
+            return msg;
+        }
+
+        @Override
+        public InputStream getInputStream(String mailid) throws IOException {
+            DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.MAIL_STORE_GET);
+            InputStream in = openInputStream(mailid);
+            event.end(mailid, null, null, -1, in == null ? "MISSING" : "FOUND");
+            return in;
+        }
+
+        private InputStream openInputStream(String mailid) throws IOException {
+            MailStore store = storeOf(mailid);
+            if (store instanceof StreamingMailStore) {
+                return ((StreamingMailStore) store).getInputStream(mailid);
+            }
+            MimeMessage msg = store.get(mailid);
+            if (msg == null) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                msg.writeTo(out);
+            } catch (MessagingException e) {
+                throw new IOException("Message " + mailid + " could not be serialized.", e);
+            }
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public MessageEnvelope getEnvelope(String mailid) throws IOException {
+            MailStore store = storeOf(mailid);
+            if (store instanceof StreamingMailStore) {
+                return ((StreamingMailStore) store).getEnvelope(mailid);
+            }
+            MimeMessage msg = store.get(mailid);
+            if (msg == null) {
+                return null;
+            }
+            try {
+                return MessageEnvelope.of(mailid, msg, helper.getMessageSize(msg));
+            } catch (MessagingException e) {
+                throw new IOException("Headers of message " + mailid + " could not be read.", e);
+            }
+        }
+
+        @Override
+        public long getSize(String mailid) {
+            MailStore store = storeOf(mailid);
+            if (store instanceof StreamingMailStore) {
+                return ((StreamingMailStore) store).getSize(mailid);
+            }
+            MimeMessage msg = store.get(mailid);
+            return msg == null ? -1 : helper.getMessageSize(msg);
+        }
+
+        @Override
+        public List<String> getMailIds() {
+            List<String> mailids = new ArrayList<String>(mailStore.getMailIds());
+            mailids.addAll(spilledMailids);
+            return mailids;
+        }
+
+        @Override
+        public void init() {
+            // Stores are initialized by their owners
+        }
+
+        @Override
+        public void remove(String mailid) {
+            storeOf(mailid).remove(mailid);
+            spilledMailids.remove(mailid);
+        }
+
+        @Override
+        public void set(String mailid, MimeMessage msg) {
+            mailStore.set(mailid, msg);
+        }
+    }
 }
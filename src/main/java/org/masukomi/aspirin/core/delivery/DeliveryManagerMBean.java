@@ -0,0 +1,106 @@
+package org.masukomi.aspirin.core.delivery;
+
+/**
+ * <p>This is the JMX bean of the delivery engine. It shows the live state of
+ * dispatching and of the caches used by the delivery, and it could pause the
+ * dispatching or purge the queued items of a domain.</p>
+ *
+ */
+public interface DeliveryManagerMBean {
+
+    /**
+     * @return true if no new delivery is started.
+     */
+    public boolean isDispatchPaused();
+
+    /**
+     * Stop starting new deliveries. Deliveries in progress are finished.
+     */
+    public void pauseDispatch();
+
+    /**
+     * Continue starting new deliveries.
+     */
+    public void resumeDispatch();
+
+    /**
+     * @return Count of items dispatched to delivery threads since startup.
+     */
+    public long getDispatchCount();
+
+    /**
+     * @return Dispatched items per second, averaged over about a minute.
+     */
+    public double getDispatchRate();
+
+    /**
+     * @return Count of delivery threads delivering an item.
+     */
+    public int getActiveWorkers();
+
+    /**
+     * @return Count of idle delivery threads in the pool.
+     */
+    public int getIdleWorkers();
+
+    /**
+     * @return Count of records in the DNS cache.
+     */
+    public int getDnsCacheSize();
+
+    /**
+     * @return Maximal count of records in the DNS cache.
+     */
+    public int getDnsCacheMaxEntries();
+
+    /**
+     * Remove all records from the DNS cache.
+     */
+    public void clearDnsCache();
+
+    /**
+     * @return Count of message cache hits, or -1 if the mail store has no
+     * cache.
+     */
+    public long getMessageCacheHitCount();
+
+    /**
+     * @return Count of message cache misses, or -1 if the mail store has no
+     * cache.
+     */
+    public long getMessageCacheMissCount();
+
+    /**
+     * @return Hit ratio of the message cache, or -1 if the mail store has no
+     * cache.
+     */
+    public double getMessageCacheHitRatio();
+
+    /**
+     * @return Count of messages in the message cache, or -1 if the mail store
+     * has no cache.
+     */
+    public int getMessageCacheCount();
+
+    /**
+     * @return Size of the cached messages in bytes, or -1 if the mail store
+     * has no cache.
+     */
+    public long getMessageCacheSize();
+
+    /**
+     * @param order BACKLOG or FAILURE_RATE.
+     * @return Decaying delivery statistics of the first 20 recipient domains
+     * in the given order, one line per domain.
+     */
+    public String[] getDomainStatsSummary(String order);
+
+    /**
+     * Fail all the QUEUED items of a recipient domain, the listeners are
+     * notified about them. Items under delivery are finished.
+     *
+     * @param domain The recipient domain.
+     * @return Count of failed items.
+     */
+    public int purgeDomain(String domain);
+}
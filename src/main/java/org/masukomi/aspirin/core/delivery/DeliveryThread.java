@@ -6,7 +6,11 @@ import javax.mail.Session;
 import org.apache.commons.pool.ObjectPool;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.dns.ResolveHost;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.FailureClass;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -135,15 +139,19 @@ public class DeliveryThread extends Thread {
         }
     }
     
-    private long numDelivered;
     private DeliveryContext currentlyDelivering;
     private Long timeLastStarted;
     private Long timeLastCompleted;
-    private long lastDuration;
-    private long totalDuration;
-
+    private volatile long lastDuration;
+
+    /**
+     * @return Count of the deliveries of all delivery threads.
+     * @deprecated Use the {@link Stage#DELIVERY} latency of
+     * {@link DeliveryManager#getMetrics()}.
+     */
+    @Deprecated
     public long getNumDelivered() {
-        return numDelivered;
+        return deliveryManager.getMetrics().getLatency(Stage.DELIVERY).getCount();
     }
 
     public DeliveryContext getCurrentlyDelivering() {
@@ -165,31 +173,46 @@ public class DeliveryThread extends Thread {
         return timeLastCompleted;
     }
 
+    /**
+     * @return Duration of the last delivery of this thread in milliseconds.
+     * @deprecated Use the {@link Stage#DELIVERY} latency of
+     * {@link DeliveryManager#getMetrics()}.
+     */
+    @Deprecated
     public long getLastDuration() {
         return lastDuration;
     }
 
+    /**
+     * @return Summed duration of the deliveries of all delivery threads in
+     * milliseconds.
+     * @deprecated Use the {@link Stage#DELIVERY} latency of
+     * {@link DeliveryManager#getMetrics()}.
+     */
+    @Deprecated
     public long getTotalDuration() {
-        return totalDuration;
+        return deliveryManager.getMetrics().getLatency(Stage.DELIVERY).getSum() / 1000000L;
     }
-    
-    
-   
+
 
     private void deliver(DeliveryContext dCtx, Session session) {
         log.info("DeliveryThread ({}).deliver(): Starting mail delivery. qi={}", new Object[]{getName(), dCtx});
-        
-        numDelivered++;
+
+        DeliveryMetrics metrics = deliveryManager.getMetrics();
+        DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.DELIVERY);
         currentlyDelivering = dCtx;
         long tm = System.currentTimeMillis();
+        long start = System.nanoTime();
         timeLastStarted = tm;
-        
+        QueueInfo qInfo = dCtx.getQueueInfo();
+        qInfo.setFailureClass(null);
+        metrics.record(Stage.QUEUE_WAIT, (tm - Math.max(qInfo.getCreated(), qInfo.getAttempt())) * 1000000L);
+
         try {
             String[] handlerList = new String[]{
                 ResolveHost.class.getCanonicalName(),
                 SendMessage.class.getCanonicalName()
             };
-            QueueInfo qInfo = dCtx.getQueueInfo();
             for (String handlerName : handlerList) {
                 try {
                     DeliveryHandler handler = deliveryManager.getDeliveryHandler(handlerName);
@@ -197,6 +220,11 @@ public class DeliveryThread extends Thread {
                     handler.handle(dCtx);
                 } catch (DeliveryException de) {
                     qInfo.setResultInfo(de.getMessage());
+                    if (de.isPermanent()) {
+                        qInfo.setFailureClass(FailureClass.PERMANENT);
+                    } else if (qInfo.getFailureClass() == null) {
+                        qInfo.setFailureClass(FailureClass.of(de.getMessage(), de));
+                    }
                     log.info("DeliveryThread ({}).deliver(): Mail delivery failed: {}. qi={}", new Object[]{getName(), qInfo.getResultInfo(), dCtx});
                     if (de.isPermanent()) {
                         qInfo.setState(DeliveryState.FAILED);
@@ -214,10 +242,13 @@ public class DeliveryThread extends Thread {
                 qInfo.setState(DeliveryState.SENT);
             }
         } finally {
-            long fin = System.currentTimeMillis();
-            lastDuration = fin - tm;
-            totalDuration += lastDuration;
-            timeLastCompleted = fin;
+            long duration = System.nanoTime() - start;
+            metrics.record(Stage.DELIVERY, duration);
+            lastDuration = duration / 1000000L;
+            if (event.isEnabled()) {
+                event.end(qInfo.getMailid(), qInfo.getRecipientDomain(), (String) dCtx.getContextVariable(SendMessage.CONTEXT_MX_HOST), qInfo.getAttemptCount(), qInfo.getState().name());
+            }
+            timeLastCompleted = System.currentTimeMillis();
         }
     }
 }
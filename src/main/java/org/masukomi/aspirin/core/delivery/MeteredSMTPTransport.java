@@ -0,0 +1,73 @@
+package org.masukomi.aspirin.core.delivery;
+
+import com.sun.mail.smtp.SMTPTransport;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
+
+/**
+ * SMTP transport, which records the durations of the connection setup, the
+ * TLS handshake and the message transfer. Only successful stages are
+ * recorded, failures are counted by their reply class.
+ *
+ */
+class MeteredSMTPTransport extends SMTPTransport {
+
+    private final DeliveryMetrics metrics;
+    private long tlsNanos = 0;
+    private long dataStart = 0;
+
+    MeteredSMTPTransport(Session session, URLName urlname, DeliveryMetrics metrics) {
+        super(session, urlname);
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        long start = System.nanoTime();
+        tlsNanos = 0;
+        boolean connected = super.protocolConnect(host, port, user, password);
+        if (connected) {
+            metrics.record(Stage.CONNECT, System.nanoTime() - start - tlsNanos);
+        }
+        return connected;
+    }
+
+    @Override
+    protected void startTLS() throws MessagingException {
+        long start = System.nanoTime();
+        super.startTLS();
+        tlsNanos = System.nanoTime() - start;
+        metrics.record(Stage.TLS, tlsNanos);
+    }
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        dataStart = System.nanoTime();
+        return super.data();
+    }
+
+    @Override
+    protected void finishData() throws IOException, MessagingException {
+        super.finishData();
+        metrics.record(Stage.DATA, System.nanoTime() - dataStart);
+    }
+
+    @Override
+    protected OutputStream bdat() throws MessagingException {
+        dataStart = System.nanoTime();
+        return super.bdat();
+    }
+
+    @Override
+    protected void finishBdat() throws IOException, MessagingException {
+        super.finishBdat();
+        metrics.record(Stage.DATA, System.nanoTime() - dataStart);
+    }
+}
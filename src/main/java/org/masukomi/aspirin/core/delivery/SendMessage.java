@@ -1,13 +1,21 @@
 package org.masukomi.aspirin.core.delivery;
 
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
 import com.sun.mail.smtp.SMTPTransport;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Properties;
 
 import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.URLName;
@@ -16,12 +24,17 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
 import java.util.Date;
 import javax.mail.Address;
 import javax.mail.Message;
 import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable;
 import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.StreamingMailStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,12 +46,22 @@ import org.slf4j.LoggerFactory;
 public class SendMessage implements DeliveryHandler {
 
     private static final Logger log = LoggerFactory.getLogger(SendMessage.class);
+    /**
+     * Name of the context variable of the last attempted MX host.
+     */
+    public static final String CONTEXT_MX_HOST = "mxhost";
     private final Configuration configuration;
     private final MailStore mailStore;
+    private final DeliveryMetrics metrics;
 
     public SendMessage(Configuration configuration, MailStore mailStore) {
+        this(configuration, mailStore, new DeliveryMetrics());
+    }
+
+    public SendMessage(Configuration configuration, MailStore mailStore, DeliveryMetrics metrics) {
         this.configuration = configuration;
         this.mailStore = mailStore;
+        this.metrics = metrics;
     }
 
     @Override
@@ -49,7 +72,7 @@ public class SendMessage implements DeliveryHandler {
         Session session = configuration.newMailSession();
 
         //MimeMessage message = dCtx.getMessage();
-        MimeMessage message = mailStore.get(dCtx.getQueueInfo().getMailid());
+        MimeMessage message = getMessage(dCtx.getQueueInfo(), session);
         if (message == null) {
             log.info("Got a null message");
             return;
@@ -81,9 +104,19 @@ public class SendMessage implements DeliveryHandler {
                 PrintStream debugOutPs = new PrintStream(debugOut);
                 session.setDebugOut(debugOutPs);
                 long tm = System.currentTimeMillis();
+                long attemptStart = System.nanoTime();
+                DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.SMTP);
+                // Attempts, which fail before a reply, end the event with an error
+                DeliveryStatsTable.Outcome eventOutcome = null;
+                int eventReturnCode = -1;
+                dCtx.addContextVariable(CONTEXT_MX_HOST, outgoingMailServer.getHost());
                 Transport transport = null;
                 try {
-                    transport = session.getTransport(outgoingMailServer);
+                    if ("smtp".equals(outgoingMailServer.getProtocol()) && isDefaultSmtpProvider(session)) {
+                        transport = new MeteredSMTPTransport(session, outgoingMailServer, metrics);
+                    } else {
+                        transport = session.getTransport(outgoingMailServer);
+                    }
                     log.info("handle: using transport={} for outgoingMailServer={}, transport class=" + transport.getClass(), transport, outgoingMailServer);
                     try {
                         transport.connect();
@@ -118,6 +151,11 @@ public class SendMessage implements DeliveryHandler {
 //                            }
 //                        });
                         transport.sendMessage(message, addr);
+                        int returnCode = transport instanceof SMTPTransport ? ((SMTPTransport) transport).getLastReturnCode() : 250;
+                        metrics.countReply(returnCode);
+                        eventOutcome = DeliveryStatsTable.Outcome.SUCCESS;
+                        eventReturnCode = returnCode;
+                        recordAttempt(dCtx.getQueueInfo(), outgoingMailServer, eventOutcome, returnCode, attemptStart);
                         if (transport instanceof SMTPTransport) {
                             String response = ((SMTPTransport) transport).getLastServerResponse();
                             if (response != null) {
@@ -134,6 +172,11 @@ public class SendMessage implements DeliveryHandler {
                          * Catch on connection error only.
                          */
 //                        if (resolveException(me) instanceof ConnectException) {
+                        int returnCode = getReturnCode(me, transport);
+                        metrics.countReply(returnCode);
+                        eventOutcome = DeliveryStatsTable.Outcome.ofFailure(returnCode);
+                        eventReturnCode = returnCode;
+                        recordAttempt(dCtx.getQueueInfo(), outgoingMailServer, eventOutcome, returnCode, attemptStart);
                         log.warn("SendMessage.handle(): Connection failed. ", me);
                         if (!urlnIt.hasNext()) {
                             throw me;
@@ -152,6 +195,10 @@ public class SendMessage implements DeliveryHandler {
                     sentSuccessfully = true;
                     dCtx.addContextVariable("newstate", DeliveryState.SENT);
                 } finally {
+                    if (event.isEnabled()) {
+                        QueueInfo qi = dCtx.getQueueInfo();
+                        event.end(qi.getMailid(), qi.getRecipientDomain(), outgoingMailServer.getHost(), qi.getAttemptCount(), eventOutcome == null ? "ERROR" : eventOutcome.name() + " " + eventReturnCode);
+                    }
                     if (transport != null) {
                         transport.close();
                         transport = null;
@@ -162,12 +209,14 @@ public class SendMessage implements DeliveryHandler {
                     //log.info("SendMessage.handle(): debug results: {}", debug);
                 }
             } catch (MessagingException me) {
-                String exMessage = resolveException(me).getMessage();
+                Exception resolved = resolveException(me);
+                String exMessage = resolved.getMessage();
                 log.warn("SendMessage: messaging exception: " + exMessage);
+                // The cause is kept, the retry policy classifies by its type
                 if ('5' == exMessage.charAt(0)) {
-                    throw new DeliveryException(exMessage, true);
+                    throw new DeliveryException(exMessage, true, resolved);
                 } else {
-                    throw new DeliveryException(exMessage, false);
+                    throw new DeliveryException(exMessage, false, resolved);
                 }
             } // end catch
         } // end while
@@ -176,6 +225,92 @@ public class SendMessage implements DeliveryHandler {
         }
     }
 
+    /**
+     * The metered transport replaces only the default SMTP transport, so a
+     * provider configured by <code>mail.smtp.class</code> or registered in the
+     * session is used as it is.
+     */
+    private static boolean isDefaultSmtpProvider(Session session) {
+        if (session.getProperty("mail.smtp.class") != null) {
+            return false;
+        }
+        try {
+            return SMTPTransport.class.getName().equals(session.getProvider("smtp").getClassName());
+        } catch (NoSuchProviderException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the message of the queue item. A template message is rendered by
+     * the variables of the recipient, while it is streamed from the mail
+     * store.
+     */
+    private MimeMessage getMessage(QueueInfo qi, Session session) throws DeliveryException {
+        if (qi.getVariables() == null) {
+            return mailStore.get(qi.getMailid());
+        }
+        try {
+            InputStream in;
+            if (mailStore instanceof StreamingMailStore) {
+                in = ((StreamingMailStore) mailStore).getInputStream(qi.getMailid());
+            } else {
+                MimeMessage template = mailStore.get(qi.getMailid());
+                if (template == null) {
+                    return null;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                template.writeTo(out);
+                in = new ByteArrayInputStream(out.toByteArray());
+            }
+            if (in == null) {
+                return null;
+            }
+            try {
+                return new MimeMessage(session, new TemplateInputStream(new BufferedInputStream(in), qi.getVariables()));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new DeliveryException("Template of mail '" + qi.getMailid() + "' could not be read.", false, e);
+        } catch (MessagingException e) {
+            throw new DeliveryException("Template of mail '" + qi.getMailid() + "' could not be rendered for '" + qi.getRecipient() + "'.", true, e);
+        }
+    }
+
+    /**
+     * Update the statistics of the recipient domain and of the MX host.
+     */
+    private void recordAttempt(QueueInfo qi, URLName server, DeliveryStatsTable.Outcome outcome, int returnCode, long attemptStart) {
+        long latency = System.nanoTime() - attemptStart;
+        metrics.getDomainStats().record(qi.getRecipientDomain(), outcome, returnCode, latency);
+        if (server.getHost() != null) {
+            metrics.getHostStats().record(server.getHost(), outcome, returnCode, latency);
+        }
+    }
+
+    /**
+     * @return The SMTP reply code of a failed attempt, or -1 if there was no
+     * reply.
+     */
+    private int getReturnCode(MessagingException me, Transport transport) {
+        Exception e = me;
+        while (e instanceof MessagingException) {
+            if (e instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) e).getReturnCode();
+            }
+            e = ((MessagingException) e).getNextException();
+        }
+        if (transport instanceof SMTPTransport && transport.isConnected()) {
+            return ((SMTPTransport) transport).getLastReturnCode();
+        }
+        return -1;
+    }
+
     private Exception resolveException(MessagingException msgExc) {
         MessagingException me = msgExc;
         Exception nextException = null;
@@ -0,0 +1,314 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * <p>This stream renders a template message while it is read. The
+ * <code>${name}</code> placeholders of the source are replaced by the UTF-8
+ * bytes of the matching variable. In the header of the message the values
+ * are written as RFC 2047 encoded words, if they are not ASCII, and their
+ * line breaks are replaced by spaces, so a value could not add header lines.
+ * Unknown placeholders are kept as they are, and the variable values are not
+ * scanned for placeholders.</p>
+ *
+ * <p>Placeholders are replaced in the RFC 822 source, so they have to be
+ * written literally, and the values are written as UTF-8. The text parts of a
+ * template are rewritten by {@link #prepareTemplate(MimeMessage)} to meet
+ * this.</p>
+ *
+ */
+public class TemplateInputStream extends FilterInputStream {
+
+    /**
+     * Longer names are not treated as placeholders.
+     */
+    public static final int NAME_LENGTH_MAX = 64;
+    private static final int BUFFER_SIZE = 8192;
+    private final Map<String, String> variables;
+    private final Map<String, byte[]> values;
+    private final Map<String, byte[]> headerValues;
+    /**
+     * Bytes read from the source, but not scanned yet. A placeholder is
+     * looked up in it, so it is at least as long as a placeholder.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private boolean inHeader = true;
+    private boolean lineEmpty = true;
+    private byte[] value = null;
+    private int valuePosition = 0;
+
+    /**
+     * @param in The source of the template message.
+     * @param variables Placeholder values by name.
+     */
+    public TemplateInputStream(InputStream in, Map<String, String> variables) {
+        super(in);
+        this.variables = variables;
+        values = new HashMap<String, byte[]>();
+        headerValues = new HashMap<String, byte[]>();
+    }
+
+    /**
+     * Prepare a template message for rendering. Every text part containing a
+     * placeholder is rewritten as UTF-8 text with 8bit transfer encoding, so
+     * its placeholders are written literally, and the values are not mixed
+     * with an other charset or decoded as quoted-printable escapes.
+     *
+     * @param template The template message, it is changed if it is needed.
+     * @throws MessagingException If a text part with placeholders has lines
+     * longer than 998 bytes, which could not be sent with 8bit encoding.
+     * @throws IOException If the content of a part could not be read.
+     */
+    public static void prepareTemplate(MimeMessage template) throws MessagingException, IOException {
+        if (prepareTemplatePart(template)) {
+            template.saveChanges();
+        }
+    }
+
+    /**
+     * @return True if the part or one of its subparts is changed.
+     */
+    private static boolean prepareTemplatePart(MimePart part) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            boolean changed = false;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                changed |= prepareTemplatePart((MimePart) multipart.getBodyPart(i));
+            }
+            return changed;
+        }
+        if (!part.isMimeType("text/*")) {
+            return false;
+        }
+        Object content = part.getContent();
+        if (!(content instanceof String) || ((String) content).indexOf("${") < 0) {
+            return false;
+        }
+        ContentType contentType = new ContentType(part.getContentType());
+        if ("8bit".equalsIgnoreCase(part.getEncoding()) && "UTF-8".equalsIgnoreCase(contentType.getParameter("charset"))) {
+            return false;
+        }
+        String text = (String) content;
+        for (String line : text.split("\r\n|\r|\n")) {
+            if (998 < line.getBytes("UTF-8").length) {
+                throw new MessagingException("Template part has lines longer than 998 bytes, it could not be rendered with 8bit transfer encoding.");
+            }
+        }
+        part.setText(text, "UTF-8", contentType.getSubType());
+        part.setHeader("Content-Transfer-Encoding", "8bit");
+        return true;
+    }
+
+    /**
+     * @return The bytes of the variable, or null if there is no such variable.
+     */
+    private byte[] getValue(String name) throws UnsupportedEncodingException {
+        Map<String, byte[]> cache = inHeader ? headerValues : values;
+        byte[] found = cache.get(name);
+        if (found == null && variables.containsKey(name)) {
+            String variable = variables.get(name);
+            if (variable == null) {
+                found = new byte[0];
+            } else if (inHeader) {
+                // ASCII values are not encoded, so line breaks could start a new header
+                String unfolded = variable.replaceAll("[\\r\\n]+", " ");
+                found = MimeUtility.encodeText(unfolded, "UTF-8", "B").getBytes("US-ASCII");
+            } else {
+                found = variable.getBytes("UTF-8");
+            }
+            cache.put(name, found);
+        }
+        return found;
+    }
+
+    /**
+     * Read more bytes of the source into the buffer. The unscanned bytes are
+     * moved to the start of the buffer first.
+     *
+     * @return False at the end of the source.
+     */
+    private boolean fill() throws IOException {
+        if (0 < bufferPosition) {
+            System.arraycopy(buffer, bufferPosition, buffer, 0, bufferLimit - bufferPosition);
+            bufferLimit -= bufferPosition;
+            bufferPosition = 0;
+        }
+        int read = in.read(buffer, bufferLimit, buffer.length - bufferLimit);
+        if (read == -1) {
+            return false;
+        }
+        bufferLimit += read;
+        return true;
+    }
+
+    /**
+     * Replace the placeholder at the '$' at the buffer position, if there is
+     * a known one. The rest of the placeholder is read into the buffer if it
+     * is needed.
+     *
+     * @return True if the placeholder is replaced, false if the '$' is an
+     * ordinary byte.
+     */
+    private boolean replacePlaceholder() throws IOException {
+        int scanned = 1;
+        while (true) {
+            int end = Math.min(bufferLimit, bufferPosition + NAME_LENGTH_MAX + 3);
+            for (int i = bufferPosition + scanned; i < end; i++) {
+                byte c = buffer[i];
+                if (i == bufferPosition + 1 ? c != '{' : c == '\r' || c == '\n') {
+                    return false;
+                }
+                if (c == '}') {
+                    if (i == bufferPosition + 2) {
+                        return false;
+                    }
+                    byte[] found = getValue(new String(buffer, bufferPosition + 2, i - bufferPosition - 2, "US-ASCII"));
+                    if (found == null) {
+                        return false;
+                    }
+                    lineEmpty = false;
+                    bufferPosition = i + 1;
+                    value = found;
+                    valuePosition = 0;
+                    return true;
+                }
+            }
+            scanned = end - bufferPosition;
+            if (NAME_LENGTH_MAX + 3 <= scanned || !fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Track the start of the body, the header ends with an empty line.
+     */
+    private void scanned(byte b) {
+        if (b == '\n') {
+            if (lineEmpty) {
+                inHeader = false;
+            }
+            lineEmpty = true;
+        } else if (b != '\r') {
+            lineEmpty = false;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (value != null) {
+                if (valuePosition < value.length) {
+                    return value[valuePosition++] & 0xFF;
+                }
+                value = null;
+            }
+            if (bufferPosition == bufferLimit && !fill()) {
+                return -1;
+            }
+            byte b = buffer[bufferPosition];
+            if (b == '$' && replacePlaceholder()) {
+                continue;
+            }
+            bufferPosition++;
+            scanned(b);
+            return b & 0xFF;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < len) {
+            if (value != null) {
+                int chunk = Math.min(len - count, value.length - valuePosition);
+                System.arraycopy(value, valuePosition, b, off + count, chunk);
+                count += chunk;
+                valuePosition += chunk;
+                if (valuePosition == value.length) {
+                    value = null;
+                }
+                continue;
+            }
+            if (bufferPosition == bufferLimit) {
+                if (0 < count && in.available() <= 0) {
+                    // Do not block for more input
+                    break;
+                }
+                if (!fill()) {
+                    break;
+                }
+            }
+            if (buffer[bufferPosition] == '$') {
+                if (!replacePlaceholder()) {
+                    b[off + count++] = '$';
+                    bufferPosition++;
+                    lineEmpty = false;
+                }
+                continue;
+            }
+            // Copy the bytes up to the next placeholder
+            int start = bufferPosition;
+            int end = Math.min(bufferLimit, start + len - count);
+            int i = start;
+            if (inHeader) {
+                while (i < end && buffer[i] != '$') {
+                    scanned(buffer[i++]);
+                }
+            } else {
+                while (i < end && buffer[i] != '$') {
+                    i++;
+                }
+            }
+            System.arraycopy(buffer, start, b, off + count, i - start);
+            count += i - start;
+            bufferPosition = i;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return value == null ? 0 : value.length - valuePosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
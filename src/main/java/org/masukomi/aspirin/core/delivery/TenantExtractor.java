@@ -0,0 +1,19 @@
+package org.masukomi.aspirin.core.delivery;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * This interface defines how the tenant of a message is found. Queued
+ * recipients are scheduled fairly between tenants, so one tenant could not
+ * take all the delivery threads. You can set your own extractor in the
+ * {@link DeliveryManager}.
+ *
+ */
+public interface TenantExtractor {
+	/**
+	 * @param message The queued message.
+	 * @return The tenant key of this message, never null. Empty string is the
+	 * default tenant.
+	 */
+	public String getTenant(MimeMessage message);
+}
@@ -9,6 +9,11 @@ import org.masukomi.aspirin.core.Helper;
 import org.masukomi.aspirin.core.delivery.DeliveryContext;
 import org.masukomi.aspirin.core.delivery.DeliveryException;
 import org.masukomi.aspirin.core.delivery.DeliveryHandler;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable.Outcome;
+import org.masukomi.aspirin.core.store.queue.FailureClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +28,15 @@ import org.slf4j.LoggerFactory;
 public class ResolveHost implements DeliveryHandler {
 
     private static final Logger log = LoggerFactory.getLogger(ResolveHost.class);
+    private final DeliveryMetrics metrics;
+
+    public ResolveHost() {
+        this(new DeliveryMetrics());
+    }
+
+    public ResolveHost(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
 
     @Override
     public void handle(DeliveryContext dCtx) throws DeliveryException {
@@ -30,8 +44,12 @@ public class ResolveHost implements DeliveryHandler {
         // Get host MX records
         String host = currentRecipient.substring(currentRecipient.lastIndexOf("@") + 1);
         Collection<URLName> targetServers = null;
+        long start = System.nanoTime();
+        DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.DNS);
+        String outcome = "FAILED";
         try {
             targetServers = DnsResolver.getMXRecordsForHost(host);
+            metrics.record(Stage.DNS, System.nanoTime() - start);
             /*
              * If there was no target server, could be caused by a temporary
              * failure in domain name resolving. So we should to deliver this
@@ -39,15 +57,26 @@ public class ResolveHost implements DeliveryHandler {
              */
             if (targetServers == null || targetServers.isEmpty()) {
                 log.warn("ResolveHost.handle(): No mail server found for: '{}'.", new Object[]{host});
+                metrics.getDomainStats().record(host, Outcome.TEMPORARY_FAILURE, -1, System.nanoTime() - start);
+                dCtx.getQueueInfo().setFailureClass(FailureClass.DNS);
                 throw new DeliveryException("No MX record found. Temporary failure, trying again.", false);
             }
             log.trace("ResolveHost.handle(): {} servers found for '{}'.", new Object[]{targetServers.size(), host});
             dCtx.addContextVariable("targetservers", targetServers);
+            outcome = "RESOLVED";
         } catch (DeliveryException de) {
+            outcome = "NO_MX";
             throw de;
         } catch (Exception e) {
             log.error("ResolveHost.handle(): Could not get MX for host '" + host + "' defined by recipient '" + currentRecipient + "'.", e);
+            metrics.getDomainStats().record(host, Outcome.TEMPORARY_FAILURE, -1, System.nanoTime() - start);
+            dCtx.getQueueInfo().setFailureClass(FailureClass.DNS);
             throw new DeliveryException("No MX record found. Temporary failure, trying again.", false);
+        } finally {
+            if (event.isEnabled()) {
+                String mxHost = targetServers == null || targetServers.isEmpty() ? null : targetServers.iterator().next().getHost();
+                event.end(dCtx.getQueueInfo().getMailid(), host, mxHost, dCtx.getQueueInfo().getAttemptCount(), outcome);
+            }
         }
 
     }
@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.masukomi.aspirin.core.delivery.DeliveryManager;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
@@ -47,6 +48,7 @@ public class ListenerManager {
             listeners = Collections.unmodifiableList(listenerList);
         }
         if (listeners != null && !listeners.isEmpty()) {
+            long start = System.nanoTime();
             for (AspirinListener listener : listeners) {
                 if (qi.hasState(DeliveryState.FAILED)) {
                     listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FAILED, qi.getResultInfo());
@@ -57,6 +59,7 @@ public class ListenerManager {
                     listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FINISHED, qi.getResultInfo());
                 }
             }
+            deliveryManager.getMetrics().record(Stage.LISTENER, System.nanoTime() - start);
         }
     }
 }
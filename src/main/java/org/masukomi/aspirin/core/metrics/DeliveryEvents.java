@@ -0,0 +1,131 @@
+package org.masukomi.aspirin.core.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Java Flight Recorder events of the delivery. They link the CPU and socket
+ * samples of a recording to the deliveries: every event has the mail id, the
+ * recipient domain, the MX host, the attempt number, the outcome and its
+ * duration.</p>
+ *
+ * <p>The events are disabled by default. While they are disabled,
+ * {@link #begin(Kind)} gives back a shared event which does nothing. The JFR
+ * classes are loaded only when the events are enabled, so Aspirin still runs
+ * on Java versions without JFR.</p>
+ *
+ */
+public final class DeliveryEvents {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryEvents.class);
+    private static final String JFR_PROVIDER = "org.masukomi.aspirin.core.metrics.JfrDeliveryEvents";
+
+    /**
+     * Kinds of the events.
+     */
+    public enum Kind {
+
+        /**
+         * Delivery of an item by a delivery thread.
+         */
+        DELIVERY,
+        /**
+         * MX resolution of the recipient domain.
+         */
+        DNS,
+        /**
+         * SMTP attempt on one MX host.
+         */
+        SMTP,
+        /**
+         * Claiming items from the queue store.
+         */
+        QUEUE_NEXT,
+        /**
+         * Reading a message from the mail store.
+         */
+        MAIL_STORE_GET
+    }
+
+    /**
+     * An event which is started by {@link DeliveryEvents#begin(Kind)}.
+     */
+    public interface Event {
+
+        /**
+         * @return false if the event is not recorded, so its attributes need
+         * not be computed.
+         */
+        public boolean isEnabled();
+
+        /**
+         * Finish the event and record it, if it is enabled.
+         *
+         * @param mailid The mail id, could be null.
+         * @param recipientDomain The recipient domain, could be null.
+         * @param mxHost The MX host, could be null.
+         * @param attempt The attempt number, -1 if it is unknown.
+         * @param outcome The result, for example the delivery state.
+         */
+        public void end(String mailid, String recipientDomain, String mxHost, int attempt, String outcome);
+    }
+
+    /**
+     * Creates the recorded events.
+     */
+    interface Provider {
+
+        Event begin(Kind kind);
+    }
+    static final Event DISABLED = new Event() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void end(String mailid, String recipientDomain, String mxHost, int attempt, String outcome) {
+        }
+    };
+    private static volatile Provider provider = null;
+
+    private DeliveryEvents() {
+    }
+
+    /**
+     * Start an event.
+     *
+     * @param kind Kind of the event.
+     * @return The started event, it should be ended.
+     */
+    public static Event begin(Kind kind) {
+        Provider current = provider;
+        return current == null ? DISABLED : current.begin(kind);
+    }
+
+    public static boolean isEnabled() {
+        return provider != null;
+    }
+
+    /**
+     * Enable or disable the events. If JFR is not available, the events stay
+     * disabled.
+     *
+     * @param enabled true to enable the events.
+     * @return true if the events are enabled.
+     */
+    public static synchronized boolean setEnabled(boolean enabled) {
+        if (!enabled) {
+            provider = null;
+        } else if (provider == null) {
+            try {
+                provider = (Provider) Class.forName(JFR_PROVIDER).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                log.warn("DeliveryEvents.setEnabled(): Java Flight Recorder events are not available.", e);
+            } catch (LinkageError e) {
+                log.warn("DeliveryEvents.setEnabled(): Java Flight Recorder events are not available.", e);
+            }
+        }
+        return provider != null;
+    }
+}
@@ -0,0 +1,233 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Registry of the delivery metrics: a latency histogram for each stage of
+ * the delivery, counters of the SMTP replies by reply class, and decaying
+ * statistics by recipient domain and by MX host. Latencies are recorded in
+ * nanoseconds. Recording a latency or a reply does not allocate and does not
+ * lock, so it could be called on the delivery path.</p>
+ *
+ * <p>It could be registered as a standard MBean, see
+ * {@link DeliveryMetricsMBean}.</p>
+ *
+ */
+public class DeliveryMetrics implements DeliveryMetricsMBean {
+
+    /**
+     * Stages of a delivery.
+     */
+    public enum Stage {
+
+        /**
+         * From the time an item became sendable until it is dispatched.
+         */
+        QUEUE_WAIT,
+        /**
+         * MX resolution of the recipient domain.
+         */
+        DNS,
+        /**
+         * SMTP connection setup and greeting, without TLS handshake.
+         */
+        CONNECT,
+        /**
+         * STARTTLS command and TLS handshake.
+         */
+        TLS,
+        /**
+         * Transfer of the message content, until the server accepted it.
+         */
+        DATA,
+        /**
+         * Notification of the listeners about a delivery result.
+         */
+        LISTENER,
+        /**
+         * The whole delivery of an item by a delivery thread.
+         */
+        DELIVERY
+    }
+
+    /**
+     * Classes of SMTP replies by the first digit of the reply code.
+     */
+    public enum ReplyClass {
+
+        /**
+         * There was no reply, for example the connection failed.
+         */
+        NONE,
+        /**
+         * 2yz replies.
+         */
+        POSITIVE_COMPLETION,
+        /**
+         * 3yz replies.
+         */
+        POSITIVE_INTERMEDIATE,
+        /**
+         * 4yz replies.
+         */
+        TRANSIENT_NEGATIVE,
+        /**
+         * 5yz replies.
+         */
+        PERMANENT_NEGATIVE;
+
+        /**
+         * @param code SMTP reply code, or a negative value if there was no
+         * reply.
+         * @return The class of the reply code.
+         */
+        public static ReplyClass of(int code) {
+            switch (code / 100) {
+                case 2:
+                    return POSITIVE_COMPLETION;
+                case 3:
+                    return POSITIVE_INTERMEDIATE;
+                case 4:
+                    return TRANSIENT_NEGATIVE;
+                case 5:
+                    return PERMANENT_NEGATIVE;
+                default:
+                    return NONE;
+            }
+        }
+    }
+    private static final Stage[] STAGES = Stage.values();
+    private static final ReplyClass[] REPLY_CLASSES = ReplyClass.values();
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[STAGES.length];
+    private final AtomicLongArray replies = new AtomicLongArray(REPLY_CLASSES.length);
+    private final DeliveryStatsTable domainStats = new DeliveryStatsTable();
+    private final DeliveryStatsTable hostStats = new DeliveryStatsTable();
+
+    public DeliveryMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the duration of a stage.
+     *
+     * @param stage The stage.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Count an SMTP reply.
+     *
+     * @param code SMTP reply code, or a negative value if there was no reply.
+     */
+    public void countReply(int code) {
+        replies.incrementAndGet(ReplyClass.of(code).ordinal());
+    }
+
+    /**
+     * @param stage The stage.
+     * @return Histogram of the durations of this stage in nanoseconds.
+     */
+    public LatencyHistogram getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * @param replyClass The reply class.
+     * @return Count of the replies in this class.
+     */
+    public long getReplyCount(ReplyClass replyClass) {
+        return replies.get(replyClass.ordinal());
+    }
+
+    /**
+     * @return Delivery statistics by recipient domain.
+     */
+    public DeliveryStatsTable getDomainStats() {
+        return domainStats;
+    }
+
+    /**
+     * @return Delivery statistics by MX host name.
+     */
+    public DeliveryStatsTable getHostStats() {
+        return hostStats;
+    }
+
+    @Override
+    public long getDeliveryCount() {
+        return getLatency(Stage.DELIVERY).getCount();
+    }
+
+    @Override
+    public long getPositiveCompletionCount() {
+        return getReplyCount(ReplyClass.POSITIVE_COMPLETION);
+    }
+
+    @Override
+    public long getPositiveIntermediateCount() {
+        return getReplyCount(ReplyClass.POSITIVE_INTERMEDIATE);
+    }
+
+    @Override
+    public long getTransientNegativeCount() {
+        return getReplyCount(ReplyClass.TRANSIENT_NEGATIVE);
+    }
+
+    @Override
+    public long getPermanentNegativeCount() {
+        return getReplyCount(ReplyClass.PERMANENT_NEGATIVE);
+    }
+
+    @Override
+    public long getNoReplyCount() {
+        return getReplyCount(ReplyClass.NONE);
+    }
+
+    @Override
+    public String[] getLatencySummary() {
+        String[] summary = new String[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            summary[i] = STAGES[i].name()
+                    + " count=" + histogram.getCount()
+                    + " mean=" + histogram.getMean() / NANOS_PER_MILLI + "ms"
+                    + " p50=" + histogram.getPercentile(50) / NANOS_PER_MILLI + "ms"
+                    + " p99=" + histogram.getPercentile(99) / NANOS_PER_MILLI + "ms"
+                    + " max=" + histogram.getMax() / NANOS_PER_MILLI + "ms";
+        }
+        return summary;
+    }
+
+    @Override
+    public long getLatencyCount(String stage) {
+        return getLatency(Stage.valueOf(stage)).getCount();
+    }
+
+    @Override
+    public double getLatencyMean(String stage) {
+        return getLatency(Stage.valueOf(stage)).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLatencyPercentile(String stage, double percentile) {
+        return getLatency(Stage.valueOf(stage)).getPercentile(percentile) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : latencies) {
+            histogram.reset();
+        }
+        for (int i = 0; i < replies.length(); i++) {
+            replies.set(i, 0);
+        }
+        domainStats.clear();
+        hostStats.clear();
+    }
+}
@@ -0,0 +1,71 @@
+package org.masukomi.aspirin.core.metrics;
+
+/**
+ * <p>This is the JMX bean of the delivery metrics. Latencies are given in
+ * milliseconds, the stages are named by {@link DeliveryMetrics.Stage}.</p>
+ *
+ */
+public interface DeliveryMetricsMBean {
+
+    /**
+     * @return Count of deliveries by the delivery threads.
+     */
+    public long getDeliveryCount();
+
+    /**
+     * @return Count of 2yz SMTP replies.
+     */
+    public long getPositiveCompletionCount();
+
+    /**
+     * @return Count of 3yz SMTP replies.
+     */
+    public long getPositiveIntermediateCount();
+
+    /**
+     * @return Count of 4yz SMTP replies.
+     */
+    public long getTransientNegativeCount();
+
+    /**
+     * @return Count of 5yz SMTP replies.
+     */
+    public long getPermanentNegativeCount();
+
+    /**
+     * @return Count of delivery attempts without SMTP reply, for example
+     * because of a connection failure.
+     */
+    public long getNoReplyCount();
+
+    /**
+     * @return Count, mean, median, 99th percentile and maximum of each stage
+     * in one line per stage.
+     */
+    public String[] getLatencySummary();
+
+    /**
+     * @param stage Name of a stage.
+     * @return Count of the recorded durations of this stage.
+     */
+    public long getLatencyCount(String stage);
+
+    /**
+     * @param stage Name of a stage.
+     * @return Mean duration of this stage in milliseconds.
+     */
+    public double getLatencyMean(String stage);
+
+    /**
+     * @param stage Name of a stage.
+     * @param percentile Percentile between 0 and 100, for example 99.
+     * @return Estimated percentile of the durations of this stage in
+     * milliseconds.
+     */
+    public double getLatencyPercentile(String stage, double percentile);
+
+    /**
+     * Clear all metrics.
+     */
+    public void reset();
+}
@@ -0,0 +1,228 @@
+package org.masukomi.aspirin.core.metrics;
+
+/**
+ * <p>Delivery statistics of one recipient domain or MX host. The counters
+ * and the latency distribution decay exponentially, so old results fade
+ * away. Instances in a {@link DeliveryStatsTable} are updated under their
+ * own lock, the ones given back by a snapshot are copies.</p>
+ *
+ * <p>Latencies are counted in 4 buckets for every power of two
+ * microseconds, so the p99 value is an estimate within 25%.</p>
+ *
+ */
+public class DeliveryStats {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT + 1) * SUB_BUCKETS;
+    private static final double LN2 = Math.log(2);
+    private final String key;
+    private double attempts = 0;
+    private double successes = 0;
+    private double temporaryFailures = 0;
+    private double permanentFailures = 0;
+    private double latencySum = 0;
+    private double latencyCount = 0;
+    private final double[] buckets;
+    private int lastResponseCode = -1;
+    private long lastAttempt = 0;
+    /**
+     * Time of the last decay.
+     */
+    private long decayed = 0;
+    private int backlog = 0;
+
+    DeliveryStats(String key) {
+        this.key = key;
+        this.buckets = new double[BUCKET_COUNT];
+    }
+
+    private DeliveryStats(DeliveryStats stats, int backlog) {
+        this.key = stats.key;
+        this.attempts = stats.attempts;
+        this.successes = stats.successes;
+        this.temporaryFailures = stats.temporaryFailures;
+        this.permanentFailures = stats.permanentFailures;
+        this.latencySum = stats.latencySum;
+        this.latencyCount = stats.latencyCount;
+        this.buckets = stats.buckets.clone();
+        this.lastResponseCode = stats.lastResponseCode;
+        this.lastAttempt = stats.lastAttempt;
+        this.decayed = stats.decayed;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Record the result of an attempt.
+     *
+     * @param outcome Result of the attempt.
+     * @param responseCode The last SMTP reply code, or -1 if there was no
+     * reply.
+     * @param latencyNanos Duration of the attempt in nanoseconds, or a
+     * negative value if it is unknown.
+     * @param now Current time in epoch milliseconds.
+     * @param halfLife Half life of the counters in milliseconds.
+     */
+    synchronized void record(DeliveryStatsTable.Outcome outcome, int responseCode, long latencyNanos, long now, long halfLife) {
+        decay(now, halfLife);
+        attempts++;
+        switch (outcome) {
+            case SUCCESS:
+                successes++;
+                break;
+            case TEMPORARY_FAILURE:
+                temporaryFailures++;
+                break;
+            default:
+                permanentFailures++;
+        }
+        if (0 <= latencyNanos) {
+            long micros = latencyNanos / 1000;
+            latencySum += micros;
+            latencyCount++;
+            buckets[bucketIndex(micros)]++;
+        }
+        lastResponseCode = responseCode;
+        lastAttempt = now;
+    }
+
+    private void decay(long now, long halfLife) {
+        long elapsed = now - decayed;
+        if (decayed != 0 && 0 < elapsed) {
+            double factor = Math.exp(-elapsed * LN2 / halfLife);
+            attempts *= factor;
+            successes *= factor;
+            temporaryFailures *= factor;
+            permanentFailures *= factor;
+            latencySum *= factor;
+            latencyCount *= factor;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] *= factor;
+            }
+        }
+        if (decayed < now) {
+            decayed = now;
+        }
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKET_COUNT - 1, exponent * SUB_BUCKETS + subBucket);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + subBucket * width + width - 1;
+    }
+
+    /**
+     * @return A decayed copy of these statistics.
+     */
+    synchronized DeliveryStats snapshot(long now, long halfLife, int backlog) {
+        decay(now, halfLife);
+        return new DeliveryStats(this, backlog);
+    }
+
+    /**
+     * @return The recipient domain or the MX host name.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public double getAttempts() {
+        return attempts;
+    }
+
+    public double getSuccesses() {
+        return successes;
+    }
+
+    public double getTemporaryFailures() {
+        return temporaryFailures;
+    }
+
+    public double getPermanentFailures() {
+        return permanentFailures;
+    }
+
+    /**
+     * @return Failed attempts divided by all attempts, 0 if there was no
+     * attempt.
+     */
+    public double getFailureRate() {
+        return attempts <= 0 ? 0 : (temporaryFailures + permanentFailures) / attempts;
+    }
+
+    /**
+     * @return Mean latency of the attempts in milliseconds.
+     */
+    public double getMeanLatency() {
+        return latencyCount <= 0 ? 0 : latencySum / latencyCount / 1000;
+    }
+
+    /**
+     * @return Estimated 99th percentile of the attempt latencies in
+     * milliseconds.
+     */
+    public double getP99Latency() {
+        double total = 0;
+        for (double bucket : buckets) {
+            total += bucket;
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        double seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (total * 0.99 <= seen) {
+                return bucketUpperBound(i) / 1000.0;
+            }
+        }
+        return bucketUpperBound(buckets.length - 1) / 1000.0;
+    }
+
+    /**
+     * @return The SMTP reply code of the last attempt, -1 if there was no
+     * reply.
+     */
+    public int getLastResponseCode() {
+        return lastResponseCode;
+    }
+
+    /**
+     * @return Time of the last attempt in epoch milliseconds, 0 if there was
+     * no attempt.
+     */
+    public synchronized long getLastAttempt() {
+        return lastAttempt;
+    }
+
+    /**
+     * @return Count of the QUEUED items at the time of the snapshot.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public String toString() {
+        return key + " backlog=" + backlog
+                + " attempts=" + Math.round(attempts)
+                + " failureRate=" + Math.round(getFailureRate() * 1000) / 10.0 + "%"
+                + " mean=" + Math.round(getMeanLatency()) + "ms"
+                + " p99=" + Math.round(getP99Latency()) + "ms"
+                + " last=" + lastResponseCode;
+    }
+}
@@ -0,0 +1,208 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Bounded, concurrent table of {@link DeliveryStats} by recipient domain
+ * or by MX host name. The statistics decay with {@link #getHalfLife()}. If
+ * the table grows over {@link #getMaxEntries()}, the entries without recent
+ * attempts are evicted.</p>
+ *
+ */
+public class DeliveryStatsTable {
+
+    /**
+     * Result of a delivery attempt.
+     */
+    public enum Outcome {
+
+        SUCCESS,
+        TEMPORARY_FAILURE,
+        PERMANENT_FAILURE;
+
+        /**
+         * @param responseCode SMTP reply code of a failed attempt, -1 if
+         * there was no reply.
+         * @return PERMANENT_FAILURE on 5yz replies, TEMPORARY_FAILURE
+         * otherwise.
+         */
+        public static Outcome ofFailure(int responseCode) {
+            return responseCode / 100 == 5 ? PERMANENT_FAILURE : TEMPORARY_FAILURE;
+        }
+    }
+
+    /**
+     * Orders of the snapshots.
+     */
+    public enum Order {
+
+        /**
+         * Decreasing count of QUEUED items.
+         */
+        BACKLOG,
+        /**
+         * Decreasing rate of failed attempts.
+         */
+        FAILURE_RATE
+    }
+    private final ConcurrentMap<String, DeliveryStats> entries = new ConcurrentHashMap<String, DeliveryStats>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private volatile int maxEntries = 4096;
+    private volatile long halfLife = 10 * 60 * 1000L;
+
+    /**
+     * Record the result of an attempt.
+     *
+     * @param key Recipient domain or MX host name.
+     * @param outcome Result of the attempt.
+     * @param responseCode The last SMTP reply code, or -1 if there was no
+     * reply.
+     * @param latencyNanos Duration of the attempt in nanoseconds, or a
+     * negative value if it is unknown.
+     */
+    public void record(String key, Outcome outcome, int responseCode, long latencyNanos) {
+        String normalizedKey = key.toLowerCase();
+        DeliveryStats stats = entries.get(normalizedKey);
+        boolean added = false;
+        if (stats == null) {
+            stats = new DeliveryStats(normalizedKey);
+            DeliveryStats existing = entries.putIfAbsent(normalizedKey, stats);
+            if (existing != null) {
+                stats = existing;
+            } else {
+                added = true;
+            }
+        }
+        stats.record(outcome, responseCode, latencyNanos, System.currentTimeMillis(), halfLife);
+        if (added && maxEntries < entries.size()) {
+            evict(normalizedKey);
+        }
+    }
+
+    /**
+     * Remove the least recently attempted entries, until the table is 10%
+     * under its limit. Only one thread evicts at the same time.
+     *
+     * @param addedKey The key just added, it is kept.
+     */
+    private void evict(String addedKey) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, DeliveryStats>> candidates = new ArrayList<Map.Entry<String, DeliveryStats>>(entries.entrySet());
+            final Map<String, Long> lastAttempts = new HashMap<String, Long>();
+            for (Map.Entry<String, DeliveryStats> candidate : candidates) {
+                lastAttempts.put(candidate.getKey(), candidate.getValue().getLastAttempt());
+            }
+            Collections.sort(candidates, new Comparator<Map.Entry<String, DeliveryStats>>() {
+                @Override
+                public int compare(Map.Entry<String, DeliveryStats> o1, Map.Entry<String, DeliveryStats> o2) {
+                    return lastAttempts.get(o1.getKey()).compareTo(lastAttempts.get(o2.getKey()));
+                }
+            });
+            int target = maxEntries - maxEntries / 10;
+            for (int i = 0; i < candidates.size() && target < entries.size(); i++) {
+                if (!candidates.get(i).getKey().equals(addedKey)) {
+                    entries.remove(candidates.get(i).getKey(), candidates.get(i).getValue());
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * @param key Recipient domain or MX host name.
+     * @return Decayed copy of the statistics, or null if there is no entry.
+     */
+    public DeliveryStats get(String key) {
+        DeliveryStats stats = entries.get(key.toLowerCase());
+        return stats == null ? null : stats.snapshot(System.currentTimeMillis(), halfLife, 0);
+    }
+
+    /**
+     * Take a snapshot of the table. The backlog is added to the statistics,
+     * and the keys with backlog but without attempts are listed too.
+     *
+     * @param order Order of the snapshot.
+     * @param backlogs Count of QUEUED items by key, could be empty.
+     * @return Decayed copies of the statistics.
+     */
+    public List<DeliveryStats> snapshot(Order order, Map<String, Integer> backlogs) {
+        long now = System.currentTimeMillis();
+        List<DeliveryStats> snapshot = new ArrayList<DeliveryStats>(entries.size());
+        for (DeliveryStats stats : entries.values()) {
+            Integer backlog = backlogs.get(stats.getKey());
+            snapshot.add(stats.snapshot(now, halfLife, backlog == null ? 0 : backlog));
+        }
+        for (Map.Entry<String, Integer> backlog : backlogs.entrySet()) {
+            if (!entries.containsKey(backlog.getKey())) {
+                snapshot.add(new DeliveryStats(backlog.getKey()).snapshot(now, halfLife, backlog.getValue()));
+            }
+        }
+        Comparator<DeliveryStats> comparator;
+        if (order == Order.FAILURE_RATE) {
+            comparator = new Comparator<DeliveryStats>() {
+                @Override
+                public int compare(DeliveryStats o1, DeliveryStats o2) {
+                    return Double.compare(o2.getFailureRate(), o1.getFailureRate());
+                }
+            };
+        } else {
+            comparator = new Comparator<DeliveryStats>() {
+                @Override
+                public int compare(DeliveryStats o1, DeliveryStats o2) {
+                    return o1.getBacklog() == o2.getBacklog() ? 0 : (o1.getBacklog() < o2.getBacklog() ? 1 : -1);
+                }
+            };
+        }
+        Collections.sort(snapshot, comparator);
+        return snapshot;
+    }
+
+    /**
+     * @return Count of entries in the table.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries Maximal count of entries in the table.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getHalfLife() {
+        return halfLife;
+    }
+
+    /**
+     * @param halfLife Time in milliseconds while the weight of a result
+     * halves.
+     */
+    public void setHalfLife(long halfLife) {
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
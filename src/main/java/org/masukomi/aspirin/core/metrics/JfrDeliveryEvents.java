@@ -0,0 +1,108 @@
+package org.masukomi.aspirin.core.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Provider of the {@link DeliveryEvents} based on the jdk.jfr API. It is
+ * loaded only when the events are enabled, because jdk.jfr is available from
+ * Java 11. An event is allocated only if a recording enables its type.</p>
+ *
+ */
+class JfrDeliveryEvents implements DeliveryEvents.Provider {
+
+    private final AspirinEvent[] probes = new AspirinEvent[DeliveryEvents.Kind.values().length];
+
+    JfrDeliveryEvents() {
+        for (DeliveryEvents.Kind kind : DeliveryEvents.Kind.values()) {
+            probes[kind.ordinal()] = create(kind);
+        }
+    }
+
+    private static AspirinEvent create(DeliveryEvents.Kind kind) {
+        switch (kind) {
+            case DELIVERY:
+                return new DeliveryEvent();
+            case DNS:
+                return new DnsEvent();
+            case SMTP:
+                return new SmtpEvent();
+            case QUEUE_NEXT:
+                return new QueueNextEvent();
+            default:
+                return new MailStoreGetEvent();
+        }
+    }
+
+    @Override
+    public DeliveryEvents.Event begin(DeliveryEvents.Kind kind) {
+        if (!probes[kind.ordinal()].isEnabled()) {
+            return DeliveryEvents.DISABLED;
+        }
+        AspirinEvent event = create(kind);
+        event.begin();
+        return event;
+    }
+
+    @Category({"Aspirin", "Delivery"})
+    @StackTrace(false)
+    abstract static class AspirinEvent extends jdk.jfr.Event implements DeliveryEvents.Event {
+
+        @Label("Mail Id")
+        String mailid;
+        @Label("Recipient Domain")
+        String recipientDomain;
+        @Label("MX Host")
+        String mxHost;
+        @Label("Attempt")
+        int attempt;
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void end(String mailid, String recipientDomain, String mxHost, int attempt, String outcome) {
+            end();
+            if (shouldCommit()) {
+                this.mailid = mailid;
+                this.recipientDomain = recipientDomain;
+                this.mxHost = mxHost;
+                this.attempt = attempt;
+                this.outcome = outcome;
+                commit();
+            }
+        }
+    }
+
+    @Name("org.masukomi.aspirin.Delivery")
+    @Label("Delivery")
+    @Description("Delivery of an item by a delivery thread")
+    static class DeliveryEvent extends AspirinEvent {
+    }
+
+    @Name("org.masukomi.aspirin.Dns")
+    @Label("DNS Resolution")
+    @Description("MX resolution of the recipient domain")
+    static class DnsEvent extends AspirinEvent {
+    }
+
+    @Name("org.masukomi.aspirin.Smtp")
+    @Label("SMTP Attempt")
+    @Description("SMTP attempt on one MX host")
+    static class SmtpEvent extends AspirinEvent {
+    }
+
+    @Name("org.masukomi.aspirin.QueueNext")
+    @Label("Queue Claim")
+    @Description("Claiming items from the queue store")
+    static class QueueNextEvent extends AspirinEvent {
+    }
+
+    @Name("org.masukomi.aspirin.MailStoreGet")
+    @Label("Mail Store Read")
+    @Description("Reading a message from the mail store")
+    static class MailStoreGetEvent extends AspirinEvent {
+    }
+}
@@ -0,0 +1,395 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import org.masukomi.aspirin.core.delivery.DeliveryManager;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.ReplyClass;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
+import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.TieredMailStore;
+import org.masukomi.aspirin.core.store.queue.DeliveryPriority;
+import org.masukomi.aspirin.core.store.queue.QueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Embedded HTTP exporter of the delivery metrics in the Prometheus text
+ * format, served on the "/metrics" path by the HTTP server of the JDK.</p>
+ *
+ * <p>A scrape reads only counters, the latency histograms and the bounded
+ * statistics tables, it never iterates the queue, so its cost does not
+ * depend on the count of queued items. The per-domain and per-host series
+ * are limited to the first {@link #getMaxKeys()} entries by backlog and by
+ * failure rate, to keep the count of series bounded.</p>
+ *
+ */
+public class PrometheusExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(PrometheusExporter.class);
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String PATH = "/metrics";
+    /**
+     * Bucket bounds of the stage histograms in seconds.
+     */
+    private static final double[] STAGE_BOUNDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+    /**
+     * Bucket bounds of the lane histograms in seconds.
+     */
+    private static final double[] LANE_BOUNDS = {1, 10, 60, 300, 900, 3600, 4 * 3600, 24 * 3600, 7 * 24 * 3600};
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double MILLIS_PER_SECOND = 1e3;
+    private final DeliveryManager deliveryManager;
+    private volatile int maxKeys = 50;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public PrometheusExporter(DeliveryManager deliveryManager) {
+        this.deliveryManager = deliveryManager;
+    }
+
+    /**
+     * Start serving the metrics.
+     *
+     * @param address The listening address, port 0 selects a free port.
+     * @throws IOException If the server could not be bound.
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The exporter is already started.");
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Aspirin-" + PrometheusExporter.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        log.info("PrometheusExporter.start(): Serving metrics on {}.", server.getAddress());
+    }
+
+    /**
+     * Stop serving the metrics, it does nothing if the exporter is not
+     * started.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * @return The bound address, null if the exporter is not started.
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server == null ? null : server.getAddress();
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * @param maxKeys Maximal count of domains and of MX hosts exported in
+     * each order.
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(16 * 1024);
+            write(text);
+            byte[] body = text.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+                GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+                gzipOut.write(body);
+                gzipOut.close();
+                body = compressed.toByteArray();
+            }
+            // The body is complete, so nothing can fail between the status and the body
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } catch (RuntimeException e) {
+            log.error("PrometheusExporter.serve(): Metrics could not be written.", e);
+            // The status can be sent only once
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param out The target of the text.
+     */
+    public void write(StringBuilder out) {
+        writeQueue(out);
+        writeDispatch(out);
+        writeStages(out);
+        writeLanes(out);
+        writeStats(out, "domain", deliveryManager.getMetrics().getDomainStats(), backlogs());
+        writeStats(out, "host", deliveryManager.getMetrics().getHostStats(), null);
+        writeStores(out);
+    }
+
+    private Map<String, Integer> backlogs() {
+        QueueStore queueStore = deliveryManager.getQueueStore();
+        return queueStore instanceof SimpleQueueStore ? ((SimpleQueueStore) queueStore).getDomainBacklogs() : null;
+    }
+
+    private void writeQueue(StringBuilder out) {
+        QueueStore queueStore = deliveryManager.getQueueStore();
+        header(out, "aspirin_queue_messages", "gauge", "Count of messages in the queue.");
+        sample(out, "aspirin_queue_messages", null, null, queueStore.size());
+        if (queueStore instanceof SimpleQueueStore) {
+            SimpleQueueStore simpleQueueStore = (SimpleQueueStore) queueStore;
+            header(out, "aspirin_queue_items", "gauge", "Count of recipient items by state.");
+            sample(out, "aspirin_queue_items", "state", "ready", simpleQueueStore.getReadyCount());
+            sample(out, "aspirin_queue_items", "state", "deferred", simpleQueueStore.getDeferredCount());
+            sample(out, "aspirin_queue_items", "state", "in_progress", simpleQueueStore.getInProgressCount());
+        }
+    }
+
+    private void writeDispatch(StringBuilder out) {
+        DeliveryMetrics metrics = deliveryManager.getMetrics();
+        header(out, "aspirin_dispatched_total", "counter", "Count of items dispatched to delivery threads.");
+        sample(out, "aspirin_dispatched_total", null, null, deliveryManager.getDispatchCount());
+        header(out, "aspirin_dispatch_rate", "gauge", "Dispatched items per second, averaged over about a minute.");
+        sample(out, "aspirin_dispatch_rate", null, null, deliveryManager.getDispatchRate());
+        header(out, "aspirin_dispatch_paused", "gauge", "1 if no new delivery is started.");
+        sample(out, "aspirin_dispatch_paused", null, null, deliveryManager.isDispatchPaused() ? 1 : 0);
+        header(out, "aspirin_deliveries_total", "counter", "Count of deliveries finished by delivery threads.");
+        sample(out, "aspirin_deliveries_total", null, null, metrics.getDeliveryCount());
+        header(out, "aspirin_smtp_replies_total", "counter", "Count of SMTP replies by reply class.");
+        for (ReplyClass replyClass : ReplyClass.values()) {
+            sample(out, "aspirin_smtp_replies_total", "class", replyClass.name().toLowerCase(), metrics.getReplyCount(replyClass));
+        }
+        header(out, "aspirin_workers", "gauge", "Count of delivery threads by state.");
+        sample(out, "aspirin_workers", "state", "active", deliveryManager.getActiveWorkers());
+        sample(out, "aspirin_workers", "state", "idle", deliveryManager.getIdleWorkers());
+    }
+
+    private void writeStages(StringBuilder out) {
+        header(out, "aspirin_stage_duration_seconds", "histogram", "Duration of the delivery stages.");
+        for (Stage stage : Stage.values()) {
+            histogram(out, "aspirin_stage_duration_seconds", "stage", stage.name().toLowerCase(),
+                    deliveryManager.getMetrics().getLatency(stage), NANOS_PER_SECOND, STAGE_BOUNDS);
+        }
+    }
+
+    private void writeLanes(StringBuilder out) {
+        header(out, "aspirin_lane_latency_seconds", "histogram", "Time between queueing and the final state of the recipients by priority lane.");
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            histogram(out, "aspirin_lane_latency_seconds", "lane", priority.name().toLowerCase(),
+                    deliveryManager.getLaneLatency(priority), MILLIS_PER_SECOND, LANE_BOUNDS);
+        }
+    }
+
+    /**
+     * Write a histogram in cumulative buckets. A bucket of the histogram is
+     * counted under the first bound not less than its upper bound.
+     */
+    private void histogram(StringBuilder out, String name, String label, String value, LatencyHistogram histogram, double unitsPerSecond, double[] bounds) {
+        long cumulative = 0;
+        int bucket = 0;
+        int bucketCount = LatencyHistogram.getNumberOfBuckets();
+        for (double bound : bounds) {
+            double limit = bound * unitsPerSecond;
+            while (bucket < bucketCount && LatencyHistogram.getBucketUpperBound(bucket) <= limit) {
+                cumulative += histogram.getBucketCount(bucket++);
+            }
+            out.append(name).append("_bucket{").append(label).append("=\"").append(value)
+                    .append("\",le=\"").append(format(bound)).append("\"} ").append(cumulative).append('\n');
+        }
+        while (bucket < bucketCount) {
+            cumulative += histogram.getBucketCount(bucket++);
+        }
+        out.append(name).append("_bucket{").append(label).append("=\"").append(value)
+                .append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sample(out, name + "_sum", label, value, histogram.getSum() / unitsPerSecond);
+        sample(out, name + "_count", label, value, cumulative);
+    }
+
+    private void writeStats(StringBuilder out, String kind, DeliveryStatsTable table, Map<String, Integer> backlogs) {
+        Map<String, DeliveryStats> exported = new LinkedHashMap<String, DeliveryStats>();
+        List<DeliveryStats> byFailureRate = table.snapshot(DeliveryStatsTable.Order.FAILURE_RATE, Collections.<String, Integer>emptyMap());
+        for (int i = 0; i < byFailureRate.size() && i < maxKeys; i++) {
+            exported.put(byFailureRate.get(i).getKey(), byFailureRate.get(i));
+        }
+        String prefix = "aspirin_" + kind + "_";
+        if (backlogs != null) {
+            List<Map.Entry<String, Integer>> largest = largestBacklogs(backlogs);
+            header(out, prefix + "backlog", "gauge", "Count of QUEUED items by " + kind + ".");
+            for (Map.Entry<String, Integer> backlog : largest) {
+                sample(out, prefix + "backlog", kind, backlog.getKey(), backlog.getValue());
+            }
+            for (Map.Entry<String, Integer> backlog : largest) {
+                if (!exported.containsKey(backlog.getKey())) {
+                    DeliveryStats stats = table.get(backlog.getKey());
+                    if (stats != null) {
+                        exported.put(stats.getKey(), stats);
+                    }
+                }
+            }
+        }
+        header(out, prefix + "attempts", "gauge", "Decaying count of delivery attempts by " + kind + ".");
+        for (DeliveryStats stats : exported.values()) {
+            sample(out, prefix + "attempts", kind, stats.getKey(), stats.getAttempts());
+        }
+        header(out, prefix + "failure_ratio", "gauge", "Decaying rate of failed attempts by " + kind + ".");
+        for (DeliveryStats stats : exported.values()) {
+            sample(out, prefix + "failure_ratio", kind, stats.getKey(), stats.getFailureRate());
+        }
+        header(out, prefix + "latency_mean_seconds", "gauge", "Decaying mean latency of the attempts by " + kind + ".");
+        for (DeliveryStats stats : exported.values()) {
+            sample(out, prefix + "latency_mean_seconds", kind, stats.getKey(), stats.getMeanLatency() / MILLIS_PER_SECOND);
+        }
+        header(out, prefix + "latency_p99_seconds", "gauge", "Decaying 99th percentile latency of the attempts by " + kind + ".");
+        for (DeliveryStats stats : exported.values()) {
+            sample(out, prefix + "latency_p99_seconds", kind, stats.getKey(), stats.getP99Latency() / MILLIS_PER_SECOND);
+        }
+        header(out, prefix + "last_response_code", "gauge", "SMTP reply code of the last attempt by " + kind + ", -1 if there was no reply.");
+        for (DeliveryStats stats : exported.values()) {
+            sample(out, prefix + "last_response_code", kind, stats.getKey(), stats.getLastResponseCode());
+        }
+        header(out, prefix + "stats_entries", "gauge", "Count of tracked " + kind + "s.");
+        sample(out, prefix + "stats_entries", null, null, table.size());
+    }
+
+    /**
+     * Select the largest backlogs with a bounded heap, without sorting all
+     * domains.
+     */
+    private List<Map.Entry<String, Integer>> largestBacklogs(Map<String, Integer> backlogs) {
+        Comparator<Map.Entry<String, Integer>> ascending = new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o1.getValue().compareTo(o2.getValue());
+            }
+        };
+        int limit = Math.max(1, maxKeys);
+        PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<Map.Entry<String, Integer>>(limit + 1, ascending);
+        for (Map.Entry<String, Integer> backlog : backlogs.entrySet()) {
+            if (heap.size() < limit) {
+                heap.add(backlog);
+            } else if (heap.peek().getValue() < backlog.getValue()) {
+                heap.poll();
+                heap.add(backlog);
+            }
+        }
+        List<Map.Entry<String, Integer>> largest = new ArrayList<Map.Entry<String, Integer>>(heap);
+        Collections.sort(largest, Collections.reverseOrder(ascending));
+        return largest;
+    }
+
+    private void writeStores(StringBuilder out) {
+        header(out, "aspirin_dns_cache_entries", "gauge", "Count of records in the DNS cache.");
+        sample(out, "aspirin_dns_cache_entries", null, null, deliveryManager.getDnsCacheSize());
+        if (0 <= deliveryManager.getMessageCacheHitCount()) {
+            header(out, "aspirin_message_cache_hits_total", "counter", "Count of message cache hits.");
+            sample(out, "aspirin_message_cache_hits_total", null, null, deliveryManager.getMessageCacheHitCount());
+            header(out, "aspirin_message_cache_misses_total", "counter", "Count of message cache misses.");
+            sample(out, "aspirin_message_cache_misses_total", null, null, deliveryManager.getMessageCacheMissCount());
+            header(out, "aspirin_message_cache_messages", "gauge", "Count of messages in the message cache.");
+            sample(out, "aspirin_message_cache_messages", null, null, deliveryManager.getMessageCacheCount());
+            header(out, "aspirin_message_cache_bytes", "gauge", "Size of the cached messages.");
+            sample(out, "aspirin_message_cache_bytes", null, null, deliveryManager.getMessageCacheSize());
+        }
+        MailStore mailStore = deliveryManager.getMailStore();
+        if (mailStore instanceof TieredMailStore) {
+            TieredMailStore tieredMailStore = (TieredMailStore) mailStore;
+            header(out, "aspirin_hot_store_messages", "gauge", "Count of messages in the hot tier.");
+            sample(out, "aspirin_hot_store_messages", null, null, tieredMailStore.getHotCount());
+            header(out, "aspirin_hot_store_bytes", "gauge", "Size of the messages in the hot tier.");
+            sample(out, "aspirin_hot_store_bytes", null, null, tieredMailStore.getHotSize());
+            header(out, "aspirin_hot_store_budget_bytes", "gauge", "Size budget of the hot tier.");
+            sample(out, "aspirin_hot_store_budget_bytes", null, null, tieredMailStore.getHotBudget());
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, double sample) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            escape(out, value);
+            out.append("\"}");
+        }
+        out.append(' ').append(format(sample)).append('\n');
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,65 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * This store puts a {@link MessageCache} in front of an other mail store, so
+ * custom stores (for example a database store) do not have to load the same
+ * message for every recipient.
+ *
+ */
+public class CachedMailStore implements CachingMailStore {
+
+    private final MailStore store;
+    private final MessageCache messageCache;
+
+    public CachedMailStore(MailStore store, MessageCache messageCache) {
+        this.store = store;
+        this.messageCache = messageCache;
+    }
+
+    @Override
+    public MimeMessage get(String mailid) {
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg == null) {
+            msg = store.get(mailid);
+            if (msg != null) {
+                messageCache.put(mailid, msg, LruMessageCache.estimateSize(msg));
+            }
+        }
+        return msg;
+    }
+
+    @Override
+    public List<String> getMailIds() {
+        return store.getMailIds();
+    }
+
+    @Override
+    public void init() {
+        store.init();
+    }
+
+    @Override
+    public void remove(String mailid) {
+        messageCache.remove(mailid);
+        store.remove(mailid);
+    }
+
+    @Override
+    public void set(String mailid, MimeMessage msg) {
+        store.set(mailid, msg);
+        messageCache.put(mailid, msg, LruMessageCache.estimateSize(msg));
+    }
+
+    @Override
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    public MailStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,11 @@
+package org.masukomi.aspirin.core.store.mail;
+
+/**
+ * A mail store, which keeps the used messages in a {@link MessageCache}. The
+ * delivery manager pins the messages in this cache while they are delivered.
+ *
+ */
+public interface CachingMailStore extends MailStore {
+
+    public MessageCache getMessageCache();
+}
@@ -0,0 +1,707 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This store keeps every large MIME part only once on disk. When a
+ * message is stored, the encoded content of its leaf parts (attachments,
+ * bodies) larger than {@link #getMinPartSize()} are written to part files
+ * named by their SHA-256 hash. The message file keeps only the remaining
+ * bytes (headers, boundaries, small parts) and references to the part files.
+ * Part files are reference counted, and they are deleted when the last
+ * message using them is removed.</p>
+ *
+ * <p>So a campaign of byte-identical bodies, or personalized messages with the
+ * same attachment, writes the large content only once. Messages are rebuilt
+ * byte by byte on read, {@link #getInputStream(String)} streams them without
+ * parsing.</p>
+ *
+ * <p>Directory layout: <code>messages/NN/mailid.msg</code> and
+ * <code>parts/HH/hash</code> under the root directory.</p>
+ *
+ */
+public class DedupMailStore implements CachingMailStore, StreamingMailStore, ConfigurationChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(DedupMailStore.class);
+    private static final int MESSAGE_FILE_MAGIC = 0x41444D31; // ADM1
+    private static final String MESSAGE_FILE_SUFFIX = ".msg";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final byte SEGMENT_LITERAL = 0;
+    private static final byte SEGMENT_PART = 1;
+    private static final int LOCK_STRIPES = 64;
+    private final Configuration configuration;
+    private File rootDir;
+    private int subDirCount = 64;
+    private int minPartSize = 1024;
+    private volatile MessageCache messageCache;
+    /**
+     * Logical size of stored messages by mail id.
+     */
+    private final ConcurrentMap<String, Long> messageSizes = new ConcurrentHashMap<String, Long>();
+    /**
+     * Reference count of part files by hash. Stored messages and open
+     * message streams hold references. It is changed under the lock stripe
+     * of the hash.
+     */
+    private final ConcurrentMap<String, Integer> partReferences = new ConcurrentHashMap<String, Integer>();
+    private final Object[] partLocks = new Object[LOCK_STRIPES];
+    /**
+     * Lock stripes of mail ids, they serialize the changes of a message.
+     */
+    private final Object[] mailLocks = new Object[LOCK_STRIPES];
+    private final AtomicLong logicalSize = new AtomicLong();
+    private final AtomicLong storedSize = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    public DedupMailStore(Configuration configuration) {
+        this.configuration = configuration;
+        for (int i = 0; i < partLocks.length; i++) {
+            partLocks[i] = new Object();
+            mailLocks[i] = new Object();
+        }
+        messageCache = new LruMessageCache(configuration.getMailStoreCacheSize());
+        configuration.addListener(this);
+    }
+
+    @Override
+    public MimeMessage get(String mailid) {
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg != null || !messageSizes.containsKey(mailid)) {
+            return msg;
+        }
+        try {
+            InputStream in = getInputStream(mailid);
+            if (in == null) {
+                return null;
+            }
+            try {
+                msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), in);
+            } finally {
+                in.close();
+            }
+            Long size = messageSizes.get(mailid);
+            if (size != null) {
+                messageCache.put(mailid, msg, LruMessageCache.estimateSize(size));
+            }
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not read file for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+        return msg;
+    }
+
+    /**
+     * Stream the original bytes of a stored message without parsing it.
+     *
+     * @param mailid Unique mail id.
+     * @return The RFC 822 source of the message, or null if there is no such
+     * message. The caller has to close it, the part files of the message are
+     * not deleted until then.
+     * @throws IOException If the message or a part file could not be read.
+     */
+    @Override
+    public InputStream getInputStream(String mailid) throws IOException {
+        final List<Object> segments;
+        synchronized (getMailLock(mailid)) {
+            try {
+                segments = readMessageFile(getMessageFile(mailid));
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            // The parts are referenced by the message file, so they exist
+            for (Object segment : segments) {
+                if (segment instanceof PartReference) {
+                    retainPart(((PartReference) segment).hash);
+                }
+            }
+        }
+        InputStream in = new SequenceInputStream(new Enumeration<InputStream>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return index < segments.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                Object segment = segments.get(index++);
+                if (segment instanceof byte[]) {
+                    return new ByteArrayInputStream((byte[]) segment);
+                }
+                return new PartInputStream(getPartFile(((PartReference) segment).hash));
+            }
+        });
+        return new FilterInputStream(in) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        for (Object segment : segments) {
+                            if (segment instanceof PartReference) {
+                                releasePart(((PartReference) segment).hash);
+                            }
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public MessageEnvelope getEnvelope(String mailid) throws IOException {
+        long size = getSize(mailid);
+        InputStream in = getInputStream(mailid);
+        if (in == null) {
+            return null;
+        }
+        try {
+            // Part files are not opened, if the headers end before them
+            return MessageEnvelope.read(mailid, in, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public long getSize(String mailid) {
+        Long size = messageSizes.get(mailid);
+        return size == null ? -1 : size;
+    }
+
+    @Override
+    public List<String> getMailIds() {
+        return new ArrayList<String>(messageSizes.keySet());
+    }
+
+    @Override
+    public void init() {
+        if (rootDir == null || !rootDir.exists()) {
+            return;
+        }
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        File[] subDirs = new File(rootDir, "messages").listFiles();
+        if (subDirs != null) {
+            for (File subDir : subDirs) {
+                File[] msgFiles = subDir.listFiles();
+                if (msgFiles == null) {
+                    continue;
+                }
+                for (File msgFile : msgFiles) {
+                    String fileName = msgFile.getName();
+                    if (!fileName.endsWith(MESSAGE_FILE_SUFFIX)) {
+                        msgFile.delete();
+                        continue;
+                    }
+                    try {
+                        long size = 0;
+                        for (Object segment : readMessageFile(msgFile)) {
+                            if (segment instanceof byte[]) {
+                                size += ((byte[]) segment).length;
+                            } else {
+                                PartReference reference = (PartReference) segment;
+                                Integer count = references.get(reference.hash);
+                                references.put(reference.hash, count == null ? 1 : count + 1);
+                                size += reference.length;
+                            }
+                        }
+                        messageSizes.put(fileName.substring(0, fileName.length() - MESSAGE_FILE_SUFFIX.length()), size);
+                        logicalSize.addAndGet(size);
+                        storedSize.addAndGet(msgFile.length());
+                    } catch (IOException e) {
+                        log.error(getClass().getSimpleName() + " Could not read message file " + msgFile.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+        File[] partDirs = new File(rootDir, "parts").listFiles();
+        if (partDirs != null) {
+            for (File partDir : partDirs) {
+                File[] partFiles = partDir.listFiles();
+                if (partFiles == null) {
+                    continue;
+                }
+                for (File partFile : partFiles) {
+                    if (references.containsKey(partFile.getName())) {
+                        storedSize.addAndGet(partFile.length());
+                    } else {
+                        // Unreferenced or unfinished part file
+                        partFile.delete();
+                    }
+                }
+            }
+        }
+        partReferences.putAll(references);
+    }
+
+    @Override
+    public void remove(String mailid) {
+        synchronized (getMailLock(mailid)) {
+            messageCache.remove(mailid);
+            Long size = messageSizes.remove(mailid);
+            if (size == null) {
+                return;
+            }
+            logicalSize.addAndGet(-size);
+            File msgFile = getMessageFile(mailid);
+            try {
+                List<Object> segments = readMessageFile(msgFile);
+                storedSize.addAndGet(-msgFile.length());
+                msgFile.delete();
+                for (Object segment : segments) {
+                    if (segment instanceof PartReference) {
+                        releasePart(((PartReference) segment).hash);
+                    }
+                }
+            } catch (IOException e) {
+                log.error(getClass().getSimpleName() + " Could not remove message file for name " + mailid, e);
+            }
+        }
+    }
+
+    @Override
+    public void set(String mailid, MimeMessage msg) {
+        if (rootDir == null) {
+            throw new RuntimeException(getClass().getSimpleName() + " Please set up root directory.");
+        }
+        try {
+            ByteArrayOutputStream source = new ByteArrayOutputStream();
+            msg.writeTo(source);
+            byte[] bytes = source.toByteArray();
+
+            // Split the source into literal segments and large parts
+            List<int[]> parts = new ArrayList<int[]>();
+            collectLargeParts(new MimeMessage(Session.getDefaultInstance(System.getProperties()), new OffsetInputStream(bytes, 0, bytes.length)), parts);
+            synchronized (getMailLock(mailid)) {
+                List<Object> segments = new ArrayList<Object>();
+                List<String> acquired = new ArrayList<String>();
+                int position = 0;
+                try {
+                    for (int[] part : parts) {
+                        int partStart = part[0];
+                        int partLength = part[1];
+                        if (partStart < position) {
+                            continue;
+                        }
+                        if (position < partStart) {
+                            segments.add(copyOfRange(bytes, position, partStart));
+                        }
+                        String hash = hash(bytes, partStart, partLength);
+                        acquirePart(hash, bytes, partStart, partLength);
+                        acquired.add(hash);
+                        segments.add(new PartReference(hash, partLength));
+                        position = partStart + partLength;
+                    }
+                    if (position < bytes.length) {
+                        segments.add(copyOfRange(bytes, position, bytes.length));
+                    }
+                    long oldMessageFileSize = getMessageFile(mailid).length();
+                    List<Object> oldSegments = messageSizes.containsKey(mailid) ? readMessageFile(getMessageFile(mailid)) : null;
+                    long messageFileSize = writeMessageFile(mailid, segments);
+                    acquired.clear();
+
+                    Long oldSize = messageSizes.put(mailid, (long) bytes.length);
+                    logicalSize.addAndGet(bytes.length - (oldSize == null ? 0 : oldSize));
+                    storedSize.addAndGet(messageFileSize - (oldSegments == null ? 0 : oldMessageFileSize));
+                    if (oldSegments != null) {
+                        for (Object segment : oldSegments) {
+                            if (segment instanceof PartReference) {
+                                releasePart(((PartReference) segment).hash);
+                            }
+                        }
+                    }
+                } finally {
+                    // Roll back the references of a failed write
+                    for (String hash : acquired) {
+                        releasePart(hash);
+                    }
+                }
+                messageCache.put(mailid, msg, LruMessageCache.estimateSize(bytes.length));
+            }
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not write file for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+    }
+
+    /**
+     * Collect the offset and length of the encoded content of large leaf
+     * parts in the source, in the order of the source. The part streams of a
+     * message parsed from an {@link OffsetInputStream} know their offsets, so
+     * the content is not copied nor searched.
+     */
+    private void collectLargeParts(Part part, List<int[]> parts) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                collectLargeParts(multipart.getBodyPart(i), parts);
+            }
+            return;
+        }
+        InputStream in = part instanceof MimeMessage ? ((MimeMessage) part).getRawInputStream() : ((MimeBodyPart) part).getRawInputStream();
+        try {
+            if (in instanceof OffsetInputStream) {
+                OffsetInputStream content = (OffsetInputStream) in;
+                if (minPartSize <= content.getLength()) {
+                    parts.add(new int[] { content.getOffset(), content.getLength() });
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Take a reference on a part file, and write it if it does not exist yet.
+     */
+    private void acquirePart(String hash, byte[] source, int offset, int length) throws IOException {
+        synchronized (getPartLock(hash)) {
+            Integer count = partReferences.get(hash);
+            if (count == null) {
+                File partFile = getPartFile(hash);
+                writeAtomically(partFile, source, offset, length);
+                storedSize.addAndGet(length);
+                count = 0;
+            }
+            partReferences.put(hash, count + 1);
+        }
+    }
+
+    /**
+     * Take one more reference on an existing part file.
+     */
+    private void retainPart(String hash) throws IOException {
+        synchronized (getPartLock(hash)) {
+            Integer count = partReferences.get(hash);
+            if (count == null) {
+                throw new IOException("Part file is missing: " + hash);
+            }
+            partReferences.put(hash, count + 1);
+        }
+    }
+
+    private void releasePart(String hash) {
+        synchronized (getPartLock(hash)) {
+            Integer count = partReferences.get(hash);
+            if (count == null) {
+                return;
+            }
+            if (1 < count) {
+                partReferences.put(hash, count - 1);
+            } else {
+                partReferences.remove(hash);
+                File partFile = getPartFile(hash);
+                storedSize.addAndGet(-partFile.length());
+                partFile.delete();
+            }
+        }
+    }
+
+    private long writeMessageFile(String mailid, List<Object> segments) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MESSAGE_FILE_MAGIC);
+        out.writeInt(segments.size());
+        for (Object segment : segments) {
+            if (segment instanceof byte[]) {
+                out.writeByte(SEGMENT_LITERAL);
+                out.writeInt(((byte[]) segment).length);
+                out.write((byte[]) segment);
+            } else {
+                out.writeByte(SEGMENT_PART);
+                out.writeUTF(((PartReference) segment).hash);
+                out.writeLong(((PartReference) segment).length);
+            }
+        }
+        out.flush();
+        writeAtomically(getMessageFile(mailid), buffer.toByteArray(), 0, buffer.size());
+        return buffer.size();
+    }
+
+    private List<Object> readMessageFile(File msgFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(msgFile)));
+        try {
+            if (in.readInt() != MESSAGE_FILE_MAGIC) {
+                throw new IOException("Not a message file: " + msgFile.getAbsolutePath());
+            }
+            int count = in.readInt();
+            List<Object> segments = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++) {
+                if (in.readByte() == SEGMENT_LITERAL) {
+                    byte[] literal = new byte[in.readInt()];
+                    in.readFully(literal);
+                    segments.add(literal);
+                } else {
+                    segments.add(new PartReference(in.readUTF(), in.readLong()));
+                }
+            }
+            return segments;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a file through a temporary file, so readers never see a half
+     * written file.
+     */
+    private void writeAtomically(File file, byte[] content, int offset, int length) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File tempFile = new File(dir, file.getName() + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.write(content, offset, length);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // Some platforms do not replace existing files on rename
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+        }
+        writtenBytes.addAndGet(length);
+    }
+
+    private File getMessageFile(String mailid) {
+        String subDirName = String.valueOf((mailid.hashCode() & Integer.MAX_VALUE) % subDirCount);
+        return new File(new File(new File(rootDir, "messages"), subDirName), mailid + MESSAGE_FILE_SUFFIX);
+    }
+
+    private File getPartFile(String hash) {
+        return new File(new File(new File(rootDir, "parts"), hash.substring(0, 2)), hash);
+    }
+
+    private Object getPartLock(String hash) {
+        return partLocks[Integer.parseInt(hash.substring(0, 2), 16) % LOCK_STRIPES];
+    }
+
+    private Object getMailLock(String mailid) {
+        return mailLocks[(mailid.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static String hash(byte[] content, int offset, int length) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(content, offset, length);
+            byte[] digest = messageDigest.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static byte[] copyOfRange(byte[] source, int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(source, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * @return Sum of the sizes of the stored messages in bytes.
+     */
+    public long getLogicalSize() {
+        return logicalSize.get();
+    }
+
+    /**
+     * @return Size of message and part files on disk in bytes.
+     */
+    public long getStoredSize() {
+        return storedSize.get();
+    }
+
+    /**
+     * @return Count of bytes written to disk since startup.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return Count of unique part files.
+     */
+    public int getPartCount() {
+        return partReferences.size();
+    }
+
+    @Override
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    public void setMessageCache(MessageCache messageCache) {
+        this.messageCache = messageCache;
+    }
+
+    @Override
+    public void configChanged(String parameterName) {
+        if (Configuration.PARAM_MAILSTORE_CACHE_SIZE.equals(parameterName) && messageCache instanceof LruMessageCache) {
+            ((LruMessageCache) messageCache).setMaxSize(configuration.getMailStoreCacheSize());
+        }
+    }
+
+    public void setRootDir(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    public void setSubDirCount(int subDirCount) {
+        this.subDirCount = subDirCount;
+    }
+
+    public int getSubDirCount() {
+        return subDirCount;
+    }
+
+    /**
+     * @return Minimal size of a part in bytes, which is stored separately.
+     */
+    public int getMinPartSize() {
+        return minPartSize;
+    }
+
+    public void setMinPartSize(int minPartSize) {
+        this.minPartSize = minPartSize;
+    }
+
+    private static class PartReference {
+
+        private final String hash;
+        private final long length;
+
+        PartReference(String hash, long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Shared source stream, which knows its offset in the source. The
+     * streams of parts parsed from it are created by {@link #newStream(long, long)},
+     * so they know their offsets too.
+     */
+    private static class OffsetInputStream extends SharedByteArrayInputStream {
+
+        OffsetInputStream(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        int getOffset() {
+            return start;
+        }
+
+        int getLength() {
+            return count - start;
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            if (start < 0) {
+                throw new IllegalArgumentException("start < 0");
+            }
+            if (end == -1) {
+                end = count - this.start;
+            }
+            return new OffsetInputStream(buf, this.start + (int) start, (int) (end - start));
+        }
+    }
+
+    /**
+     * Stream of a part file, which is opened on the first read. So closing an
+     * unread message stream does not open its part files.
+     */
+    private static class PartInputStream extends InputStream {
+
+        private final File partFile;
+        private InputStream in = null;
+
+        PartInputStream(File partFile) {
+            this.partFile = partFile;
+        }
+
+        private InputStream open() throws IOException {
+            if (in == null) {
+                try {
+                    in = new BufferedInputStream(new FileInputStream(partFile));
+                } catch (FileNotFoundException e) {
+                    throw new IOException("Part file is missing: " + partFile.getName(), e);
+                }
+            }
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return open().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
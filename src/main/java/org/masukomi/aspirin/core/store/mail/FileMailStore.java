@@ -1,76 +1,375 @@
 package org.masukomi.aspirin.core.store.mail;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
 
+import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.core.AspirinInternal;
-import org.masukomi.aspirin.core.Helper;
 import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This store implementation is designed to reduce memory usage of MimeMessage
- * instances. All MimeMessage instance are stored in files and in weak
- * references too. So garbage collector can remove all large MimeMessage object
- * from memory if necessary.
+ * instances. All MimeMessage instance are stored in files, and only the
+ * recently used ones are kept in memory, in a {@link MessageCache}. By
+ * default it is a {@link LruMessageCache} bounded by
+ * {@link Configuration#getMailStoreCacheSize()}.
+ *
+ * <p>The store keeps an index file in the root directory with the mail id,
+ * path, size and key headers of each message. Stored and removed messages
+ * are appended to the index, so on startup only the index is read, and the
+ * messages are parsed when they are first used. If the index is missing or a
+ * message file is not in it, only the headers of these files are read, in
+ * parallel.</p>
+ *
+ * <p>The store is thread safe, and reads do not take a global lock. A message
+ * is parsed by one thread at a time: if more threads ask for a message which
+ * is under loading, they wait for that load. Message files are written to a
+ * temporary file first, and renamed when they are complete.</p>
+ *
+ * <p>If {@link Configuration#getMailStoreCompressionLevel()} is set, new
+ * message files are compressed with Deflater. A compressed file starts with a
+ * header, which could not start a RFC 822 message, so compressed and
+ * uncompressed files could be in the same store. Compressed files are
+ * decompressed while they are read.</p>
+ *
+ * <p>By {@link Configuration#getMailStoreSync()} the messages could be
+ * spooled: {@link #set(String, MimeMessage)} serializes the message and
+ * queues it, and a background thread writes the queued messages in groups.
+ * Every message file of a group is synced, then the index lines of the group
+ * are appended and synced once. In DURABLE mode the caller waits for the
+ * sync of its group, and a failed write is thrown to it as a
+ * RuntimeException. In ACCEPTED mode it returns at once, and the message is
+ * served from memory until it is written. So concurrent producers share the
+ * cost of syncs instead of waiting for each other.</p>
  *
  * @author Laszlo Solova
  *
  */
-public class FileMailStore implements MailStore {
+public class FileMailStore implements CachingMailStore, StreamingMailStore, ConfigurationChangeListener {
 
     private static final Logger log = LoggerFactory.getLogger(FileMailStore.class);
-    
-    private final Helper helper;
+    /**
+     * Name of the index file in the root directory.
+     */
+    public static final String INDEX_FILE_NAME = "mailstore.idx";
+    private static final String MESSAGE_FILE_SUFFIX = ".msg";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    /**
+     * Compressed file header: magic (4 bytes), format version (1 byte),
+     * Deflater level (1 byte), uncompressed size (8 bytes).
+     */
+    private static final byte[] COMPRESSED_MAGIC = new byte[]{0, 'A', 'S', 'Z'};
+    private static final byte COMPRESSED_VERSION = 1;
+    private static final int COMPRESSED_HEADER_SIZE = 14;
+    /**
+     * These headers are stored in the index, so they are available without
+     * parsing the message.
+     */
+    private static final String[] INDEXED_HEADERS = new String[]{Aspirin.HEADER_EXPIRY, Aspirin.HEADER_PRIORITY, Aspirin.HEADER_TENANT, Aspirin.HEADER_DELIVER_AT};
+
+    /**
+     * Sync modes of message writes, see {@link Configuration#getMailStoreSync()}.
+     */
+    public static enum SyncMode {
+        NONE, ACCEPTED, DURABLE
+    }
+
+    private final Configuration configuration;
     private File rootDir;
     private int subDirCount = 3;
-    private Random rand = new Random();
-    private Map<String, WeakReference<MimeMessage>> messageMap = new HashMap<String, WeakReference<MimeMessage>>();
-    private Map<String, String> messagePathMap = new HashMap<String, String>();
+    private volatile MessageCache messageCache;
+    private final ConcurrentMap<String, MessageFile> messageFileMap = new ConcurrentHashMap<String, MessageFile>();
+    private final ConcurrentMap<String, FutureTask<MimeMessage>> loadingMap = new ConcurrentHashMap<String, FutureTask<MimeMessage>>();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadWaitCount = new AtomicLong();
+    private final AtomicLong compressedWriteCount = new AtomicLong();
+    private final AtomicLong compressedRawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionCpuNanos = new AtomicLong();
+    private final AtomicLong compressedLoadCount = new AtomicLong();
+    private final AtomicLong decompressionCpuNanos = new AtomicLong();
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+    private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<PendingWrite>();
+    private Thread committer = null;
+    private final AtomicLong groupCommitCount = new AtomicLong();
+    private final AtomicLong groupCommittedCount = new AtomicLong();
+    private final Object indexLock = new Object();
+    private FileOutputStream indexOut = null;
+    private Writer indexWriter = null;
+    private int indexJournalSize = 0;
 
     public FileMailStore(Configuration configuration) {
-        helper = new Helper(configuration);
+        this.configuration = configuration;
+        messageCache = new LruMessageCache(configuration.getMailStoreCacheSize());
+        configuration.addListener(this);
     }
-    
-    
+
+
 
     @Override
     public MimeMessage get(String mailid) {
-        WeakReference<MimeMessage> msgRef = messageMap.get(mailid);
-        MimeMessage msg = null;
-        if (msgRef != null) {
-            msg = msgRef.get();
-            if (msg == null) {
-                try {
-                    msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new FileInputStream(new File(messagePathMap.get(mailid))));
-                    msgRef = new WeakReference<MimeMessage>(msg);
-                } catch (FileNotFoundException e) {
-                    log.error(getClass().getSimpleName() + " No file representation found for name " + mailid, e);
-                } catch (MessagingException e) {
-                    log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
-                }
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg != null) {
+            return msg;
+        }
+        PendingWrite pendingWrite = pendingWrites.get(mailid);
+        if (pendingWrite != null) {
+            return pendingWrite.msg;
+        }
+        MessageFile messageFile = messageFileMap.get(mailid);
+        if (messageFile == null) {
+            return null;
+        }
+        FutureTask<MimeMessage> load = new FutureTask<MimeMessage>(new MessageLoader(messageFile));
+        FutureTask<MimeMessage> runningLoad = loadingMap.putIfAbsent(mailid, load);
+        if (runningLoad == null) {
+            // Another load could have filled the cache since the first check
+            msg = messageCache.get(mailid);
+            if (msg != null) {
+                loadingMap.remove(mailid, load);
+                return msg;
             }
+            runningLoad = load;
+            loadCount.incrementAndGet();
+            try {
+                load.run();
+            } finally {
+                loadingMap.remove(mailid, load);
+            }
+        } else {
+            loadWaitCount.incrementAndGet();
         }
-        return msg;
+        try {
+            return runningLoad.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) {
+                log.error(getClass().getSimpleName() + " No file representation found for name " + mailid, cause);
+            } else if (cause instanceof MessagingException) {
+                log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, cause);
+            } else {
+                log.error(getClass().getSimpleName() + " Could not read file for name " + mailid, cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
     }
 
     @Override
     public List<String> getMailIds() {
-        return new ArrayList<String>(messageMap.keySet());
+        List<String> mailids = new ArrayList<String>(messageFileMap.keySet());
+        for (String mailid : pendingWrites.keySet()) {
+            if (!messageFileMap.containsKey(mailid)) {
+                mailids.add(mailid);
+            }
+        }
+        return mailids;
+    }
+
+    /**
+     * Stream the stored message without parsing it. Compressed files are
+     * decompressed while they are read.
+     */
+    @Override
+    public InputStream getInputStream(String mailid) throws IOException {
+        PendingWrite pendingWrite = pendingWrites.get(mailid);
+        if (pendingWrite != null) {
+            return new ByteArrayInputStream(pendingWrite.content);
+        }
+        MessageFile messageFile = messageFileMap.get(mailid);
+        if (messageFile == null) {
+            return null;
+        }
+        try {
+            return openMessageFile(new File(rootDir, messageFile.path));
+        } catch (FileNotFoundException e) {
+            if (messageFileMap.get(mailid) != messageFile) {
+                // Removed or replaced meanwhile
+                return getInputStream(mailid);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read only the headers of the stored message.
+     */
+    @Override
+    public MessageEnvelope getEnvelope(String mailid) throws IOException {
+        long size = getSize(mailid);
+        InputStream in = getInputStream(mailid);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return MessageEnvelope.read(mailid, in, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param mailid Unique mail id.
+     * @return Size of the stored message in bytes (uncompressed), or -1 if
+     * there is no such message. The message is not parsed.
+     */
+    @Override
+    public long getSize(String mailid) {
+        PendingWrite pendingWrite = pendingWrites.get(mailid);
+        if (pendingWrite != null) {
+            return pendingWrite.content.length;
+        }
+        MessageFile messageFile = messageFileMap.get(mailid);
+        return messageFile == null ? -1 : messageFile.rawSize;
+    }
+
+    /**
+     * It gives back an indexed header of a message without parsing it. Indexed
+     * headers are the expiry, priority and tenant headers of Aspirin.
+     *
+     * @param mailid Unique mail id.
+     * @param name Name of the header.
+     * @return The first value of the header, or null if it is not set or not
+     * indexed.
+     */
+    public String getIndexedHeader(String mailid, String name) {
+        MessageFile messageFile = messageFileMap.get(mailid);
+        return messageFile == null ? null : messageFile.headers.get(name);
+    }
+
+    /**
+     * @return Count of messages parsed from files.
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return Count of get() calls which waited for the load of the same
+     * message by an other thread.
+     */
+    public long getLoadWaitCount() {
+        return loadWaitCount.get();
+    }
+
+    /**
+     * @return Count of compressed message files written since startup.
+     */
+    public long getCompressedWriteCount() {
+        return compressedWriteCount.get();
+    }
+
+    /**
+     * @return Uncompressed size of the compressed messages divided by their
+     * compressed size, 0 if no compressed file was written since startup.
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 0 : (double) compressedRawBytes.get() / compressed;
+    }
+
+    /**
+     * @return CPU time in nanoseconds spent writing compressed messages
+     * (serialization and compression) since startup.
+     */
+    public long getCompressionCpuNanos() {
+        return compressionCpuNanos.get();
+    }
+
+    /**
+     * @return Count of compressed message files loaded since startup.
+     */
+    public long getCompressedLoadCount() {
+        return compressedLoadCount.get();
+    }
+
+    /**
+     * @return CPU time in nanoseconds spent loading compressed messages
+     * (decompression and parsing) since startup.
+     */
+    public long getDecompressionCpuNanos() {
+        return decompressionCpuNanos.get();
+    }
+
+    /**
+     * @return Count of group commits of spooled messages since startup.
+     */
+    public long getGroupCommitCount() {
+        return groupCommitCount.get();
+    }
+
+    /**
+     * @return Count of spooled messages written since startup.
+     */
+    public long getGroupCommittedCount() {
+        return groupCommittedCount.get();
+    }
+
+    /**
+     * @return Count of spooled messages, which are not written yet.
+     */
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Wait until the messages spooled before this call are written.
+     *
+     * @throws InterruptedException If the thread is interrupted meanwhile.
+     */
+    public void flush() throws InterruptedException {
+        PendingWrite marker = new PendingWrite(null, null, null);
+        writeQueue.add(marker);
+        startCommitter();
+        marker.done.await();
     }
 
     @Override
@@ -82,6 +381,12 @@ public class FileMailStore implements MailStore {
         if (subdirs == null) {
             return;
         }
+        Map<String, MessageFile> indexedByPath = new HashMap<String, MessageFile>();
+        for (MessageFile messageFile : readIndex().values()) {
+            indexedByPath.put(messageFile.path, messageFile);
+        }
+        Map<String, MessageFile> loaded = new HashMap<String, MessageFile>();
+        List<File> unindexedFiles = new ArrayList<File>();
         for (File subDir : subdirs) {
             if (subDir.isDirectory()) {
                 File[] subdirFiles = subDir.listFiles();
@@ -89,68 +394,612 @@ public class FileMailStore implements MailStore {
                     continue;
                 }
                 for (File msgFile : subdirFiles) {
-                    try {
-                        MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new FileInputStream(msgFile));
-                        String mailid = helper.getMailID(msg);
-                        synchronized (messageMap) {
-                            messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-                            messagePathMap.put(mailid, msgFile.getAbsolutePath());
-                        }
-                    } catch (FileNotFoundException e) {
-                        log.error(getClass().getSimpleName() + " No file representation found with name " + msgFile.getAbsolutePath(), e);
-                    } catch (MessagingException e) {
-                        log.error(getClass().getSimpleName() + " There is a messaging exception in file " + msgFile.getAbsolutePath(), e);
+                    if (msgFile.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                        // Unfinished write, the message was not stored
+                        msgFile.delete();
+                        continue;
+                    }
+                    if (!msgFile.getName().endsWith(MESSAGE_FILE_SUFFIX)) {
+                        continue;
+                    }
+                    MessageFile messageFile = indexedByPath.get(subDir.getName() + "/" + msgFile.getName());
+                    if (messageFile != null && messageFile.size == msgFile.length()) {
+                        loaded.put(messageFile.mailid, messageFile);
+                    } else {
+                        unindexedFiles.add(msgFile);
                     }
                 }
             }
         }
+        if (!unindexedFiles.isEmpty()) {
+            log.info(getClass().getSimpleName() + " Indexing {} message files.", unindexedFiles.size());
+            for (MessageFile messageFile : readMessageFiles(unindexedFiles)) {
+                loaded.put(messageFile.mailid, messageFile);
+            }
+        }
+        messageFileMap.putAll(loaded);
+        writeIndex();
     }
 
     @Override
     public void remove(String mailid) {
-        synchronized (messageMap) {
-            messageMap.remove(mailid);
-            synchronized (messagePathMap) {
-                File f = new File(messagePathMap.get(mailid));
-                f.delete();
-                messagePathMap.remove(mailid);
-            }
+        MessageFile messageFile;
+        synchronized (pendingWrites) {
+            pendingWrites.remove(mailid);
+            messageFile = messageFileMap.remove(mailid);
+        }
+        messageCache.remove(mailid);
+        if (messageFile != null) {
+            File f = new File(rootDir, messageFile.path);
+            f.delete();
+            appendIndex(Collections.singletonList("-\t" + escape(mailid)), false);
         }
     }
 
     @Override
     public void set(String mailid, MimeMessage msg) {
-        String filepath;
-        // Create file path
         if (rootDir == null) {
             throw new RuntimeException(getClass().getSimpleName() + " Please set up root directory.");
         }
-        String subDirName = String.valueOf(rand.nextInt(subDirCount));
+        SyncMode syncMode = getSyncMode();
+        if (syncMode == SyncMode.NONE) {
+            writeNow(mailid, msg);
+            return;
+        }
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            msg.writeTo(content);
+            PendingWrite pendingWrite = new PendingWrite(mailid, msg, content.toByteArray());
+            pendingWrites.put(mailid, pendingWrite);
+            messageCache.put(mailid, msg, LruMessageCache.estimateSize(pendingWrite.content.length));
+            writeQueue.add(pendingWrite);
+            startCommitter();
+            if (syncMode == SyncMode.DURABLE) {
+                pendingWrite.done.await();
+                if (pendingWrite.failure != null) {
+                    throw new RuntimeException(getClass().getSimpleName() + " Could not write file for name " + mailid, pendingWrite.failure);
+                }
+            }
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not serialize message for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write a message file in the calling thread, without sync.
+     */
+    private void writeNow(String mailid, MimeMessage msg) {
+        // A spooled write of the same message is superseded
+        pendingWrites.remove(mailid);
+        String path = getMessagePath(mailid);
+        try {
+            File msgFile = new File(rootDir, path);
+            File tempFile = new File(rootDir, path + TEMP_FILE_SUFFIX);
+            long rawSize = writeMessageFile(tempFile, msg, null, configuration.getMailStoreCompressionLevel());
+            renameTempFile(tempFile, msgFile);
+            MessageFile messageFile = install(mailid, msg, path, msgFile, rawSize);
+            appendIndex(Collections.singletonList(messageFile.toIndexLine()), false);
+        } catch (FileNotFoundException e) {
+            log.error(getClass().getSimpleName() + " No file representation found for name " + mailid, e);
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not write file for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+    }
+
+    /**
+     * Write a group of spooled messages. The message files are synced, then
+     * the index lines are appended and synced once for the whole group.
+     */
+    private void commit(List<PendingWrite> group) {
+        try {
+            int level = configuration.getMailStoreCompressionLevel();
+            List<PendingWrite> written = new ArrayList<PendingWrite>(group.size());
+            for (PendingWrite pendingWrite : group) {
+                if (pendingWrite.mailid == null || pendingWrites.get(pendingWrite.mailid) != pendingWrite) {
+                    // Flush marker, removed or superseded message
+                    continue;
+                }
+                try {
+                    pendingWrite.rawSize = writeMessageFile(getTempFile(pendingWrite), null, pendingWrite.content, level);
+                    written.add(pendingWrite);
+                } catch (IOException e) {
+                    log.error(getClass().getSimpleName() + " Could not write file for name " + pendingWrite.mailid, e);
+                    pendingWrite.failure = e;
+                } catch (MessagingException e) {
+                    log.error(getClass().getSimpleName() + " There is a messaging exception with name " + pendingWrite.mailid, e);
+                    pendingWrite.failure = e;
+                }
+            }
+            List<String> indexLines = new ArrayList<String>(written.size());
+            for (PendingWrite pendingWrite : written) {
+                File tempFile = getTempFile(pendingWrite);
+                try {
+                    RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+                    try {
+                        file.getFD().sync();
+                    } finally {
+                        file.close();
+                    }
+                    synchronized (pendingWrites) {
+                        if (!pendingWrites.remove(pendingWrite.mailid, pendingWrite)) {
+                            tempFile.delete();
+                            continue;
+                        }
+                        String path = getMessagePath(pendingWrite.mailid);
+                        File msgFile = new File(rootDir, path);
+                        renameTempFile(tempFile, msgFile);
+                        indexLines.add(install(pendingWrite.mailid, pendingWrite.msg, path, msgFile, pendingWrite.rawSize).toIndexLine());
+                    }
+                } catch (IOException e) {
+                    log.error(getClass().getSimpleName() + " Could not sync file for name " + pendingWrite.mailid, e);
+                    pendingWrite.failure = e;
+                    tempFile.delete();
+                } catch (MessagingException e) {
+                    log.error(getClass().getSimpleName() + " There is a messaging exception with name " + pendingWrite.mailid, e);
+                    pendingWrite.failure = e;
+                }
+            }
+            appendIndex(indexLines, true);
+            groupCommitCount.incrementAndGet();
+            groupCommittedCount.addAndGet(indexLines.size());
+        } finally {
+            for (PendingWrite pendingWrite : group) {
+                if (pendingWrite.mailid != null && pendingWrites.remove(pendingWrite.mailid, pendingWrite)) {
+                    // The write failed, the message is not stored
+                    messageCache.remove(pendingWrite.mailid);
+                    if (pendingWrite.failure == null) {
+                        pendingWrite.failure = new IOException("Group commit failed.");
+                    }
+                }
+                pendingWrite.done.countDown();
+            }
+        }
+    }
+
+    private synchronized void startCommitter() {
+        if (committer != null) {
+            return;
+        }
+        committer = new Thread("Aspirin-MailStoreSync") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        List<PendingWrite> group = new ArrayList<PendingWrite>();
+                        group.add(writeQueue.take());
+                        writeQueue.drainTo(group);
+                        try {
+                            commit(group);
+                        } catch (RuntimeException e) {
+                            // The waiting writers are released by commit(), the thread goes on
+                            log.error(FileMailStore.class.getSimpleName() + " Group commit failed.", e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    log.info(FileMailStore.class.getSimpleName() + " Group commit thread stopped.");
+                } finally {
+                    // The next spooled write starts a new thread
+                    synchronized (FileMailStore.this) {
+                        if (committer == this) {
+                            committer = null;
+                        }
+                    }
+                }
+            }
+        };
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Write the spooled messages, then stop the group commit thread. A later
+     * spooled write starts it again.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (committer == null && writeQueue.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (committer != null) {
+                committer.interrupt();
+                committer = null;
+            }
+        }
+    }
+
+    /**
+     * Put a written message file into the store.
+     */
+    private MessageFile install(String mailid, MimeMessage msg, String path, File msgFile, long rawSize) throws MessagingException {
+        MessageFile messageFile = new MessageFile(mailid, path, msgFile.length(), rawSize);
+        for (String name : INDEXED_HEADERS) {
+            String value = msg.getHeader(name, null);
+            if (value != null) {
+                messageFile.headers.put(name, value);
+            }
+        }
+        MessageFile oldMessageFile = messageFileMap.put(mailid, messageFile);
+        messageCache.put(mailid, msg, LruMessageCache.estimateSize(messageFile.rawSize));
+        if (oldMessageFile != null && !oldMessageFile.path.equals(messageFile.path)) {
+            new File(rootDir, oldMessageFile.path).delete();
+        }
+        return messageFile;
+    }
+
+    /**
+     * @return The path of the message file relative to the root directory.
+     * The directory of the file is created if it does not exist.
+     */
+    private String getMessagePath(String mailid) {
+        String subDirName = String.valueOf((mailid.hashCode() & Integer.MAX_VALUE) % subDirCount);
         File dir = new File(rootDir, subDirName);
         if (!dir.exists()) {
             dir.mkdirs();
         }
-        filepath = new File(dir, mailid + ".msg").getAbsolutePath();
-        // Save informations
+        return subDirName + "/" + mailid + MESSAGE_FILE_SUFFIX;
+    }
+
+    private File getTempFile(PendingWrite pendingWrite) {
+        return new File(rootDir, getMessagePath(pendingWrite.mailid) + TEMP_FILE_SUFFIX);
+    }
+
+    private static void renameTempFile(File tempFile, File msgFile) throws IOException {
+        if (!tempFile.renameTo(msgFile)) {
+            // Some platforms do not replace existing files on rename
+            msgFile.delete();
+            if (!tempFile.renameTo(msgFile)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private SyncMode getSyncMode() {
+        String syncMode = configuration.getMailStoreSync();
+        try {
+            return SyncMode.valueOf(syncMode.trim().toUpperCase());
+        } catch (Exception e) {
+            log.warn(getClass().getSimpleName() + " Unknown sync mode '{}', NONE is used.", syncMode);
+            return SyncMode.NONE;
+        }
+    }
+
+    /**
+     * Write a message into a file, compressed if the level is not negative.
+     * The message is written from its serialized content, if it is given.
+     *
+     * @return The uncompressed size of the message.
+     */
+    private long writeMessageFile(File file, MimeMessage msg, byte[] content, int level) throws IOException, MessagingException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            if (level < 0) {
+                CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(fileOut));
+                writeContent(out, msg, content);
+                out.flush();
+                return out.count;
+            }
+            long cpuStart = getCpuTime();
+            byte[] header = new byte[COMPRESSED_HEADER_SIZE];
+            fileOut.write(header);
+            Deflater deflater = new Deflater(Math.min(level, Deflater.BEST_COMPRESSION));
+            CountingOutputStream out;
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(fileOut, deflater, 8192);
+                out = new CountingOutputStream(new BufferedOutputStream(deflaterOut));
+                writeContent(out, msg, content);
+                out.flush();
+                deflaterOut.finish();
+            } finally {
+                deflater.end();
+            }
+            // The header is written when the uncompressed size is known
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            headerBuffer.put(COMPRESSED_MAGIC).put(COMPRESSED_VERSION).put((byte) level).putLong(out.count);
+            headerBuffer.flip();
+            fileOut.getChannel().write(headerBuffer, 0);
+            compressedWriteCount.incrementAndGet();
+            compressedRawBytes.addAndGet(out.count);
+            compressedBytes.addAndGet(fileOut.getChannel().size());
+            compressionCpuNanos.addAndGet(getCpuTime() - cpuStart);
+            return out.count;
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private static void writeContent(OutputStream out, MimeMessage msg, byte[] content) throws IOException, MessagingException {
+        if (content != null) {
+            out.write(content);
+        } else {
+            msg.writeTo(out);
+        }
+    }
+
+    /**
+     * Open a message file for reading. Compressed files are decompressed
+     * while they are read.
+     */
+    private InputStream openMessageFile(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (readCompressedHeader(in) != -1) {
+                return new InflaterInputStream(in);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the compressed file header. If the stream is not compressed, it is
+     * reset to its start.
+     *
+     * @return The uncompressed size, or -1 if the stream is not compressed.
+     */
+    private static long readCompressedHeader(InputStream in) throws IOException {
+        in.mark(COMPRESSED_HEADER_SIZE);
+        byte[] header = new byte[COMPRESSED_HEADER_SIZE];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = in.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+        if (length == header.length && header[0] == COMPRESSED_MAGIC[0] && header[1] == COMPRESSED_MAGIC[1] && header[2] == COMPRESSED_MAGIC[2] && header[3] == COMPRESSED_MAGIC[3]) {
+            if (header[4] != COMPRESSED_VERSION) {
+                throw new IOException("Unknown compressed file version: " + header[4]);
+            }
+            return ByteBuffer.wrap(header, 6, 8).getLong();
+        }
+        in.reset();
+        return -1;
+    }
+
+    private static long getCpuTime() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            return threadBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Read only the headers of message files, in parallel.
+     */
+    private List<MessageFile> readMessageFiles(List<File> msgFiles) {
+        List<MessageFile> messageFiles = new ArrayList<MessageFile>();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int chunkSize = (msgFiles.size() + parallelism - 1) / parallelism;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
         try {
-            File msgFile = new File(filepath);
-            if (msgFile.exists()) {
-                msgFile.delete();
+            List<Future<List<MessageFile>>> futures = new ArrayList<Future<List<MessageFile>>>();
+            for (int from = 0; from < msgFiles.size(); from += chunkSize) {
+                final List<File> chunk = msgFiles.subList(from, Math.min(from + chunkSize, msgFiles.size()));
+                futures.add(executor.submit(new Callable<List<MessageFile>>() {
+                    @Override
+                    public List<MessageFile> call() {
+                        List<MessageFile> chunkFiles = new ArrayList<MessageFile>(chunk.size());
+                        for (File msgFile : chunk) {
+                            MessageFile messageFile = readMessageFile(msgFile);
+                            if (messageFile != null) {
+                                chunkFiles.add(messageFile);
+                            }
+                        }
+                        return chunkFiles;
+                    }
+                }));
             }
-            if (!msgFile.exists()) {
-                msgFile.createNewFile();
+            for (Future<List<MessageFile>> future : futures) {
+                messageFiles.addAll(future.get());
             }
-            msg.writeTo(new FileOutputStream(msgFile));
-            synchronized (messageMap) {
-                messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-                messagePathMap.put(mailid, filepath);
+        } catch (Exception e) {
+            log.error(getClass().getSimpleName() + " Message files could not be indexed.", e);
+        } finally {
+            executor.shutdown();
+        }
+        return messageFiles;
+    }
+
+    private MessageFile readMessageFile(File msgFile) {
+        try {
+            InternetHeaders headers;
+            long rawSize;
+            InputStream in = new BufferedInputStream(new FileInputStream(msgFile));
+            try {
+                rawSize = readCompressedHeader(in);
+                if (rawSize == -1) {
+                    rawSize = msgFile.length();
+                } else {
+                    in = new InflaterInputStream(in);
+                }
+                headers = new InternetHeaders(in);
+            } finally {
+                in.close();
             }
+            String mailid = headers.getHeader(Aspirin.HEADER_MAIL_ID, null);
+            if (mailid == null) {
+                String fileName = msgFile.getName();
+                mailid = fileName.substring(0, fileName.length() - MESSAGE_FILE_SUFFIX.length());
+            }
+            MessageFile messageFile = new MessageFile(mailid, msgFile.getParentFile().getName() + "/" + msgFile.getName(), msgFile.length(), rawSize);
+            for (String name : INDEXED_HEADERS) {
+                String value = headers.getHeader(name, null);
+                if (value != null) {
+                    messageFile.headers.put(name, value);
+                }
+            }
+            return messageFile;
         } catch (FileNotFoundException e) {
-            log.error(getClass().getSimpleName() + " No file representation found for name " + mailid, e);
+            log.error(getClass().getSimpleName() + " No file representation found with name " + msgFile.getAbsolutePath(), e);
         } catch (IOException e) {
-            log.error(getClass().getSimpleName() + " Could not write file for name " + mailid, e);
+            log.error(getClass().getSimpleName() + " Could not read file " + msgFile.getAbsolutePath(), e);
         } catch (MessagingException e) {
-            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+            log.error(getClass().getSimpleName() + " There is a messaging exception in file " + msgFile.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Replay the index file. Later lines override the earlier ones.
+     */
+    private Map<String, MessageFile> readIndex() {
+        Map<String, MessageFile> indexed = new LinkedHashMap<String, MessageFile>();
+        File indexFile = new File(rootDir, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return indexed;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 2 && "-".equals(fields[0])) {
+                        indexed.remove(fields[1]);
+                    } else if (4 <= fields.length && "+".equals(fields[0])) {
+                        long size = Long.parseLong(fields[3]);
+                        int headerStart = 4;
+                        long rawSize = size;
+                        if (4 < fields.length && fields[4].indexOf('=') < 0) {
+                            rawSize = Long.parseLong(fields[4]);
+                            headerStart = 5;
+                        }
+                        MessageFile messageFile = new MessageFile(fields[1], fields[2], size, rawSize);
+                        for (int i = headerStart; i < fields.length; i++) {
+                            int separator = fields[i].indexOf('=');
+                            if (0 < separator) {
+                                messageFile.headers.put(fields[i].substring(0, separator), fields[i].substring(separator + 1));
+                            }
+                        }
+                        indexed.put(messageFile.mailid, messageFile);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            // The unreadable part of the index is rebuilt from the message files
+            log.warn(getClass().getSimpleName() + " Index file could not be read completely: " + indexFile.getAbsolutePath(), e);
+        }
+        return indexed;
+    }
+
+    /**
+     * Rewrite the whole index from the current state, through a temporary
+     * file, so a crash could not leave a half written index.
+     */
+    private void writeIndex() {
+        synchronized (indexLock) {
+            closeIndexWriter();
+            File indexFile = new File(rootDir, INDEX_FILE_NAME);
+            File tempFile = new File(rootDir, INDEX_FILE_NAME + ".tmp");
+            try {
+                rootDir.mkdirs();
+                List<MessageFile> messageFiles = new ArrayList<MessageFile>(messageFileMap.values());
+                Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+                try {
+                    for (MessageFile messageFile : messageFiles) {
+                        writer.write(messageFile.toIndexLine());
+                        writer.write('\n');
+                    }
+                } finally {
+                    writer.close();
+                }
+                if (!tempFile.renameTo(indexFile)) {
+                    indexFile.delete();
+                    tempFile.renameTo(indexFile);
+                }
+                indexJournalSize = messageFiles.size();
+            } catch (IOException e) {
+                log.error(getClass().getSimpleName() + " Index file could not be written: " + indexFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Append lines to the index, and sync it if it is asked.
+     */
+    private void appendIndex(List<String> lines, boolean sync) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        synchronized (indexLock) {
+            try {
+                if (indexWriter == null) {
+                    indexOut = new FileOutputStream(new File(rootDir, INDEX_FILE_NAME), true);
+                    indexWriter = new OutputStreamWriter(indexOut, "UTF-8");
+                }
+                for (String line : lines) {
+                    indexWriter.write(line);
+                    indexWriter.write('\n');
+                }
+                indexWriter.flush();
+                if (sync) {
+                    indexOut.getFD().sync();
+                }
+                indexJournalSize += lines.size();
+            } catch (IOException e) {
+                // Missing lines are rebuilt from the message files on startup
+                log.error(getClass().getSimpleName() + " Index file could not be appended.", e);
+                closeIndexWriter();
+            }
+            // Compact the index, if it has much more lines than messages
+            if (1000 < indexJournalSize && messageFileMap.size() * 2 < indexJournalSize) {
+                writeIndex();
+            }
+        }
+    }
+
+    private void closeIndexWriter() {
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                log.warn(getClass().getSimpleName() + " Index file could not be closed.", e);
+            }
+            indexWriter = null;
+            indexOut = null;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    @Override
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * Replace the message cache, for example with a custom implementation.
+     * The new cache is empty, so the messages are loaded again on use.
+     *
+     * @param messageCache The new message cache.
+     */
+    public void setMessageCache(MessageCache messageCache) {
+        this.messageCache = messageCache;
+    }
+
+    @Override
+    public void configChanged(String parameterName) {
+        if (Configuration.PARAM_MAILSTORE_CACHE_SIZE.equals(parameterName) && messageCache instanceof LruMessageCache) {
+            ((LruMessageCache) messageCache).setMaxSize(configuration.getMailStoreCacheSize());
         }
     }
 
@@ -169,4 +1018,110 @@ public class FileMailStore implements MailStore {
     public int getSubDirCount() {
         return subDirCount;
     }
+
+    /**
+     * Parse a message file. The parsed message is kept in memory only if the
+     * message was not replaced or removed meanwhile.
+     */
+    private class MessageLoader implements Callable<MimeMessage> {
+
+        private final MessageFile messageFile;
+
+        MessageLoader(MessageFile messageFile) {
+            this.messageFile = messageFile;
+        }
+
+        @Override
+        public MimeMessage call() throws IOException, MessagingException {
+            MimeMessage msg;
+            long cpuStart = getCpuTime();
+            InputStream in = openMessageFile(new File(rootDir, messageFile.path));
+            try {
+                msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), in);
+            } finally {
+                in.close();
+            }
+            if (in instanceof InflaterInputStream) {
+                compressedLoadCount.incrementAndGet();
+                decompressionCpuNanos.addAndGet(getCpuTime() - cpuStart);
+            }
+            if (messageFileMap.get(messageFile.mailid) == messageFile) {
+                messageCache.put(messageFile.mailid, msg, LruMessageCache.estimateSize(messageFile.rawSize));
+            }
+            return msg;
+        }
+    }
+
+    /**
+     * Index entry of a stored message. The path is relative to the root
+     * directory. The size is the size of the file, the raw size is the size
+     * of the message, they differ if the file is compressed.
+     */
+    private static class MessageFile {
+
+        private final String mailid;
+        private final String path;
+        private final long size;
+        private final long rawSize;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        MessageFile(String mailid, String path, long size, long rawSize) {
+            this.mailid = mailid;
+            this.path = path;
+            this.size = size;
+            this.rawSize = rawSize;
+        }
+
+        String toIndexLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("+\t").append(escape(mailid)).append('\t').append(escape(path)).append('\t').append(size).append('\t').append(rawSize);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                sb.append('\t').append(header.getKey()).append('=').append(escape(header.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * A spooled message. A pending write without mail id marks a flush.
+     */
+    private static class PendingWrite {
+
+        private final String mailid;
+        private final MimeMessage msg;
+        private final byte[] content;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private long rawSize;
+        /**
+         * Cause of a failed write, it is set before the latch is released.
+         */
+        private volatile Exception failure;
+
+        PendingWrite(String mailid, MimeMessage msg, byte[] content) {
+            this.mailid = mailid;
+            this.msg = msg;
+            this.content = content;
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Message cache bounded by the estimated size of the messages. When the
+ * size is over the limit, the least recently used messages are evicted,
+ * except the pinned ones. Pinned messages could keep the cache over its
+ * limit.</p>
+ *
+ * <p>The entries are kept in access order, so an eviction starts with the
+ * least recently used entry and does not sort the cache. Operations lock the
+ * cache only for the map update.</p>
+ *
+ */
+public class LruMessageCache implements MessageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(LruMessageCache.class);
+    /**
+     * Parsed messages take more memory than their raw size, this factor is
+     * used by {@link #estimateSize(MimeMessage)}.
+     */
+    private static final int PARSED_SIZE_FACTOR = 2;
+    /**
+     * Entries in access order, it guards the size too.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+    private long size = 0;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private volatile long maxSize;
+
+    /**
+     * @param maxSize The maximal estimated size of cached messages in bytes.
+     */
+    public LruMessageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public MimeMessage get(String mailid) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(mailid);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.msg;
+    }
+
+    @Override
+    public void put(String mailid, MimeMessage msg, long msgSize) {
+        Entry entry = new Entry(mailid, msg, Math.max(0, msgSize));
+        synchronized (entries) {
+            Entry oldEntry = entries.put(mailid, entry);
+            size += entry.size - (oldEntry == null ? 0 : oldEntry.size);
+            if (maxSize < size) {
+                evict();
+            }
+        }
+    }
+
+    @Override
+    public void remove(String mailid) {
+        synchronized (entries) {
+            Entry entry = entries.remove(mailid);
+            if (entry != null) {
+                size -= entry.size;
+            }
+        }
+    }
+
+    @Override
+    public void pin(String mailid) {
+        synchronized (pins) {
+            Integer count = pins.get(mailid);
+            pins.put(mailid, count == null ? 1 : count + 1);
+        }
+    }
+
+    @Override
+    public void unpin(String mailid) {
+        synchronized (pins) {
+            Integer count = pins.get(mailid);
+            if (count == null || count <= 1) {
+                pins.remove(mailid);
+            } else {
+                pins.put(mailid, count - 1);
+            }
+        }
+    }
+
+    public boolean isPinned(String mailid) {
+        synchronized (pins) {
+            return pins.containsKey(mailid);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries, which are not pinned. Call it
+     * under the lock of the entries.
+     */
+    private void evict() {
+        Iterator<Entry> entryIt = entries.values().iterator();
+        while (maxSize < size && entryIt.hasNext()) {
+            Entry entry = entryIt.next();
+            if (!isPinned(entry.mailid)) {
+                entryIt.remove();
+                size -= entry.size;
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Estimate the memory used by a parsed message from its raw size.
+     *
+     * @param rawSize Size of the message source in bytes.
+     * @return The estimated size in bytes.
+     */
+    public static long estimateSize(long rawSize) {
+        return rawSize * PARSED_SIZE_FACTOR;
+    }
+
+    /**
+     * Estimate the memory used by a parsed message. If the message does not
+     * know its size, for example it was built and not parsed, it is
+     * serialized to count it.
+     *
+     * @param msg The message.
+     * @return The estimated size in bytes.
+     */
+    public static long estimateSize(MimeMessage msg) {
+        try {
+            int contentSize = msg.getSize();
+            if (0 < contentSize) {
+                return estimateSize((long) contentSize);
+            }
+        } catch (MessagingException e) {
+            // Unknown size, it is counted
+        }
+        long rawSize = MailStreams.countSize(msg);
+        if (rawSize < 0) {
+            log.warn(LruMessageCache.class.getSimpleName() + " Size of message could not be calculated.");
+            return 0;
+        }
+        return estimateSize(rawSize);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long all = hits + missCount.get();
+        return all == 0 ? 0 : (double) hits / all;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Set the size limit. A lower limit is applied on the next put.
+     *
+     * @param maxSize The maximal estimated size of cached messages in bytes.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static class Entry {
+
+        private final String mailid;
+        private final MimeMessage msg;
+        private final long size;
+
+        Entry(String mailid, MimeMessage msg, long size) {
+            this.mailid = mailid;
+            this.msg = msg;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Streaming access to the messages of any mail store. Stores, which are
+ * not {@link StreamingMailStore}, are served from the parsed message.
+ *
+ */
+final class MailStreams {
+
+    private MailStreams() {
+    }
+
+    static InputStream getInputStream(MailStore store, String mailid) throws IOException {
+        if (store instanceof StreamingMailStore) {
+            return ((StreamingMailStore) store).getInputStream(mailid);
+        }
+        MimeMessage msg = store.get(mailid);
+        return msg == null ? null : toInputStream(mailid, msg);
+    }
+
+    static MessageEnvelope getEnvelope(MailStore store, String mailid) throws IOException {
+        if (store instanceof StreamingMailStore) {
+            return ((StreamingMailStore) store).getEnvelope(mailid);
+        }
+        MimeMessage msg = store.get(mailid);
+        return msg == null ? null : toEnvelope(mailid, msg, countSize(msg));
+    }
+
+    static long getSize(MailStore store, String mailid) {
+        if (store instanceof StreamingMailStore) {
+            return ((StreamingMailStore) store).getSize(mailid);
+        }
+        MimeMessage msg = store.get(mailid);
+        return msg == null ? -1 : countSize(msg);
+    }
+
+    /**
+     * @return The serialized message.
+     */
+    static InputStream toInputStream(String mailid, MimeMessage msg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            msg.writeTo(out);
+        } catch (MessagingException e) {
+            throw new IOException("Message " + mailid + " could not be serialized.", e);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    static MessageEnvelope toEnvelope(String mailid, MimeMessage msg, long size) throws IOException {
+        try {
+            return MessageEnvelope.of(mailid, msg, size);
+        } catch (MessagingException e) {
+            throw new IOException("Headers of message " + mailid + " could not be read.", e);
+        }
+    }
+
+    /**
+     * Count the size of the serialized message without keeping it.
+     *
+     * @return The size in bytes, or -1 if the message could not be
+     * serialized.
+     */
+    static long countSize(MimeMessage msg) {
+        final long[] count = new long[1];
+        try {
+            msg.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    count[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    count[0] += len;
+                }
+            });
+        } catch (Exception e) {
+            return -1;
+        }
+        return count[0];
+    }
+}
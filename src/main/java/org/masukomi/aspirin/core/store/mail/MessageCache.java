@@ -0,0 +1,70 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * This cache keeps parsed MimeMessage objects in memory for mail stores,
+ * which keep the messages somewhere else, for example in files. The cache is
+ * bounded by the estimated size of the messages. Pinned messages are not
+ * evicted, the delivery manager pins a message while a delivery of it is in
+ * progress.
+ *
+ * <p>Implementations have to be thread safe.</p>
+ *
+ */
+public interface MessageCache {
+
+    /**
+     * @param mailid Unique mail id.
+     * @return The cached message, or null if it is not cached.
+     */
+    public MimeMessage get(String mailid);
+
+    /**
+     * @param mailid Unique mail id.
+     * @param msg The message.
+     * @param size The estimated size of the message in bytes.
+     */
+    public void put(String mailid, MimeMessage msg, long size);
+
+    public void remove(String mailid);
+
+    /**
+     * Protect a message from eviction. It could be called before the message
+     * is cached. Every pin needs an unpin.
+     * @param mailid Unique mail id.
+     */
+    public void pin(String mailid);
+
+    public void unpin(String mailid);
+
+    /**
+     * @return Count of get() calls which found the message.
+     */
+    public long getHitCount();
+
+    /**
+     * @return Count of get() calls which did not find the message.
+     */
+    public long getMissCount();
+
+    /**
+     * @return Hits divided by all get() calls, 0 if there was no call.
+     */
+    public double getHitRatio();
+
+    /**
+     * @return Count of messages evicted to keep the size limit.
+     */
+    public long getEvictionCount();
+
+    /**
+     * @return The estimated size of the cached messages in bytes.
+     */
+    public long getSize();
+
+    /**
+     * @return Count of cached messages.
+     */
+    public int getCount();
+}
@@ -0,0 +1,141 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>Header view of a stored message. It has the headers of the message, and
+ * the sender and recipient addresses parsed from them, but not the body.</p>
+ *
+ */
+public class MessageEnvelope {
+
+    private static final String[] RECIPIENT_HEADERS = new String[]{"To", "Cc", "Bcc"};
+    private final String mailid;
+    private final InternetHeaders headers;
+    private final long size;
+    private InternetAddress sender;
+    private final List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+
+    /**
+     * @param mailid Unique mail id.
+     * @param headers Headers of the message.
+     * @param size Size of the message source in bytes, -1 if it is unknown.
+     */
+    public MessageEnvelope(String mailid, InternetHeaders headers, long size) {
+        this.mailid = mailid;
+        this.headers = headers;
+        this.size = size;
+        sender = parseFirst(headers.getHeader("Sender", ","));
+        if (sender == null) {
+            sender = parseFirst(headers.getHeader("From", ","));
+        }
+        for (String name : RECIPIENT_HEADERS) {
+            String value = headers.getHeader(name, ",");
+            if (value != null) {
+                try {
+                    Collections.addAll(recipients, InternetAddress.parseHeader(value, false));
+                } catch (AddressException e) {
+                    // Invalid recipient headers are skipped, like by JavaMail
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an envelope from the headers of a parsed message.
+     *
+     * @param mailid Unique mail id.
+     * @param msg The message.
+     * @param size Size of the message source in bytes, -1 if it is unknown.
+     * @return The envelope of the message.
+     * @throws MessagingException If the headers could not be read.
+     */
+    public static MessageEnvelope of(String mailid, MimeMessage msg, long size) throws MessagingException {
+        InternetHeaders headers = new InternetHeaders();
+        Enumeration<?> headerLines = msg.getAllHeaderLines();
+        while (headerLines.hasMoreElements()) {
+            headers.addHeaderLine((String) headerLines.nextElement());
+        }
+        return new MessageEnvelope(mailid, headers, size);
+    }
+
+    /**
+     * Create an envelope from the header part of a message source. The
+     * stream is read only until the end of the headers, and it is not
+     * closed.
+     *
+     * @param mailid Unique mail id.
+     * @param in The message source.
+     * @param size Size of the message source in bytes, -1 if it is unknown.
+     * @return The envelope of the message.
+     * @throws IOException If the headers could not be read.
+     */
+    public static MessageEnvelope read(String mailid, InputStream in, long size) throws IOException {
+        try {
+            return new MessageEnvelope(mailid, new InternetHeaders(in), size);
+        } catch (MessagingException e) {
+            throw new IOException("Headers of message " + mailid + " could not be parsed.", e);
+        }
+    }
+
+    private static InternetAddress parseFirst(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            InternetAddress[] addresses = InternetAddress.parseHeader(value, false);
+            return 0 < addresses.length ? addresses[0] : null;
+        } catch (AddressException e) {
+            return null;
+        }
+    }
+
+    public String getMailid() {
+        return mailid;
+    }
+
+    public InternetHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name Name of the header.
+     * @return The first value of the header, or null if it is not set.
+     */
+    public String getHeader(String name) {
+        return headers.getHeader(name, null);
+    }
+
+    /**
+     * @return The Sender, or if it is not set, the first From address. Null
+     * if neither is set.
+     */
+    public InternetAddress getSender() {
+        return sender;
+    }
+
+    /**
+     * @return The To, Cc and Bcc addresses.
+     */
+    public List<InternetAddress> getRecipients() {
+        return Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * @return Size of the message source in bytes, -1 if it is unknown.
+     */
+    public long getSize() {
+        return size;
+    }
+}
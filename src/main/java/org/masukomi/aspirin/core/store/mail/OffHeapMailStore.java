@@ -0,0 +1,450 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This store keeps the serialized messages in direct memory, outside of
+ * the Java heap, so a large queue does not load the garbage collector. The
+ * messages are parsed again on every {@link #get(String)}, or they could be
+ * streamed by {@link #getInputStream(String)}.</p>
+ *
+ * <p>Direct memory is allocated in slabs, which are split into fixed size
+ * pages. A message is stored in as many pages as it needs, and the pages of
+ * removed messages are reused. Allocated memory is never more than
+ * {@link #getCapacity()}. If a message does not fit, it is stored in the
+ * spill mail store, if there is one, otherwise the store throws an
+ * exception.</p>
+ *
+ * <p>The store is thread safe. Messages are reference counted, so the pages
+ * of a removed or replaced message are reused only when its readers are
+ * done.</p>
+ *
+ */
+public class OffHeapMailStore implements StreamingMailStore {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapMailStore.class);
+    private static final int PAGES_PER_SLAB = 256;
+    private long capacity = 64L * 1024 * 1024;
+    private int pageSize = 4096;
+    private MailStore spillMailStore = null;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * Free pages, guarded by itself.
+     */
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<ByteBuffer>();
+    private long allocatedBytes = 0;
+    private final AtomicLong usedPages = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong spillCount = new AtomicLong();
+
+    @Override
+    public MimeMessage get(String mailid) {
+        InputStream in = openEntry(mailid);
+        if (in == null) {
+            return spillMailStore == null ? null : spillMailStore.get(mailid);
+        }
+        try {
+            try {
+                return new MimeMessage(Session.getDefaultInstance(System.getProperties()), in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not read message for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+        return null;
+    }
+
+    /**
+     * Stream the serialized message from direct memory. The pages of the
+     * message are not reused until the stream is closed. Spilled messages are
+     * streamed from the spill mail store.
+     *
+     * @param mailid Unique mail id.
+     * @return The RFC 822 source of the message, or null if there is no such
+     * message. The caller has to close it.
+     * @throws IOException If a spilled message could not be read.
+     */
+    @Override
+    public InputStream getInputStream(String mailid) throws IOException {
+        InputStream in = openEntry(mailid);
+        if (in == null && spillMailStore != null) {
+            return MailStreams.getInputStream(spillMailStore, mailid);
+        }
+        return in;
+    }
+
+    @Override
+    public MessageEnvelope getEnvelope(String mailid) throws IOException {
+        InputStream in = openEntry(mailid);
+        if (in == null) {
+            return spillMailStore == null ? null : MailStreams.getEnvelope(spillMailStore, mailid);
+        }
+        try {
+            return MessageEnvelope.read(mailid, in, in.available());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public long getSize(String mailid) {
+        Entry entry = entries.get(mailid);
+        if (entry != null) {
+            return entry.length;
+        }
+        return spillMailStore == null ? -1 : MailStreams.getSize(spillMailStore, mailid);
+    }
+
+    /**
+     * @return Stream of the message in direct memory, or null if it is not in
+     * direct memory.
+     */
+    private InputStream openEntry(String mailid) {
+        while (true) {
+            Entry entry = entries.get(mailid);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.acquire()) {
+                return new EntryInputStream(entry);
+            }
+            // Removed or replaced meanwhile, look up again
+        }
+    }
+
+    @Override
+    public List<String> getMailIds() {
+        List<String> mailids = new ArrayList<String>(entries.keySet());
+        if (spillMailStore != null) {
+            for (String mailid : spillMailStore.getMailIds()) {
+                if (!entries.containsKey(mailid)) {
+                    mailids.add(mailid);
+                }
+            }
+        }
+        return mailids;
+    }
+
+    @Override
+    public void init() {
+        if (spillMailStore != null) {
+            spillMailStore.init();
+        }
+    }
+
+    @Override
+    public void remove(String mailid) {
+        Entry entry = entries.remove(mailid);
+        if (entry != null) {
+            entry.release();
+        }
+        if (spillMailStore != null) {
+            spillMailStore.remove(mailid);
+        }
+    }
+
+    @Override
+    public void set(String mailid, MimeMessage msg) {
+        PageOutputStream out = new PageOutputStream();
+        try {
+            msg.writeTo(out);
+            Entry entry = new Entry(out.pages.toArray(new ByteBuffer[out.pages.size()]), out.length);
+            storedBytes.addAndGet(entry.length);
+            Entry oldEntry = entries.put(mailid, entry);
+            if (oldEntry != null) {
+                oldEntry.release();
+            }
+            if (spillMailStore != null) {
+                spillMailStore.remove(mailid);
+            }
+            return;
+        } catch (CapacityExceededException e) {
+            freePages(out.pages);
+            if (spillMailStore == null) {
+                throw new IllegalStateException(getClass().getSimpleName() + " Capacity of " + capacity + " bytes is exceeded, mail '" + mailid + "' is not stored.");
+            }
+        } catch (IOException e) {
+            freePages(out.pages);
+            log.error(getClass().getSimpleName() + " Could not write message for name " + mailid, e);
+            return;
+        } catch (MessagingException e) {
+            freePages(out.pages);
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+            return;
+        }
+        remove(mailid);
+        spillMailStore.set(mailid, msg);
+        spillCount.incrementAndGet();
+    }
+
+    /**
+     * Take a free page, or allocate a new slab if the capacity allows it.
+     *
+     * @return A cleared page, or null if the capacity is exhausted.
+     */
+    private ByteBuffer allocatePage() {
+        synchronized (freePages) {
+            ByteBuffer page = freePages.poll();
+            if (page == null) {
+                long slabSize = (long) pageSize * PAGES_PER_SLAB;
+                int pages = PAGES_PER_SLAB;
+                if (capacity < allocatedBytes + slabSize) {
+                    // The last slab is smaller
+                    pages = (int) ((capacity - allocatedBytes) / pageSize);
+                    if (pages <= 0) {
+                        return null;
+                    }
+                }
+                ByteBuffer slab = ByteBuffer.allocateDirect(pages * pageSize);
+                allocatedBytes += slab.capacity();
+                for (int i = 0; i < pages; i++) {
+                    slab.limit((i + 1) * pageSize).position(i * pageSize);
+                    freePages.add(slab.slice());
+                }
+                page = freePages.poll();
+            }
+            usedPages.incrementAndGet();
+            page.clear();
+            return page;
+        }
+    }
+
+    private void freePages(List<ByteBuffer> pages) {
+        synchronized (freePages) {
+            for (ByteBuffer page : pages) {
+                freePages.push(page);
+            }
+        }
+        usedPages.addAndGet(-pages.size());
+    }
+
+    /**
+     * @return The maximal size of the allocated direct memory in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximal size of the allocated direct memory. Allocated memory
+     * is not released, if the capacity is decreased.
+     *
+     * @param capacity The capacity in bytes.
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Set the size of the pages. It has to be set before the first message is
+     * stored.
+     *
+     * @param pageSize The page size in bytes.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public MailStore getSpillMailStore() {
+        return spillMailStore;
+    }
+
+    /**
+     * @param spillMailStore The store of messages, which do not fit into the
+     * capacity. If it is null, these messages are rejected.
+     */
+    public void setSpillMailStore(MailStore spillMailStore) {
+        this.spillMailStore = spillMailStore;
+    }
+
+    /**
+     * @return Size of the allocated direct memory in bytes.
+     */
+    public long getAllocatedBytes() {
+        synchronized (freePages) {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * @return Size of the pages holding messages in bytes.
+     */
+    public long getUsedBytes() {
+        return usedPages.get() * pageSize;
+    }
+
+    /**
+     * @return Sum of the sizes of the messages in direct memory in bytes.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return Count of messages stored in the spill mail store since
+     * startup.
+     */
+    public long getSpillCount() {
+        return spillCount.get();
+    }
+
+    /**
+     * A stored message. The map holds one reference, and every open stream
+     * holds one. The pages are freed when the last reference is released.
+     */
+    private class Entry {
+
+        private final ByteBuffer[] pages;
+        private final int length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Entry(ByteBuffer[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                storedBytes.addAndGet(-length);
+                List<ByteBuffer> pageList = new ArrayList<ByteBuffer>(pages.length);
+                for (ByteBuffer page : pages) {
+                    pageList.add(page);
+                }
+                freePages(pageList);
+            }
+        }
+    }
+
+    private class EntryInputStream extends InputStream {
+
+        private final Entry entry;
+        private int position = 0;
+        private boolean closed = false;
+
+        EntryInputStream(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            if (entry.length <= position) {
+                return -1;
+            }
+            int value = entry.pages[position / pageSize].get(position % pageSize) & 0xFF;
+            position++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            if (entry.length <= position) {
+                return -1;
+            }
+            int count = 0;
+            while (count < len && position < entry.length) {
+                ByteBuffer page = entry.pages[position / pageSize].duplicate();
+                int offset = position % pageSize;
+                int chunk = Math.min(Math.min(len - count, pageSize - offset), entry.length - position);
+                page.position(offset);
+                page.get(b, off + count, chunk);
+                count += chunk;
+                position += chunk;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : entry.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * Write into pages, allocated on demand.
+     */
+    private class PageOutputStream extends OutputStream {
+
+        private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+        private ByteBuffer page = null;
+        private int length = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (0 < len) {
+                if (page == null || !page.hasRemaining()) {
+                    page = allocatePage();
+                    if (page == null) {
+                        throw new CapacityExceededException();
+                    }
+                    pages.add(page);
+                }
+                int chunk = Math.min(len, page.remaining());
+                page.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+                length += chunk;
+            }
+        }
+    }
+
+    private static class CapacityExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
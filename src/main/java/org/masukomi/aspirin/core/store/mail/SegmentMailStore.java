@@ -0,0 +1,736 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This store appends messages to large segment files, instead of writing
+ * one file per message. A removal appends a small tombstone record. The
+ * location of every stored message is kept in an in-memory index, which is
+ * rebuilt by scanning the segments on {@link #init()}. So the cost of a write
+ * does not depend on the count of stored messages, and the directory holds
+ * only a few files.</p>
+ *
+ * <p>When the active segment reaches {@link #getMaxSegmentSize()}, it is
+ * sealed and a new segment is started. Sealed segments with less live data
+ * than {@link #getCompactionRatio()} are compacted in the background: their
+ * live records are copied to the active segment, and the segment file is
+ * deleted.</p>
+ *
+ * <p>Every record has a sequence number, and it keeps it when it is copied by
+ * the compaction. On startup the record with the highest sequence number wins
+ * for a mail id, so a removed message is not resurrected by an older copy.
+ * Reads are positional reads of the segment file, so they do not block
+ * writers and each other. Records are checked with CRC32, a torn record at the
+ * end of the last segment is truncated on startup.</p>
+ *
+ * <p>Segment files are <code>NNNNNNNNNNNN.seg</code> under the root
+ * directory.</p>
+ *
+ */
+public class SegmentMailStore implements CachingMailStore, StreamingMailStore, ConfigurationChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentMailStore.class);
+    private static final int RECORD_MAGIC = 0x41534731; // ASG1
+    private static final byte RECORD_PUT = 0;
+    private static final byte RECORD_TOMBSTONE = 1;
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private final Configuration configuration;
+    private File rootDir;
+    private long maxSegmentSize = 64L * 1024 * 1024;
+    private double compactionRatio = 0.5;
+    private long compactionInterval = 60000;
+    private volatile MessageCache messageCache;
+    /**
+     * Location of stored messages by mail id. It is changed under the write
+     * lock, so it is in the order of the sequence numbers.
+     */
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final Object writeLock = new Object();
+    private final Object compactionLock = new Object();
+    private Segment activeSegment;
+    private long nextSequence = 1;
+    private ScheduledExecutorService compactor;
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong readRetryCount = new AtomicLong();
+
+    public SegmentMailStore(Configuration configuration) {
+        this.configuration = configuration;
+        messageCache = new LruMessageCache(configuration.getMailStoreCacheSize());
+        configuration.addListener(this);
+    }
+
+    @Override
+    public MimeMessage get(String mailid) {
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg != null) {
+            return msg;
+        }
+        try {
+            Location location = index.get(mailid);
+            byte[] content = readContent(mailid);
+            if (content == null) {
+                return null;
+            }
+            msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new SharedByteArrayInputStream(content));
+            if (index.get(mailid) == location) {
+                messageCache.put(mailid, msg, LruMessageCache.estimateSize(content.length));
+            }
+            return msg;
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not read segment for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+        return null;
+    }
+
+    /**
+     * Read the source of a stored message without parsing it.
+     *
+     * @param mailid Unique mail id.
+     * @return The RFC 822 source of the message, or null if there is no such
+     * message. The caller has to close it.
+     * @throws IOException If the segment could not be read.
+     */
+    @Override
+    public InputStream getInputStream(String mailid) throws IOException {
+        byte[] content = readContent(mailid);
+        return content == null ? null : new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public MessageEnvelope getEnvelope(String mailid) throws IOException {
+        byte[] content = readContent(mailid);
+        return content == null ? null : MessageEnvelope.read(mailid, new ByteArrayInputStream(content), content.length);
+    }
+
+    @Override
+    public long getSize(String mailid) {
+        Location location = index.get(mailid);
+        return location == null ? -1 : location.length;
+    }
+
+    /**
+     * Read the content of a message. If its segment is compacted meanwhile,
+     * it is read again from the new location.
+     *
+     * @return The content, or null if there is no such message.
+     */
+    private byte[] readContent(String mailid) throws IOException {
+        Location location = index.get(mailid);
+        while (location != null) {
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                // The segment was compacted meanwhile, the index has the new location
+                Location newLocation = index.get(mailid);
+                if (newLocation == location) {
+                    throw new IOException("Segment is closed for name " + mailid, e);
+                }
+                readRetryCount.incrementAndGet();
+                location = newLocation;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> getMailIds() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    @Override
+    public void init() {
+        if (rootDir == null) {
+            return;
+        }
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+        File[] segmentFiles = rootDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        Map<String, Long> sequences = new HashMap<String, Long>();
+        Map<String, Location> locations = new HashMap<String, Location>();
+        long maxSequence = 0;
+        synchronized (writeLock) {
+            try {
+                if (segmentFiles != null) {
+                    for (File segmentFile : segmentFiles) {
+                        String name = segmentFile.getName();
+                        try {
+                            long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+                            segments.put(id, new Segment(id, segmentFile));
+                        } catch (NumberFormatException e) {
+                            log.warn(getClass().getSimpleName() + " Unknown file in segment directory: " + segmentFile.getAbsolutePath());
+                        }
+                    }
+                }
+                for (Segment segment : segments.values()) {
+                    long validSize = scan(segment, sequences, locations, segment == segments.lastEntry().getValue());
+                    if (validSize < segment.file.length() && segment == segments.lastEntry().getValue()) {
+                        log.warn(getClass().getSimpleName() + " Truncating torn records of segment " + segment.file.getAbsolutePath() + " at " + validSize);
+                        segment.getChannel().truncate(validSize);
+                    }
+                    segment.size.set(validSize);
+                }
+                for (Long sequence : sequences.values()) {
+                    maxSequence = Math.max(maxSequence, sequence);
+                }
+                for (Location location : locations.values()) {
+                    location.segment.liveBytes.addAndGet(location.recordSize);
+                }
+                index.putAll(locations);
+                nextSequence = maxSequence + 1;
+                activeSegment = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+            } catch (IOException e) {
+                log.error(getClass().getSimpleName() + " Could not open segments in " + rootDir.getAbsolutePath(), e);
+            }
+        }
+        if (0 < compactionInterval && compactor == null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Aspirin-SegmentCompactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (RuntimeException e) {
+                        log.error(getClass().getSimpleName() + " Compaction failed.", e);
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Read the records of a segment into the index being built. The record
+     * with the highest sequence number wins for a mail id, tombstones too.
+     *
+     * @return The size of the valid records at the start of the segment.
+     */
+    private long scan(Segment segment, Map<String, Long> sequences, Map<String, Location> locations, boolean last) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        long position = 0;
+        try {
+            while (true) {
+                Record record;
+                try {
+                    record = readRecord(in, segment.file.length() - position);
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!last) {
+                        log.error(getClass().getSimpleName() + " Invalid record in segment " + segment.file.getAbsolutePath() + " at " + position, e);
+                    }
+                    break;
+                }
+                if (record.type == RECORD_PUT) {
+                    segment.putMailids.add(record.mailid);
+                }
+                Long sequence = sequences.get(record.mailid);
+                if (sequence == null || sequence < record.sequence) {
+                    sequences.put(record.mailid, record.sequence);
+                    if (record.type == RECORD_PUT) {
+                        locations.put(record.mailid, new Location(segment, position + record.headerSize, record.length, record.headerSize + record.length));
+                    } else {
+                        locations.remove(record.mailid);
+                    }
+                }
+                position += record.headerSize + record.length;
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    @Override
+    public void remove(String mailid) {
+        messageCache.remove(mailid);
+        synchronized (writeLock) {
+            Location location = index.get(mailid);
+            if (location == null) {
+                return;
+            }
+            try {
+                append(RECORD_TOMBSTONE, nextSequence++, mailid, new byte[0]);
+                index.remove(mailid);
+                location.segment.liveBytes.addAndGet(-location.recordSize);
+            } catch (IOException e) {
+                log.error(getClass().getSimpleName() + " Could not write tombstone for name " + mailid, e);
+            }
+        }
+    }
+
+    @Override
+    public void set(String mailid, MimeMessage msg) {
+        if (rootDir == null) {
+            throw new RuntimeException(getClass().getSimpleName() + " Please set up root directory.");
+        }
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            msg.writeTo(content);
+            byte[] bytes = content.toByteArray();
+            synchronized (writeLock) {
+                Location location = append(RECORD_PUT, nextSequence++, mailid, bytes);
+                Location oldLocation = index.put(mailid, location);
+                if (oldLocation != null) {
+                    oldLocation.segment.liveBytes.addAndGet(-oldLocation.recordSize);
+                }
+            }
+            messageCache.put(mailid, msg, LruMessageCache.estimateSize(bytes.length));
+        } catch (IOException e) {
+            log.error(getClass().getSimpleName() + " Could not write segment for name " + mailid, e);
+        } catch (MessagingException e) {
+            log.error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+        }
+    }
+
+    /**
+     * Compact every sealed segment, which has less live data than the
+     * compaction ratio. It is called periodically by the background
+     * compactor.
+     *
+     * @return Count of compacted segments.
+     */
+    public int compact() {
+        synchronized (compactionLock) {
+            int count = 0;
+            for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                if (segment == getActiveSegment() || segment.closed) {
+                    continue;
+                }
+                long size = segment.size.get();
+                if (size == 0 || compactionRatio <= (double) segment.liveBytes.get() / size) {
+                    continue;
+                }
+                try {
+                    compact(segment);
+                    count++;
+                } catch (IOException e) {
+                    log.error(getClass().getSimpleName() + " Could not compact segment " + segment.file.getAbsolutePath(), e);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Copy the live records of a sealed segment to the active segment, then
+     * delete it. A tombstone is copied too while an older segment holds a
+     * record of the removed message, which would be resurrected without it.
+     */
+    private void compact(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            long position = 0;
+            long end = segment.size.get();
+            while (position < end) {
+                Record record = readRecord(in, end - position);
+                long dataOffset = position + record.headerSize;
+                synchronized (writeLock) {
+                    if (record.type == RECORD_PUT) {
+                        Location location = index.get(record.mailid);
+                        if (location != null && location.segment == segment && location.offset == dataOffset) {
+                            Location newLocation = append(RECORD_PUT, record.sequence, record.mailid, record.data);
+                            index.put(record.mailid, newLocation);
+                            segment.liveBytes.addAndGet(-location.recordSize);
+                        }
+                    } else if (isPutInOlderSegment(segment, record.mailid)) {
+                        append(RECORD_TOMBSTONE, record.sequence, record.mailid, record.data);
+                    }
+                }
+                position += record.headerSize + record.length;
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (writeLock) {
+            // Copies must be on disk before the originals are deleted
+            activeSegment.getChannel().force(false);
+            segments.remove(segment.id);
+            segment.close();
+        }
+        if (!segment.file.delete()) {
+            log.warn(getClass().getSimpleName() + " Could not delete segment " + segment.file.getAbsolutePath());
+        }
+        compactionCount.incrementAndGet();
+        reclaimedBytes.addAndGet(segment.size.get());
+    }
+
+    /**
+     * Check whether a segment older than the given one holds a put record of
+     * a mail id, live or not. It is called under the write lock.
+     */
+    private boolean isPutInOlderSegment(Segment segment, String mailid) {
+        for (Segment older : segments.headMap(segment.id).values()) {
+            if (older.putMailids.contains(mailid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append a record to the active segment. It is called under the write
+     * lock.
+     */
+    private Location append(byte type, long sequence, String mailid, byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(RECORD_MAGIC);
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeUTF(mailid);
+        out.writeInt(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        out.writeInt((int) crc.getValue());
+        int headerSize = buffer.size();
+        out.write(data);
+        out.flush();
+
+        Segment segment = activeSegment;
+        if (0 < segment.size.get() && maxSegmentSize < segment.size.get() + buffer.size()) {
+            segment.getChannel().force(false);
+            segment = createSegment(segment.id + 1);
+            activeSegment = segment;
+        }
+        long position = segment.size.get();
+        ByteBuffer record = ByteBuffer.wrap(buffer.toByteArray());
+        while (record.hasRemaining()) {
+            segment.getChannel().write(record, position + record.position());
+        }
+        segment.size.addAndGet(buffer.size());
+        if (type == RECORD_PUT) {
+            segment.liveBytes.addAndGet(buffer.size());
+            segment.putMailids.add(mailid);
+        }
+        return new Location(segment, position + headerSize, data.length, buffer.size());
+    }
+
+    /**
+     * Read the next record of a segment.
+     *
+     * @param remaining Count of bytes to the end of the segment.
+     * @throws EOFException If the segment ends before a record.
+     * @throws IOException If the record is invalid or torn.
+     */
+    private Record readRecord(DataInputStream in, long remaining) throws IOException {
+        int magic = in.readInt();
+        if (magic != RECORD_MAGIC) {
+            throw new IOException("Invalid record magic: " + Integer.toHexString(magic));
+        }
+        Record record = new Record();
+        record.type = in.readByte();
+        record.sequence = in.readLong();
+        record.mailid = in.readUTF();
+        record.length = in.readInt();
+        int checksum = in.readInt();
+        record.headerSize = 4 + 1 + 8 + 2 + utfLength(record.mailid) + 4 + 4;
+        if (record.length < 0 || remaining < record.headerSize + (long) record.length) {
+            throw new IOException("Invalid record length: " + record.length);
+        }
+        record.data = new byte[record.length];
+        try {
+            in.readFully(record.data);
+        } catch (EOFException e) {
+            // Torn record, it is not an end of file
+            throw new IOException("Truncated record of " + record.mailid);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.data);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Invalid checksum of record " + record.mailid);
+        }
+        return record;
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (0x0001 <= c && c <= 0x007F) {
+                length++;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private byte[] read(Location location) throws IOException {
+        byte[] content = new byte[location.length];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            if (location.segment.getChannel().read(buffer, location.offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of segment " + location.segment.file.getAbsolutePath());
+            }
+        }
+        return content;
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(rootDir, String.format("%012d", id) + SEGMENT_FILE_SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment getActiveSegment() {
+        synchronized (writeLock) {
+            return activeSegment;
+        }
+    }
+
+    /**
+     * Stop the background compactor and close the segment files.
+     */
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+        synchronized (compactionLock) {
+            synchronized (writeLock) {
+                for (Segment segment : segments.values()) {
+                    try {
+                        segment.getChannel().force(false);
+                        segment.close();
+                    } catch (IOException e) {
+                        log.error(getClass().getSimpleName() + " Could not close segment " + segment.file.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Count of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return Size of the segment files in bytes.
+     */
+    public long getStoredSize() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size.get();
+        }
+        return size;
+    }
+
+    /**
+     * @return Size of the records of stored messages in bytes.
+     */
+    public long getLiveSize() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.liveBytes.get();
+        }
+        return size;
+    }
+
+    /**
+     * @return Count of compacted segments since startup.
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * @return Size of the deleted segment files since startup in bytes.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * @return Count of reads, which had to be repeated because the segment
+     * was compacted meanwhile.
+     */
+    public long getReadRetryCount() {
+        return readRetryCount.get();
+    }
+
+    @Override
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    public void setMessageCache(MessageCache messageCache) {
+        this.messageCache = messageCache;
+    }
+
+    @Override
+    public void configChanged(String parameterName) {
+        if (Configuration.PARAM_MAILSTORE_CACHE_SIZE.equals(parameterName) && messageCache instanceof LruMessageCache) {
+            ((LruMessageCache) messageCache).setMaxSize(configuration.getMailStoreCacheSize());
+        }
+    }
+
+    public void setRootDir(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * @return Size of a segment in bytes, when a new segment is started.
+     */
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * @return A sealed segment is compacted, if its live data divided by its
+     * size is under this ratio.
+     */
+    public double getCompactionRatio() {
+        return compactionRatio;
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * @return Delay between background compactions in milliseconds. If it is
+     * not positive, there is no background compaction. It is used by
+     * {@link #init()}.
+     */
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    private static class Segment {
+
+        private final long id;
+        private final File file;
+        private FileChannel channel;
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong liveBytes = new AtomicLong();
+        /**
+         * Mail ids of the put records in the segment, live or not. It is
+         * changed under the write lock.
+         */
+        private final Set<String> putMailids = new HashSet<String>();
+        private volatile boolean closed = false;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /**
+         * A channel is closed if a thread is interrupted while it uses it, so
+         * it is reopened, unless the segment is closed.
+         */
+        synchronized FileChannel getChannel() throws IOException {
+            if (!closed && !channel.isOpen()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Location of a message content in a segment. The record size contains
+     * the record header too.
+     */
+    private static class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        Location(Segment segment, long offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private static class Record {
+
+        private byte type;
+        private long sequence;
+        private String mailid;
+        private int length;
+        private int headerSize;
+        private byte[] data;
+    }
+}
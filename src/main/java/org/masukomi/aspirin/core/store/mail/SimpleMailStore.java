@@ -1,8 +1,10 @@
 package org.masukomi.aspirin.core.store.mail;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.mail.internet.MimeMessage;
 
@@ -14,17 +16,46 @@ import javax.mail.internet.MimeMessage;
  * if you has a lot of objects in memory it could cause 
  * OutOfMemoryError.
  * 
+ * The messages are stored as objects, so the streaming methods serialize
+ * them, but the envelope is read from the headers of the object. The size
+ * of a message is counted once, when it is first needed.
+ * 
  * @author Laszlo Solova
  *
  */
-public class SimpleMailStore implements MailStore {
+public class SimpleMailStore implements StreamingMailStore {
 	
-	private HashMap<String, MimeMessage> messageMap = new HashMap<String, MimeMessage>();
+	private ConcurrentHashMap<String, StoredMessage> messageMap = new ConcurrentHashMap<String, StoredMessage>();
 	
 
 	@Override
 	public MimeMessage get(String mailid) {
-		return messageMap.get(mailid);
+		StoredMessage stored = messageMap.get(mailid);
+		return stored == null ? null : stored.msg;
+	}
+	
+	@Override
+	public InputStream getInputStream(String mailid) throws IOException {
+		StoredMessage stored = messageMap.get(mailid);
+		if (stored == null) {
+			return null;
+		}
+		return MailStreams.toInputStream(mailid, stored.msg);
+	}
+	
+	@Override
+	public MessageEnvelope getEnvelope(String mailid) throws IOException {
+		StoredMessage stored = messageMap.get(mailid);
+		if (stored == null) {
+			return null;
+		}
+		return MailStreams.toEnvelope(mailid, stored.msg, stored.getSize());
+	}
+	
+	@Override
+	public long getSize(String mailid) {
+		StoredMessage stored = messageMap.get(mailid);
+		return stored == null ? -1 : stored.getSize();
 	}
 	
 	@Override
@@ -44,7 +75,27 @@ public class SimpleMailStore implements MailStore {
 
 	@Override
 	public void set(String mailid, MimeMessage msg) {
-		messageMap.put(mailid, msg);
+		messageMap.put(mailid, new StoredMessage(msg));
+	}
+	
+	/**
+	 * A stored message with its size, which is counted on first use.
+	 */
+	private static class StoredMessage {
+		
+		private final MimeMessage msg;
+		private volatile long size = -1;
+		
+		StoredMessage(MimeMessage msg) {
+			this.msg = msg;
+		}
+		
+		long getSize() {
+			if (size < 0) {
+				size = MailStreams.countSize(msg);
+			}
+			return size;
+		}
 	}
 
 }
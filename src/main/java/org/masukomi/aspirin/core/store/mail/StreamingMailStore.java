@@ -0,0 +1,38 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A mail store, which gives access to the stored messages without building
+ * a MimeMessage: the raw source could be streamed, and the headers, the
+ * envelope addresses and the size could be read without parsing the body.
+ * A {@link java.nio.channels.ReadableByteChannel} could be made from the
+ * stream by {@link java.nio.channels.Channels#newChannel(InputStream)}.
+ *
+ */
+public interface StreamingMailStore extends MailStore {
+
+    /**
+     * @param mailid Unique mail id.
+     * @return The RFC 822 source of the message, or null if there is no such
+     * message. The caller has to close it.
+     * @throws IOException If the message could not be read.
+     */
+    public InputStream getInputStream(String mailid) throws IOException;
+
+    /**
+     * @param mailid Unique mail id.
+     * @return The headers and envelope addresses of the message, or null if
+     * there is no such message.
+     * @throws IOException If the message could not be read.
+     */
+    public MessageEnvelope getEnvelope(String mailid) throws IOException;
+
+    /**
+     * @param mailid Unique mail id.
+     * @return Size of the message source in bytes, or -1 if there is no such
+     * message.
+     */
+    public long getSize(String mailid);
+}
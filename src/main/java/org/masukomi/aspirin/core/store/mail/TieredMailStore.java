@@ -0,0 +1,465 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.core.store.queue.QueueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>This store keeps the messages in two tiers: the hot tier is in memory,
+ * bounded by {@link #getHotBudget()}, the cold tier is an other mail store,
+ * typically a {@link FileMailStore}. New messages are stored in the hot
+ * tier.</p>
+ *
+ * <p>The tiers are balanced by the delivery schedule of the queue store. A
+ * background task demotes the messages, which are not needed for
+ * {@link #getDemotionDelay()}, for example messages waiting for a retry, and
+ * promotes the cold messages shortly, {@link #getPromotionLead()} before their
+ * next attempt. If the hot tier is over its budget, the messages needed
+ * latest are demoted first. A promoted message keeps its cold copy, so it is
+ * demoted again without a write.</p>
+ *
+ * <p>A hot message is checked again only after its next attempt, and the
+ * cold messages to promote are taken from the schedule of the queue store,
+ * so the cost of a rebalancing does not depend on the size of the cold
+ * tier.</p>
+ *
+ * <p>Without a queue store the hot tier works as a least recently used cache
+ * in front of the cold store, with write-back on demotion.</p>
+ *
+ */
+public class TieredMailStore implements StreamingMailStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredMailStore.class);
+    /**
+     * Maximal count of scheduled recipients checked for promotion at once.
+     */
+    private static final int PROMOTION_SCAN_MAX = 10000;
+    private final MailStore coldStore;
+    private volatile QueueStore queueStore = null;
+    private long hotBudget = 32L * 1024 * 1024;
+    private long demotionDelay = 60000;
+    private long promotionLead = 10000;
+    private long maintenanceInterval = 1000;
+    private final ConcurrentMap<String, HotEntry> hotEntries = new ConcurrentHashMap<String, HotEntry>();
+    private final Set<String> coldMailids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Stores, moves between the tiers and removals are done under this lock,
+     * so a removed or replaced message is not written back to the cold
+     * store, and a new message is not removed with the outdated cold copy.
+     */
+    private final Object tierLock = new Object();
+    private final AtomicBoolean rebalancing = new AtomicBoolean(false);
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hotSize = new AtomicLong();
+    private final AtomicLong hotHitCount = new AtomicLong();
+    private final AtomicLong coldHitCount = new AtomicLong();
+    private final AtomicLong demotionCount = new AtomicLong();
+    private final AtomicLong promotionCount = new AtomicLong();
+    private ScheduledExecutorService maintenance = null;
+
+    /**
+     * @param coldStore The store of cold messages.
+     */
+    public TieredMailStore(MailStore coldStore) {
+        this.coldStore = coldStore;
+    }
+
+    @Override
+    public MimeMessage get(String mailid) {
+        HotEntry entry = hotEntries.get(mailid);
+        if (entry != null) {
+            entry.lastAccess = clock.incrementAndGet();
+            hotHitCount.incrementAndGet();
+            return entry.msg;
+        }
+        if (!coldMailids.contains(mailid)) {
+            return null;
+        }
+        MimeMessage msg = coldStore.get(mailid);
+        if (msg != null) {
+            coldHitCount.incrementAndGet();
+            // It is under delivery now, so it is kept in memory if it fits
+            long size = LruMessageCache.estimateSize(msg);
+            if (hotSize.get() + size <= hotBudget) {
+                promote(mailid, msg, size);
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Stream a message. Hot messages are serialized, cold messages are
+     * streamed from the cold store and they are not promoted.
+     */
+    @Override
+    public InputStream getInputStream(String mailid) throws IOException {
+        HotEntry entry = hotEntries.get(mailid);
+        if (entry != null) {
+            return MailStreams.toInputStream(mailid, entry.msg);
+        }
+        return coldMailids.contains(mailid) ? MailStreams.getInputStream(coldStore, mailid) : null;
+    }
+
+    @Override
+    public MessageEnvelope getEnvelope(String mailid) throws IOException {
+        HotEntry entry = hotEntries.get(mailid);
+        if (entry != null) {
+            return MailStreams.toEnvelope(mailid, entry.msg, entry.getRawSize());
+        }
+        return coldMailids.contains(mailid) ? MailStreams.getEnvelope(coldStore, mailid) : null;
+    }
+
+    @Override
+    public long getSize(String mailid) {
+        HotEntry entry = hotEntries.get(mailid);
+        if (entry != null) {
+            return entry.getRawSize();
+        }
+        return coldMailids.contains(mailid) ? MailStreams.getSize(coldStore, mailid) : -1;
+    }
+
+    @Override
+    public List<String> getMailIds() {
+        List<String> mailids = new ArrayList<String>(hotEntries.keySet());
+        for (String mailid : coldMailids) {
+            if (!hotEntries.containsKey(mailid)) {
+                mailids.add(mailid);
+            }
+        }
+        return mailids;
+    }
+
+    @Override
+    public void init() {
+        coldStore.init();
+        coldMailids.addAll(coldStore.getMailIds());
+        if (0 < maintenanceInterval && maintenance == null) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Aspirin-TieredMailStore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebalance();
+                    } catch (RuntimeException e) {
+                        log.error(TieredMailStore.class.getSimpleName() + " Rebalancing failed.", e);
+                    }
+                }
+            }, maintenanceInterval, maintenanceInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void remove(String mailid) {
+        synchronized (tierLock) {
+            HotEntry entry = hotEntries.remove(mailid);
+            if (entry != null) {
+                hotSize.addAndGet(-entry.size);
+            }
+            if (coldMailids.remove(mailid)) {
+                coldStore.remove(mailid);
+            }
+        }
+    }
+
+    @Override
+    public void set(String mailid, MimeMessage msg) {
+        HotEntry entry = new HotEntry(msg, LruMessageCache.estimateSize(msg), false);
+        entry.lastAccess = clock.incrementAndGet();
+        synchronized (tierLock) {
+            HotEntry oldEntry = hotEntries.put(mailid, entry);
+            hotSize.addAndGet(entry.size - (oldEntry == null ? 0 : oldEntry.size));
+            // The cold copy is outdated
+            if (coldMailids.remove(mailid)) {
+                coldStore.remove(mailid);
+            }
+        }
+        if (hotBudget < hotSize.get()) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Demote and promote messages by the delivery schedule, then demote the
+     * messages needed latest while the hot tier is over its budget. Only one
+     * thread rebalances at a time, the others return at once.
+     */
+    public void rebalance() {
+        if (!rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            QueueStore schedule = queueStore;
+            List<Candidate> candidates = new ArrayList<Candidate>(hotEntries.size());
+            for (Map.Entry<String, HotEntry> hotEntry : hotEntries.entrySet()) {
+                HotEntry entry = hotEntry.getValue();
+                if (schedule != null && entry.checkAt <= now) {
+                    long nextAttempt = schedule.getNextAttempt(hotEntry.getKey());
+                    entry.nextAttempt = nextAttempt;
+                    // It could be rescheduled only by its next attempt
+                    entry.checkAt = Math.max(nextAttempt, now + promotionLead);
+                    if (demotionDelay < nextAttempt - now) {
+                        demote(hotEntry.getKey(), entry);
+                        continue;
+                    }
+                }
+                candidates.add(new Candidate(hotEntry.getKey(), entry, entry.nextAttempt <= 0 ? now : entry.nextAttempt));
+            }
+            if (schedule != null && hotSize.get() < hotBudget) {
+                for (String mailid : schedule.getScheduledMailids(now + promotionLead, PROMOTION_SCAN_MAX)) {
+                    if (hotBudget <= hotSize.get()) {
+                        break;
+                    }
+                    if (hotEntries.containsKey(mailid) || !coldMailids.contains(mailid)) {
+                        continue;
+                    }
+                    MimeMessage msg = coldStore.get(mailid);
+                    if (msg != null) {
+                        HotEntry entry = promote(mailid, msg, LruMessageCache.estimateSize(msg));
+                        if (entry != null) {
+                            // It is checked again by the next rebalancing
+                            entry.nextAttempt = schedule.getNextAttempt(mailid);
+                            candidates.add(new Candidate(mailid, entry, Math.max(entry.nextAttempt, now)));
+                        }
+                    }
+                }
+            }
+            if (hotBudget < hotSize.get()) {
+                // Needed latest first, then least recently used first
+                Collections.sort(candidates, new Comparator<Candidate>() {
+                    @Override
+                    public int compare(Candidate o1, Candidate o2) {
+                        if (o1.nextAttempt != o2.nextAttempt) {
+                            return o1.nextAttempt < o2.nextAttempt ? 1 : -1;
+                        }
+                        return o1.entry.lastAccess < o2.entry.lastAccess ? -1 : (o1.entry.lastAccess == o2.entry.lastAccess ? 0 : 1);
+                    }
+                });
+                for (Candidate candidate : candidates) {
+                    if (hotSize.get() <= hotBudget) {
+                        break;
+                    }
+                    demote(candidate.mailid, candidate.entry);
+                }
+            }
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    /**
+     * Move a message into the cold store. It is written only if it has no
+     * cold copy yet.
+     */
+    private void demote(String mailid, HotEntry entry) {
+        synchronized (tierLock) {
+            if (hotEntries.get(mailid) != entry) {
+                // Removed or replaced meanwhile
+                return;
+            }
+            if (!entry.coldCopy) {
+                coldStore.set(mailid, entry.msg);
+                coldMailids.add(mailid);
+            }
+            if (hotEntries.remove(mailid, entry)) {
+                hotSize.addAndGet(-entry.size);
+                demotionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private HotEntry promote(String mailid, MimeMessage msg, long size) {
+        synchronized (tierLock) {
+            if (!coldMailids.contains(mailid)) {
+                return null;
+            }
+            HotEntry entry = new HotEntry(msg, size, true);
+            entry.lastAccess = clock.incrementAndGet();
+            if (hotEntries.putIfAbsent(mailid, entry) != null) {
+                // Stored again meanwhile
+                return null;
+            }
+            hotSize.addAndGet(size);
+            promotionCount.incrementAndGet();
+            return entry;
+        }
+    }
+
+    /**
+     * Stop the background rebalancing.
+     */
+    public void shutdown() {
+        if (maintenance != null) {
+            maintenance.shutdown();
+            maintenance = null;
+        }
+    }
+
+    public MailStore getColdStore() {
+        return coldStore;
+    }
+
+    public QueueStore getQueueStore() {
+        return queueStore;
+    }
+
+    /**
+     * @param queueStore The queue store, which gives the next attempts of the
+     * messages.
+     */
+    public void setQueueStore(QueueStore queueStore) {
+        this.queueStore = queueStore;
+    }
+
+    /**
+     * @return Maximal estimated size of the messages in memory in bytes.
+     */
+    public long getHotBudget() {
+        return hotBudget;
+    }
+
+    public void setHotBudget(long hotBudget) {
+        this.hotBudget = hotBudget;
+    }
+
+    /**
+     * @return A message is demoted, if its next attempt is later than this
+     * many milliseconds.
+     */
+    public long getDemotionDelay() {
+        return demotionDelay;
+    }
+
+    public void setDemotionDelay(long demotionDelay) {
+        this.demotionDelay = demotionDelay;
+    }
+
+    /**
+     * @return A cold message is promoted this many milliseconds before its
+     * next attempt.
+     */
+    public long getPromotionLead() {
+        return promotionLead;
+    }
+
+    public void setPromotionLead(long promotionLead) {
+        this.promotionLead = promotionLead;
+    }
+
+    /**
+     * @return Delay between background rebalancing in milliseconds. If it is
+     * not positive, there is no background rebalancing. It is used by
+     * {@link #init()}.
+     */
+    public long getMaintenanceInterval() {
+        return maintenanceInterval;
+    }
+
+    public void setMaintenanceInterval(long maintenanceInterval) {
+        this.maintenanceInterval = maintenanceInterval;
+    }
+
+    /**
+     * @return Estimated size of the messages in memory in bytes.
+     */
+    public long getHotSize() {
+        return hotSize.get();
+    }
+
+    public int getHotCount() {
+        return hotEntries.size();
+    }
+
+    /**
+     * @return Count of messages, which have a copy in the cold store.
+     */
+    public int getColdCount() {
+        return coldMailids.size();
+    }
+
+    public long getHotHitCount() {
+        return hotHitCount.get();
+    }
+
+    public long getColdHitCount() {
+        return coldHitCount.get();
+    }
+
+    public long getDemotionCount() {
+        return demotionCount.get();
+    }
+
+    public long getPromotionCount() {
+        return promotionCount.get();
+    }
+
+    private static class HotEntry {
+
+        private final MimeMessage msg;
+        private final long size;
+        private final boolean coldCopy;
+        private volatile long lastAccess;
+        private volatile long rawSize = -1;
+        /**
+         * Last known next attempt of the message, and the time to check it
+         * again. They are used by the rebalancing thread.
+         */
+        private volatile long nextAttempt = -1;
+        private volatile long checkAt = 0;
+
+        HotEntry(MimeMessage msg, long size, boolean coldCopy) {
+            this.msg = msg;
+            this.size = size;
+            this.coldCopy = coldCopy;
+        }
+
+        /**
+         * @return Size of the message source, it is counted once.
+         */
+        long getRawSize() {
+            if (rawSize < 0) {
+                rawSize = MailStreams.countSize(msg);
+            }
+            return rawSize;
+        }
+    }
+
+    private static class Candidate {
+
+        private final String mailid;
+        private final HotEntry entry;
+        private final long nextAttempt;
+
+        Candidate(String mailid, HotEntry entry, long nextAttempt) {
+            this.mailid = mailid;
+            this.entry = entry;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.masukomi.aspirin.core.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Default retry policy: exponential backoff with random jitter for every
+ * {@link FailureClass}. The n-th failed attempt is retried after
+ * initial * multiplier<sup>n-1</sup> milliseconds, but not later than the
+ * maximal delay, and the delay is varied by
+ * {@link Configuration#getDeliveryRetryJitter()} percent.</p>
+ *
+ * <p>The default backoffs could be overridden globally or for a recipient
+ * domain by {@link Configuration#getDeliveryRetryPolicies()}. The initial
+ * delay of TRANSIENT failures is
+ * {@link Configuration#getDeliveryAttemptDelay()} by default.</p>
+ *
+ * <p>After {@link Configuration#getDeliveryRetrySlowAfter()} failed attempts
+ * an item is slow: it waits at least
+ * {@link Configuration#getDeliveryRetrySlowDelay()} and it is retried in
+ * the BULK lane.</p>
+ *
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(BackoffRetryPolicy.class);
+    private static final Map<FailureClass, Backoff> DEFAULT_BACKOFFS = new EnumMap<FailureClass, Backoff>(FailureClass.class);
+
+    static {
+        DEFAULT_BACKOFFS.put(FailureClass.GREYLISTED, new Backoff(2 * 60000L, 1.5, 30 * 60000L));
+        DEFAULT_BACKOFFS.put(FailureClass.MAILBOX_FULL, new Backoff(60 * 60000L, 2, 12 * 60 * 60000L));
+        DEFAULT_BACKOFFS.put(FailureClass.THROTTLED, new Backoff(10 * 60000L, 2, 2 * 60 * 60000L));
+        DEFAULT_BACKOFFS.put(FailureClass.CONNECTION, new Backoff(10 * 60000L, 2, 4 * 60 * 60000L));
+        DEFAULT_BACKOFFS.put(FailureClass.DNS, new Backoff(5 * 60000L, 2, 2 * 60 * 60000L));
+    }
+    private static final long TRANSIENT_MAX_DELAY = 4 * 60 * 60000L;
+
+    /**
+     * Exponential backoff of a failure class.
+     */
+    public static class Backoff {
+
+        private final long initialDelay;
+        private final double multiplier;
+        private final long maxDelay;
+
+        /**
+         * @param initialDelay Delay after the first failure in milliseconds.
+         * @param multiplier The delay is multiplied by this after every
+         * further failure.
+         * @param maxDelay Maximal delay in milliseconds.
+         */
+        public Backoff(long initialDelay, double multiplier, long maxDelay) {
+            this.initialDelay = initialDelay;
+            this.multiplier = multiplier;
+            this.maxDelay = maxDelay;
+        }
+
+        /**
+         * @param failures Count of failed attempts, at least 1.
+         * @return The delay of the next attempt in milliseconds.
+         */
+        public long getDelay(int failures) {
+            double delay = initialDelay * Math.pow(multiplier, Math.max(0, failures - 1));
+            return (long) Math.min(delay, Math.max(initialDelay, maxDelay));
+        }
+
+        public long getInitialDelay() {
+            return initialDelay;
+        }
+
+        public double getMultiplier() {
+            return multiplier;
+        }
+
+        public long getMaxDelay() {
+            return maxDelay;
+        }
+    }
+    private final Configuration configuration;
+    private final Random random = new Random();
+    private String policiesConfig = null;
+    private Map<FailureClass, Backoff> globalBackoffs = new EnumMap<FailureClass, Backoff>(FailureClass.class);
+    private Map<String, Map<FailureClass, Backoff>> domainBackoffs = new HashMap<String, Map<FailureClass, Backoff>>();
+
+    public BackoffRetryPolicy(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public long getRetryDelay(QueueInfo qi) {
+        FailureClass failureClass = qi.getFailureClass() == null ? FailureClass.TRANSIENT : qi.getFailureClass();
+        long delay = getBackoff(qi.getRecipientDomain(), failureClass).getDelay(Math.max(1, qi.getAttemptCount()));
+        int jitter = configuration.getDeliveryRetryJitter();
+        if (0 < jitter) {
+            synchronized (random) {
+                delay += (long) (delay * Math.min(100, jitter) / 100.0 * (2 * random.nextDouble() - 1));
+            }
+        }
+        if (isSlow(qi)) {
+            // The floor is applied after the jitter, so a slow item is never retried earlier
+            delay = Math.max(delay, configuration.getDeliveryRetrySlowDelay());
+        }
+        return Math.max(0, delay);
+    }
+
+    @Override
+    public boolean isSlow(QueueInfo qi) {
+        int slowAfter = configuration.getDeliveryRetrySlowAfter();
+        return 0 < slowAfter && slowAfter <= qi.getAttemptCount();
+    }
+
+    /**
+     * @param domain Recipient domain.
+     * @param failureClass Class of the failure.
+     * @return The backoff of the domain, the configured global backoff or the
+     * default backoff of the failure class.
+     */
+    public synchronized Backoff getBackoff(String domain, FailureClass failureClass) {
+        updatePolicies();
+        Map<FailureClass, Backoff> backoffs = domain == null ? null : domainBackoffs.get(domain.toLowerCase());
+        Backoff backoff = backoffs == null ? null : backoffs.get(failureClass);
+        if (backoff == null) {
+            backoff = globalBackoffs.get(failureClass);
+        }
+        if (backoff == null) {
+            backoff = DEFAULT_BACKOFFS.get(failureClass);
+        }
+        if (backoff == null) {
+            backoff = new Backoff(configuration.getDeliveryAttemptDelay(), 2, TRANSIENT_MAX_DELAY);
+        }
+        return backoff;
+    }
+
+    private void updatePolicies() {
+        String config = configuration.getDeliveryRetryPolicies();
+        if (config == null || config.equals(policiesConfig)) {
+            return;
+        }
+        Map<FailureClass, Backoff> global = new EnumMap<FailureClass, Backoff>(FailureClass.class);
+        Map<String, Map<FailureClass, Backoff>> domains = new HashMap<String, Map<FailureClass, Backoff>>();
+        for (String policy : config.split(",")) {
+            if (policy.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                String[] parts = policy.split("=");
+                String[] values = parts[1].split(":");
+                String target = parts[0].trim();
+                int separator = target.lastIndexOf('/');
+                FailureClass failureClass = FailureClass.valueOf(target.substring(separator + 1).trim().toUpperCase());
+                Backoff backoff = new Backoff(Long.parseLong(values[0].trim()), Double.parseDouble(values[1].trim()), Long.parseLong(values[2].trim()));
+                if (separator < 0) {
+                    global.put(failureClass, backoff);
+                } else {
+                    String domain = target.substring(0, separator).trim().toLowerCase();
+                    Map<FailureClass, Backoff> backoffs = domains.get(domain);
+                    if (backoffs == null) {
+                        backoffs = new EnumMap<FailureClass, Backoff>(FailureClass.class);
+                        domains.put(domain, backoffs);
+                    }
+                    backoffs.put(failureClass, backoff);
+                }
+            } catch (RuntimeException e) {
+                log.warn("BackoffRetryPolicy.updatePolicies(): Invalid retry policy '{}'.", policy);
+            }
+        }
+        globalBackoffs = global;
+        domainBackoffs = domains;
+        policiesConfig = config;
+    }
+}
@@ -0,0 +1,30 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * Priority lanes of queued emails. Higher lanes are served first, but every
+ * lane could have a minimal share of the delivery capacity, so lower lanes
+ * still make progress.
+ *
+ */
+public enum DeliveryPriority {
+	HIGH, // Transactional emails, for example password reset
+	NORMAL, // Default priority
+	BULK // Newsletters and campaigns
+	;
+
+	/**
+	 * Parse a priority name, for example a header value.
+	 * @param name Name of the priority, case insensitive.
+	 * @return The priority, or NORMAL if the name is unknown or null.
+	 */
+	public static DeliveryPriority parse(String name) {
+		if (name != null) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				// Fallback to default
+			}
+		}
+		return NORMAL;
+	}
+}
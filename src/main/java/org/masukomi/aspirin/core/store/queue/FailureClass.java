@@ -0,0 +1,111 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classes of failed delivery attempts. Every class could have its own retry
+ * policy, see {@link BackoffRetryPolicy}.
+ *
+ */
+public enum FailureClass {
+
+	/**
+	 * Temporary failure without a more specific class.
+	 */
+	TRANSIENT,
+	/**
+	 * The receiver greylisted the sender, an early retry is expected.
+	 */
+	GREYLISTED,
+	/**
+	 * The mailbox or the mail system of the receiver is full.
+	 */
+	MAILBOX_FULL,
+	/**
+	 * The receiver limits the connections or the rate of the messages.
+	 */
+	THROTTLED,
+	/**
+	 * The MX host could not be connected or the connection broke.
+	 */
+	CONNECTION,
+	/**
+	 * The MX records of the domain could not be resolved.
+	 */
+	DNS,
+	/**
+	 * Permanent failure, it is not retried.
+	 */
+	PERMANENT;
+
+	/**
+	 * Basic SMTP reply code with an optional enhanced status code (RFC 3463).
+	 */
+	private static final Pattern REPLY = Pattern.compile("^\\s*([245])(\\d\\d)(?:[ -]+([245])\\.(\\d{1,3})\\.(\\d{1,3}))?");
+
+	/**
+	 * Classify a failed attempt by its SMTP reply and by the type of its
+	 * exception.
+	 *
+	 * @param reply The reply or the error message, could be null.
+	 * @param e The exception of the failure, its causes are checked too. It
+	 * could be null.
+	 * @return The class of the failure.
+	 */
+	public static FailureClass of(String reply, Throwable e) {
+		if (reply != null) {
+			Matcher matcher = REPLY.matcher(reply);
+			if (matcher.find()) {
+				int basic = Integer.parseInt(matcher.group(1) + matcher.group(2));
+				if (basic / 100 == 5) {
+					return PERMANENT;
+				}
+				String lowerReply = reply.toLowerCase();
+				if (lowerReply.contains("greylist") || lowerReply.contains("graylist")) {
+					return GREYLISTED;
+				}
+				if (matcher.group(3) != null) {
+					int subject = Integer.parseInt(matcher.group(4));
+					int detail = Integer.parseInt(matcher.group(5));
+					if ((subject == 2 && detail == 2) || (subject == 3 && detail == 1)) {
+						return MAILBOX_FULL;
+					}
+					if (subject == 4) {
+						return CONNECTION;
+					}
+					if (subject == 7 && detail == 1) {
+						return GREYLISTED;
+					}
+				}
+				if (basic == 421) {
+					return THROTTLED;
+				}
+				if (basic == 452) {
+					return MAILBOX_FULL;
+				}
+				if (basic / 100 == 4) {
+					return TRANSIENT;
+				}
+			}
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UnknownHostException) {
+				return DNS;
+			}
+			if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+					|| cause instanceof SocketTimeoutException || cause instanceof SocketException) {
+				return CONNECTION;
+			}
+			if (cause == cause.getCause()) {
+				break;
+			}
+		}
+		return TRANSIENT;
+	}
+}
@@ -1,5 +1,7 @@
 package org.masukomi.aspirin.core.store.queue;
 
+import java.util.Map;
+
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.listener.ListenerManager;
@@ -19,9 +21,16 @@ public class QueueInfo {
     private long attempt = 0;
     private int attemptCount = 0;
     private long expiry = -1L;
+    private long created = System.currentTimeMillis();
+    private DeliveryPriority priority = DeliveryPriority.NORMAL;
+    private String tenant = "";
     private DeliveryState state = DeliveryState.QUEUED;
+    private Map<String, String> variables = null;
+    private FailureClass failureClass = null;
+    private boolean slow = false;
     private transient boolean notifiedAlready = false;
     private transient String complexId = null;
+    private transient String recipientDomain = null;
     private transient String logs;
 
     public QueueInfo(Configuration configuration, ListenerManager listenerManager) {
@@ -60,6 +69,21 @@ public class QueueInfo {
 
     public void setRecipient(String recipient) {
         this.recipient = recipient;
+        this.recipientDomain = null;
+    }
+
+    /**
+     * @return The lowercase domain part of the recipient address, or an empty
+     * string if the recipient is unset.
+     */
+    public String getRecipientDomain() {
+        if (recipientDomain == null) {
+            if (recipient == null) {
+                return "";
+            }
+            recipientDomain = recipient.substring(recipient.lastIndexOf('@') + 1).toLowerCase();
+        }
+        return recipientDomain;
     }
 
     public String getResultInfo() {
@@ -90,6 +114,35 @@ public class QueueInfo {
         this.attemptCount = attemptCount;
     }
 
+    /**
+     * @return Class of the last failed attempt, or null if it is not known.
+     */
+    public FailureClass getFailureClass() {
+        return failureClass;
+    }
+
+    public void setFailureClass(FailureClass failureClass) {
+        this.failureClass = failureClass;
+    }
+
+    /**
+     * @return true if this item waits in the slow queue, see
+     * {@link RetryPolicy#isSlow(QueueInfo)}.
+     */
+    public boolean isSlow() {
+        return slow;
+    }
+
+    /**
+     * Set the slow flag. It must not be changed while the item is in a
+     * QueueStore.
+     *
+     * @param slow true if the item is retried in the BULK lane.
+     */
+    public void setSlow(boolean slow) {
+        this.slow = slow;
+    }
+
     public long getExpiry() {
         return expiry;
     }
@@ -98,6 +151,64 @@ public class QueueInfo {
         this.expiry = expiry;
     }
 
+    /**
+     * @return Queueing time of this item in epoch milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public DeliveryPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority lane. Please set it before the item is added to a
+     * QueueStore.
+     *
+     * @param priority The priority lane of this item.
+     */
+    public void setPriority(DeliveryPriority priority) {
+        this.priority = priority == null ? DeliveryPriority.NORMAL : priority;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Set the tenant. Please set it before the item is added to a QueueStore.
+     *
+     * @param tenant The tenant key, null means the default tenant.
+     */
+    public void setTenant(String tenant) {
+        this.tenant = tenant == null ? "" : tenant;
+    }
+
+    /**
+     * @return Template variables of this recipient, or null if the message is
+     * not a template.
+     */
+    public Map<String, String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Set the template variables. If it is not null, the message is rendered
+     * for this recipient by the variables before sending. Please set it before
+     * the item is added to a QueueStore.
+     *
+     * @param variables Placeholder values by name.
+     * @see org.masukomi.aspirin.core.delivery.TemplateInputStream
+     */
+    public void setVariables(Map<String, String> variables) {
+        this.variables = variables;
+    }
+
     public DeliveryState getState() {
         return state;
     }
@@ -122,6 +233,17 @@ public class QueueInfo {
         }
     }
 
+    /**
+     * Set the state without notifying the listeners. A store uses it to
+     * finish an item under its lock, and notifies the listeners later by
+     * {@link #setState(DeliveryState)} with the same state.
+     *
+     * @param state The new state.
+     */
+    void changeState(DeliveryState state) {
+        this.state = state;
+    }
+
     public boolean hasState(DeliveryState... states) {
         for (DeliveryState st : states) {
             if (st.equals(this.state)) {
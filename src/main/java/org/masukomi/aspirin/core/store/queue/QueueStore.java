@@ -2,6 +2,7 @@ package org.masukomi.aspirin.core.store.queue;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
@@ -17,6 +18,15 @@ public interface QueueStore {
 
     public void add(String mailid, long expire, Collection<InternetAddress> recipients) throws MessagingException;
 
+    /**
+     * Add many prepared QueueInfo objects in one store operation. The items
+     * should be created by {@link #createQueueInfo()}.
+     *
+     * @param queueInfos Items to queue.
+     * @throws MessagingException If queueing failed.
+     */
+    public void addAll(Collection<QueueInfo> queueInfos) throws MessagingException;
+
     /**
      * This method is called to clean QueueStore. In cleaning process the
      * QueueStore have to remove all completed mailid, and after finishing it
@@ -30,6 +40,26 @@ public interface QueueStore {
 
     public long getNextAttempt(String mailid, String recipient);
 
+    /**
+     * It gives back when the message is needed next time for delivery.
+     *
+     * @param mailid Unique mail id.
+     * @return The earliest next attempt of the queued recipients of the
+     * message, 0 if a recipient is under delivery, -1 if no recipient is
+     * waiting for delivery.
+     */
+    public long getNextAttempt(String mailid);
+
+    /**
+     * It gives back the messages of the waiting recipients, which are
+     * scheduled until a time, in the order of their next attempts.
+     *
+     * @param until Latest next attempt in epoch milliseconds.
+     * @param max Maximal count of recipients to check.
+     * @return Unique mail ids of the recipients scheduled until the time.
+     */
+    public Set<String> getScheduledMailids(long until, int max);
+
     public boolean hasBeenRecipientHandled(String mailid, String recipient);
 
     public void init();
@@ -46,6 +76,47 @@ public interface QueueStore {
      */
     public QueueInfo next();
 
+    /**
+     * It claims up to max sendable QueueInfo objects in one atomic step. All
+     * returned items are marked IN_PROGRESS together, so a store backed by a
+     * database or by files could claim many items in one round trip. The
+     * sendable conditions are the same as in {@link #next()}.
+     *
+     * @param max Maximal count of returned items.
+     * @param groupByDomain If true, items with the same recipient domain are
+     * placed next to each other in the returned list.
+     * @return List of claimed QueueInfo objects, empty if there is nothing to
+     * send.
+     */
+    public List<QueueInfo> next(int max, boolean groupByDomain);
+
+    /**
+     * Gives back claimed, but not dispatched items. They become QUEUED again
+     * and this does not count as a delivery attempt.
+     *
+     * @param qis Items claimed by {@link #next(int, boolean)}.
+     */
+    public void requeue(Collection<QueueInfo> qis);
+
+    /**
+     * Fail all the QUEUED items of a recipient domain. Items under delivery
+     * are not changed.
+     *
+     * @param domain Recipient domain.
+     * @param resultInfo Result of the failed items.
+     * @return The failed items.
+     */
+    public List<QueueInfo> purgeDomain(String domain, String resultInfo);
+
+    /**
+     * Fail a batch of QUEUED items, which are out of their expiry time or
+     * attempt count. Items under delivery are not changed.
+     *
+     * @param max Maximal count of failed items.
+     * @return The failed items.
+     */
+    public List<QueueInfo> expire(int max);
+
     public void remove(String mailid);
 
     public void removeRecipient(String recipient);
@@ -0,0 +1,24 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * Schedules the next attempt of a failed, but still QUEUED item. The queue
+ * store calls it under its lock, so it should be fast.
+ *
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param qi The failed item. Its attempt count includes the failed
+     * attempt, and {@link QueueInfo#getFailureClass()} tells the class of
+     * the failure.
+     * @return Delay of the next attempt in milliseconds.
+     */
+    public long getRetryDelay(QueueInfo qi);
+
+    /**
+     * @param qi The failed item.
+     * @return true if the item should wait in the slow queue: it is retried
+     * in the BULK lane, so it does not crowd the dispatch of the other items.
+     */
+    public boolean isSlow(QueueInfo qi);
+}
@@ -1,33 +1,76 @@
 package org.masukomi.aspirin.core.store.queue;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 
-import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.listener.ListenerManager;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * <p>In-memory queue store. QUEUED items wait in a schedule ordered by their
+ * next attempt time. When the attempt time comes, they are moved into the
+ * ready lane of their {@link DeliveryPriority}, so a claim does not have to
+ * scan or sort the waiting items.</p>
+ *
+ * <p>Higher lanes are served first, but a lane with a minimal share (see
+ * {@link Configuration#getDeliveryPriorityShares()}) is served before the
+ * higher lanes while its share of the recent claims is under its minimum.</p>
+ *
+ * <p>Inside a lane every tenant has its own queue, and the tenants are served
+ * by deficit round robin using the weights of
+ * {@link Configuration#getTenantWeights()}. A tenant which reached its
+ * concurrency or rate limit is skipped until it has capacity again.</p>
+ *
+ * <p>The next attempt of a failed item is scheduled by its
+ * {@link RetryPolicy}, items which failed too many times are retried in the
+ * BULK lane. After temporary failures a domain ramps up: its parallel
+ * deliveries are limited, and the limit grows with the successes (see
+ * {@link Configuration#getDeliveryRampMax()}), so the backlog of a
+ * recovering receiver is not dispatched at once.</p>
+ *
+ * <p>Unfinished items with an expiry time are kept in an expiry index too.
+ * If the background expiry is enabled, expired items and items out of
+ * attempts are failed in batches by {@link #expire(int)}, otherwise they are
+ * failed when they are claimed.</p>
+ *
+ * <p>New items with a later first attempt (see
+ * {@link org.masukomi.aspirin.Aspirin#HEADER_DELIVER_AT}) wait in a separate
+ * index of scheduled items. When their time comes, they become sendable in
+ * the rate of {@link Configuration#getDeliveryScheduledRate()}.</p>
  *
  * @author Laszlo Solova
  *
  */
-public class SimpleQueueStore implements QueueStore {
+public class SimpleQueueStore implements QueueStore, SimpleQueueStoreMBean {
 
+    private static final Logger log = LoggerFactory.getLogger(SimpleQueueStore.class);
+    /**
+     * Lane shares are calculated on this many recent claims.
+     */
+    private static final int LANE_WINDOW = 1000;
+    private static final int DOMAIN_BACKLOG_SUMMARY_SIZE = 20;
     private final Configuration configuration;
     private final ListenerManager listenerManager;
-    private List<QueueInfo> queueInfoList = new LinkedList<QueueInfo>();
     private Map<String, QueueInfo> queueInfoByMailidAndRecipient = new HashMap<String, QueueInfo>();
     private Map<String, List<QueueInfo>> queueInfoByMailid = new HashMap<String, List<QueueInfo>>();
     private Map<String, List<QueueInfo>> queueInfoByRecipient = new HashMap<String, List<QueueInfo>>();
@@ -36,30 +79,156 @@ public class SimpleQueueStore implements QueueStore {
 
         @Override
         public int compare(QueueInfo o1, QueueInfo o2) {
-            return (int) (o2.getAttempt() - o1.getAttempt());
+            if (o1.getAttempt() != o2.getAttempt()) {
+                return o1.getAttempt() < o2.getAttempt() ? -1 : 1;
+            }
+            return o1.getComplexId().compareTo(o2.getComplexId());
         }
     };
+    /**
+     * QUEUED items, which are not sendable yet, ordered by next attempt.
+     * Attempt of an item must not be changed while it is in this set.
+     */
+    private final TreeSet<QueueInfo> schedule = new TreeSet<QueueInfo>(queueInfoComparator);
+    /**
+     * New QUEUED items, which are not deliverable before their scheduled
+     * time, ordered by that time. They are kept out of the schedule, so a
+     * large scheduled campaign does not slow down the promotion of the due
+     * items. Attempt of an item must not be changed while it is in this set.
+     */
+    private final TreeSet<QueueInfo> scheduled = new TreeSet<QueueInfo>(queueInfoComparator);
+    private double scheduledTokens = 0;
+    private long scheduledRefilled = 0;
+    /**
+     * Unfinished items with an expiry time, ordered by expiry. Items which
+     * never expire (-1 or Long.MAX_VALUE) are not indexed.
+     */
+    private final TreeSet<QueueInfo> expiryIndex = new TreeSet<QueueInfo>(new Comparator<QueueInfo>() {
+
+        @Override
+        public int compare(QueueInfo o1, QueueInfo o2) {
+            if (o1.getExpiry() != o2.getExpiry()) {
+                return o1.getExpiry() < o2.getExpiry() ? -1 : 1;
+            }
+            return o1.getComplexId().compareTo(o2.getComplexId());
+        }
+    });
+    /**
+     * QUEUED items out of their time or attempt bounds, which were skipped by
+     * a claim. They are failed by {@link #expire(int)}.
+     */
+    private final ArrayDeque<QueueInfo> outOfBounds = new ArrayDeque<QueueInfo>();
+    /**
+     * Items ordered by creation. Finished items are dropped lazily, when they
+     * are the oldest. Creation of an item must not be changed while it is in
+     * this set.
+     */
+    private final TreeSet<QueueInfo> byCreation = new TreeSet<QueueInfo>(new Comparator<QueueInfo>() {
+
+        @Override
+        public int compare(QueueInfo o1, QueueInfo o2) {
+            if (o1.getCreated() != o2.getCreated()) {
+                return o1.getCreated() < o2.getCreated() ? -1 : 1;
+            }
+            return o1.getComplexId().compareTo(o2.getComplexId());
+        }
+    });
+    private volatile boolean backgroundExpiry = false;
+    /**
+     * Sendable items of each lane.
+     */
+    private final Map<DeliveryPriority, ReadyLane> readyLanes = new EnumMap<DeliveryPriority, ReadyLane>(DeliveryPriority.class);
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    private final Set<QueueInfo> inProgress = new HashSet<QueueInfo>();
+    /**
+     * Count of QUEUED items by recipient domain.
+     */
+    private final Map<String, int[]> domainBacklog = new HashMap<String, int[]>();
+    /**
+     * Domains, which ramp up after temporary failures.
+     */
+    private final Map<String, DomainRamp> domainRamps = new HashMap<String, DomainRamp>();
+    /**
+     * Deferred items of a ramping domain are spread over this many ramp
+     * intervals.
+     */
+    private static final int RAMP_SLOTS = 10;
+    private volatile RetryPolicy retryPolicy;
+    private final long[] laneClaims = new long[DeliveryPriority.values().length];
+    private long windowClaims = 0;
+    private String laneSharesConfig = null;
+    private double[] laneShares = new double[DeliveryPriority.values().length];
+    private String tenantWeightsConfig = null;
+    private Map<String, Integer> tenantWeights = new HashMap<String, Integer>();
 
     public SimpleQueueStore(Configuration configuration, ListenerManager listenerManager) {
         this.configuration = configuration;
         this.listenerManager = listenerManager;
+        this.retryPolicy = new BackoffRetryPolicy(configuration);
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            readyLanes.put(priority, new ReadyLane(priority.ordinal()));
+        }
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
     }
 
-    
-    
+    /**
+     * @param retryPolicy Schedules the next attempt of the failed items, the
+     * default is a {@link BackoffRetryPolicy}.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public boolean isBackgroundExpiry() {
+        return backgroundExpiry;
+    }
+
+    /**
+     * @param backgroundExpiry true if the items out of their time or attempt
+     * bounds are failed only by {@link #expire(int)}. Then
+     * {@link #next(int, boolean)} skips them, so the listeners are not
+     * notified on the dispatch path, and the caller of expire could release
+     * their resources. After it is disabled, the skipped items should be
+     * failed by a last call of {@link #expire(int)}.
+     */
+    public void setBackgroundExpiry(boolean backgroundExpiry) {
+        synchronized (lock) {
+            this.backgroundExpiry = backgroundExpiry;
+        }
+    }
+
+
+
     @Override
     public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
-        try {
-            for (InternetAddress recipient : recipients) {
-                QueueInfo queueInfo = new QueueInfo(configuration, listenerManager);
-                queueInfo.setExpiry(expiry);
-                queueInfo.setMailid(mailid);
-                queueInfo.setRecipient(recipient.getAddress());
-                synchronized (lock) {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>(recipients.size());
+        for (InternetAddress recipient : recipients) {
+            QueueInfo queueInfo = new QueueInfo(configuration, listenerManager);
+            queueInfo.setExpiry(expiry);
+            queueInfo.setMailid(mailid);
+            queueInfo.setRecipient(recipient.getAddress());
+            queueInfos.add(queueInfo);
+        }
+        addAll(queueInfos);
+    }
 
-                    queueInfoList.add(queueInfo);
+    @Override
+    public void addAll(Collection<QueueInfo> queueInfos) throws MessagingException {
+        QueueInfo queueInfo = null;
+        try {
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                for (QueueInfo qi : queueInfos) {
+                    queueInfo = qi;
 
-                    queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(), queueInfo.getRecipient()), queueInfo);
+                    QueueInfo replaced = queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(), queueInfo.getRecipient()), queueInfo);
+                    if (replaced != null) {
+                        byCreation.remove(replaced);
+                    }
+                    byCreation.add(queueInfo);
 
                     if (!queueInfoByMailid.containsKey(queueInfo.getMailid())) {
                         queueInfoByMailid.put(queueInfo.getMailid(), new ArrayList<QueueInfo>());
@@ -71,10 +240,20 @@ public class SimpleQueueStore implements QueueStore {
                     }
                     queueInfoByRecipient.get(queueInfo.getRecipient()).add(queueInfo);
 
+                    if (queueInfo.getExpiry() != -1 && queueInfo.getExpiry() != Long.MAX_VALUE) {
+                        expiryIndex.add(queueInfo);
+                    }
+                    if (now < queueInfo.getAttempt() && queueInfo.hasState(DeliveryState.QUEUED)) {
+                        if (scheduled.add(queueInfo)) {
+                            countQueued(queueInfo, 1);
+                        }
+                    } else {
+                        enqueue(queueInfo);
+                    }
                 }
             }
         } catch (Exception e) {
-            throw new MessagingException("Message queueing failed: " + mailid, e);
+            throw new MessagingException("Message queueing failed: " + (queueInfo == null ? null : queueInfo.getMailid()), e);
         }
     }
 
@@ -109,6 +288,52 @@ public class SimpleQueueStore implements QueueStore {
         return -1;
     }
 
+    @Override
+    public long getNextAttempt(String mailid) {
+        long nextAttempt = -1;
+        synchronized (lock) {
+            List<QueueInfo> qibmList = queueInfoByMailid.get(mailid);
+            if (qibmList != null) {
+                for (QueueInfo qi : qibmList) {
+                    if (qi.hasState(DeliveryState.IN_PROGRESS)) {
+                        return 0;
+                    }
+                    if (qi.hasState(DeliveryState.QUEUED) && (nextAttempt == -1 || qi.getAttempt() < nextAttempt)) {
+                        nextAttempt = qi.getAttempt();
+                    }
+                }
+            }
+        }
+        return nextAttempt;
+    }
+
+    @Override
+    public Set<String> getScheduledMailids(long until, int max) {
+        Set<String> mailids = new LinkedHashSet<String>();
+        synchronized (lock) {
+            int count = collectMailids(schedule, until, max, mailids);
+            collectMailids(scheduled, until, max - count, mailids);
+        }
+        return mailids;
+    }
+
+    /**
+     * Collect the mail ids of the first items of an attempt ordered index.
+     *
+     * @return Count of the checked items.
+     */
+    private int collectMailids(TreeSet<QueueInfo> index, long until, int max, Set<String> mailids) {
+        int count = 0;
+        for (QueueInfo qi : index) {
+            if (until < qi.getAttempt() || max <= count) {
+                break;
+            }
+            mailids.add(qi.getMailid());
+            count++;
+        }
+        return count;
+    }
+
     @Override
     public boolean hasBeenRecipientHandled(String mailid, String recipient) {
         QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
@@ -117,7 +342,7 @@ public class SimpleQueueStore implements QueueStore {
 
     @Override
     public void init() {
-        // Do nothing	
+        // Do nothing
     }
 
     @Override
@@ -135,28 +360,104 @@ public class SimpleQueueStore implements QueueStore {
 
     @Override
     public QueueInfo next() {
-        Collections.sort(queueInfoList, queueInfoComparator);
-        if (!queueInfoList.isEmpty()) {
-            synchronized (lock) {
-                ListIterator<QueueInfo> queueInfoIt = queueInfoList.listIterator();
-                while (queueInfoIt.hasNext()) {
-                    QueueInfo qi = queueInfoIt.next();
-                    if (qi.isSendable()) {
-                        if (!qi.isInTimeBounds()) {
-                            if (qi.getResultInfo() == null || qi.getResultInfo().isEmpty()) {
-                                qi.setResultInfo("Delivery is out of time or attempt.");
-                            }
-                            qi.setState(DeliveryState.FAILED);
-                            setSendingResult(qi);
-                        } else {
-                            qi.setState(DeliveryState.IN_PROGRESS);
-                            return qi;
-                        }
+        List<QueueInfo> claimed = next(1, false);
+        return claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    @Override
+    public List<QueueInfo> next(int max, boolean groupByDomain) {
+        List<QueueInfo> claimed = new ArrayList<QueueInfo>();
+        if (max < 1) {
+            return claimed;
+        }
+        DeliveryEvents.Event event = DeliveryEvents.begin(DeliveryEvents.Kind.QUEUE_NEXT);
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            promoteSendable(now);
+            updateLaneShares();
+            updateTenantWeights();
+            boolean[] blockedLanes = new boolean[laneClaims.length];
+            while (claimed.size() < max) {
+                DeliveryPriority lane = pickLane(blockedLanes);
+                if (lane == null) {
+                    break;
+                }
+                QueueInfo qi = readyLanes.get(lane).poll(now);
+                if (qi == null) {
+                    // Every tenant of this lane is over its limits
+                    blockedLanes[lane.ordinal()] = true;
+                    continue;
+                }
+                Tenant tenant = getTenant(qi.getTenant());
+                countQueued(qi, -1);
+                if (!qi.hasState(DeliveryState.QUEUED)) {
+                    continue;
+                }
+                if (!qi.isInTimeBounds()) {
+                    if (qi.getResultInfo() == null || qi.getResultInfo().isEmpty()) {
+                        qi.setResultInfo("Delivery is out of time or attempt.");
+                    }
+                    if (backgroundExpiry) {
+                        // It is failed by expire()
+                        expiryIndex.remove(qi);
+                        outOfBounds.add(qi);
+                        continue;
+                    }
+                    qi.setState(DeliveryState.FAILED);
+                    setSendingResult(qi);
+                } else if (deferRamping(qi, now)) {
+                    continue;
+                } else {
+                    qi.setState(DeliveryState.IN_PROGRESS);
+                    claimed.add(qi);
+                    readyLanes.get(lane).charge(qi.getTenant());
+                    countClaim(lane);
+                    inProgress.add(qi);
+                    DomainRamp ramp = domainRamps.get(qi.getRecipientDomain());
+                    if (ramp != null) {
+                        ramp.inProgress++;
+                    }
+                    tenant.inProgress++;
+                    tenant.claimed++;
+                    if (0 < configuration.getTenantRateMax()) {
+                        tenant.tokens--;
                     }
                 }
             }
         }
-        return null;
+        if (groupByDomain && 2 < claimed.size()) {
+            Map<String, List<QueueInfo>> claimedByDomain = new LinkedHashMap<String, List<QueueInfo>>();
+            for (QueueInfo qi : claimed) {
+                List<QueueInfo> domainList = claimedByDomain.get(qi.getRecipientDomain());
+                if (domainList == null) {
+                    domainList = new ArrayList<QueueInfo>();
+                    claimedByDomain.put(qi.getRecipientDomain(), domainList);
+                }
+                domainList.add(qi);
+            }
+            claimed.clear();
+            for (List<QueueInfo> domainList : claimedByDomain.values()) {
+                claimed.addAll(domainList);
+            }
+        }
+        if (event.isEnabled()) {
+            QueueInfo first = claimed.isEmpty() ? null : claimed.get(0);
+            event.end(first == null ? null : first.getMailid(), first == null ? null : first.getRecipientDomain(), null, -1, "CLAIMED " + claimed.size());
+        }
+        return claimed;
+    }
+
+    @Override
+    public void requeue(Collection<QueueInfo> qis) {
+        synchronized (lock) {
+            for (QueueInfo qi : qis) {
+                if (qi.hasState(DeliveryState.IN_PROGRESS)) {
+                    finishProgress(qi);
+                    qi.setState(DeliveryState.QUEUED);
+                    enqueue(qi);
+                }
+            }
+        }
     }
 
     @Override
@@ -165,6 +466,10 @@ public class SimpleQueueStore implements QueueStore {
             List<QueueInfo> removeableQueueInfos = queueInfoByMailid.remove(mailid);
             if (removeableQueueInfos != null) {
                 for (QueueInfo sqi : removeableQueueInfos) {
+                    dequeue(sqi);
+                    finishProgress(sqi);
+                    expiryIndex.remove(sqi);
+                    byCreation.remove(sqi);
                     queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
                     queueInfoByRecipient.get(sqi.getRecipient()).remove(sqi);
                 }
@@ -178,6 +483,10 @@ public class SimpleQueueStore implements QueueStore {
             List<QueueInfo> removeableQueueInfos = queueInfoByRecipient.remove(recipient);
             if (removeableQueueInfos != null) {
                 for (QueueInfo sqi : removeableQueueInfos) {
+                    dequeue(sqi);
+                    finishProgress(sqi);
+                    expiryIndex.remove(sqi);
+                    byCreation.remove(sqi);
                     queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
                     queueInfoByMailid.get(sqi.getMailid()).remove(sqi);
                 }
@@ -190,10 +499,106 @@ public class SimpleQueueStore implements QueueStore {
         synchronized (lock) {
             QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
             if (uniqueQueueInfo != null) {
-                uniqueQueueInfo.setAttempt(System.currentTimeMillis() + configuration.getDeliveryAttemptDelay());
+                dequeue(uniqueQueueInfo);
+                finishProgress(uniqueQueueInfo);
                 uniqueQueueInfo.incAttemptCount();
                 uniqueQueueInfo.setState(qi.getState());
+                if (uniqueQueueInfo.hasState(DeliveryState.QUEUED)) {
+                    uniqueQueueInfo.setFailureClass(qi.getFailureClass());
+                    uniqueQueueInfo.setSlow(retryPolicy.isSlow(uniqueQueueInfo));
+                    uniqueQueueInfo.setAttempt(System.currentTimeMillis() + retryPolicy.getRetryDelay(uniqueQueueInfo));
+                } else {
+                    uniqueQueueInfo.setAttempt(System.currentTimeMillis() + configuration.getDeliveryAttemptDelay());
+                }
+                updateRamp(uniqueQueueInfo);
+                if (uniqueQueueInfo.hasState(DeliveryState.SENT)) {
+                    getTenant(uniqueQueueInfo.getTenant()).sent++;
+                    expiryIndex.remove(uniqueQueueInfo);
+                } else if (uniqueQueueInfo.hasState(DeliveryState.FAILED)) {
+                    getTenant(uniqueQueueInfo.getTenant()).failed++;
+                    expiryIndex.remove(uniqueQueueInfo);
+                }
+                enqueue(uniqueQueueInfo);
+            }
+        }
+    }
+
+    @Override
+    public List<QueueInfo> purgeDomain(String domain, String resultInfo) {
+        List<QueueInfo> purged = new ArrayList<QueueInfo>();
+        String purgedDomain = domain.toLowerCase();
+        synchronized (lock) {
+            if (!domainBacklog.containsKey(purgedDomain)) {
+                return purged;
+            }
+            for (QueueInfo qi : queueInfoByMailidAndRecipient.values()) {
+                if (qi.hasState(DeliveryState.QUEUED) && purgedDomain.equals(qi.getRecipientDomain())) {
+                    purged.add(qi);
+                }
+            }
+            // Listeners are notified, so the items are changed after the scan
+            for (QueueInfo qi : purged) {
+                dequeue(qi);
+                expiryIndex.remove(qi);
+                qi.setResultInfo(resultInfo);
+                qi.setState(DeliveryState.FAILED);
+                getTenant(qi.getTenant()).failed++;
+            }
+        }
+        return purged;
+    }
+
+    @Override
+    public List<QueueInfo> expire(int max) {
+        List<QueueInfo> expired = new ArrayList<QueueInfo>();
+        synchronized (lock) {
+            while (expired.size() < max && !outOfBounds.isEmpty()) {
+                QueueInfo qi = outOfBounds.poll();
+                // It could be removed or purged since it was skipped
+                if (qi.hasState(DeliveryState.QUEUED) && qi == queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()))) {
+                    failExpired(qi);
+                    expired.add(qi);
+                }
             }
+            long now = System.currentTimeMillis();
+            Iterator<QueueInfo> expiryIt = expiryIndex.iterator();
+            while (expired.size() < max && expiryIt.hasNext()) {
+                QueueInfo qi = expiryIt.next();
+                if (now < qi.getExpiry()) {
+                    break;
+                }
+                if (qi.hasState(DeliveryState.QUEUED)) {
+                    dequeue(qi);
+                    expiryIt.remove();
+                    failExpired(qi);
+                    expired.add(qi);
+                }
+            }
+        }
+        // The items are failed already, so the listeners are notified without lock
+        for (QueueInfo qi : expired) {
+            qi.setState(DeliveryState.FAILED);
+        }
+        return expired;
+    }
+
+    /**
+     * Fail an expired item, which is out of the queue, without notifying the
+     * listeners. Other sweeps and purges skip it, because it is not QUEUED
+     * anymore. Call it under lock.
+     */
+    private void failExpired(QueueInfo qi) {
+        if (qi.getResultInfo() == null || qi.getResultInfo().isEmpty()) {
+            qi.setResultInfo("Delivery is out of time.");
+        }
+        qi.changeState(DeliveryState.FAILED);
+        getTenant(qi.getTenant()).failed++;
+    }
+
+    @Override
+    public int getExpiringCount() {
+        synchronized (lock) {
+            return expiryIndex.size();
         }
     }
 
@@ -202,7 +607,568 @@ public class SimpleQueueStore implements QueueStore {
         return queueInfoByMailid.size();
     }
 
+    @Override
+    public int getMessageCount() {
+        return size();
+    }
+
+    @Override
+    public int getQueuedCount() {
+        synchronized (lock) {
+            int queued = schedule.size() + scheduled.size();
+            for (ReadyLane lane : readyLanes.values()) {
+                queued += lane.size();
+            }
+            return queued;
+        }
+    }
+
+    @Override
+    public int getReadyCount() {
+        synchronized (lock) {
+            promoteSendable(System.currentTimeMillis());
+            int ready = 0;
+            for (ReadyLane lane : readyLanes.values()) {
+                ready += lane.size();
+            }
+            return ready;
+        }
+    }
+
+    @Override
+    public int getDeferredCount() {
+        synchronized (lock) {
+            promoteSendable(System.currentTimeMillis());
+            return schedule.size() + scheduled.size();
+        }
+    }
+
+    @Override
+    public int getScheduledCount() {
+        synchronized (lock) {
+            promoteSendable(System.currentTimeMillis());
+            return scheduled.size();
+        }
+    }
+
+    @Override
+    public int getInProgressCount() {
+        synchronized (lock) {
+            return inProgress.size();
+        }
+    }
+
+    @Override
+    public long getOldestItemAge() {
+        long oldest;
+        synchronized (lock) {
+            while (!byCreation.isEmpty() && !byCreation.first().hasState(DeliveryState.QUEUED, DeliveryState.IN_PROGRESS)) {
+                byCreation.pollFirst();
+            }
+            if (byCreation.isEmpty()) {
+                return 0;
+            }
+            oldest = byCreation.first().getCreated();
+        }
+        return Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    @Override
+    public int getDomainBacklog(String domain) {
+        synchronized (lock) {
+            int[] backlog = domainBacklog.get(domain.toLowerCase());
+            return backlog == null ? 0 : backlog[0];
+        }
+    }
+
+    /**
+     * @return Count of QUEUED items by recipient domain.
+     */
+    public Map<String, Integer> getDomainBacklogs() {
+        Map<String, Integer> backlogs = new HashMap<String, Integer>();
+        synchronized (lock) {
+            for (Map.Entry<String, int[]> backlog : domainBacklog.entrySet()) {
+                backlogs.put(backlog.getKey(), backlog.getValue()[0]);
+            }
+        }
+        return backlogs;
+    }
+
+    @Override
+    public String[] getDomainBacklogSummary() {
+        List<Map.Entry<String, Integer>> backlogs = new ArrayList<Map.Entry<String, Integer>>(getDomainBacklogs().entrySet());
+        Collections.sort(backlogs, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        String[] summary = new String[Math.min(DOMAIN_BACKLOG_SUMMARY_SIZE, backlogs.size())];
+        for (int i = 0; i < summary.length; i++) {
+            summary[i] = backlogs.get(i).getKey() + "=" + backlogs.get(i).getValue();
+        }
+        return summary;
+    }
+
+    /**
+     * @param priority A priority lane.
+     * @return Count of sendable items waiting in this lane.
+     */
+    public int getReadySize(DeliveryPriority priority) {
+        synchronized (lock) {
+            promoteSendable(System.currentTimeMillis());
+            return readyLanes.get(priority).size();
+        }
+    }
+
+    /**
+     * @return Statistics of all the tenants seen by this store, ordered by
+     * tenant key.
+     */
+    public List<TenantStats> getTenantStats() {
+        List<TenantStats> stats = new ArrayList<TenantStats>();
+        synchronized (lock) {
+            for (Tenant tenant : new TreeMap<String, Tenant>(tenants).values()) {
+                stats.add(new TenantStats(tenant.name, tenant.queued, tenant.inProgress, tenant.claimed, tenant.sent, tenant.failed));
+            }
+        }
+        return stats;
+    }
+
     private String createSearchKey(String mailid, String recipient) {
         return mailid + "-" + recipient;
     }
+
+    /**
+     * Put a QUEUED item into the schedule. Call it under lock.
+     */
+    private void enqueue(QueueInfo qi) {
+        if (qi.hasState(DeliveryState.QUEUED) && schedule.add(qi)) {
+            countQueued(qi, 1);
+        }
+    }
+
+    /**
+     * Remove an item from the schedule and from its lane. Call it under lock
+     * and before the attempt of the item is changed.
+     */
+    private void dequeue(QueueInfo qi) {
+        if (schedule.remove(qi) || readyLanes.get(laneOf(qi)).remove(qi) || scheduled.remove(qi)) {
+            countQueued(qi, -1);
+        }
+    }
+
+    /**
+     * Update the queued counters of the tenant and the domain of an item.
+     * Call it under lock.
+     */
+    private void countQueued(QueueInfo qi, int delta) {
+        getTenant(qi.getTenant()).queued += delta;
+        int[] backlog = domainBacklog.get(qi.getRecipientDomain());
+        if (backlog == null) {
+            backlog = new int[1];
+            domainBacklog.put(qi.getRecipientDomain(), backlog);
+        }
+        backlog[0] += delta;
+        if (backlog[0] <= 0) {
+            domainBacklog.remove(qi.getRecipientDomain());
+        }
+    }
+
+    /**
+     * Called under lock when a claimed item is not in progress anymore.
+     */
+    private void finishProgress(QueueInfo qi) {
+        if (inProgress.remove(qi)) {
+            getTenant(qi.getTenant()).inProgress--;
+            DomainRamp ramp = domainRamps.get(qi.getRecipientDomain());
+            if (ramp != null && 0 < ramp.inProgress) {
+                ramp.inProgress--;
+            }
+        }
+    }
+
+    /**
+     * Update the ramp of the domain of a finished attempt. Temporary failures,
+     * which could be caused by an outage or by overload of the receiver,
+     * halve the limit of the domain, but at most once in a ramp interval.
+     * Every success increases it by one, so it doubles when a full round of
+     * deliveries succeeds. Call it under lock.
+     */
+    private void updateRamp(QueueInfo qi) {
+        int rampMax = configuration.getDeliveryRampMax();
+        String domain = qi.getRecipientDomain();
+        DomainRamp ramp = domainRamps.get(domain);
+        if (rampMax <= 0) {
+            if (!domainRamps.isEmpty()) {
+                domainRamps.clear();
+            }
+            return;
+        }
+        if (qi.hasState(DeliveryState.QUEUED) && isOverloadFailure(qi.getFailureClass())) {
+            if (ramp == null) {
+                ramp = new DomainRamp(rampMax);
+                for (QueueInfo active : inProgress) {
+                    if (domain.equals(active.getRecipientDomain())) {
+                        ramp.inProgress++;
+                    }
+                }
+                domainRamps.put(domain, ramp);
+            }
+            long now = System.currentTimeMillis();
+            if (ramp.decreased + configuration.getDeliveryRampInterval() <= now) {
+                ramp.limit = Math.max(1, ramp.limit / 2);
+                ramp.decreased = now;
+            }
+        } else if (ramp != null && qi.hasState(DeliveryState.SENT)) {
+            ramp.limit++;
+            if (rampMax <= ramp.limit) {
+                domainRamps.remove(domain);
+            }
+        }
+    }
+
+    private static boolean isOverloadFailure(FailureClass failureClass) {
+        return failureClass == null || failureClass == FailureClass.TRANSIENT || failureClass == FailureClass.THROTTLED
+                || failureClass == FailureClass.CONNECTION || failureClass == FailureClass.DNS;
+    }
+
+    /**
+     * If the domain of a sendable item ramps up and reached its limit, the
+     * item is put back into the schedule. The deferred items are spread
+     * evenly over the next ramp intervals, about limit items per interval.
+     * Call it under lock, after the item is polled from its lane.
+     *
+     * @return true if the item is deferred.
+     */
+    private boolean deferRamping(QueueInfo qi, long now) {
+        DomainRamp ramp = domainRamps.get(qi.getRecipientDomain());
+        if (ramp == null || ramp.inProgress < ramp.limit) {
+            return false;
+        }
+        long interval = configuration.getDeliveryRampInterval();
+        ramp.deferred = (ramp.deferred + 1) % (RAMP_SLOTS * ramp.limit);
+        qi.setAttempt(now + interval + interval * ramp.deferred / ramp.limit);
+        enqueue(qi);
+        return true;
+    }
+
+    /**
+     * @param domain A recipient domain.
+     * @return The limit of parallel deliveries of the domain, while it ramps
+     * up after failures, or -1 if it is not limited.
+     */
+    public int getDomainRampLimit(String domain) {
+        synchronized (lock) {
+            DomainRamp ramp = domainRamps.get(domain.toLowerCase());
+            return ramp == null ? -1 : ramp.limit;
+        }
+    }
+
+    private Tenant getTenant(String name) {
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant(name);
+            tenants.put(name, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * @return true if the tenant could not start a new delivery now, because
+     * of its concurrency or rate limit.
+     */
+    private boolean isTenantLimited(Tenant tenant, long now) {
+        int concurrencyMax = configuration.getTenantConcurrencyMax();
+        if (0 < concurrencyMax && concurrencyMax <= tenant.inProgress) {
+            return true;
+        }
+        int rateMax = configuration.getTenantRateMax();
+        if (0 < rateMax) {
+            if (tenant.tokensUpdated == 0) {
+                tenant.tokens = rateMax;
+            } else {
+                tenant.tokens = Math.min(rateMax, tenant.tokens + (now - tenant.tokensUpdated) * rateMax / 1000.0);
+            }
+            tenant.tokensUpdated = now;
+            return tenant.tokens < 1;
+        }
+        return false;
+    }
+
+    private int getTenantWeight(String tenant) {
+        Integer weight = tenantWeights.get(tenant);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @return The lane of an item, the slow items are served in the BULK lane.
+     */
+    private static DeliveryPriority laneOf(QueueInfo qi) {
+        return qi.isSlow() ? DeliveryPriority.BULK : qi.getPriority();
+    }
+
+    /**
+     * Move the items which attempt time is over from the schedule into their
+     * lanes. Call it under lock.
+     */
+    private void promoteSendable(long now) {
+        releaseScheduled(now);
+        while (!schedule.isEmpty() && schedule.first().getAttempt() < now) {
+            QueueInfo qi = schedule.pollFirst();
+            readyLanes.get(laneOf(qi)).add(qi);
+        }
+    }
+
+    /**
+     * Move the due scheduled items into their ready lanes, at most
+     * {@link Configuration#getDeliveryScheduledRate()} items per second, so
+     * a large scheduled campaign becomes sendable gradually. Call it under
+     * lock.
+     */
+    private void releaseScheduled(long now) {
+        int rate = configuration.getDeliveryScheduledRate();
+        if (0 < rate) {
+            // Token bucket, at most one second of items is released at once
+            scheduledTokens = Math.min(rate, scheduledTokens + (now - scheduledRefilled) * rate / 1000.0);
+        }
+        scheduledRefilled = now;
+        while (!scheduled.isEmpty() && scheduled.first().getAttempt() < now && (rate <= 0 || 1 <= scheduledTokens)) {
+            QueueInfo qi = scheduled.pollFirst();
+            readyLanes.get(laneOf(qi)).add(qi);
+            if (0 < rate) {
+                scheduledTokens--;
+            }
+        }
+    }
+
+    /**
+     * A lane which got less than its minimal share of recent claims is served
+     * first, otherwise the highest non-empty lane is served.
+     */
+    private DeliveryPriority pickLane(boolean[] blockedLanes) {
+        DeliveryPriority highest = null;
+        DeliveryPriority starving = null;
+        double starvingRatio = 1;
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            if (blockedLanes[priority.ordinal()] || readyLanes.get(priority).isEmpty()) {
+                continue;
+            }
+            if (highest == null) {
+                highest = priority;
+            }
+            double share = laneShares[priority.ordinal()];
+            if (0 < share) {
+                double ratio = windowClaims == 0 ? 0 : (double) laneClaims[priority.ordinal()] / windowClaims / share;
+                if (ratio < starvingRatio) {
+                    starving = priority;
+                    starvingRatio = ratio;
+                }
+            }
+        }
+        return starving == null ? highest : starving;
+    }
+
+    private void countClaim(DeliveryPriority lane) {
+        laneClaims[lane.ordinal()]++;
+        windowClaims++;
+        if (LANE_WINDOW <= windowClaims) {
+            // Halve the history, so recent claims count more
+            for (int i = 0; i < laneClaims.length; i++) {
+                laneClaims[i] /= 2;
+            }
+            windowClaims /= 2;
+        }
+    }
+
+    private void updateLaneShares() {
+        String sharesConfig = configuration.getDeliveryPriorityShares();
+        if (sharesConfig == null || sharesConfig.equals(laneSharesConfig)) {
+            return;
+        }
+        double[] shares = new double[DeliveryPriority.values().length];
+        for (String share : sharesConfig.split(",")) {
+            String[] parts = share.split("=");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                shares[DeliveryPriority.valueOf(parts[0].trim().toUpperCase()).ordinal()] = Double.parseDouble(parts[1].trim()) / 100;
+            } catch (IllegalArgumentException e) {
+                log.warn("SimpleQueueStore.updateLaneShares(): Invalid lane share '{}'.", share);
+            }
+        }
+        laneShares = shares;
+        laneSharesConfig = sharesConfig;
+    }
+
+    private void updateTenantWeights() {
+        String weightsConfig = configuration.getTenantWeights();
+        if (weightsConfig == null || weightsConfig.equals(tenantWeightsConfig)) {
+            return;
+        }
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for (String weight : weightsConfig.split(",")) {
+            int separator = weight.lastIndexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            try {
+                weights.put(weight.substring(0, separator).trim(), Math.max(1, Integer.parseInt(weight.substring(separator + 1).trim())));
+            } catch (NumberFormatException e) {
+                log.warn("SimpleQueueStore.updateTenantWeights(): Invalid tenant weight '{}'.", weight);
+            }
+        }
+        tenantWeights = weights;
+        tenantWeightsConfig = weightsConfig;
+    }
+
+    /**
+     * Slow start state of a domain after temporary failures.
+     */
+    private static class DomainRamp {
+
+        private int limit;
+        private int inProgress = 0;
+        /**
+         * Position of the last deferred item in the ramp slots.
+         */
+        private int deferred = 0;
+        /**
+         * Time of the last decrease of the limit.
+         */
+        private long decreased = 0;
+
+        DomainRamp(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    private static class Tenant {
+
+        private final String name;
+        private int queued = 0;
+        private int inProgress = 0;
+        private long claimed = 0;
+        private long sent = 0;
+        private long failed = 0;
+        private double tokens = 0;
+        private long tokensUpdated = 0;
+        /**
+         * Remaining deficit of this tenant in the current round of a lane.
+         */
+        private final int[] deficits = new int[DeliveryPriority.values().length];
+
+        Tenant(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Sendable items of one priority lane, in separate queues by tenant. The
+     * tenants are served by deficit round robin: the tenant at the head of
+     * the round gets its weight as deficit, and it is served until the
+     * deficit is spent or its queue is empty. Only claimed items spend the
+     * deficit, so failed or deferred items do not take the turn of their
+     * tenant. Call its methods under lock.
+     */
+    private class ReadyLane {
+
+        private final Map<String, LinkedHashSet<QueueInfo>> queues = new HashMap<String, LinkedHashSet<QueueInfo>>();
+        private final ArrayDeque<String> round = new ArrayDeque<String>();
+        private final int ordinal;
+        private int size = 0;
+
+        ReadyLane(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        void add(QueueInfo qi) {
+            LinkedHashSet<QueueInfo> queue = queues.get(qi.getTenant());
+            if (queue == null) {
+                queue = new LinkedHashSet<QueueInfo>();
+                queues.put(qi.getTenant(), queue);
+                round.addLast(qi.getTenant());
+            }
+            if (queue.add(qi)) {
+                size++;
+            }
+        }
+
+        boolean remove(QueueInfo qi) {
+            LinkedHashSet<QueueInfo> queue = queues.get(qi.getTenant());
+            if (queue == null || !queue.remove(qi)) {
+                return false;
+            }
+            size--;
+            if (queue.isEmpty()) {
+                removeTenant(qi.getTenant());
+            }
+            return true;
+        }
+
+        /**
+         * Take the next item by the fair order. It does not spend the deficit
+         * of its tenant, {@link #charge(String)} does it, if the item is
+         * claimed.
+         *
+         * @return The next item, or null if this lane is empty or every
+         * tenant in it is limited.
+         */
+        QueueInfo poll(long now) {
+            int skipped = 0;
+            while (skipped < round.size()) {
+                String name = round.peekFirst();
+                Tenant tenant = getTenant(name);
+                if (isTenantLimited(tenant, now)) {
+                    round.addLast(round.pollFirst());
+                    skipped++;
+                    continue;
+                }
+                if (tenant.deficits[ordinal] <= 0) {
+                    tenant.deficits[ordinal] += getTenantWeight(name);
+                }
+                LinkedHashSet<QueueInfo> queue = queues.get(name);
+                Iterator<QueueInfo> queueIt = queue.iterator();
+                QueueInfo qi = queueIt.next();
+                queueIt.remove();
+                size--;
+                if (queue.isEmpty()) {
+                    removeTenant(name);
+                }
+                return qi;
+            }
+            return null;
+        }
+
+        /**
+         * Spend the deficit of a tenant for a claimed item, which was just
+         * polled. If the deficit is spent, the next tenant is served.
+         */
+        void charge(String name) {
+            if (!queues.containsKey(name)) {
+                // Its queue is empty, its round is over
+                return;
+            }
+            Tenant tenant = getTenant(name);
+            tenant.deficits[ordinal]--;
+            if (tenant.deficits[ordinal] <= 0 && name.equals(round.peekFirst())) {
+                round.addLast(round.pollFirst());
+            }
+        }
+
+        private void removeTenant(String name) {
+            queues.remove(name);
+            round.remove(name);
+            getTenant(name).deficits[ordinal] = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+    }
 }
@@ -0,0 +1,63 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * <p>This is the JMX bean of the in-memory queue store. It shows the live
+ * state of the queue.</p>
+ *
+ */
+public interface SimpleQueueStoreMBean {
+
+    /**
+     * @return Count of messages in the queue.
+     */
+    public int getMessageCount();
+
+    /**
+     * @return Count of QUEUED items, ready and deferred together.
+     */
+    public int getQueuedCount();
+
+    /**
+     * @return Count of QUEUED items, which are sendable now.
+     */
+    public int getReadyCount();
+
+    /**
+     * @return Count of QUEUED items, which wait for their next attempt.
+     */
+    public int getDeferredCount();
+
+    /**
+     * @return Count of new QUEUED items, which wait for their scheduled
+     * delivery time or for their release after it.
+     */
+    public int getScheduledCount();
+
+    /**
+     * @return Count of items in delivery.
+     */
+    public int getInProgressCount();
+
+    /**
+     * @return Count of unfinished items with an expiry time.
+     */
+    public int getExpiringCount();
+
+    /**
+     * @return Age of the oldest QUEUED or IN_PROGRESS item in milliseconds,
+     * 0 if there is no such item. It scans the queue.
+     */
+    public long getOldestItemAge();
+
+    /**
+     * @param domain A recipient domain.
+     * @return Count of QUEUED items of this domain.
+     */
+    public int getDomainBacklog(String domain);
+
+    /**
+     * @return The domains with the most QUEUED items in "domain=count"
+     * format, at most 20 of them, in decreasing order.
+     */
+    public String[] getDomainBacklogSummary();
+}
@@ -0,0 +1,68 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * Snapshot of the queue state and the throughput of one tenant.
+ *
+ */
+public class TenantStats {
+
+    private final String tenant;
+    private final int queued;
+    private final int inProgress;
+    private final long claimed;
+    private final long sent;
+    private final long failed;
+
+    public TenantStats(String tenant, int queued, int inProgress, long claimed, long sent, long failed) {
+        this.tenant = tenant;
+        this.queued = queued;
+        this.inProgress = inProgress;
+        this.claimed = claimed;
+        this.sent = sent;
+        this.failed = failed;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * @return Count of queued recipients waiting for delivery.
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return Count of recipients under delivery.
+     */
+    public int getInProgress() {
+        return inProgress;
+    }
+
+    /**
+     * @return Count of delivery attempts started since startup.
+     */
+    public long getClaimed() {
+        return claimed;
+    }
+
+    /**
+     * @return Count of recipients delivered since startup.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return Count of recipients failed since startup.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return "Tenant: [tenant=" + tenant + "; queued=" + queued + "; inProgress=" + inProgress + "; claimed=" + claimed + "; sent=" + sent + "; failed=" + failed + "];";
+    }
+}
@@ -0,0 +1,294 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.Helper;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.queue.DeliveryPriority;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Test of queueing messages through the DeliveryManager.</p>
+ *
+ */
+public class DeliveryManagerTest {
+
+    private Configuration configuration;
+    private Session session;
+    private SimpleMailStore mailStore;
+    private SimpleQueueStore queueStore;
+    private DeliveryManager deliveryManager;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+        session = Session.getInstance(new Properties());
+        mailStore = new SimpleMailStore();
+        queueStore = new SimpleQueueStore(configuration, null);
+        deliveryManager = new DeliveryManager(configuration, queueStore, mailStore);
+    }
+
+    @After
+    public void tearDown() {
+        deliveryManager.shutdown();
+    }
+
+    private MimeMessage createMessage(String mailid, String... recipients) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        for (String recipient : recipients) {
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+        }
+        message.setSubject("Test " + mailid);
+        message.setText("Body of " + mailid);
+        return message;
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        List<MimeMessage> messages = new ArrayList<MimeMessage>();
+        for (int i = 0; i < 500; i++) {
+            messages.add(createMessage("mail" + i, "a" + i + "@one.com", "b" + i + "@two.com"));
+        }
+
+        List<String> mailids = deliveryManager.addAll(messages);
+        Assert.assertEquals(500, mailids.size());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals("mail" + i, mailids.get(i));
+            Assert.assertSame(messages.get(i), mailStore.get("mail" + i));
+        }
+        Assert.assertEquals(500, queueStore.size());
+        Assert.assertEquals(1000, queueStore.next(2000, false).size());
+    }
+
+    @Test
+    public void testAddWithRecipients() throws Exception {
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+        for (int i = 0; i < 100; i++) {
+            recipients.add(new InternetAddress("r" + i + "@example.com"));
+        }
+
+        String mailid = deliveryManager.add(createMessage("campaign"), recipients);
+        Assert.assertEquals("campaign", mailid);
+        List<QueueInfo> claimed = queueStore.next(200, false);
+        Assert.assertEquals(100, claimed.size());
+        for (QueueInfo qi : claimed) {
+            Assert.assertEquals("campaign", qi.getMailid());
+        }
+    }
+
+    @Test
+    public void testDeliverAt() throws Exception {
+        MimeMessage message = createMessage("scheduled", "a@one.com", "b@two.com");
+        Helper helper = new Helper(configuration);
+        long deliverAt = System.currentTimeMillis() + 60000;
+        helper.setDeliverAt(message, deliverAt);
+        Assert.assertEquals(deliverAt, helper.getDeliverAt(message));
+
+        deliveryManager.add(message);
+        Assert.assertEquals(2, queueStore.getScheduledCount());
+        Assert.assertTrue(queueStore.next(10, false).isEmpty());
+        Assert.assertEquals(deliverAt, queueStore.getNextAttempt("scheduled"));
+    }
+
+    @Test
+    public void testDeliverAtExpiry() throws Exception {
+        configuration.setExpiry(300L);
+        MimeMessage message = createMessage("scheduled", "a@one.com", "b@two.com");
+        Helper helper = new Helper(configuration);
+        long deliverAt = System.currentTimeMillis() + 500L;
+        helper.setDeliverAt(message, deliverAt);
+        // The relative expiry is counted from the delivery time
+        Assert.assertEquals(deliverAt + 300L, helper.getExpiry(message));
+
+        deliveryManager.add(message);
+        Thread.sleep(Math.max(0, deliverAt + 50L - System.currentTimeMillis()));
+        Assert.assertEquals(2, queueStore.next(10, false).size());
+
+        // An explicit expiry header is kept
+        MimeMessage expiring = createMessage("expiring", "a@one.com");
+        helper.setDeliverAt(expiring, System.currentTimeMillis() + 60000L);
+        helper.setExpiry(expiring, 100L);
+        Assert.assertTrue(helper.getExpiry(expiring) < helper.getDeliverAt(expiring));
+    }
+
+    @Test
+    public void testAddBulk() throws Exception {
+        MimeMessage template = createMessage("newsletter");
+        template.setSubject("News for ${name}");
+        template.setText("Dear ${name}, your code is ${code}. Price: $5, ${unknown} stays.", "UTF-8");
+        template.setHeader("Content-Transfer-Encoding", "8bit");
+        Map<InternetAddress, Map<String, String>> recipients = new LinkedHashMap<InternetAddress, Map<String, String>>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> variables = new HashMap<String, String>();
+            variables.put("name", "R\u00e9ader " + i);
+            variables.put("code", "C" + i);
+            recipients.put(new InternetAddress("r" + i + "@example.com"), variables);
+        }
+
+        Assert.assertEquals("newsletter", deliveryManager.addBulk(template, recipients));
+        Assert.assertEquals(1, mailStore.getMailIds().size());
+        List<QueueInfo> claimed = queueStore.next(2000, false);
+        Assert.assertEquals(1000, claimed.size());
+        QueueInfo qi = claimed.get(0);
+        Assert.assertSame(recipients.get(new InternetAddress(qi.getRecipient())), qi.getVariables());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mailStore.get("newsletter").writeTo(out);
+        MimeMessage rendered = new MimeMessage(session, new TemplateInputStream(new ByteArrayInputStream(out.toByteArray()), qi.getVariables()));
+        String name = qi.getVariables().get("name");
+        Assert.assertEquals("News for " + name, rendered.getSubject());
+        Assert.assertEquals("Dear " + name + ", your code is " + qi.getVariables().get("code") + ". Price: $5, ${unknown} stays.", rendered.getContent());
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        deliveryManager.add(createMessage("mail1", "a@one.com", "b@two.com"));
+        deliveryManager.add(createMessage("mail2", "c@one.com"));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        deliveryManager.registerMBeans(server, "test");
+        ObjectName engineName = new ObjectName("org.masukomi.aspirin:type=DeliveryManager,name=test");
+        ObjectName queueName = new ObjectName("org.masukomi.aspirin:type=QueueStore,name=test");
+        Assert.assertTrue(server.isRegistered(new ObjectName("org.masukomi.aspirin:type=Configuration,name=test")));
+        Assert.assertTrue(server.isRegistered(new ObjectName("org.masukomi.aspirin:type=DeliveryMetrics,name=test")));
+        Assert.assertEquals(3, server.getAttribute(queueName, "QueuedCount"));
+        Assert.assertEquals(Boolean.FALSE, server.getAttribute(engineName, "DispatchPaused"));
+
+        server.invoke(engineName, "pauseDispatch", null, null);
+        Assert.assertTrue(deliveryManager.isDispatchPaused());
+        server.invoke(engineName, "resumeDispatch", null, null);
+        Assert.assertFalse(deliveryManager.isDispatchPaused());
+
+        Assert.assertEquals(2, server.invoke(engineName, "purgeDomain", new Object[]{"one.com"}, new String[]{String.class.getName()}));
+        Assert.assertEquals(1, server.getAttribute(queueName, "QueuedCount"));
+        Assert.assertNull(mailStore.get("mail2"));
+        Assert.assertNotNull(mailStore.get("mail1"));
+
+        deliveryManager.shutdown();
+        Assert.assertFalse(server.isRegistered(engineName));
+    }
+
+    @Test
+    public void testAdmissionReject() throws Exception {
+        configuration.setAdmissionRecipientsMax(3);
+        configuration.setAdmissionRecipientsPolicy("REJECT");
+        AdmissionControl admissionControl = deliveryManager.getAdmissionControl();
+
+        deliveryManager.add(createMessage("mail1", "a@one.com", "b@one.com"));
+        Assert.assertEquals(2, admissionControl.getQueuedRecipients());
+        Assert.assertEquals(2, admissionControl.getQueuedRecipients("sender@example.com"));
+        Assert.assertEquals(2.0 / 3, admissionControl.getRecipientsUtilization(), 0.001);
+        try {
+            deliveryManager.add(createMessage("mail2", "c@one.com", "d@one.com"));
+            Assert.fail("Admission limit is not applied.");
+        } catch (AdmissionException ae) {
+            Assert.assertEquals(Configuration.PARAM_ADMISSION_RECIPIENTS_MAX, ae.getLimitName());
+        }
+        Assert.assertNull(mailStore.get("mail2"));
+
+        deliveryManager.remove("mail1");
+        Assert.assertEquals(0, admissionControl.getQueuedRecipients());
+        deliveryManager.add(createMessage("mail2", "c@one.com", "d@one.com"));
+    }
+
+    @Test
+    public void testExpiryReleasesAdmission() throws Exception {
+        configuration.setDeliveryExpirySweepInterval(0);
+        configuration.setDeliveryAttemptCount(1);
+        configuration.setDeliveryRetryPolicies("TRANSIENT=0:1:0");
+        AdmissionControl admissionControl = deliveryManager.getAdmissionControl();
+        MimeMessage expiring = createMessage("mail1", "a@one.com", "b@one.com");
+        new Helper(configuration).setExpiry(expiring, 20);
+        deliveryManager.add(expiring);
+        deliveryManager.add(createMessage("mail2", "c@two.com"));
+
+        // The attempt of mail2 fails, so it is out of attempts
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertEquals(3, claimed.size());
+        deliveryManager.release(claimed.get(0));
+        deliveryManager.release(claimed.get(1));
+        deliveryManager.release(claimed.get(2));
+        Thread.sleep(30);
+
+        // Out of bounds items are not failed by the claim, but by the sweep
+        Assert.assertTrue(queueStore.next(10, false).isEmpty());
+        Assert.assertEquals(3, admissionControl.getQueuedRecipients());
+        Assert.assertEquals(3, deliveryManager.sweepExpired());
+        Assert.assertEquals(0, admissionControl.getQueuedRecipients());
+        Assert.assertNull(mailStore.get("mail1"));
+        Assert.assertNull(mailStore.get("mail2"));
+    }
+
+    @Test
+    public void testAdmissionBlockTimeout() throws Exception {
+        configuration.setAdmissionBytesMax(10);
+        configuration.setAdmissionTimeout(100);
+
+        deliveryManager.add(createMessage("mail1", "a@one.com"));
+        long start = System.currentTimeMillis();
+        try {
+            deliveryManager.add(createMessage("mail2", "b@one.com"));
+            Assert.fail("Admission limit is not applied.");
+        } catch (AdmissionException ae) {
+            Assert.assertTrue(100 <= System.currentTimeMillis() - start);
+        }
+    }
+
+    @Test
+    public void testNullPriority() throws Exception {
+        MimeMessage message = createMessage("mail1", "a@one.com");
+        Helper helper = new Helper(configuration);
+        helper.setPriority(message, DeliveryPriority.HIGH);
+        helper.setPriority(message, null);
+        Assert.assertEquals(DeliveryPriority.NORMAL, helper.getPriority(message));
+    }
+
+    @Test
+    public void testAdmissionBytesOfParsedMessage() throws Exception {
+        configuration.setAdmissionBytesMax(100000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        createMessage("mail1", "a@one.com").writeTo(out);
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+
+        deliveryManager.add(parsed);
+        Assert.assertEquals(out.size(), deliveryManager.getAdmissionControl().getQueuedBytes());
+    }
+
+    @Test
+    public void testAdmissionSpill() throws Exception {
+        configuration.setAdmissionBytesMax(10);
+        configuration.setAdmissionBytesPolicy("SPILL");
+        SimpleMailStore spillMailStore = new SimpleMailStore();
+        deliveryManager.setSpillMailStore(spillMailStore);
+
+        deliveryManager.add(createMessage("mail1", "a@one.com"));
+        deliveryManager.add(createMessage("mail2", "b@one.com"));
+        Assert.assertNotNull(mailStore.get("mail1"));
+        Assert.assertNull(mailStore.get("mail2"));
+        Assert.assertNotNull(spillMailStore.get("mail2"));
+        Assert.assertEquals(2, deliveryManager.getAdmissionControl().getQueuedRecipients());
+    }
+}
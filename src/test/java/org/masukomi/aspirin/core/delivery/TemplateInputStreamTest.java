@@ -0,0 +1,104 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of rendering template messages while they are read.</p>
+ *
+ */
+public class TemplateInputStreamTest {
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private byte[] render(String source, Map<String, String> variables, int chunkSize) throws Exception {
+        InputStream in = new TemplateInputStream(new ByteArrayInputStream(source.getBytes("UTF-8")), variables);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[chunkSize];
+        int read;
+        while ((read = chunkSize == 1 ? in.read() : in.read(chunk, 0, chunkSize)) != -1) {
+            if (chunkSize == 1) {
+                out.write(read);
+            } else {
+                out.write(chunk, 0, read);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testHeaderInjection() throws Exception {
+        Map<String, String> variables = new HashMap<String, String>();
+        variables.put("name", "Bob\r\nBcc: victim@evil.example");
+        String source = "From: sender@example.com\r\nTo: rcpt@example.com\r\nSubject: Hello ${name}\r\n\r\nDear ${name}\r\n";
+
+        MimeMessage rendered = new MimeMessage(session, new ByteArrayInputStream(render(source, variables, 4096)));
+        Assert.assertNull(rendered.getHeader("Bcc"));
+        Assert.assertNull(rendered.getRecipients(Message.RecipientType.BCC));
+        Assert.assertEquals("Hello Bob Bcc: victim@evil.example", rendered.getSubject());
+        Assert.assertEquals("Dear Bob\r\nBcc: victim@evil.example\r\n", rendered.getContent());
+    }
+
+    @Test
+    public void testPreparedTemplate() throws Exception {
+        MimeMessage template = new MimeMessage(session);
+        template.setSubject("News");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Dear ${name}, read more at ${link}", "ISO-8859-1");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setText("<p>Caf\u00e9 news for ${name}: <a href=\"${link}\">more</a></p>", "ISO-8859-1", "html");
+        html.setHeader("Content-Transfer-Encoding", "quoted-printable");
+        MimeMultipart multipart = new MimeMultipart("alternative");
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(html);
+        template.setContent(multipart);
+        template.saveChanges();
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        template.writeTo(source);
+        // A parsed template is prepared as well as a built one
+        template = new MimeMessage(session, new ByteArrayInputStream(source.toByteArray()));
+
+        TemplateInputStream.prepareTemplate(template);
+        source = new ByteArrayOutputStream();
+        template.writeTo(source);
+        Map<String, String> variables = new HashMap<String, String>();
+        variables.put("name", "Zo\u00eb");
+        variables.put("link", "https://example.com/?a=3D1&b=2");
+        MimeMessage rendered = new MimeMessage(session, new ByteArrayInputStream(render(new String(source.toByteArray(), "UTF-8"), variables, 4096)));
+        MimeMultipart parts = (MimeMultipart) rendered.getContent();
+        Assert.assertEquals("Dear Zo\u00eb, read more at https://example.com/?a=3D1&b=2", parts.getBodyPart(0).getContent());
+        Assert.assertEquals("<p>Caf\u00e9 news for Zo\u00eb: <a href=\"https://example.com/?a=3D1&b=2\">more</a></p>", parts.getBodyPart(1).getContent());
+    }
+
+    @Test
+    public void testBulkRead() throws Exception {
+        Map<String, String> variables = new HashMap<String, String>();
+        variables.put("name", "R\u00e9ader");
+        variables.put("code", "C42");
+        StringBuilder source = new StringBuilder("Subject: News for ${name}\r\n\r\n");
+        while (source.length() < 3 * 8192) {
+            // Placeholders cross the boundaries of the reads and of the buffer
+            source.append("Dear ${name}, your code is ${code}. Price: $5, ${unknown} stays, ${ broken\r\n");
+        }
+        byte[] expected = render(source.toString(), variables, 1);
+        Assert.assertArrayEquals(expected, render(source.toString(), variables, 7));
+        Assert.assertArrayEquals(expected, render(source.toString(), variables, 4096));
+        String rendered = new String(expected, "UTF-8");
+        Assert.assertTrue(rendered.startsWith("Subject: News for =?UTF-8?B?"));
+        Assert.assertTrue(rendered.contains("Dear R\u00e9ader, your code is C42. Price: $5, ${unknown} stays, ${ broken\r\n"));
+    }
+}
@@ -0,0 +1,69 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.io.File;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.metrics.DeliveryEvents.Kind;
+
+/**
+ * <p>Test of the Java Flight Recorder events.</p>
+ *
+ */
+public class DeliveryEventsTest {
+
+    @After
+    public void tearDown() {
+        DeliveryEvents.setEnabled(false);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Assert.assertFalse(DeliveryEvents.isEnabled());
+        DeliveryEvents.Event event = DeliveryEvents.begin(Kind.DELIVERY);
+        Assert.assertSame(DeliveryEvents.DISABLED, event);
+        Assert.assertFalse(event.isEnabled());
+        event.end("mail1", "example.com", null, 1, "SENT");
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        Assert.assertTrue(DeliveryEvents.setEnabled(true));
+        File file = File.createTempFile("aspirin", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable("org.masukomi.aspirin.Smtp");
+            recording.disable("org.masukomi.aspirin.Dns");
+            recording.start();
+            DeliveryEvents.Event event = DeliveryEvents.begin(Kind.SMTP);
+            Assert.assertTrue(event.isEnabled());
+            event.end("mail1", "example.com", "mx.example.com", 2, "SUCCESS 250");
+            Assert.assertFalse(DeliveryEvents.begin(Kind.DNS).isEnabled());
+            recording.stop();
+            recording.dump(file.toPath());
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+            int found = 0;
+            for (RecordedEvent recorded : events) {
+                if ("org.masukomi.aspirin.Smtp".equals(recorded.getEventType().getName())) {
+                    Assert.assertEquals("mail1", recorded.getString("mailid"));
+                    Assert.assertEquals("example.com", recorded.getString("recipientDomain"));
+                    Assert.assertEquals("mx.example.com", recorded.getString("mxHost"));
+                    Assert.assertEquals(2, recorded.getInt("attempt"));
+                    Assert.assertEquals("SUCCESS 250", recorded.getString("outcome"));
+                    found++;
+                }
+            }
+            Assert.assertEquals(1, found);
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+}
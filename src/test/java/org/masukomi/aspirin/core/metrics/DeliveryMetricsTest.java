@@ -0,0 +1,73 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.ReplyClass;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
+
+/**
+ * <p>Test of the delivery metrics registry.</p>
+ *
+ */
+public class DeliveryMetricsTest {
+
+    @Test
+    public void testRecording() throws Exception {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(Stage.DNS, i * 1000000L);
+        }
+        metrics.record(Stage.DATA, 5000000L);
+        metrics.countReply(250);
+        metrics.countReply(250);
+        metrics.countReply(421);
+        metrics.countReply(550);
+        metrics.countReply(-1);
+
+        Assert.assertEquals(100, metrics.getLatency(Stage.DNS).getCount());
+        Assert.assertEquals(0, metrics.getLatency(Stage.TLS).getCount());
+        Assert.assertEquals(50.5, metrics.getLatencyMean("DNS"), 0.001);
+        Assert.assertEquals(100, metrics.getLatencyPercentile("DNS", 100), 0.001);
+        Assert.assertEquals(99, metrics.getLatencyPercentile("DNS", 99), 99 * 0.125);
+        Assert.assertEquals(2, metrics.getReplyCount(ReplyClass.POSITIVE_COMPLETION));
+        Assert.assertEquals(1, metrics.getTransientNegativeCount());
+        Assert.assertEquals(1, metrics.getPermanentNegativeCount());
+        Assert.assertEquals(1, metrics.getNoReplyCount());
+        Assert.assertEquals(Stage.values().length, metrics.getLatencySummary().length);
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getLatencyCount("DNS"));
+        Assert.assertEquals(0, metrics.getPositiveCompletionCount());
+    }
+
+    @Test
+    public void testReplyClass() {
+        Assert.assertEquals(ReplyClass.POSITIVE_COMPLETION, ReplyClass.of(250));
+        Assert.assertEquals(ReplyClass.POSITIVE_INTERMEDIATE, ReplyClass.of(354));
+        Assert.assertEquals(ReplyClass.TRANSIENT_NEGATIVE, ReplyClass.of(451));
+        Assert.assertEquals(ReplyClass.PERMANENT_NEGATIVE, ReplyClass.of(554));
+        Assert.assertEquals(ReplyClass.NONE, ReplyClass.of(-1));
+        Assert.assertEquals(ReplyClass.NONE, ReplyClass.of(0));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        metrics.record(Stage.CONNECT, 2000000L);
+        metrics.countReply(250);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.masukomi.aspirin:type=DeliveryMetrics,name=test");
+        server.registerMBean(metrics, name);
+        try {
+            Assert.assertEquals(1L, server.getAttribute(name, "PositiveCompletionCount"));
+            Assert.assertEquals(1L, server.invoke(name, "getLatencyCount", new Object[]{"CONNECT"}, new String[]{String.class.getName()}));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable.Order;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable.Outcome;
+
+/**
+ * <p>Test of the per-domain and per-host delivery statistics.</p>
+ *
+ */
+public class DeliveryStatsTableTest {
+
+    @Test
+    public void testRecording() throws Exception {
+        DeliveryStatsTable table = new DeliveryStatsTable();
+        for (int i = 1; i <= 100; i++) {
+            table.record("Example.com", Outcome.SUCCESS, 250, i * 1000000L);
+        }
+        table.record("example.com", Outcome.ofFailure(451), 451, -1);
+        table.record("example.com", Outcome.ofFailure(550), 550, -1);
+
+        DeliveryStats stats = table.get("EXAMPLE.COM");
+        Assert.assertEquals(102, stats.getAttempts(), 0.1);
+        Assert.assertEquals(100, stats.getSuccesses(), 0.1);
+        Assert.assertEquals(1, stats.getTemporaryFailures(), 0.1);
+        Assert.assertEquals(1, stats.getPermanentFailures(), 0.1);
+        Assert.assertEquals(2.0 / 102, stats.getFailureRate(), 0.001);
+        Assert.assertEquals(50.5, stats.getMeanLatency(), 0.1);
+        Assert.assertEquals(99, stats.getP99Latency(), 99 * 0.25);
+        Assert.assertEquals(550, stats.getLastResponseCode());
+        Assert.assertNull(table.get("example.org"));
+    }
+
+    @Test
+    public void testDecay() throws Exception {
+        DeliveryStatsTable table = new DeliveryStatsTable();
+        table.setHalfLife(50);
+        table.record("example.com", Outcome.TEMPORARY_FAILURE, 421, 1000000L);
+        Thread.sleep(200);
+        DeliveryStats stats = table.get("example.com");
+        Assert.assertTrue(stats.getAttempts() < 0.25);
+        Assert.assertEquals(1, stats.getFailureRate(), 0.001);
+        Assert.assertEquals(421, stats.getLastResponseCode());
+    }
+
+    @Test
+    public void testSnapshotOrder() throws Exception {
+        DeliveryStatsTable table = new DeliveryStatsTable();
+        table.record("good.com", Outcome.SUCCESS, 250, 1000000L);
+        table.record("bad.com", Outcome.PERMANENT_FAILURE, 550, 1000000L);
+        table.record("slow.com", Outcome.SUCCESS, 250, 1000000L);
+        table.record("slow.com", Outcome.TEMPORARY_FAILURE, 451, 1000000L);
+        Map<String, Integer> backlogs = new HashMap<String, Integer>();
+        backlogs.put("slow.com", 5);
+        backlogs.put("queued.com", 10);
+
+        List<DeliveryStats> byFailureRate = table.snapshot(Order.FAILURE_RATE, backlogs);
+        Assert.assertEquals(4, byFailureRate.size());
+        Assert.assertEquals("bad.com", byFailureRate.get(0).getKey());
+        Assert.assertEquals("slow.com", byFailureRate.get(1).getKey());
+
+        List<DeliveryStats> byBacklog = table.snapshot(Order.BACKLOG, backlogs);
+        Assert.assertEquals("queued.com", byBacklog.get(0).getKey());
+        Assert.assertEquals(10, byBacklog.get(0).getBacklog());
+        Assert.assertEquals(0, byBacklog.get(0).getAttempts(), 0.001);
+        Assert.assertEquals("slow.com", byBacklog.get(1).getKey());
+        Assert.assertEquals(5, byBacklog.get(1).getBacklog());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DeliveryStatsTable table = new DeliveryStatsTable();
+        table.setMaxEntries(100);
+        for (int i = 0; i < 1000; i++) {
+            table.record("host" + i + ".example.com", Outcome.SUCCESS, 250, 1000000L);
+        }
+        Assert.assertTrue(table.size() <= 100);
+        Assert.assertNotNull(table.get("host999.example.com"));
+    }
+}
@@ -0,0 +1,141 @@
+package org.masukomi.aspirin.core.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.delivery.DeliveryManager;
+import org.masukomi.aspirin.core.metrics.DeliveryMetrics.Stage;
+import org.masukomi.aspirin.core.metrics.DeliveryStatsTable.Outcome;
+import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Test of the Prometheus exporter by a local scrape.</p>
+ *
+ */
+public class PrometheusExporterTest {
+
+    private DeliveryManager deliveryManager;
+    private PrometheusExporter exporter;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration configuration = new Configuration();
+        deliveryManager = new DeliveryManager(configuration, new SimpleQueueStore(configuration, null), new SimpleMailStore());
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setHeader(Aspirin.HEADER_MAIL_ID, "mail1");
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("a@one.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("b@one.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("c@two.com"));
+        message.setText("Body");
+        deliveryManager.add(message);
+        exporter = deliveryManager.startMetricsExporter(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void tearDown() {
+        deliveryManager.shutdown();
+    }
+
+    private String scrape(boolean gzip) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + exporter.getAddress().getPort() + PrometheusExporter.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+        InputStream in = connection.getInputStream();
+        if (gzip) {
+            Assert.assertEquals("gzip", connection.getContentEncoding());
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read; (read = in.read(buffer)) != -1;) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return body.toString("UTF-8");
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        DeliveryMetrics metrics = deliveryManager.getMetrics();
+        metrics.record(Stage.DNS, 3000000L);
+        metrics.countReply(250);
+        metrics.getDomainStats().record("one.com", Outcome.TEMPORARY_FAILURE, 451, 2000000L);
+        metrics.getHostStats().record("mx.one.com", Outcome.TEMPORARY_FAILURE, 451, 2000000L);
+
+        String text = scrape(false);
+        for (String line : text.split("\n")) {
+            Assert.assertTrue(line, line.startsWith("# HELP ") || line.startsWith("# TYPE ")
+                    || line.matches("[a-z_0-9]+(\\{[a-z_]+=\"[^\"]*\"(,le=\"[^\"]+\")?\\})? -?[0-9.E+-]+"));
+        }
+        Assert.assertTrue(text.contains("\naspirin_queue_messages 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_domain_backlog{domain=\"one.com\"} 2\n"));
+        Assert.assertTrue(text.contains("\naspirin_domain_backlog{domain=\"two.com\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_domain_failure_ratio{domain=\"one.com\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_domain_last_response_code{domain=\"one.com\"} 451\n"));
+        Assert.assertTrue(text.contains("\naspirin_host_failure_ratio{host=\"mx.one.com\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_smtp_replies_total{class=\"positive_completion\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_stage_duration_seconds_bucket{stage=\"dns\",le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text.contains("\naspirin_stage_duration_seconds_bucket{stage=\"dns\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_stage_duration_seconds_count{stage=\"dns\"} 1\n"));
+        Assert.assertTrue(text.contains("\naspirin_stage_duration_seconds_bucket{stage=\"tls\",le=\"+Inf\"} 0\n"));
+
+        Assert.assertTrue(scrape(true).contains("\naspirin_domain_backlog{domain=\"one.com\"} 2\n"));
+    }
+
+    @Test
+    public void testScrapeFailure() throws Exception {
+        deliveryManager.shutdown();
+        Configuration configuration = new Configuration();
+        SimpleQueueStore failingStore = new SimpleQueueStore(configuration, null) {
+
+            @Override
+            public int getReadyCount() {
+                throw new IllegalStateException("Simulated failure");
+            }
+        };
+        deliveryManager = new DeliveryManager(configuration, failingStore, new SimpleMailStore());
+        exporter = deliveryManager.startMetricsExporter(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        URL url = new URL("http://127.0.0.1:" + exporter.getAddress().getPort() + PrometheusExporter.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        Assert.assertEquals(500, connection.getResponseCode());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        int port = exporter.getAddress().getPort();
+        deliveryManager.shutdown();
+        Assert.assertNull(exporter.getAddress());
+        try {
+            new URL("http://127.0.0.1:" + port + PrometheusExporter.PATH).openStream().close();
+            Assert.fail("The exporter is not stopped.");
+        } catch (IOException expected) {
+            // The port is closed
+        }
+    }
+}
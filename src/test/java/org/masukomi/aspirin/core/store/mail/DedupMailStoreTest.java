@@ -0,0 +1,229 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the deduplicating mail store.</p>
+ *
+ */
+public class DedupMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Configuration configuration;
+    private Session session;
+    private byte[] attachment;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+        session = Session.getInstance(new Properties());
+        attachment = new byte[50000];
+        for (int i = 0; i < attachment.length; i++) {
+            attachment[i] = (byte) (i * 31 % 251);
+        }
+    }
+
+    private DedupMailStore createStore() {
+        DedupMailStore store = new DedupMailStore(configuration);
+        store.setRootDir(folder.getRoot());
+        store.init();
+        return store;
+    }
+
+    private MimeMessage createMessage(String mailid) throws Exception {
+        return createMessage(mailid, attachment);
+    }
+
+    private MimeMessage createMessage(String mailid, byte[] attachment) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(mailid + "@example.com"));
+        message.setSubject("Invoice " + mailid);
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Dear " + mailid + ", please find your invoice attached.");
+        MimeBodyPart file = new MimeBodyPart();
+        file.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/pdf")));
+        file.setFileName("terms.pdf");
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(file);
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    private byte[] toBytes(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSharedPartStoredOnce() throws Exception {
+        DedupMailStore store = createStore();
+        MimeMessage first = createMessage("mail0");
+        store.set("mail0", first);
+        for (int i = 1; i < 100; i++) {
+            store.set("mail" + i, createMessage("mail" + i));
+        }
+        Assert.assertEquals(1, store.getPartCount());
+        Assert.assertTrue(store.getStoredSize() * 10 < store.getLogicalSize());
+
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        first.writeTo(original);
+        Assert.assertArrayEquals(original.toByteArray(), toBytes(store.getInputStream("mail0")));
+
+        DedupMailStore reopened = createStore();
+        Assert.assertEquals(100, reopened.getMailIds().size());
+        Assert.assertEquals("Invoice mail7", reopened.get("mail7").getSubject());
+        for (int i = 0; i < 100; i++) {
+            reopened.remove("mail" + i);
+        }
+        Assert.assertEquals(0, reopened.getPartCount());
+        Assert.assertEquals(0, reopened.getStoredSize());
+    }
+
+    @Test
+    public void testRemoveWhileStreaming() throws Exception {
+        DedupMailStore store = createStore();
+        MimeMessage message = createMessage("mail1");
+        store.set("mail1", message);
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        message.writeTo(original);
+
+        InputStream in = store.getInputStream("mail1");
+        store.remove("mail1");
+        // The part file is kept until the stream is closed
+        Assert.assertArrayEquals(original.toByteArray(), toBytes(in));
+        Assert.assertEquals(0, store.getPartCount());
+        Assert.assertEquals(0, store.getStoredSize());
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        DedupMailStore store = createStore();
+        store.set("mail1", createMessage("mail1"));
+        byte[] otherAttachment = new byte[attachment.length];
+        for (int i = 0; i < otherAttachment.length; i++) {
+            otherAttachment[i] = (byte) (i * 17 % 241);
+        }
+        MimeMessage second = createMessage("mail1", otherAttachment);
+        store.set("mail1", second);
+        Assert.assertEquals(1, store.getPartCount());
+        Assert.assertEquals(1, store.getMailIds().size());
+
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        second.writeTo(original);
+        Assert.assertArrayEquals(original.toByteArray(), toBytes(store.getInputStream("mail1")));
+        Assert.assertEquals(original.size(), store.getLogicalSize());
+
+        store.remove("mail1");
+        Assert.assertEquals(0, store.getPartCount());
+        Assert.assertEquals(0, store.getStoredSize());
+        Assert.assertEquals(0, store.getLogicalSize());
+    }
+
+    @Test
+    public void testSharedPartOutlivesMessage() throws Exception {
+        DedupMailStore store = createStore();
+        store.set("mail1", createMessage("mail1"));
+        MimeMessage second = createMessage("mail2");
+        store.set("mail2", second);
+        Assert.assertEquals(1, store.getPartCount());
+
+        store.remove("mail1");
+        Assert.assertEquals(1, store.getPartCount());
+        Assert.assertNull(store.getInputStream("mail1"));
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        second.writeTo(original);
+        Assert.assertArrayEquals(original.toByteArray(), toBytes(store.getInputStream("mail2")));
+
+        DedupMailStore reopened = createStore();
+        Assert.assertEquals(1, reopened.getPartCount());
+        Assert.assertArrayEquals(original.toByteArray(), toBytes(reopened.getInputStream("mail2")));
+    }
+
+    @Test
+    public void testConcurrentSetAndRemove() throws Exception {
+        final DedupMailStore store = createStore();
+        final MimeMessage[] messages = new MimeMessage[4];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = createMessage("mail" + i);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 50; i++) {
+                            String mailid = "mail" + ((offset + i) % messages.length);
+                            if ((offset + i) % 3 == 0) {
+                                store.remove(mailid);
+                            } else {
+                                store.set(mailid, messages[(offset + i) % messages.length]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        Assert.assertEquals(store.getMailIds().isEmpty() ? 0 : 1, store.getPartCount());
+        for (String mailid : store.getMailIds()) {
+            InputStream in = store.getInputStream(mailid);
+            Assert.assertNotNull(in);
+            in.close();
+        }
+        for (int i = 0; i < messages.length; i++) {
+            store.remove("mail" + i);
+        }
+        Assert.assertEquals(0, store.getPartCount());
+        Assert.assertEquals(0, store.getStoredSize());
+        Assert.assertEquals(0, store.getLogicalSize());
+    }
+}
@@ -0,0 +1,279 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the file based mail store.</p>
+ *
+ */
+public class FileMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Configuration configuration;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+    }
+
+    private FileMailStore createStore() {
+        FileMailStore store = new FileMailStore(configuration);
+        store.setRootDir(folder.getRoot());
+        store.init();
+        return store;
+    }
+
+    @Test
+    public void testIndexedStartup() throws Exception {
+        FileMailStore store = createStore();
+        for (int i = 0; i < 5; i++) {
+            store.set("mail" + i, MailStoreTests.createMessage("mail" + i));
+        }
+        store.remove("mail2");
+
+        FileMailStore reopened = createStore();
+        Assert.assertEquals(4, reopened.getMailIds().size());
+        Assert.assertFalse(reopened.getMailIds().contains("mail2"));
+        Assert.assertEquals("tenant-mail3", reopened.getIndexedHeader("mail3", Aspirin.HEADER_TENANT));
+        Assert.assertTrue(0 < reopened.getSize("mail3"));
+        Assert.assertEquals("Test mail3", reopened.get("mail3").getSubject());
+    }
+
+    @Test
+    public void testIndexRebuild() throws Exception {
+        FileMailStore store = createStore();
+        for (int i = 0; i < 5; i++) {
+            store.set("mail" + i, MailStoreTests.createMessage("mail" + i));
+        }
+        Assert.assertTrue(new File(folder.getRoot(), FileMailStore.INDEX_FILE_NAME).delete());
+
+        FileMailStore reopened = createStore();
+        Assert.assertEquals(5, reopened.getMailIds().size());
+        Assert.assertEquals("tenant-mail1", reopened.getIndexedHeader("mail1", Aspirin.HEADER_TENANT));
+        Assert.assertEquals("Body of mail1", reopened.get("mail1").getContent());
+        Assert.assertTrue(new File(folder.getRoot(), FileMailStore.INDEX_FILE_NAME).exists());
+    }
+
+    @Test
+    public void testConcurrentGetLoadsOnce() throws Exception {
+        createStore().set("mail1", MailStoreTests.createMessage("mail1"));
+        final FileMailStore store = createStore();
+        // The race of a late loader and a finished load is rare, so it is repeated
+        int rounds = 100;
+        for (int round = 0; round < rounds; round++) {
+            store.getMessageCache().remove("mail1");
+            long hits = store.getMessageCache().getHitCount();
+            long waits = store.getLoadWaitCount();
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final MimeMessage[] results = new MimeMessage[8];
+            Thread[] threads = new Thread[results.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int index = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            results[index] = store.get("mail1");
+                        } catch (InterruptedException e) {
+                            // Result remains null
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            startLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(round + 1, store.getLoadCount());
+            Assert.assertEquals(results.length - 1, store.getMessageCache().getHitCount() - hits + store.getLoadWaitCount() - waits);
+            for (MimeMessage result : results) {
+                Assert.assertSame(results[0], result);
+            }
+        }
+    }
+
+    @Test
+    public void testReplaceMessage() throws Exception {
+        FileMailStore store = createStore();
+        store.set("mail1", MailStoreTests.createMessage("mail1"));
+        MimeMessage replacement = MailStoreTests.createMessage("mail1");
+        replacement.setSubject("Replaced");
+        store.set("mail1", replacement);
+
+        FileMailStore reopened = createStore();
+        Assert.assertEquals(1, reopened.getMailIds().size());
+        Assert.assertEquals("Replaced", reopened.get("mail1").getSubject());
+    }
+
+    @Test
+    public void testCompressedFiles() throws Exception {
+        FileMailStore store = createStore();
+        store.set("plain", MailStoreTests.createMessage("plain"));
+        configuration.setMailStoreCompressionLevel(6);
+        MimeMessage message = MailStoreTests.createMessage("compressed");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("Repeated line of the compressed message body.\r\n");
+        }
+        message.setText(body.toString());
+        message.saveChanges();
+        store.set("compressed", message);
+        Assert.assertEquals(1, store.getCompressedWriteCount());
+        Assert.assertTrue(1 < store.getCompressionRatio());
+        long rawSize = store.getSize("compressed");
+        Assert.assertTrue(body.length() < rawSize);
+
+        configuration.setMailStoreCompressionLevel(-1);
+        FileMailStore reopened = createStore();
+        Assert.assertEquals("Body of plain", reopened.get("plain").getContent());
+        Assert.assertEquals(body.toString(), reopened.get("compressed").getContent());
+        Assert.assertEquals(1, reopened.getCompressedLoadCount());
+
+        Assert.assertTrue(new File(folder.getRoot(), FileMailStore.INDEX_FILE_NAME).delete());
+        FileMailStore rebuilt = createStore();
+        Assert.assertEquals(rawSize, rebuilt.getSize("compressed"));
+        Assert.assertEquals("tenant-compressed", rebuilt.getIndexedHeader("compressed", Aspirin.HEADER_TENANT));
+    }
+
+    @Test
+    public void testDurableGroupCommit() throws Exception {
+        configuration.setMailStoreSync("DURABLE");
+        final FileMailStore store = createStore();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final String mailid = "mail" + i;
+            final MimeMessage message = MailStoreTests.createMessage(mailid);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        store.set(mailid, message);
+                    } catch (InterruptedException e) {
+                        // The message is missing from the store
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length, store.getGroupCommittedCount());
+        Assert.assertTrue(store.getGroupCommitCount() <= threads.length);
+        Assert.assertEquals(0, store.getPendingWriteCount());
+
+        configuration.setMailStoreSync("NONE");
+        FileMailStore reopened = createStore();
+        Assert.assertEquals(threads.length, reopened.getMailIds().size());
+        Assert.assertEquals("Body of mail5", reopened.get("mail5").getContent());
+    }
+
+    @Test
+    public void testCommitFailureDoesNotStopCommitter() throws Exception {
+        configuration.setMailStoreSync("DURABLE");
+        final FileMailStore store = createStore();
+        final String failing = "failing";
+        store.setMessageCache(new LruMessageCache(1000000) {
+            @Override
+            public void put(String mailid, MimeMessage msg, long msgSize) {
+                if (failing.equals(mailid) && "Aspirin-MailStoreSync".equals(Thread.currentThread().getName())) {
+                    throw new IllegalStateException("Simulated failure");
+                }
+                super.put(mailid, msg, msgSize);
+            }
+        });
+        store.set(failing, MailStoreTests.createMessage(failing));
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    store.set("mail1", MailStoreTests.createMessage("mail1"));
+                } catch (Exception e) {
+                    // The message is missing from the store
+                }
+            }
+        };
+        writer.start();
+        writer.join(10000L);
+        Assert.assertFalse(writer.isAlive());
+        Assert.assertEquals(0, store.getPendingWriteCount());
+
+        store.shutdown();
+        store.set("mail2", MailStoreTests.createMessage("mail2"));
+        store.shutdown();
+
+        configuration.setMailStoreSync("NONE");
+        FileMailStore reopened = createStore();
+        Assert.assertEquals("Body of mail1", reopened.get("mail1").getContent());
+        Assert.assertEquals("Body of mail2", reopened.get("mail2").getContent());
+    }
+
+    @Test
+    public void testDurableWriteFailure() throws Exception {
+        configuration.setMailStoreSync("DURABLE");
+        FileMailStore store = createStore();
+        store.setSubDirCount(1);
+        // The temporary file could not be written over a directory
+        new File(folder.getRoot(), "0/mail1.msg.tmp").mkdirs();
+        try {
+            store.set("mail1", MailStoreTests.createMessage("mail1"));
+            Assert.fail("Failed write is not reported.");
+        } catch (RuntimeException e) {
+            Assert.assertNull(store.get("mail1"));
+        }
+        store.set("mail2", MailStoreTests.createMessage("mail2"));
+        Assert.assertEquals("Test mail2", store.get("mail2").getSubject());
+        store.shutdown();
+    }
+
+    @Test
+    public void testAcceptedWrites() throws Exception {
+        configuration.setMailStoreSync("ACCEPTED");
+        FileMailStore store = createStore();
+        store.set("mail1", MailStoreTests.createMessage("mail1"));
+        store.set("mail2", MailStoreTests.createMessage("mail2"));
+        store.remove("mail2");
+        Assert.assertEquals("Test mail1", store.get("mail1").getSubject());
+        store.flush();
+        Assert.assertEquals(0, store.getPendingWriteCount());
+        Assert.assertEquals(1, store.getMailIds().size());
+
+        configuration.setMailStoreSync("NONE");
+        FileMailStore reopened = createStore();
+        Assert.assertEquals(1, reopened.getMailIds().size());
+        Assert.assertEquals("Body of mail1", reopened.get("mail1").getContent());
+    }
+
+    @Test
+    public void testStreamingAccess() throws Exception {
+        createStore().set("mail1", MailStoreTests.createMessage("mail1"));
+        configuration.setMailStoreCompressionLevel(6);
+        createStore().set("mail2", MailStoreTests.createMessage("mail2"));
+        configuration.setMailStoreCompressionLevel(-1);
+
+        FileMailStore store = createStore();
+        MailStoreTests.assertStreamed(store, "mail1");
+        MailStoreTests.assertStreamed(store, "mail2");
+        Assert.assertEquals(0, store.getLoadCount());
+        Assert.assertNull(store.getEnvelope("missing"));
+        Assert.assertNull(store.getInputStream("missing"));
+    }
+}
@@ -0,0 +1,83 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the size bounded message cache.</p>
+ *
+ */
+public class LruMessageCacheTest {
+
+    private final Session session = Session.getInstance(new Properties());
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        LruMessageCache cache = new LruMessageCache(300);
+        cache.put("mail1", new MimeMessage(session), 100);
+        cache.put("mail2", new MimeMessage(session), 100);
+        cache.put("mail3", new MimeMessage(session), 100);
+        Assert.assertNotNull(cache.get("mail1"));
+
+        cache.put("mail4", new MimeMessage(session), 100);
+        Assert.assertNull(cache.get("mail2"));
+        Assert.assertNotNull(cache.get("mail1"));
+        Assert.assertNotNull(cache.get("mail3"));
+        Assert.assertNotNull(cache.get("mail4"));
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(300, cache.getSize());
+        Assert.assertEquals(4.0 / 5, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testPinnedNotEvicted() throws Exception {
+        LruMessageCache cache = new LruMessageCache(200);
+        cache.pin("mail1");
+        cache.put("mail1", new MimeMessage(session), 100);
+        cache.put("mail2", new MimeMessage(session), 100);
+        cache.put("mail3", new MimeMessage(session), 100);
+        Assert.assertNotNull(cache.get("mail1"));
+        Assert.assertNull(cache.get("mail2"));
+
+        cache.unpin("mail1");
+        cache.put("mail4", new MimeMessage(session), 100);
+        Assert.assertNull(cache.get("mail3"));
+        Assert.assertEquals(2, cache.getCount());
+    }
+
+    @Test
+    public void testBuiltMessagesEvicted() throws Exception {
+        MimeMessage built = createMessage(0);
+        Assert.assertEquals(-1, built.getSize());
+        long msgSize = LruMessageCache.estimateSize(built);
+        Assert.assertTrue(0 < msgSize);
+
+        LruMessageCache cache = new LruMessageCache(msgSize * 3);
+        CachedMailStore store = new CachedMailStore(new SimpleMailStore(), cache);
+        for (int i = 0; i < 10; i++) {
+            store.set("mail" + i, createMessage(i));
+        }
+        Assert.assertTrue(0 < cache.getEvictionCount());
+        Assert.assertTrue(cache.getSize() <= msgSize * 3);
+        Assert.assertTrue(cache.getCount() <= 3);
+        Assert.assertNotNull(cache.get("mail9"));
+        Assert.assertNull(cache.get("mail0"));
+        Assert.assertNotNull(store.get("mail0"));
+    }
+
+    private MimeMessage createMessage(int i) throws Exception {
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress("sender@example.com"));
+        msg.setRecipient(RecipientType.TO, new InternetAddress("user" + i + "@example.com"));
+        msg.setSubject("Message " + i);
+        msg.setText("Body of the message.");
+        return msg;
+    }
+}
@@ -0,0 +1,74 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.masukomi.aspirin.Aspirin;
+
+/**
+ * <p>Common fixtures of the mail store tests.</p>
+ *
+ */
+final class MailStoreTests {
+
+    private static final Session session = Session.getInstance(new Properties());
+
+    private MailStoreTests() {
+    }
+
+    static Session getSession() {
+        return session;
+    }
+
+    static MimeMessage createMessage(String mailid) throws Exception {
+        return createMessage(mailid, 0);
+    }
+
+    /**
+     * Create a text message with the subject "Test mailid" and the body
+     * "Body of mailid", which is padded with dots to the given size.
+     */
+    static MimeMessage createMessage(String mailid, int bodySize) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+        message.setHeader(Aspirin.HEADER_TENANT, "tenant-" + mailid);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@example.com"));
+        message.setSubject("Test " + mailid);
+        StringBuilder body = new StringBuilder("Body of " + mailid);
+        while (body.length() < bodySize) {
+            body.append('.');
+        }
+        message.setText(body.toString());
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Check the envelope and the stream of a message created by
+     * {@link #createMessage(String, int)} against the size in the store.
+     */
+    static void assertStreamed(StreamingMailStore store, String mailid) throws Exception {
+        MessageEnvelope envelope = store.getEnvelope(mailid);
+        Assert.assertEquals("sender@example.com", envelope.getSender().getAddress());
+        Assert.assertEquals(1, envelope.getRecipients().size());
+        Assert.assertEquals("Test " + mailid, envelope.getHeader("Subject"));
+        Assert.assertEquals(store.getSize(mailid), envelope.getSize());
+        InputStream in = store.getInputStream(mailid);
+        long count = 0;
+        try {
+            while (in.read() != -1) {
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(store.getSize(mailid), count);
+    }
+}
@@ -0,0 +1,84 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.InputStream;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Test of the direct memory mail store.</p>
+ *
+ */
+public class OffHeapMailStoreTest {
+
+    private OffHeapMailStore store;
+
+    @Before
+    public void setUp() {
+        store = new OffHeapMailStore();
+        store.setPageSize(512);
+        store.setCapacity(512 * 16);
+        store.init();
+    }
+
+    @Test
+    public void testPageReuse() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.set("mail" + i, MailStoreTests.createMessage("mail" + i, 1000));
+            Assert.assertEquals("Test mail" + i, store.get("mail" + i).getSubject());
+            store.remove("mail" + i);
+        }
+        Assert.assertEquals(0, store.getStoredBytes());
+        Assert.assertEquals(0, store.getUsedBytes());
+        Assert.assertTrue(store.getAllocatedBytes() <= store.getCapacity());
+    }
+
+    @Test
+    public void testReadWhileRemoved() throws Exception {
+        store.set("mail1", MailStoreTests.createMessage("mail1", 2000));
+        InputStream in = store.getInputStream("mail1");
+        store.remove("mail1");
+        Assert.assertNull(store.get("mail1"));
+        // The pages are not reused while the stream is open
+        store.set("mail2", MailStoreTests.createMessage("mail2", 2000));
+        MimeMessage message = new MimeMessage(MailStoreTests.getSession(), in);
+        in.close();
+        Assert.assertEquals("Test mail1", message.getSubject());
+        Assert.assertEquals("Test mail2", store.get("mail2").getSubject());
+    }
+
+    @Test
+    public void testCapacityExceeded() throws Exception {
+        try {
+            store.set("large", MailStoreTests.createMessage("large", 20000));
+            Assert.fail("Capacity is exceeded.");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(0, store.getUsedBytes());
+        }
+        SimpleMailStore spillMailStore = new SimpleMailStore();
+        store.setSpillMailStore(spillMailStore);
+        store.set("large", MailStoreTests.createMessage("large", 20000));
+        store.set("small", MailStoreTests.createMessage("small", 100));
+        Assert.assertEquals(1, store.getSpillCount());
+        Assert.assertNotNull(spillMailStore.get("large"));
+        Assert.assertEquals("Test large", store.get("large").getSubject());
+        Assert.assertEquals(2, store.getMailIds().size());
+        store.remove("large");
+        Assert.assertNull(spillMailStore.get("large"));
+    }
+
+    @Test
+    public void testStreamingAccess() throws Exception {
+        store.setSpillMailStore(new SimpleMailStore());
+        store.set("large", MailStoreTests.createMessage("large", 20000));
+        store.set("small", MailStoreTests.createMessage("small", 100));
+        MailStoreTests.assertStreamed(store, "large");
+        MailStoreTests.assertStreamed(store, "small");
+        Assert.assertEquals(-1, store.getSize("missing"));
+        Assert.assertNull(store.getEnvelope("missing"));
+        Assert.assertNull(store.getInputStream("missing"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the segment file based mail store.</p>
+ *
+ */
+public class SegmentMailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Configuration configuration;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+    }
+
+    private SegmentMailStore createStore() {
+        SegmentMailStore store = new SegmentMailStore(configuration);
+        store.setRootDir(folder.getRoot());
+        store.setMaxSegmentSize(4096);
+        store.setCompactionInterval(0);
+        store.init();
+        return store;
+    }
+
+    @Test
+    public void testStreamingAccess() throws Exception {
+        SegmentMailStore store = createStore();
+        store.set("mail1", MailStoreTests.createMessage("mail1"));
+        store.shutdown();
+
+        SegmentMailStore reopened = createStore();
+        MailStoreTests.assertStreamed(reopened, "mail1");
+        Assert.assertEquals(0, reopened.getMessageCache().getCount());
+        Assert.assertEquals(-1, reopened.getSize("missing"));
+        Assert.assertNull(reopened.getEnvelope("missing"));
+        Assert.assertNull(reopened.getInputStream("missing"));
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        SegmentMailStore store = createStore();
+        for (int i = 0; i < 40; i++) {
+            store.set("mail" + i, MailStoreTests.createMessage("mail" + i));
+        }
+        store.set("mail1", MailStoreTests.createMessage("mail1-replaced"));
+        store.remove("mail2");
+        Assert.assertTrue(1 < store.getSegmentCount());
+        store.shutdown();
+
+        SegmentMailStore reopened = createStore();
+        Assert.assertEquals(39, reopened.getMailIds().size());
+        Assert.assertNull(reopened.get("mail2"));
+        Assert.assertEquals("Test mail1-replaced", reopened.get("mail1").getSubject());
+        Assert.assertEquals("Body of mail30", reopened.get("mail30").getContent());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        SegmentMailStore store = createStore();
+        for (int i = 0; i < 40; i++) {
+            store.set("mail" + i, MailStoreTests.createMessage("mail" + i));
+        }
+        for (int i = 0; i < 40; i++) {
+            if (i % 10 != 0) {
+                store.remove("mail" + i);
+            }
+        }
+        int segmentCount = store.getSegmentCount();
+        long storedSize = store.getStoredSize();
+        Assert.assertTrue(0 < store.compact());
+        Assert.assertTrue(store.getSegmentCount() < segmentCount);
+        Assert.assertTrue(store.getStoredSize() < storedSize);
+        Assert.assertTrue(0 < store.getReclaimedBytes());
+        store.getMessageCache().remove("mail10");
+        Assert.assertEquals("Body of mail10", store.get("mail10").getContent());
+        store.shutdown();
+
+        // Removed messages must not come back from copied records
+        SegmentMailStore reopened = createStore();
+        Assert.assertEquals(4, reopened.getMailIds().size());
+        Assert.assertNull(reopened.get("mail11"));
+        Assert.assertEquals("Body of mail20", reopened.get("mail20").getContent());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testTombstonesDropped() throws Exception {
+        SegmentMailStore store = createStore();
+        // A long-lived old segment, which is never compacted
+        for (int i = 0; i < 8; i++) {
+            store.set("keep" + i, MailStoreTests.createMessage("keep" + i));
+        }
+        long storedSize = 0;
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.set("mail" + round + "-" + i, MailStoreTests.createMessage("mail" + round + "-" + i));
+            }
+            for (int i = 0; i < 10; i++) {
+                store.remove("mail" + round + "-" + i);
+            }
+            store.compact();
+            if (round == 5) {
+                storedSize = store.getStoredSize();
+            }
+        }
+        // The stored size does not grow at a constant live size
+        Assert.assertTrue(store.getStoredSize() + " / " + storedSize, store.getStoredSize() <= storedSize + store.getMaxSegmentSize());
+        store.shutdown();
+
+        SegmentMailStore reopened = createStore();
+        Assert.assertEquals(8, reopened.getMailIds().size());
+        Assert.assertEquals("Body of keep3", reopened.get("keep3").getContent());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        SegmentMailStore store = createStore();
+        store.set("mail1", MailStoreTests.createMessage("mail1"));
+        store.shutdown();
+        File[] segmentFiles = folder.getRoot().listFiles();
+        Assert.assertEquals(1, segmentFiles.length);
+        long validSize = segmentFiles[0].length();
+        FileOutputStream out = new FileOutputStream(segmentFiles[0], true);
+        out.write(new byte[]{0x41, 0x53, 0x47, 0x31, 0, 0, 0});
+        out.close();
+
+        SegmentMailStore reopened = createStore();
+        Assert.assertEquals(validSize, segmentFiles[0].length());
+        reopened.set("mail2", MailStoreTests.createMessage("mail2"));
+        reopened.shutdown();
+        reopened = createStore();
+        Assert.assertEquals("Body of mail1", reopened.get("mail1").getContent());
+        Assert.assertEquals("Body of mail2", reopened.get("mail2").getContent());
+        reopened.shutdown();
+    }
+}
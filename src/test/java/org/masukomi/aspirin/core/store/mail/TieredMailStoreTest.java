@@ -0,0 +1,146 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Test of the tiered mail store.</p>
+ *
+ */
+public class TieredMailStoreTest {
+
+    private SimpleMailStore coldStore;
+    private SimpleQueueStore queueStore;
+    private TieredMailStore store;
+
+    @Before
+    public void setUp() {
+        coldStore = new SimpleMailStore();
+        queueStore = new SimpleQueueStore(new Configuration(), null);
+        store = new TieredMailStore(coldStore);
+        store.setMaintenanceInterval(0);
+        store.setQueueStore(queueStore);
+        store.init();
+    }
+
+    private QueueInfo queue(String mailid, long attempt) throws Exception {
+        QueueInfo queueInfo = queueStore.createQueueInfo();
+        queueInfo.setMailid(mailid);
+        queueInfo.setRecipient("rcpt@example.com");
+        queueInfo.setExpiry(-1);
+        queueInfo.setAttempt(attempt);
+        queueStore.addAll(Collections.singletonList(queueInfo));
+        return queueInfo;
+    }
+
+    @Test
+    public void testScheduleDemotionAndPromotion() throws Exception {
+        long now = System.currentTimeMillis();
+        store.set("retry", MailStoreTests.createMessage("retry"));
+        queue("retry", now + 5 * 60000);
+        store.set("fresh", MailStoreTests.createMessage("fresh"));
+        queue("fresh", now);
+
+        store.rebalance();
+        Assert.assertEquals(1, store.getDemotionCount());
+        Assert.assertEquals(1, store.getHotCount());
+        Assert.assertNotNull(coldStore.get("retry"));
+        Assert.assertNull(coldStore.get("fresh"));
+        Assert.assertEquals(2, store.getMailIds().size());
+
+        // The retry becomes close
+        queueStore.remove("retry");
+        queue("retry", now + 1000);
+        store.rebalance();
+        Assert.assertEquals(1, store.getPromotionCount());
+        Assert.assertEquals(2, store.getHotCount());
+        Assert.assertEquals("Test retry", store.get("retry").getSubject());
+        Assert.assertEquals(0, store.getColdHitCount());
+
+        // The promoted message keeps its cold copy
+        queueStore.remove("retry");
+        queue("retry", now + 5 * 60000);
+        store.rebalance();
+        Assert.assertEquals(1, store.getHotCount());
+        store.remove("retry");
+        Assert.assertNull(coldStore.get("retry"));
+        Assert.assertNull(store.get("retry"));
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        long now = System.currentTimeMillis();
+        queue("later", now + 30000);
+        queue("sooner", now + 1000);
+        store.set("later", MailStoreTests.createMessage("later"));
+        store.setHotBudget(store.getHotSize() * 3 / 2);
+        // Over the budget, the message needed later is demoted
+        store.set("sooner", MailStoreTests.createMessage("sooner"));
+        Assert.assertEquals(1, store.getHotCount());
+        Assert.assertNotNull(coldStore.get("later"));
+        Assert.assertNull(coldStore.get("sooner"));
+        Assert.assertEquals("Test later", store.get("later").getSubject());
+        Assert.assertEquals(1, store.getColdHitCount());
+    }
+
+    @Test
+    public void testRebalanceCost() throws Exception {
+        final int[] lookups = new int[1];
+        queueStore = new SimpleQueueStore(new Configuration(), null) {
+            @Override
+            public long getNextAttempt(String mailid) {
+                lookups[0]++;
+                return super.getNextAttempt(mailid);
+            }
+        };
+        store.setQueueStore(queueStore);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            coldStore.set("cold" + i, MailStoreTests.createMessage("cold" + i));
+            queue("cold" + i, now + 5 * 60000);
+        }
+        store.init();
+        store.set("fresh", MailStoreTests.createMessage("fresh"));
+        queue("fresh", now);
+
+        // The cold backlog is not checked one by one
+        store.rebalance();
+        Assert.assertEquals(1, lookups[0]);
+        // The hot message is checked again only after its next attempt
+        store.rebalance();
+        Assert.assertEquals(1, lookups[0]);
+        Assert.assertEquals(0, store.getPromotionCount());
+
+        queueStore.remove("cold7");
+        queue("cold7", now + 1000);
+        store.rebalance();
+        Assert.assertEquals(1, store.getPromotionCount());
+        Assert.assertEquals(2, store.getHotCount());
+    }
+
+    @Test
+    public void testStreamingAccess() throws Exception {
+        long now = System.currentTimeMillis();
+        store.set("retry", MailStoreTests.createMessage("retry"));
+        queue("retry", now + 5 * 60000);
+        store.set("fresh", MailStoreTests.createMessage("fresh"));
+        queue("fresh", now);
+        store.rebalance();
+        Assert.assertEquals(1, store.getDemotionCount());
+
+        MailStoreTests.assertStreamed(store, "retry");
+        MailStoreTests.assertStreamed(store, "fresh");
+        // Cold messages are streamed without promotion
+        Assert.assertEquals(0, store.getPromotionCount());
+        Assert.assertEquals(1, store.getHotCount());
+        Assert.assertEquals(-1, store.getSize("missing"));
+        Assert.assertNull(store.getEnvelope("missing"));
+        Assert.assertNull(store.getInputStream("missing"));
+    }
+}
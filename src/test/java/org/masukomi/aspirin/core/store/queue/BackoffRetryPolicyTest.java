@@ -0,0 +1,126 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the failure classes and of the default retry policy.</p>
+ *
+ */
+public class BackoffRetryPolicyTest {
+
+    private Configuration configuration;
+    private BackoffRetryPolicy retryPolicy;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+        configuration.setDeliveryRetryJitter(0);
+        retryPolicy = new BackoffRetryPolicy(configuration);
+    }
+
+    private QueueInfo failed(String recipient, FailureClass failureClass, int attempts) {
+        QueueInfo qi = new QueueInfo(configuration, null);
+        qi.setMailid("mail1");
+        qi.setRecipient(recipient);
+        qi.setFailureClass(failureClass);
+        qi.setAttemptCount(attempts);
+        return qi;
+    }
+
+    @Test
+    public void testFailureClass() {
+        Assert.assertEquals(FailureClass.GREYLISTED, FailureClass.of("450 4.2.0 Greylisted, please try again later", null));
+        Assert.assertEquals(FailureClass.GREYLISTED, FailureClass.of("451 4.7.1 Please try again later", null));
+        Assert.assertEquals(FailureClass.MAILBOX_FULL, FailureClass.of("452 4.2.2 Mailbox full", null));
+        Assert.assertEquals(FailureClass.MAILBOX_FULL, FailureClass.of("452 Insufficient system storage", null));
+        Assert.assertEquals(FailureClass.THROTTLED, FailureClass.of("421 Too many connections", null));
+        Assert.assertEquals(FailureClass.CONNECTION, FailureClass.of("451 4.4.1 No answer from host", null));
+        Assert.assertEquals(FailureClass.TRANSIENT, FailureClass.of("451 Local error in processing", null));
+        Assert.assertEquals(FailureClass.PERMANENT, FailureClass.of("550 5.1.1 User unknown", null));
+        Assert.assertEquals(FailureClass.CONNECTION, FailureClass.of("Connection refused", new MessagingException("Failed", new ConnectException("Connection refused"))));
+        Assert.assertEquals(FailureClass.DNS, FailureClass.of(null, new UnknownHostException("mx.example.com")));
+        Assert.assertEquals(FailureClass.TRANSIENT, FailureClass.of(null, null));
+    }
+
+    @Test
+    public void testBackoff() {
+        Assert.assertEquals(120000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.GREYLISTED, 1)));
+        Assert.assertEquals(180000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.GREYLISTED, 2)));
+        Assert.assertEquals(30 * 60000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.GREYLISTED, 20)));
+        Assert.assertEquals(10 * 60000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.CONNECTION, 1)));
+        Assert.assertEquals(40 * 60000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.CONNECTION, 3)));
+        Assert.assertEquals(configuration.getDeliveryAttemptDelay(), retryPolicy.getRetryDelay(failed("a@one.com", null, 1)));
+        Assert.assertEquals(2L * configuration.getDeliveryAttemptDelay(), retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.TRANSIENT, 2)));
+    }
+
+    @Test
+    public void testConfiguredPolicies() {
+        configuration.setDeliveryRetryPolicies("GREYLISTED=60000:2:600000, two.com/greylisted=1000:3:5000, invalid");
+        Assert.assertEquals(120000L, retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.GREYLISTED, 2)));
+        Assert.assertEquals(3000L, retryPolicy.getRetryDelay(failed("a@Two.com", FailureClass.GREYLISTED, 2)));
+        Assert.assertEquals(5000L, retryPolicy.getRetryDelay(failed("a@two.com", FailureClass.GREYLISTED, 3)));
+        Assert.assertEquals(10 * 60000L, retryPolicy.getRetryDelay(failed("a@two.com", FailureClass.CONNECTION, 1)));
+    }
+
+    @Test
+    public void testJitter() {
+        configuration.setDeliveryRetryJitter(20);
+        for (int i = 0; i < 100; i++) {
+            long delay = retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.CONNECTION, 1));
+            Assert.assertTrue(String.valueOf(delay), 8 * 60000L <= delay && delay <= 12 * 60000L);
+        }
+    }
+
+    @Test
+    public void testSlowDelayAfterJitter() {
+        configuration.setDeliveryRetryJitter(50);
+        configuration.setDeliveryRetrySlowAfter(1);
+        long slowDelay = configuration.getDeliveryRetrySlowDelay();
+        for (int i = 0; i < 100; i++) {
+            long delay = retryPolicy.getRetryDelay(failed("a@one.com", FailureClass.TRANSIENT, 1));
+            Assert.assertTrue(String.valueOf(delay), slowDelay <= delay);
+        }
+    }
+
+    @Test
+    public void testSendingResult() throws Exception {
+        configuration.setDeliveryAttemptCount(10);
+        configuration.setDeliveryRetrySlowAfter(3);
+        SimpleQueueStore queueStore = new SimpleQueueStore(configuration, null);
+        queueStore.init();
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+        recipients.add(new InternetAddress("a@one.com"));
+        recipients.add(new InternetAddress("b@one.com"));
+        queueStore.add("mail1", -1L, recipients);
+
+        QueueInfo first = queueStore.next();
+        first.setState(DeliveryState.QUEUED);
+        first.setFailureClass(FailureClass.GREYLISTED);
+        long before = System.currentTimeMillis();
+        queueStore.setSendingResult(first);
+        Assert.assertFalse(first.isSlow());
+        Assert.assertTrue(before + 120000L <= first.getAttempt() && first.getAttempt() <= System.currentTimeMillis() + 120000L);
+
+        // Two attempts failed before this one, so it moves to the slow queue
+        QueueInfo second = queueStore.next();
+        second.setAttemptCount(2);
+        second.setState(DeliveryState.QUEUED);
+        second.setFailureClass(FailureClass.GREYLISTED);
+        before = System.currentTimeMillis();
+        queueStore.setSendingResult(second);
+        Assert.assertTrue(second.isSlow());
+        Assert.assertTrue(before + configuration.getDeliveryRetrySlowDelay() <= second.getAttempt());
+        Assert.assertEquals(2, queueStore.getDeferredCount());
+    }
+}
@@ -0,0 +1,167 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Simulated outage of a receiver: every attempt fails while it is down,
+ * then it accepts only a few parallel deliveries. The recovery is measured
+ * with and without the ramp up of the domain.</p>
+ *
+ */
+public class OutageRecoveryTest {
+
+    private static final int RECIPIENTS = 300;
+    private static final int CAPACITY = 8;
+    private static final long OUTAGE = 100L;
+    private static final long TIMEOUT = 20000L;
+
+    private static class Result {
+
+        private int peak = 0;
+        private int throttled = 0;
+        private long recovery = 0;
+
+        @Override
+        public String toString() {
+            return "peak=" + peak + ", throttled=" + throttled + ", recovery=" + recovery + "ms";
+        }
+    }
+
+    private Result simulate(int rampMax) throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.setDeliveryAttemptCount(10000);
+        configuration.setDeliveryRetryPolicies("CONNECTION=20:1:20,THROTTLED=20:1:20");
+        configuration.setDeliveryRampMax(rampMax);
+        configuration.setDeliveryRampInterval(20L);
+        SimpleQueueStore queueStore = new SimpleQueueStore(configuration, null);
+        queueStore.init();
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            recipients.add(new InternetAddress("user" + i + "@down.com"));
+        }
+        queueStore.add("mail1", -1L, recipients);
+
+        long end = System.currentTimeMillis() + OUTAGE;
+        while (System.currentTimeMillis() < end) {
+            for (QueueInfo qi : queueStore.next(64, false)) {
+                qi.setState(DeliveryState.QUEUED);
+                qi.setFailureClass(FailureClass.CONNECTION);
+                queueStore.setSendingResult(qi);
+            }
+            Thread.sleep(5L);
+        }
+
+        Result result = new Result();
+        int sent = 0;
+        long start = System.currentTimeMillis();
+        while (sent < RECIPIENTS && System.currentTimeMillis() < start + TIMEOUT) {
+            List<QueueInfo> claimed = queueStore.next(64, false);
+            result.peak = Math.max(result.peak, claimed.size());
+            for (int i = 0; i < claimed.size(); i++) {
+                QueueInfo qi = claimed.get(i);
+                if (i < CAPACITY) {
+                    qi.setState(DeliveryState.SENT);
+                    sent++;
+                } else {
+                    qi.setState(DeliveryState.QUEUED);
+                    qi.setFailureClass(FailureClass.THROTTLED);
+                    result.throttled++;
+                }
+                queueStore.setSendingResult(qi);
+            }
+            Thread.sleep(5L);
+        }
+        result.recovery = System.currentTimeMillis() - start;
+        Assert.assertEquals(RECIPIENTS, sent);
+        return result;
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        Result burst = simulate(0);
+        Result ramp = simulate(32);
+        Assert.assertTrue(ramp + " / " + burst, ramp.peak < burst.peak);
+        Assert.assertTrue(ramp + " / " + burst, ramp.throttled < burst.throttled);
+        // The ramp does not make the recovery meaningfully slower
+        Assert.assertTrue(ramp + " / " + burst, ramp.recovery <= 2 * burst.recovery + 200L);
+    }
+
+    @Test
+    public void testRampLimit() throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.setDeliveryAttemptCount(100);
+        configuration.setDeliveryRampMax(4);
+        configuration.setDeliveryRampInterval(0L);
+        SimpleQueueStore queueStore = new SimpleQueueStore(configuration, null);
+        queueStore.init();
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+        for (int i = 0; i < 10; i++) {
+            recipients.add(new InternetAddress("user" + i + "@down.com"));
+        }
+        queueStore.add("mail1", -1L, recipients);
+        Assert.assertEquals(-1, queueStore.getDomainRampLimit("down.com"));
+
+        QueueInfo failed = queueStore.next();
+        failed.setState(DeliveryState.QUEUED);
+        failed.setFailureClass(FailureClass.CONNECTION);
+        queueStore.setSendingResult(failed);
+        Assert.assertEquals(2, queueStore.getDomainRampLimit("down.com"));
+
+        // Only two items are dispatched, the others are deferred
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertEquals(2, claimed.size());
+        Assert.assertEquals(0, queueStore.getReadyCount());
+
+        claimed.get(0).setState(DeliveryState.SENT);
+        queueStore.setSendingResult(claimed.get(0));
+        Assert.assertEquals(3, queueStore.getDomainRampLimit("down.com"));
+        claimed.get(1).setState(DeliveryState.SENT);
+        queueStore.setSendingResult(claimed.get(1));
+        Assert.assertEquals(-1, queueStore.getDomainRampLimit("down.com"));
+    }
+
+    private void addForTenant(SimpleQueueStore queueStore, String tenant, String... recipients) throws Exception {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        for (String recipient : recipients) {
+            QueueInfo qi = queueStore.createQueueInfo();
+            qi.setMailid(tenant + "-mail");
+            qi.setRecipient(recipient);
+            qi.setTenant(tenant);
+            queueInfos.add(qi);
+        }
+        queueStore.addAll(queueInfos);
+    }
+
+    @Test
+    public void testDeferredKeepsTenantTurn() throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.setDeliveryAttemptCount(100);
+        configuration.setDeliveryRampMax(4);
+        configuration.setDeliveryRampInterval(60000L);
+        SimpleQueueStore queueStore = new SimpleQueueStore(configuration, null);
+        queueStore.init();
+
+        // The domain ramps up, and it is at its limit
+        addForTenant(queueStore, "other", "d0@down.com");
+        QueueInfo failed = queueStore.next();
+        failed.setState(DeliveryState.QUEUED);
+        failed.setFailureClass(FailureClass.CONNECTION);
+        queueStore.setSendingResult(failed);
+        addForTenant(queueStore, "other", "d1@down.com", "d2@down.com");
+        Assert.assertEquals(2, queueStore.next(2, false).size());
+
+        addForTenant(queueStore, "a", "a0@down.com", "a1@up.com", "a2@up.com");
+        addForTenant(queueStore, "b", "b0@up.com", "b1@up.com");
+        // The deferred item does not spend the turn of its tenant
+        Assert.assertEquals("a1@up.com", queueStore.next(1, false).get(0).getRecipient());
+        Assert.assertEquals("b0@up.com", queueStore.next(1, false).get(0).getRecipient());
+        Assert.assertEquals("a2@up.com", queueStore.next(1, false).get(0).getRecipient());
+    }
+}
@@ -0,0 +1,371 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.listener.ListenerManager;
+
+/**
+ * <p>Test of the in-memory queue store.</p>
+ *
+ */
+public class SimpleQueueStoreTest {
+
+    private Configuration configuration;
+    private SimpleQueueStore queueStore;
+
+    @Before
+    public void setUp() {
+        configuration = new Configuration();
+        queueStore = new SimpleQueueStore(configuration, null);
+        queueStore.init();
+    }
+
+    private List<InternetAddress> recipients(String... addresses) throws Exception {
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+        for (String address : addresses) {
+            recipients.add(new InternetAddress(address));
+        }
+        return recipients;
+    }
+
+    @Test
+    public void testBatchClaim() throws Exception {
+        queueStore.add("mail1", -1L, recipients("a@one.com", "b@two.com", "c@one.com", "d@two.com", "e@one.com"));
+
+        List<QueueInfo> claimed = queueStore.next(3, false);
+        Assert.assertEquals(3, claimed.size());
+        for (QueueInfo qi : claimed) {
+            Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+        }
+
+        List<QueueInfo> rest = queueStore.next(10, false);
+        Assert.assertEquals(2, rest.size());
+        Assert.assertTrue(queueStore.next(10, false).isEmpty());
+        Assert.assertNull(queueStore.next());
+    }
+
+    @Test
+    public void testLiveState() throws Exception {
+        queueStore.add("mail1", -1L, recipients("a@one.com", "b@two.com", "c@One.com", "d@one.com"));
+        Assert.assertEquals(4, queueStore.getQueuedCount());
+        Assert.assertEquals(3, queueStore.getDomainBacklog("one.com"));
+        Assert.assertArrayEquals(new String[]{"one.com=3", "two.com=1"}, queueStore.getDomainBacklogSummary());
+
+        List<QueueInfo> claimed = queueStore.next(1, false);
+        Assert.assertEquals(1, queueStore.getInProgressCount());
+        Assert.assertEquals(3, queueStore.getReadyCount());
+        Assert.assertEquals(0, queueStore.getDeferredCount());
+        claimed.get(0).setState(DeliveryState.QUEUED);
+        queueStore.setSendingResult(claimed.get(0));
+        Assert.assertEquals(1, queueStore.getDeferredCount());
+        Assert.assertEquals(0, queueStore.getInProgressCount());
+        Assert.assertTrue(0 <= queueStore.getOldestItemAge());
+
+        List<QueueInfo> purged = queueStore.purgeDomain("ONE.com", "Purged");
+        Assert.assertEquals(3, purged.size());
+        for (QueueInfo qi : purged) {
+            Assert.assertTrue(qi.hasState(DeliveryState.FAILED));
+            Assert.assertEquals("Purged", qi.getResultInfo());
+        }
+        Assert.assertEquals(0, queueStore.getDomainBacklog("one.com"));
+        Assert.assertEquals(1, queueStore.getQueuedCount());
+    }
+
+    private void addCreated(String mailid, long created) throws Exception {
+        QueueInfo qi = queueStore.createQueueInfo();
+        qi.setMailid(mailid);
+        qi.setRecipient("a@" + mailid + ".com");
+        qi.setCreated(created);
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        queueInfos.add(qi);
+        queueStore.addAll(queueInfos);
+    }
+
+    @Test
+    public void testOldestItemAge() throws Exception {
+        long now = System.currentTimeMillis();
+        addCreated("newer", now - 50000);
+        addCreated("oldest", now - 100000);
+        Assert.assertTrue(100000 <= queueStore.getOldestItemAge());
+
+        // Items in progress are still counted
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertTrue(100000 <= queueStore.getOldestItemAge());
+
+        for (QueueInfo qi : claimed) {
+            if ("oldest".equals(qi.getMailid())) {
+                qi.setState(DeliveryState.SENT);
+                queueStore.setSendingResult(qi);
+            }
+        }
+        long age = queueStore.getOldestItemAge();
+        Assert.assertTrue(50000 <= age && age < 100000);
+
+        queueStore.remove("newer");
+        Assert.assertEquals(0, queueStore.getOldestItemAge());
+    }
+
+    @Test
+    public void testBatchClaimGroupedByDomain() throws Exception {
+        queueStore.add("mail1", -1L, recipients("a@one.com", "b@two.com", "c@one.com", "d@two.com", "e@One.com"));
+
+        List<QueueInfo> claimed = queueStore.next(5, true);
+        Assert.assertEquals(5, claimed.size());
+        List<String> domains = new ArrayList<String>();
+        for (QueueInfo qi : claimed) {
+            String domain = qi.getRecipientDomain();
+            if (domains.isEmpty() || !domains.get(domains.size() - 1).equals(domain)) {
+                Assert.assertFalse("Domain is not grouped: " + domain, domains.contains(domain));
+                domains.add(domain);
+            }
+        }
+        Assert.assertEquals(2, domains.size());
+    }
+
+    @Test
+    public void testRequeue() throws Exception {
+        queueStore.add("mail1", -1L, recipients("a@one.com", "b@two.com"));
+
+        List<QueueInfo> claimed = queueStore.next(2, false);
+        queueStore.requeue(claimed.subList(1, 2));
+        Assert.assertTrue(claimed.get(1).hasState(DeliveryState.QUEUED));
+        Assert.assertEquals(0, claimed.get(1).getAttemptCount());
+
+        List<QueueInfo> again = queueStore.next(2, false);
+        Assert.assertEquals(1, again.size());
+        Assert.assertSame(claimed.get(1), again.get(0));
+    }
+
+    private void addWithPriority(String mailid, DeliveryPriority priority, int count) throws Exception {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        for (int i = 0; i < count; i++) {
+            QueueInfo qi = queueStore.createQueueInfo();
+            qi.setMailid(mailid);
+            qi.setRecipient("r" + i + "@example.com");
+            qi.setPriority(priority);
+            queueInfos.add(qi);
+        }
+        queueStore.addAll(queueInfos);
+    }
+
+    @Test
+    public void testHighPriorityFirst() throws Exception {
+        configuration.setDeliveryPriorityShares("");
+        addWithPriority("bulk", DeliveryPriority.BULK, 10);
+        addWithPriority("normal", DeliveryPriority.NORMAL, 10);
+        addWithPriority("high", DeliveryPriority.HIGH, 10);
+
+        List<QueueInfo> claimed = queueStore.next(30, false);
+        Assert.assertEquals(30, claimed.size());
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(i < 10 ? "high" : i < 20 ? "normal" : "bulk", claimed.get(i).getMailid());
+        }
+    }
+
+    @Test
+    public void testBulkMinimalShare() throws Exception {
+        configuration.setDeliveryPriorityShares("BULK=20");
+        addWithPriority("high", DeliveryPriority.HIGH, 1000);
+        addWithPriority("bulk", DeliveryPriority.BULK, 1000);
+
+        int bulk = 0;
+        for (int i = 0; i < 50; i++) {
+            for (QueueInfo qi : queueStore.next(10, false)) {
+                if ("bulk".equals(qi.getMailid())) {
+                    bulk++;
+                }
+            }
+        }
+        Assert.assertTrue("Bulk lane is starving: " + bulk, 90 <= bulk && bulk <= 110);
+        Assert.assertEquals(1000 - bulk, queueStore.getReadySize(DeliveryPriority.BULK));
+    }
+
+    private void addForTenant(String tenant, int count) throws Exception {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        for (int i = 0; i < count; i++) {
+            QueueInfo qi = queueStore.createQueueInfo();
+            qi.setMailid(tenant + "-mail");
+            qi.setRecipient("r" + i + "@example.com");
+            qi.setTenant(tenant);
+            queueInfos.add(qi);
+        }
+        queueStore.addAll(queueInfos);
+    }
+
+    @Test
+    public void testWeightedTenants() throws Exception {
+        configuration.setTenantWeights("big=3");
+        addForTenant("big", 1000);
+        addForTenant("small", 10);
+
+        // The small tenant is served in every round, it does not wait for big
+        List<QueueInfo> claimed = queueStore.next(20, false);
+        int small = 0;
+        for (QueueInfo qi : claimed) {
+            if ("small".equals(qi.getTenant())) {
+                small++;
+            }
+        }
+        Assert.assertEquals(5, small);
+        Assert.assertEquals(15, claimed.size() - small);
+    }
+
+    @Test
+    public void testTenantConcurrencyLimit() throws Exception {
+        configuration.setTenantConcurrencyMax(2);
+        addForTenant("big", 10);
+        addForTenant("small", 10);
+
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertEquals(4, claimed.size());
+        Assert.assertEquals("big", claimed.get(0).getTenant());
+        claimed.get(0).setState(DeliveryState.SENT);
+        queueStore.setSendingResult(claimed.get(0));
+        List<QueueInfo> again = queueStore.next(10, false);
+        Assert.assertEquals(1, again.size());
+        Assert.assertEquals("big", again.get(0).getTenant());
+
+        List<TenantStats> stats = queueStore.getTenantStats();
+        Assert.assertEquals(2, stats.size());
+        TenantStats big = stats.get(0);
+        Assert.assertEquals("big", big.getTenant());
+        Assert.assertEquals(7, big.getQueued());
+        Assert.assertEquals(2, big.getInProgress());
+        Assert.assertEquals(3, big.getClaimed());
+        Assert.assertEquals(1, big.getSent());
+        TenantStats small = stats.get(1);
+        Assert.assertEquals(8, small.getQueued());
+        Assert.assertEquals(2, small.getInProgress());
+    }
+
+    @Test
+    public void testBackgroundExpiry() throws Exception {
+        final List<QueueInfo> notified = new ArrayList<QueueInfo>();
+        queueStore = new SimpleQueueStore(configuration, new ListenerManager() {
+            @Override
+            public void notifyListeners(QueueInfo qi) {
+                notified.add(qi);
+            }
+        });
+        queueStore.setBackgroundExpiry(true);
+        long expiry = System.currentTimeMillis() + 50;
+        queueStore.add("mail1", expiry, recipients("a@one.com", "b@one.com", "c@one.com", "d@two.com", "e@two.com"));
+        queueStore.add("mail2", -1L, recipients("f@one.com"));
+        queueStore.add("mail3", expiry + 60000, recipients("g@one.com"));
+        queueStore.add("mail4", Long.MAX_VALUE, recipients("h@one.com"));
+        Assert.assertEquals(6, queueStore.getExpiringCount());
+        Thread.sleep(60);
+
+        // Expired items are skipped, but they are not failed on claim
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertEquals(3, claimed.size());
+        Assert.assertTrue(notified.isEmpty());
+        Assert.assertFalse(queueStore.isCompleted("mail1"));
+
+        List<QueueInfo> expired = queueStore.expire(3);
+        Assert.assertEquals(3, expired.size());
+        Assert.assertEquals(3, notified.size());
+        for (QueueInfo qi : expired) {
+            Assert.assertTrue(qi.hasState(DeliveryState.FAILED));
+            Assert.assertEquals("mail1", qi.getMailid());
+        }
+        Assert.assertEquals(2, queueStore.expire(3).size());
+        Assert.assertTrue(queueStore.expire(3).isEmpty());
+        Assert.assertTrue(queueStore.isCompleted("mail1"));
+        Assert.assertEquals(1, queueStore.getExpiringCount());
+        Assert.assertEquals(5, notified.size());
+    }
+
+    @Test
+    public void testPurgeWhileExpiring() throws Exception {
+        final List<QueueInfo> notified = new ArrayList<QueueInfo>();
+        final List<QueueInfo> purged = new ArrayList<QueueInfo>();
+        queueStore = new SimpleQueueStore(configuration, new ListenerManager() {
+            @Override
+            public void notifyListeners(QueueInfo qi) {
+                notified.add(qi);
+                // A purge between the sweep and the notifications
+                if (notified.size() == 1) {
+                    purged.addAll(queueStore.purgeDomain("one.com", "Purged"));
+                }
+            }
+        });
+        queueStore.setBackgroundExpiry(true);
+        queueStore.add("mail1", System.currentTimeMillis() + 20, recipients("a@one.com", "b@one.com"));
+        queueStore.add("mail2", -1L, recipients("c@one.com"));
+        Thread.sleep(30);
+
+        Assert.assertEquals(2, queueStore.expire(10).size());
+        Assert.assertEquals(1, purged.size());
+        Assert.assertEquals("mail2", purged.get(0).getMailid());
+        Assert.assertEquals(3, notified.size());
+        Assert.assertEquals(3, queueStore.getTenantStats().get(0).getFailed());
+    }
+
+    @Test
+    public void testExpireSkipsItemsInProgress() throws Exception {
+        queueStore.add("mail1", System.currentTimeMillis() + 20, recipients("a@one.com", "b@one.com"));
+        QueueInfo inProgress = queueStore.next();
+        Thread.sleep(30);
+        List<QueueInfo> expired = queueStore.expire(10);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertNotSame(inProgress, expired.get(0));
+        Assert.assertTrue(inProgress.hasState(DeliveryState.IN_PROGRESS));
+
+        // The failed attempt of an expired item is failed by the next sweep
+        inProgress.setState(DeliveryState.QUEUED);
+        queueStore.setSendingResult(inProgress);
+        Assert.assertEquals(1, queueStore.expire(10).size());
+        Assert.assertEquals(0, queueStore.getExpiringCount());
+    }
+
+    private void addScheduled(String mailid, long deliverAt, int count) throws Exception {
+        List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+        for (int i = 0; i < count; i++) {
+            QueueInfo qi = queueStore.createQueueInfo();
+            qi.setMailid(mailid);
+            qi.setRecipient("r" + i + "@example.com");
+            qi.setAttempt(deliverAt);
+            queueInfos.add(qi);
+        }
+        queueStore.addAll(queueInfos);
+    }
+
+    @Test
+    public void testScheduledDelivery() throws Exception {
+        configuration.setDeliveryScheduledRate(0);
+        addScheduled("later", System.currentTimeMillis() + 50, 3);
+        queueStore.add("now", -1L, recipients("a@one.com"));
+        Assert.assertEquals(4, queueStore.getQueuedCount());
+        Assert.assertEquals(3, queueStore.getScheduledCount());
+        Assert.assertEquals(1, queueStore.next(10, false).size());
+
+        Thread.sleep(60);
+        List<QueueInfo> claimed = queueStore.next(10, false);
+        Assert.assertEquals(3, claimed.size());
+        Assert.assertEquals("later", claimed.get(0).getMailid());
+        Assert.assertEquals(0, queueStore.getScheduledCount());
+    }
+
+    @Test
+    public void testScheduledRamp() throws Exception {
+        configuration.setDeliveryScheduledRate(20);
+        addScheduled("campaign", System.currentTimeMillis() + 10, 100);
+        Thread.sleep(20);
+
+        // At most one second of the rate is released at once, then the rest gradually
+        Assert.assertEquals(20, queueStore.next(100, false).size());
+        Assert.assertTrue(queueStore.next(100, false).size() <= 1);
+        Thread.sleep(250);
+        int released = queueStore.next(100, false).size();
+        Assert.assertTrue(String.valueOf(released), 4 <= released && released < 20);
+        Assert.assertEquals(100 - 20 - released, queueStore.getScheduledCount(), 1);
+    }
+}